@@ -0,0 +1,73 @@
+package in.sivareddy.graphparser.cli;
+
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseCached;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseSnapshot;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Converts a cached KB (gzipped facts) into a binary snapshot which loads
+ * without parsing. Pass the snapshot wherever a cachedKB is expected.
+ */
+public class RunCreateKnowledgeBaseSnapshot extends AbstractCli {
+
+  private OptionSpec<String> cachedKB;
+
+  // Relations that are potential types
+  private OptionSpec<String> relationTypesFile;
+
+  private OptionSpec<String> output;
+
+  public static void main(String[] args) {
+    new RunCreateKnowledgeBaseSnapshot().run(args);
+  }
+
+  @Override
+  public void initializeOptions(OptionParser parser) {
+    parser.acceptsAll(Arrays.asList("help", "h"), "Print this help message.");
+
+    cachedKB =
+        parser.accepts("cachedKB", "cached version of KB").withRequiredArg()
+            .ofType(String.class).required();
+
+    relationTypesFile =
+        parser
+            .accepts(
+                "relationTypesFile",
+                "File containing relations that may be potential types e.g. data/freebase/stats/business_relation_types.txt")
+            .withRequiredArg().ofType(String.class).required();
+
+    output =
+        parser
+            .accepts(
+                "output",
+                "snapshot file to write, should end with "
+                    + KnowledgeBaseSnapshot.FILE_SUFFIX).withRequiredArg()
+            .ofType(String.class).required();
+  }
+
+  @Override
+  public void run(OptionSet options) {
+    String snapshotFile = options.valueOf(output);
+    Preconditions.checkArgument(
+        snapshotFile.endsWith(KnowledgeBaseSnapshot.FILE_SUFFIX),
+        "Snapshot file should end with " + KnowledgeBaseSnapshot.FILE_SUFFIX);
+    try {
+      KnowledgeBaseCached kb =
+          new KnowledgeBaseCached(options.valueOf(cachedKB),
+              options.valueOf(relationTypesFile));
+      kb.writeSnapshot(snapshotFile);
+      System.out.println("# Snapshot written to " + snapshotFile + ": "
+          + KnowledgeBaseSnapshot.open(snapshotFile));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -10,7 +10,9 @@ import in.sivareddy.graphparser.util.Schema;
 import in.sivareddy.graphparser.util.graph.Edge;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBase;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseCached;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseMapped;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseOnline;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseSnapshot;
 import in.sivareddy.ml.learning.StructuredPercepton;
 import in.sivareddy.util.ProcessStreamInterface;
 import in.sivareddy.util.SentenceKeys;
@@ -19,7 +21,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Set;
 
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -138,7 +140,11 @@ public class RunDumpPredicatesCli extends AbstractCli {
             .withRequiredArg().ofType(String.class).required();
 
     cachedKB =
-        parser.accepts("cachedKB", "cached version of KB").withRequiredArg()
+        parser
+            .accepts(
+                "cachedKB",
+                "cached version of KB. A snapshot file (.kbsnapshot) is served from memory-mapped files")
+            .withRequiredArg()
             .ofType(String.class).defaultsTo("");
 
     
@@ -154,7 +160,10 @@ public class RunDumpPredicatesCli extends AbstractCli {
       String relationTypesFileName = options.valueOf(relationTypesFile);
       KnowledgeBase kb = null;
 
-      if (!options.valueOf(cachedKB).equals("")) {
+      if (options.valueOf(cachedKB).endsWith(
+          KnowledgeBaseSnapshot.FILE_SUFFIX)) {
+        kb = new KnowledgeBaseMapped(options.valueOf(cachedKB));
+      } else if (!options.valueOf(cachedKB).equals("")) {
         kb =
             new KnowledgeBaseCached(options.valueOf(cachedKB),
                 relationTypesFileName);
@@ -266,7 +275,7 @@ public class RunDumpPredicatesCli extends AbstractCli {
         // System.out.println(graphs.get(0));
         LexicalGraph firstGraph = graphs.get(0);
         LexicalItem qNode = firstGraph.getQuestionNode().iterator().next();
-        TreeSet<Edge<LexicalItem>> qEdges = firstGraph.getEdges(qNode);
+        Set<Edge<LexicalItem>> qEdges = firstGraph.getEdgesView(qNode);
         if (qEdges != null) {
           for (Edge<LexicalItem> edge : qEdges) {
             if (edge.getRight().isEntity()) {
@@ -6,11 +6,16 @@ import in.sivareddy.graphparser.learning.GraphToQueryTrainingMain;
 import in.sivareddy.graphparser.parsing.GraphToSparqlConverter;
 import in.sivareddy.graphparser.parsing.GroundedGraphs;
 import in.sivareddy.graphparser.util.GroundedLexicon;
+import in.sivareddy.graphparser.util.PersistentQueryCache;
+import in.sivareddy.graphparser.util.PooledHttpTransport;
 import in.sivareddy.graphparser.util.RdfGraphTools;
 import in.sivareddy.graphparser.util.Schema;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBase;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseCached;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseMapped;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseOnline;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseSnapshot;
+import in.sivareddy.ml.learning.StructuredPercepton;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -77,6 +82,15 @@ public class RunGraphToQueryTrainingMain extends AbstractCli {
   private OptionSpec<Integer> trainingSampleSize;
   private OptionSpec<Integer> nthreads;
   private OptionSpec<Integer> timeout;
+  private OptionSpec<Integer> endpointConnections;
+  private OptionSpec<String> queryCacheDir;
+  private OptionSpec<Integer> queryCacheSize;
+  private OptionSpec<Integer> speculativeQueries;
+  private OptionSpec<Boolean> localAnswers;
+  private OptionSpec<Integer> trainingBatchSize;
+  private OptionSpec<Long> trainingSeed;
+  private OptionSpec<Boolean> saveReadableModel;
+  private OptionSpec<Boolean> verifyIncrementalScores;
   private OptionSpec<Integer> iterations;
 
   // Try nbest syntactic parses
@@ -170,7 +184,11 @@ public class RunGraphToQueryTrainingMain extends AbstractCli {
     parser.acceptsAll(Arrays.asList("help", "h"), "Print this help message.");
 
     endpoint =
-        parser.accepts("endpoint", "SPARQL endpoint").withRequiredArg()
+        parser
+            .accepts(
+                "endpoint",
+                "SPARQL endpoint host, or tdb:<directory> to query a Jena TDB dataset in-process")
+            .withRequiredArg()
             .ofType(String.class).required();
 
     typeKey =
@@ -292,7 +310,11 @@ public class RunGraphToQueryTrainingMain extends AbstractCli {
             .withRequiredArg().ofType(String.class).required();
 
     cachedKB =
-        parser.accepts("cachedKB", "cached version of KB").withRequiredArg()
+        parser
+            .accepts(
+                "cachedKB",
+                "cached version of KB. A snapshot file (.kbsnapshot) is served from memory-mapped files")
+            .withRequiredArg()
             .ofType(String.class).defaultsTo("");
 
     testFile =
@@ -313,6 +335,65 @@ public class RunGraphToQueryTrainingMain extends AbstractCli {
                 "timeout for each sparql query in milli seconds")
             .withRequiredArg().ofType(Integer.class).defaultsTo(10000);
 
+    endpointConnections =
+        parser
+            .accepts("endpointConnections",
+                "maximum number of concurrent connections to the SPARQL endpoint")
+            .withRequiredArg().ofType(Integer.class)
+            .defaultsTo(PooledHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT);
+
+    queryCacheDir =
+        parser
+            .accepts("queryCacheDir",
+                "directory to keep the results of SPARQL queries across runs")
+            .withRequiredArg().ofType(String.class).defaultsTo("");
+
+    queryCacheSize =
+        parser
+            .accepts("queryCacheSize",
+                "maximum size of queryCacheDir in mega bytes")
+            .withRequiredArg().ofType(Integer.class).defaultsTo(2048);
+
+    speculativeQueries =
+        parser
+            .accepts("speculativeQueries",
+                "number of candidate graph queries sent at once while predicting, 1 to send one at a time")
+            .withRequiredArg().ofType(Integer.class)
+            .defaultsTo(GraphToQueryTraining.SPECULATIVE_QUERIES);
+
+    localAnswers =
+        parser
+            .accepts("localAnswers",
+                "answer simple graphs from the cached knowledge base instead of the SPARQL endpoint")
+            .withRequiredArg().ofType(Boolean.class).defaultsTo(false);
+
+    trainingBatchSize =
+        parser
+            .accepts("trainingBatchSize",
+                "number of training sentences whose updates are merged in input order, 0 to update after each sentence")
+            .withRequiredArg().ofType(Integer.class)
+            .defaultsTo(GraphToQueryTraining.TRAINING_BATCH_SIZE);
+
+    trainingSeed =
+        parser
+            .accepts("trainingSeed",
+                "seed for sampling and shuffling the training examples")
+            .withRequiredArg().ofType(Long.class);
+
+    saveReadableModel =
+        parser
+            .accepts("saveReadableModel",
+                "also save each model as text sorted by weight, in the background")
+            .withRequiredArg().ofType(Boolean.class)
+            .defaultsTo(StructuredPercepton.SAVE_READABLE_MODEL);
+
+    verifyIncrementalScores =
+        parser
+            .accepts("verifyIncrementalScores",
+                "recompute every incremental graph score over all its features and log mismatches")
+            .withRequiredArg().ofType(Boolean.class)
+            .defaultsTo(GroundedGraphs.VERIFY_INCREMENTAL_SCORES);
+
     trainingSampleSize =
         parser
             .accepts("trainingSampleSize",
@@ -678,13 +759,22 @@ public class RunGraphToQueryTrainingMain extends AbstractCli {
   @Override
   public void run(OptionSet options) {
     try {
+      PooledHttpTransport.getShared().setMaxConnectionsPerEndpoint(
+          options.valueOf(endpointConnections));
       Schema schemaObj = new Schema(options.valueOf(schema));
       String relationTypesFileName = options.valueOf(relationTypesFile);
       KnowledgeBase kb = null;
 
-      if (!options.valueOf(cachedKB).equals("")) {
+      if (options.valueOf(cachedKB).endsWith(
+          KnowledgeBaseSnapshot.FILE_SUFFIX)) {
+        kb = new KnowledgeBaseMapped(options.valueOf(cachedKB));
+      } else if (!options.valueOf(cachedKB).equals("")) {
         kb = new KnowledgeBaseCached(options.valueOf(cachedKB),
             relationTypesFileName);
+      } else if (RdfGraphTools.isTdbEndpoint(options.valueOf(endpoint))) {
+        KnowledgeBaseOnline.TYPE_KEY = options.valueOf(typeKey);
+        kb = new KnowledgeBaseOnline(RdfGraphTools.openTdb(
+            getTdbDirectory(options.valueOf(endpoint)), 50000), schemaObj);
       } else {
         KnowledgeBaseOnline.TYPE_KEY = options.valueOf(typeKey);
         kb = new KnowledgeBaseOnline(options.valueOf(endpoint),
@@ -692,10 +782,34 @@ public class RunGraphToQueryTrainingMain extends AbstractCli {
             "dba", "dba", 50000, schemaObj);
       }
 
-      RdfGraphTools rdfGraphTools = new RdfGraphTools(options.valueOf(endpoint),
-          String.format("http://%s:8890/sparql", options.valueOf(endpoint)),
-          "dba", "dba", options.valueOf(timeout));
+      RdfGraphTools rdfGraphTools;
+      if (RdfGraphTools.isTdbEndpoint(options.valueOf(endpoint))) {
+        rdfGraphTools =
+            RdfGraphTools.openTdb(getTdbDirectory(options.valueOf(endpoint)),
+                options.valueOf(timeout));
+      } else {
+        rdfGraphTools = new RdfGraphTools(options.valueOf(endpoint),
+            String.format("http://%s:8890/sparql", options.valueOf(endpoint)),
+            "dba", "dba", options.valueOf(timeout));
+      }
+      if (!options.valueOf(queryCacheDir).equals("")) {
+        rdfGraphTools.setPersistentCache(new PersistentQueryCache(
+            options.valueOf(queryCacheDir),
+            options.valueOf(queryCacheSize) * 1024L * 1024L));
+      }
       GraphToSparqlConverter.TYPE_KEY = options.valueOf(typeKey);
+      GraphToQueryTraining.SPECULATIVE_QUERIES =
+          options.valueOf(speculativeQueries);
+      GraphToQueryTraining.LOCAL_ANSWERS = options.valueOf(localAnswers);
+      GraphToQueryTraining.TRAINING_BATCH_SIZE =
+          options.valueOf(trainingBatchSize);
+      StructuredPercepton.SAVE_READABLE_MODEL =
+          options.valueOf(saveReadableModel);
+      GroundedGraphs.VERIFY_INCREMENTAL_SCORES =
+          options.valueOf(verifyIncrementalScores);
+      if (options.has(trainingSeed)) {
+        GraphToQueryTrainingMain.setRandomSeed(options.valueOf(trainingSeed));
+      }
       GroundedGraphs.CONTENT_WORD_POS =
           Sets.newHashSet(Splitter.on(";").trimResults().omitEmptyStrings()
               .split(options.valueOf(contentWordPosTags)));
@@ -897,4 +1011,8 @@ public class RunGraphToQueryTrainingMain extends AbstractCli {
   public static void main(String[] args) {
     new RunGraphToQueryTrainingMain().run(args);
   }
+
+  private static String getTdbDirectory(String endpoint) {
+    return endpoint.substring(RdfGraphTools.TDB_ENDPOINT_PREFIX.length());
+  }
 }
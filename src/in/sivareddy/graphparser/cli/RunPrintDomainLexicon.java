@@ -7,7 +7,9 @@ import in.sivareddy.graphparser.util.GroundedLexicon;
 import in.sivareddy.graphparser.util.Schema;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBase;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseCached;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseMapped;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseOnline;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseSnapshot;
 
 import java.util.Arrays;
 
@@ -57,7 +59,11 @@ public class RunPrintDomainLexicon extends AbstractCli {
             .withRequiredArg().ofType(String.class).required();
 
     cachedKB =
-        parser.accepts("cachedKB", "cached version of KB").withRequiredArg()
+        parser
+            .accepts(
+                "cachedKB",
+                "cached version of KB. A snapshot file (.kbsnapshot) is served from memory-mapped files")
+            .withRequiredArg()
             .ofType(String.class).defaultsTo("");
 
     endpoint =
@@ -138,7 +144,10 @@ public class RunPrintDomainLexicon extends AbstractCli {
       Schema schemaObj = new Schema(options.valueOf(schema));
       String relationTypesFileName = options.valueOf(relationTypesFile);
       KnowledgeBase kb = null;
-      if (!options.valueOf(cachedKB).equals("")) {
+      if (options.valueOf(cachedKB).endsWith(
+          KnowledgeBaseSnapshot.FILE_SUFFIX)) {
+        kb = new KnowledgeBaseMapped(options.valueOf(cachedKB));
+      } else if (!options.valueOf(cachedKB).equals("")) {
         kb =
             new KnowledgeBaseCached(options.valueOf(cachedKB),
                 relationTypesFileName);
@@ -219,7 +219,7 @@ public class RunTrainEntityScorer extends AbstractCli {
       e.printStackTrace();
     }
 
-    StructuredPercepton bestModelSoFar = ranker.serialClone();
+    StructuredPercepton bestModelSoFar = ranker.snapshot();
     double bestScoreSoFar = 0.00;
     for (int i = 0; i < iterationsVal; i++) {
       Collections.shuffle(trainingSentences);
@@ -237,9 +237,9 @@ public class RunTrainEntityScorer extends AbstractCli {
             currentScore, bestScoreSoFar));
         if (currentScore > bestScoreSoFar) {
           bestScoreSoFar = currentScore;
-          bestModelSoFar = scorer.getRanker().serialClone();
+          bestModelSoFar = scorer.getRanker().snapshot();
         } else {
-          scorer.setRanker(bestModelSoFar.serialClone());
+          scorer.setRanker(bestModelSoFar.snapshot());
         }
       } catch (IOException | InterruptedException e) {
         e.printStackTrace();
@@ -0,0 +1,229 @@
+package in.sivareddy.graphparser.learning;
+
+import in.sivareddy.graphparser.util.RdfGraphTools;
+import in.sivareddy.util.SentenceKeys;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Cleaned answers of the gold queries of the examples, resolved once when
+ * the examples are loaded instead of in every iteration.
+ *
+ * The answers of the examples in a file are stored next to it, in a file
+ * with {@link #FILE_SUFFIX} appended, and are memory-mapped on later runs.
+ * Delete that file when the knowledge base changes.
+ */
+public class GoldAnswerStore {
+  public static final String FILE_SUFFIX = ".gold";
+  private static final int MAGIC = 0x4750474c; // "GPGL"
+  private static final int VERSION = 1;
+
+  // Number of gold queries sent at once.
+  public static int THREADS = 16;
+
+  private final RdfGraphTools rdfGraphTools;
+  private final Map<String, LinkedHashSet<String>> answers =
+      new ConcurrentHashMap<>();
+
+  public GoldAnswerStore(RdfGraphTools rdfGraphTools) {
+    this.rdfGraphTools = rdfGraphTools;
+  }
+
+  /**
+   * Resolves the gold queries of the examples, loading the answers stored
+   * for examplesFile and storing any new ones.
+   *
+   * @param examplesFile file the examples were loaded from
+   * @param examples json examples
+   * @throws IOException if interrupted while resolving the queries
+   */
+  public void addExamples(String examplesFile, List<String> examples)
+      throws IOException {
+    File answersFile = new File(examplesFile + FILE_SUFFIX);
+    Map<String, LinkedHashSet<String>> fileAnswers = new HashMap<>();
+    if (answersFile.exists()) {
+      try {
+        fileAnswers.putAll(read(answersFile));
+      } catch (IOException | BufferUnderflowException e) {
+        System.err.println("Ignoring gold answers in " + answersFile + ": "
+            + e.getMessage());
+      }
+    }
+
+    JsonParser parser = new JsonParser();
+    Set<String> goldQueries = new LinkedHashSet<>();
+    for (String example : examples) {
+      JsonObject jsonSentence = parser.parse(example).getAsJsonObject();
+      if (jsonSentence.has(SentenceKeys.SPARQL_QUERY)) {
+        goldQueries.add(jsonSentence.get(SentenceKeys.SPARQL_QUERY)
+            .getAsString());
+      }
+    }
+
+    List<String> missingQueries = new ArrayList<>();
+    for (String goldQuery : goldQueries) {
+      LinkedHashSet<String> goldAnswers = fileAnswers.get(goldQuery);
+      if (goldAnswers != null) {
+        answers.put(goldQuery, goldAnswers);
+      } else {
+        missingQueries.add(goldQuery);
+      }
+    }
+    if (missingQueries.size() == 0) {
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<LinkedHashSet<String>>> futures = new ArrayList<>();
+      for (String goldQuery : missingQueries) {
+        futures.add(executor.submit(() -> get(goldQuery)));
+      }
+      for (int i = 0; i < missingQueries.size(); i++) {
+        LinkedHashSet<String> goldAnswers = futures.get(i).get();
+        // Empty answers may be a failed query, which is tried again.
+        if (goldAnswers.size() > 0) {
+          fileAnswers.put(missingQueries.get(i), goldAnswers);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while resolving gold queries", e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+
+    try {
+      write(answersFile, fileAnswers);
+    } catch (IOException e) {
+      // The answers are only stored to save time on later runs.
+      System.err.println("Could not store gold answers in " + answersFile
+          + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the cleaned answers of the gold query, running it if it was not
+   * resolved before. The answers are shared and must not be modified.
+   *
+   * @param goldQuery gold sparql query
+   * @return cleaned answers
+   */
+  public LinkedHashSet<String> get(String goldQuery) {
+    LinkedHashSet<String> goldAnswers = answers.get(goldQuery);
+    if (goldAnswers != null) {
+      return goldAnswers;
+    }
+    Map<String, LinkedHashSet<String>> dummyGoldResults = new HashMap<>();
+    dummyGoldResults.put(SentenceKeys.TARGET_VALUE, new LinkedHashSet<>());
+    Map<String, LinkedHashSet<String>> results =
+        rdfGraphTools.runQueryHttp(goldQuery);
+    Pair<Set<String>, Set<String>> cleanedGoldResults =
+        RdfGraphTools.getCleanedResults(dummyGoldResults, results);
+    goldAnswers = new LinkedHashSet<>(cleanedGoldResults.getRight());
+    if (goldAnswers.size() > 0) {
+      answers.put(goldQuery, goldAnswers);
+    }
+    return goldAnswers;
+  }
+
+  private static Map<String, LinkedHashSet<String>> read(File answersFile)
+      throws IOException {
+    MappedByteBuffer buffer;
+    try (RandomAccessFile file = new RandomAccessFile(answersFile, "r");
+        FileChannel channel = file.getChannel()) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+      throw new IOException(answersFile + " is not a gold answers file");
+    }
+    int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported gold answers version " + version
+          + " in " + answersFile);
+    }
+    Map<String, LinkedHashSet<String>> fileAnswers = new HashMap<>();
+    int queryCount = buffer.getInt();
+    for (int i = 0; i < queryCount; i++) {
+      String goldQuery = readString(buffer);
+      int answerCount = buffer.getInt();
+      LinkedHashSet<String> goldAnswers = new LinkedHashSet<>();
+      for (int j = 0; j < answerCount; j++) {
+        goldAnswers.add(readString(buffer));
+      }
+      fileAnswers.put(goldQuery, goldAnswers);
+    }
+    return fileAnswers;
+  }
+
+  private static void write(File answersFile,
+      Map<String, LinkedHashSet<String>> fileAnswers) throws IOException {
+    File tempFile =
+        File.createTempFile(answersFile.getName(), ".part",
+            answersFile.getAbsoluteFile().getParentFile());
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+              tempFile), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(fileAnswers.size());
+        for (Entry<String, LinkedHashSet<String>> entry : fileAnswers
+            .entrySet()) {
+          writeString(out, entry.getKey());
+          out.writeInt(entry.getValue().size());
+          for (String answer : entry.getValue()) {
+            writeString(out, answer);
+          }
+        }
+      }
+      Files.move(tempFile.toPath(), answersFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string)
+      throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(MappedByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -7,17 +7,21 @@ import in.sivareddy.graphparser.parsing.GroundedGraphs;
 import in.sivareddy.graphparser.parsing.LexicalGraph;
 import in.sivareddy.graphparser.parsing.LexicalGraph.AnswerTypeQuestionWordFeature;
 import in.sivareddy.graphparser.parsing.LexicalGraph.ValidQueryFeature;
+import in.sivareddy.graphparser.parsing.LocalQueryEvaluator;
 import in.sivareddy.graphparser.util.CrossLingualEmbeddingSimilarity;
+import in.sivareddy.graphparser.util.EndpointHealth;
 import in.sivareddy.graphparser.util.GroundedLexicon;
 import in.sivareddy.graphparser.util.RdfGraphTools;
 import in.sivareddy.graphparser.util.Schema;
 import in.sivareddy.graphparser.util.graph.Edge;
 import in.sivareddy.graphparser.util.graph.Type;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBase;
+import in.sivareddy.graphparser.util.knowledgebase.LocalKnowledgeBase;
 import in.sivareddy.graphparser.util.knowledgebase.Property;
 import in.sivareddy.graphparser.util.knowledgebase.Relation;
 import in.sivareddy.ml.basic.Feature;
 import in.sivareddy.ml.learning.StructuredPercepton;
+import in.sivareddy.ml.learning.WeightUpdates;
 import in.sivareddy.util.SentenceKeys;
 
 import java.io.BufferedReader;
@@ -35,18 +39,14 @@ import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.log4j.Level;
@@ -103,6 +103,22 @@ public class GraphToQueryTraining {
   String semanticParseKey;
 
   RdfGraphTools rdfGraphTools;
+
+  // Number of candidate queries getPredictedGraph sends at once.
+  public static int SPECULATIVE_QUERIES = 5;
+
+  // Answers graphs from a cached knowledge base where possible, instead of
+  // querying the endpoint.
+  public static boolean LOCAL_ANSWERS = false;
+
+  // Number of training sentences whose updates are computed in parallel
+  // against the same model, and merged in input order. 0 updates the model
+  // after every sentence, as soon as it is done.
+  public static int TRAINING_BATCH_SIZE = 0;
+  LocalQueryEvaluator localQueryEvaluator = null;
+
+  GoldAnswerStore goldAnswerStore;
+
   List<String> kbGraphUri = null;
   double MARGIN = 30;
 
@@ -175,6 +191,12 @@ public class GraphToQueryTraining {
 
     this.rdfGraphTools = rdfGraphTools;
     this.kbGraphUri = kbGraphUri;
+    this.goldAnswerStore = new GoldAnswerStore(rdfGraphTools);
+    if (LOCAL_ANSWERS) {
+      Preconditions.checkArgument(kb instanceof LocalKnowledgeBase,
+          "Local answers need a cached or mapped knowledge base");
+      localQueryEvaluator = new LocalQueryEvaluator((LocalKnowledgeBase) kb);
+    }
     this.useNbestSurrogateGraphs = useNbestSurrogateGraphs;
     this.addOnlyBagOfWordsGraph = addOnlyBagOfWordsGraph;
     this.addBagOfWordsGraph = addBagOfWordsGraph || addOnlyBagOfWordsGraph;
@@ -278,27 +300,10 @@ public class GraphToQueryTraining {
       return;
     }
 
-    final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(nthreads);
-    ThreadPoolExecutor threadPool =
-        new ThreadPoolExecutor(nthreads, nthreads, 600, TimeUnit.SECONDS, queue);
-
-    threadPool.setRejectedExecutionHandler(new RejectedExecutionHandler() {
-      @Override
-      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-        // this will block if the queue is full
-        try {
-          executor.getQueue().put(r);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-      }
-    });
-
-    Queue<Logger> deadThredsLogs = new ConcurrentLinkedQueue<>();
-    List<RollingFileAppender> appenders = new ArrayList<>();
-    for (int i = 0; i < nthreads; i++) {
-      // nthreads + 2 to have two extra loggers so that if one of the logger
-      // fails, there are other loggers to carry on.
+    // Each thread of the scheduler logs to its own file.
+    List<RollingFileAppender> appenders =
+        Collections.synchronizedList(new ArrayList<>());
+    SentenceScheduler.ThreadLoggerFactory threadLoggers = i -> {
       Logger threadLogger = Logger.getLogger(logFile + ".thread" + i);
       threadLogger.removeAllAppenders();
       threadLogger.setAdditivity(false);
@@ -313,27 +318,64 @@ public class GraphToQueryTraining {
       appender.setMaxFileSize("100MB");
       threadLogger.addAppender(appender);
       threadLogger.info("######## Training Starts");
-      deadThredsLogs.add(threadLogger);
+      return threadLogger;
+    };
+
+    if (TRAINING_BATCH_SIZE <= 0) {
+      SentenceScheduler.getShared(nthreads).run(trainingSample, threadLoggers,
+          (jsonSentence, sentCount, threadLogger) -> {
+            new trainFromSentenceRunnable(this, jsonSentence, sentCount,
+                debugEnabled, threadLogger).run();
+          });
+    } else {
+      trainInBatches(SentenceScheduler.getShared(nthreads), learningModel,
+          trainingSample, TRAINING_BATCH_SIZE, threadLoggers,
+          (jsonSentence, sentCount, threadLogger) -> {
+            new trainFromSentenceRunnable(this, jsonSentence, sentCount,
+                debugEnabled, threadLogger).run();
+          });
+    }
+    logEndpointHealth(logger);
+    for (RollingFileAppender appender : appenders) {
+      appender.close();
     }
+  }
 
-    int sentCount = 0;
-    for (String jsonSentenceString : trainingSample) {
-      JsonObject jsonSentence =
-          jsonParser.parse(jsonSentenceString).getAsJsonObject();
-      Runnable worker =
-          new trainFromSentenceRunnable(this, jsonSentence, sentCount,
-              debugEnabled, deadThredsLogs);
-      threadPool.execute(worker);
-      sentCount += 1;
-    }
-    threadPool.shutdown();
+  /**
+   * Runs the training step on the sentences in batches of batchSize. The
+   * updates of a batch are applied in input order once the batch is done, so
+   * that the model does not depend on thread timing.
+   */
+  static void trainInBatches(SentenceScheduler scheduler,
+      StructuredPercepton learningModel, List<String> sentences,
+      int batchSize, SentenceScheduler.ThreadLoggerFactory threadLoggers,
+      SentenceScheduler.SentenceTask trainingStep) throws IOException,
+      InterruptedException {
+    Map<Integer, WeightUpdates> batchUpdates = new ConcurrentHashMap<>();
+    scheduler.runInBatches(sentences, batchSize, threadLoggers,
+        (jsonSentence, sentCount, threadLogger) -> {
+          batchUpdates.put(sentCount, learningModel.collectUpdates(
+              () -> trainingStep.run(jsonSentence, sentCount, threadLogger)));
+        }, (start, end) -> {
+          List<WeightUpdates> updates = new ArrayList<>();
+          for (int i = start; i < end; i++) {
+            if (batchUpdates.containsKey(i)) {
+              updates.add(batchUpdates.get(i));
+            }
+          }
+          learningModel.applyUpdates(updates);
+          batchUpdates.clear();
+        });
+  }
 
-    // Wait until all threads are finished.
-    while (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
-      logger.debug("Awaiting completion of threads.");
-    }
-    for (RollingFileAppender appender : appenders) {
-      appender.close();
+  /**
+   * Logs the failed and skipped queries of the endpoint so far.
+   */
+  private void logEndpointHealth(Logger logger) {
+    EndpointHealth health =
+        rdfGraphTools != null ? rdfGraphTools.getEndpointHealth() : null;
+    if (health != null) {
+      logger.info("Endpoint " + health);
     }
   }
 
@@ -342,26 +384,21 @@ public class GraphToQueryTraining {
     boolean debugEnabled;
     GraphToQueryTraining graphToQuery;
     int sentCount;
-    Queue<Logger> logs;
+    Logger log;
 
     public trainFromSentenceRunnable(GraphToQueryTraining graphToQuery,
         JsonObject jsonSentence, int sentCount, boolean debugEnabled,
-        Queue<Logger> logs) {
+        Logger log) {
       this.jsonSentence = jsonSentence;
       this.debugEnabled = debugEnabled;
 
       this.graphToQuery = graphToQuery;
       this.sentCount = sentCount;
-      this.logs = logs;
+      this.log = log;
     }
 
     @Override
     public void run() {
-      Preconditions
-          .checkArgument(
-              logs.size() > 0,
-              "Insufficient number of loggers. Loggers should be at the size of blocking queue");
-      Logger log = logs.poll();
       log.info("##### Sentence count: " + sentCount);
       boolean hasGoldQuery =
           jsonSentence.has("sparqlQuery") || jsonSentence.has("targetValue")
@@ -374,7 +411,6 @@ public class GraphToQueryTraining {
       } else {
         graphToQuery.trainingByQuestioning(jsonSentence, log, debugEnabled);
       }
-      logs.add(log);
     }
   }
 
@@ -420,7 +456,7 @@ public class GraphToQueryTraining {
         logger.debug("Ungrounded Graph: " + i + " " + uGraph);
       }
 
-      Set<LexicalItem> nodes = uGraph.getNodes();
+      Set<LexicalItem> nodes = uGraph.getNodesView();
       for (LexicalItem node : nodes) {
         // A lexicalised node should be lexicalised in all the
         // ungrounded graphs.
@@ -471,8 +507,8 @@ public class GraphToQueryTraining {
             }
           }
 
-          Set<Edge<LexicalItem>> edges = uGraph.getEdges(node);
-          Set<Type<LexicalItem>> types = uGraph.getTypes(node);
+          Set<Edge<LexicalItem>> edges = uGraph.getEdgesView(node);
+          Set<Type<LexicalItem>> types = uGraph.getTypesView(node);
           int degree = 0;
           if (edges != null) {
             degree += edges.size();
@@ -487,7 +523,7 @@ public class GraphToQueryTraining {
         }
 
         // node has UNIQUE property
-        Set<Property> nodeProperties = uGraph.getProperties(node);
+        Set<Property> nodeProperties = uGraph.getPropertiesView(node);
         if (nodeProperties == null || !nodeProperties.contains(uniqPropery)) {
           if (i > 0 && uniqueNodes.contains(node)) {
             uniqueNodes.remove(node);
@@ -569,33 +605,25 @@ public class GraphToQueryTraining {
     }
 
     // replacing the target entity with variable
-    List<LexicalGraph> predGgraphsWild = Lists.newArrayList();
-    for (LexicalGraph uGraph : uGraphs) {
-      if (uGraph.getEdges().size() == 0) {
-        logger.debug("Graph has NO edges. Discard ");
-        continue;
-      }
-
-      // Wild graphs have an empty question slot on the target node.
-      List<LexicalGraph> wildGraphs =
-          graphCreator.createGroundedGraph(uGraph, Sets.newHashSet(targetNode),
-              nbestEdges, nbestGraphs, useEntityTypes, useKB,
-              groundFreeVariables, groundEntityVariableEdges,
-              groundEntityEntityEdges, useEmtpyTypes, ignoreTypes, false);
-
-      // Setting syntactic parse of the wild graphs.
-      if (uGraph.getSyntacticParse() != null) {
-        for (LexicalGraph wildGraph : wildGraphs) {
-          wildGraph.setSyntacticParse(uGraph.getSyntacticParse());
-        }
-      }
-
-      predGgraphsWild.addAll(wildGraphs);
-      Collections.sort(predGgraphsWild);
-      predGgraphsWild =
-          predGgraphsWild.size() < nbestGraphs ? predGgraphsWild
-              : predGgraphsWild.subList(0, nbestGraphs);
-    }
+    List<LexicalGraph> groundableGraphs = getGraphsWithEdges(uGraphs, logger);
+    Set<LexicalItem> wildNodes = Sets.newHashSet(targetNode);
+    List<LexicalGraph> predGgraphsWild =
+        groundInParallel(groundableGraphs, uGraph -> {
+          // Wild graphs have an empty question slot on the target node.
+          List<LexicalGraph> wildGraphs =
+              graphCreator.createGroundedGraph(uGraph, wildNodes, nbestEdges,
+                  nbestGraphs, useEntityTypes, useKB, groundFreeVariables,
+                  groundEntityVariableEdges, groundEntityEntityEdges,
+                  useEmtpyTypes, ignoreTypes, false);
+
+          // Setting syntactic parse of the wild graphs.
+          if (uGraph.getSyntacticParse() != null) {
+            for (LexicalGraph wildGraph : wildGraphs) {
+              wildGraph.setSyntacticParse(uGraph.getSyntacticParse());
+            }
+          }
+          return wildGraphs;
+        });
 
     if (predGgraphsWild.size() == 0) {
       logger.debug("No predicted graphs found");
@@ -611,12 +639,8 @@ public class GraphToQueryTraining {
           + nbestPredictedGraphs + " parses");
       for (LexicalGraph pGraph : predGgraphsWild.subList(0,
           nbestPredictedGraphs)) {
-        String query =
-            GraphToSparqlConverter.convertGroundedGraph(pGraph, targetNode,
-                schema, kbGraphUri, 10);
-
         Map<String, LinkedHashSet<String>> resultsMap =
-            rdfGraphTools.runQueryHttp(query);
+            runGraphQuery(pGraph, targetNode, 10);
         LinkedHashSet<String> results =
             resultsMap != null && resultsMap.containsKey(targetVar) ? resultsMap
                 .get(targetVar) : null;
@@ -641,27 +665,14 @@ public class GraphToQueryTraining {
     // constrained graphs help in search space reduction so that SPARQL query
     // bottleneck can be removed to some extent - Sadly Sparql querying is still
     // slow.
-    List<LexicalGraph> predGgraphsConstrained = Lists.newArrayList();
-    for (LexicalGraph uGraph : uGraphs) {
-      if (uGraph.getEdges().size() == 0) {
-        logger.debug("Graph has NO edges. Discard ");
-        continue;
-      }
-
-      // Constrained graphs try to use all the entities in the sentence while
-      // constructing grounded graphs.
-      List<LexicalGraph> constrainedGraphs =
-          graphCreator.createGroundedGraph(uGraph, nbestEdges, nbestGraphs,
-              useEntityTypes, useKB, groundFreeVariables,
-              groundEntityVariableEdges, groundEntityEntityEdges,
-              useEmtpyTypes, ignoreTypes, false);
-
-      predGgraphsConstrained.addAll(constrainedGraphs);
-      Collections.sort(predGgraphsConstrained);
-      predGgraphsConstrained =
-          predGgraphsConstrained.size() < nbestGraphs ? predGgraphsConstrained
-              : predGgraphsConstrained.subList(0, nbestGraphs);
-    }
+    // Constrained graphs try to use all the entities in the sentence while
+    // constructing grounded graphs.
+    List<LexicalGraph> predGgraphsConstrained =
+        groundInParallel(groundableGraphs, uGraph -> graphCreator
+            .createGroundedGraph(uGraph, nbestEdges, nbestGraphs,
+                useEntityTypes, useKB, groundFreeVariables,
+                groundEntityVariableEdges, groundEntityEntityEdges,
+                useEmtpyTypes, ignoreTypes, false));
 
     if (predGgraphsConstrained.size() == 0) {
       logger.debug("No grounded graphs found");
@@ -674,10 +685,7 @@ public class GraphToQueryTraining {
     Map<String, LinkedHashSet<String>> resultsMap;
     LinkedHashSet<String> results;
     for (LexicalGraph gGraph : predGgraphsConstrained) {
-      String query =
-          GraphToSparqlConverter.convertGroundedGraph(gGraph, targetNode,
-              schema, kbGraphUri, 10);
-      resultsMap = rdfGraphTools.runQueryHttp(query);
+      resultsMap = runGraphQuery(gGraph, targetNode, 10);
       results =
           resultsMap != null && resultsMap.containsKey(targetVar) ? resultsMap
               .get(targetVar) : null;
@@ -910,25 +918,9 @@ public class GraphToQueryTraining {
       return;
     }
 
-    final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(nthreads);
-    ThreadPoolExecutor threadPool =
-        new ThreadPoolExecutor(nthreads, nthreads, 600, TimeUnit.SECONDS, queue);
-
-    threadPool.setRejectedExecutionHandler(new RejectedExecutionHandler() {
-      @Override
-      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-        // this will block if the queue is full
-        try {
-          executor.getQueue().put(r);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-      }
-    });
-
-    Queue<Logger> deadThredsLogs = new ConcurrentLinkedQueue<>();
-    List<RollingFileAppender> appenders = new ArrayList<>();
-    for (int i = 0; i < nthreads + 2; i++) {
+    List<RollingFileAppender> appenders =
+        Collections.synchronizedList(new ArrayList<>());
+    SentenceScheduler.ThreadLoggerFactory threadLoggers = i -> {
       Logger threadLogger = Logger.getLogger(logFile + ".thread" + i);
       threadLogger.removeAllAppenders();
       threadLogger.setAdditivity(false);
@@ -939,24 +931,15 @@ public class GraphToQueryTraining {
       appender.setMaxFileSize("10000MB");
       threadLogger.addAppender(appender);
       threadLogger.info("#### Grounding starts");
-      deadThredsLogs.add(threadLogger);
-    }
+      return threadLogger;
+    };
 
-    int sentCount = 0;
-    for (String testSentence : sentences) {
-      JsonObject jsonSentence =
-          jsonParser.parse(testSentence).getAsJsonObject();
-      Runnable worker =
+    SentenceScheduler.getShared(nthreads).run(sentences, threadLoggers,
+        (jsonSentence, sentCount, threadLogger) -> {
           new GetGroundedGraphsWithAllEntitiesRunnable(this, jsonSentence,
-              deadThredsLogs, sentCount);
-      threadPool.execute(worker);
-      sentCount += 1;
-    }
-    threadPool.shutdown();
-
-    while (!threadPool.awaitTermination(15, TimeUnit.SECONDS)) {
-      logger.debug("Awaiting completion of threads.");
-    }
+              threadLogger, sentCount).run();
+        });
+    logEndpointHealth(logger);
     for (RollingFileAppender appender : appenders) {
       appender.close();
     }
@@ -984,26 +967,14 @@ public class GraphToQueryTraining {
       return null;
     }
 
-    List<LexicalGraph> bestGroundedGraphs = Lists.newArrayList();
-    for (LexicalGraph uGraph : uGraphs) {
-      if (uGraph.getEdges().size() == 0) {
-        continue;
-      }
-
-      // Constrained graphs try to use all the entities in the sentence while
-      // constructing grounded graphs.
-      List<LexicalGraph> groundedGraphs =
-          graphCreator.createGroundedGraph(uGraph, nbestEdges, nbestGraphs,
-              useEntityTypes, useKB, groundFreeVariables,
-              groundEntityVariableEdges, groundEntityEntityEdges,
-              useEmtpyTypes, ignoreTypes, true);
-
-      bestGroundedGraphs.addAll(groundedGraphs);
-      Collections.sort(bestGroundedGraphs);
-      bestGroundedGraphs =
-          bestGroundedGraphs.size() < nbestGraphs ? bestGroundedGraphs
-              : bestGroundedGraphs.subList(0, nbestGraphs);
-    }
+    // Constrained graphs try to use all the entities in the sentence while
+    // constructing grounded graphs.
+    List<LexicalGraph> bestGroundedGraphs =
+        groundInParallel(getGraphsWithEdges(uGraphs, null),
+            uGraph -> graphCreator.createGroundedGraph(uGraph, nbestEdges,
+                nbestGraphs, useEntityTypes, useKB, groundFreeVariables,
+                groundEntityVariableEdges, groundEntityEntityEdges,
+                useEmtpyTypes, ignoreTypes, true));
 
     if (bestGroundedGraphs.size() == 0) {
       logger.info("No grounded graphs found");
@@ -1056,25 +1027,20 @@ public class GraphToQueryTraining {
       Runnable {
     private JsonObject jsonSentence;
     GraphToQueryTraining graphToQuery;
-    Queue<Logger> loggers;
+    Logger logger;
     int sentCount = 0;
 
     public GetGroundedGraphsWithAllEntitiesRunnable(
         GraphToQueryTraining graphToQuery, JsonObject jsonSentence,
-        Queue<Logger> loggers, int sentCount) {
+        Logger logger, int sentCount) {
       this.jsonSentence = jsonSentence;
       this.graphToQuery = graphToQuery;
-      this.loggers = loggers;
+      this.logger = logger;
       this.sentCount = sentCount;
     }
 
     @Override
     public void run() {
-      Preconditions
-          .checkArgument(
-              loggers.size() > 0,
-              "Insufficient number of loggers. Loggers should be at the size of blocking queue");
-      Logger logger = loggers.poll();
       List<LexicalGraph> validGraphs =
           graphToQuery.getGroundedGraphsWithAllEntities(jsonSentence, logger,
               sentCount);
@@ -1098,7 +1064,6 @@ public class GraphToQueryTraining {
           logger.info("Valid Gold Parses: " + jsonSentence.toString());
         }
       }
-      loggers.add(logger);
     }
   }
 
@@ -1174,16 +1139,10 @@ public class GraphToQueryTraining {
     Map<String, LinkedHashSet<String>> goldResults = null;
     String goldQuery = null;
     if (jsonSentence.has(SentenceKeys.SPARQL_QUERY)) {
-      Map<String, LinkedHashSet<String>> dummyGoldResults = new HashMap<>();
-      dummyGoldResults.put(SentenceKeys.TARGET_VALUE, new LinkedHashSet<>());
       goldQuery = jsonSentence.get(SentenceKeys.SPARQL_QUERY).getAsString();
       logger.info("Gold Query : " + goldQuery);
-      Map<String, LinkedHashSet<String>> results =
-          rdfGraphTools.runQueryHttp(goldQuery);
-      Pair<Set<String>, Set<String>> cleanedGoldResults =
-          RdfGraphTools.getCleanedResults(dummyGoldResults, results);
       LinkedHashSet<String> goldAnswers =
-          new LinkedHashSet<>(cleanedGoldResults.getRight());
+          new LinkedHashSet<>(goldAnswerStore.get(goldQuery));
       goldResults = new HashMap<>();
       goldResults.put(SentenceKeys.TARGET_VALUE, new LinkedHashSet<>(
           goldAnswers));
@@ -1307,81 +1266,30 @@ public class GraphToQueryTraining {
       }
 
       // Get grounded Graphs
-      List<LexicalGraph> gGraphs = Lists.newArrayList();
-      List<LexicalGraph> filteredGraphs = Lists.newArrayList();
-      for (LexicalGraph uGraph : uGraphs) {
-        if (debugEnabled) {
+      if (debugEnabled) {
+        for (LexicalGraph uGraph : uGraphs) {
           try {
             logger.debug(uGraph);
           } catch (Exception e) {
             // pass.
           }
         }
-        if (uGraph.getEdges().size() == 0) {
-          logger.debug("Graph has NO edges. Discard ");
-          continue;
-        }
-        List<LexicalGraph> currentGroundedGraphs =
-            graphCreator.createGroundedGraph(uGraph, nbestEdges, nbestGraphs,
-                useEntityTypes, useKB, groundFreeVariables,
-                groundEntityVariableEdges, groundEntityEntityEdges,
-                useEmtpyTypes, ignoreTypes, false);
-
-        gGraphs.addAll(currentGroundedGraphs);
-        Collections.sort(gGraphs);
-        gGraphs =
-            gGraphs.size() < nbestGraphs ? gGraphs : gGraphs.subList(0,
-                nbestGraphs);
-
-
-        if (useGoldRelations) {
-          if (jsonSentence.get(SentenceKeys.GOLD_MID) == null)
-            continue;
-          String goldMid =
-              jsonSentence.get(SentenceKeys.GOLD_MID).getAsString();
-          HashSet<LexicalItem> mainEntityNodes = uGraph.getMidNode(goldMid);
-          if (mainEntityNodes == null || mainEntityNodes.size() == 0)
-            continue;
-          HashSet<LexicalItem> questionNodes = uGraph.getQuestionNode();
-          if (questionNodes == null || questionNodes.size() == 0)
-            continue;
-          LexicalItem questionNode = questionNodes.iterator().next();
-          LexicalItem goldNode = mainEntityNodes.iterator().next();
-
-          Pair<LexicalItem, LexicalItem> mainEdgeKey =
-              Pair.of(goldNode, questionNode);
-          Pair<LexicalItem, LexicalItem> mainEdgeInverseKey =
-              Pair.of(questionNode, goldNode);
-          Map<Pair<LexicalItem, LexicalItem>, TreeSet<Relation>> edgeGroundingConstraints =
-              new HashMap<>();
-          edgeGroundingConstraints.put(mainEdgeKey, new TreeSet<>());
-          edgeGroundingConstraints.put(mainEdgeInverseKey, new TreeSet<>());
-
-          if (jsonSentence.get(SentenceKeys.GOLD_RELATIONS) == null)
-            continue;
-          for (JsonElement goldRelation : jsonSentence.get(
-              SentenceKeys.GOLD_RELATIONS).getAsJsonArray()) {
-            JsonObject goldRelationObj = goldRelation.getAsJsonObject();
-            Relation mainRelation =
-                new Relation(goldRelationObj.get(SentenceKeys.RELATION_LEFT)
-                    .getAsString(), goldRelationObj.get(
-                    SentenceKeys.RELATION_RIGHT).getAsString(), goldRelationObj
-                    .get(SentenceKeys.SCORE).getAsDouble());
-            Relation mainRelationInverse = mainRelation.inverse();
-            edgeGroundingConstraints.get(mainEdgeKey).add(mainRelation);
-            edgeGroundingConstraints.get(mainEdgeInverseKey).add(
-                mainRelationInverse);
-          }
+      }
+      List<LexicalGraph> groundableGraphs =
+          getGraphsWithEdges(uGraphs, logger);
+      List<LexicalGraph> gGraphs =
+          groundInParallel(groundableGraphs, uGraph -> graphCreator
+              .createGroundedGraph(uGraph, nbestEdges, nbestGraphs,
+                  useEntityTypes, useKB, groundFreeVariables,
+                  groundEntityVariableEdges, groundEntityEntityEdges,
+                  useEmtpyTypes, ignoreTypes, false));
 
-          List<LexicalGraph> filteredGroundedGraphs =
-              graphCreator.createGroundedGraph(uGraph, null,
-                  edgeGroundingConstraints, Sets.newHashSet(goldNode),
-                  nbestEdges, 10000, useEntityTypes, useKB,
-                  groundFreeVariables, groundEntityVariableEdges,
-                  groundEntityEntityEdges, useEmtpyTypes, ignoreTypes, false);
-          filteredGraphs.addAll(filteredGroundedGraphs);
-          Collections.sort(filteredGraphs);
-        }
+      List<LexicalGraph> filteredGraphs = Lists.newArrayList();
+      if (useGoldRelations) {
+        groundableGraphs.parallelStream()
+            .map(uGraph -> groundWithGoldRelations(jsonSentence, uGraph))
+            .collect(Collectors.toList()).forEach(filteredGraphs::addAll);
+        Collections.sort(filteredGraphs);
       }
 
       logger.info("Total number of grounded graphs: " + gGraphs.size());
@@ -1476,6 +1384,129 @@ public class GraphToQueryTraining {
     }
   }
 
+  public GoldAnswerStore getGoldAnswerStore() {
+    return goldAnswerStore;
+  }
+
+  /**
+   * Returns the ungrounded graphs that have edges, which are the ones that
+   * can be grounded.
+   *
+   * @param uGraphs ungrounded graphs
+   * @param logger logger for the discarded graphs, or null
+   */
+  private static List<LexicalGraph> getGraphsWithEdges(
+      List<LexicalGraph> uGraphs, Logger logger) {
+    List<LexicalGraph> graphsWithEdges = Lists.newArrayList();
+    for (LexicalGraph uGraph : uGraphs) {
+      if (uGraph.getEdgesView().size() == 0) {
+        if (logger != null)
+          logger.debug("Graph has NO edges. Discard ");
+        continue;
+      }
+      graphsWithEdges.add(uGraph);
+    }
+    return graphsWithEdges;
+  }
+
+  /**
+   * Grounds the ungrounded graphs of a sentence as fork-join subtasks, and
+   * merges the grounded graphs into a beam of the nbestGraphs best. The beam
+   * is the same as that of grounding the graphs one after another.
+   *
+   * @param uGraphs ungrounded graphs, in the order of the sequential merge
+   * @param grounder returns the grounded graphs of an ungrounded graph
+   * @return best grounded graphs, in descending order of score
+   */
+  private List<LexicalGraph> groundInParallel(List<LexicalGraph> uGraphs,
+      Function<LexicalGraph, List<LexicalGraph>> grounder) {
+    List<List<LexicalGraph>> groundedGraphs =
+        uGraphs.parallelStream().map(grounder).collect(Collectors.toList());
+
+    List<LexicalGraph> beam = Lists.newArrayList();
+    for (List<LexicalGraph> graphs : groundedGraphs) {
+      beam.addAll(graphs);
+      Collections.sort(beam);
+      beam = beam.size() < nbestGraphs ? beam : beam.subList(0, nbestGraphs);
+    }
+    return beam;
+  }
+
+  /**
+   * Returns the grounded graphs of the ungrounded graph whose edge between
+   * the gold entity and the question node is grounded to one of the gold
+   * relations of the sentence.
+   */
+  private List<LexicalGraph> groundWithGoldRelations(JsonObject jsonSentence,
+      LexicalGraph uGraph) {
+    if (jsonSentence.get(SentenceKeys.GOLD_MID) == null)
+      return Lists.newArrayList();
+    String goldMid = jsonSentence.get(SentenceKeys.GOLD_MID).getAsString();
+    HashSet<LexicalItem> mainEntityNodes = uGraph.getMidNode(goldMid);
+    if (mainEntityNodes == null || mainEntityNodes.size() == 0)
+      return Lists.newArrayList();
+    HashSet<LexicalItem> questionNodes = uGraph.getQuestionNode();
+    if (questionNodes == null || questionNodes.size() == 0)
+      return Lists.newArrayList();
+    LexicalItem questionNode = questionNodes.iterator().next();
+    LexicalItem goldNode = mainEntityNodes.iterator().next();
+
+    Pair<LexicalItem, LexicalItem> mainEdgeKey =
+        Pair.of(goldNode, questionNode);
+    Pair<LexicalItem, LexicalItem> mainEdgeInverseKey =
+        Pair.of(questionNode, goldNode);
+    Map<Pair<LexicalItem, LexicalItem>, TreeSet<Relation>> edgeGroundingConstraints =
+        new HashMap<>();
+    edgeGroundingConstraints.put(mainEdgeKey, new TreeSet<>());
+    edgeGroundingConstraints.put(mainEdgeInverseKey, new TreeSet<>());
+
+    if (jsonSentence.get(SentenceKeys.GOLD_RELATIONS) == null)
+      return Lists.newArrayList();
+    for (JsonElement goldRelation : jsonSentence.get(
+        SentenceKeys.GOLD_RELATIONS).getAsJsonArray()) {
+      JsonObject goldRelationObj = goldRelation.getAsJsonObject();
+      Relation mainRelation =
+          new Relation(goldRelationObj.get(SentenceKeys.RELATION_LEFT)
+              .getAsString(), goldRelationObj.get(
+              SentenceKeys.RELATION_RIGHT).getAsString(), goldRelationObj
+              .get(SentenceKeys.SCORE).getAsDouble());
+      Relation mainRelationInverse = mainRelation.inverse();
+      edgeGroundingConstraints.get(mainEdgeKey).add(mainRelation);
+      edgeGroundingConstraints.get(mainEdgeInverseKey).add(
+          mainRelationInverse);
+    }
+
+    return graphCreator.createGroundedGraph(uGraph, null,
+        edgeGroundingConstraints, Sets.newHashSet(goldNode), nbestEdges,
+        10000, useEntityTypes, useKB, groundFreeVariables,
+        groundEntityVariableEdges, groundEntityEntityEdges, useEmtpyTypes,
+        ignoreTypes, false);
+  }
+
+  /**
+   * Returns the results of the query of the graph, answered from the cached
+   * knowledge base if possible and by the endpoint otherwise.
+   *
+   * @param graph grounded graph
+   * @param targetNode node whose values are returned
+   * @param limit maximum number of answers
+   * @return results of the query
+   */
+  private Map<String, LinkedHashSet<String>> runGraphQuery(LexicalGraph graph,
+      LexicalItem targetNode, int limit) {
+    if (localQueryEvaluator != null) {
+      Map<String, LinkedHashSet<String>> results =
+          localQueryEvaluator.evaluate(graph, targetNode, limit);
+      if (results != null) {
+        return results;
+      }
+    }
+    String query =
+        GraphToSparqlConverter.convertGroundedGraph(graph, targetNode, schema,
+            kbGraphUri, limit);
+    return rdfGraphTools.runQueryHttp(query);
+  }
+
   public LexicalGraph getPredictedGraph(List<LexicalGraph> graphs,
       boolean testing) {
     if (graphs == null || graphs.size() == 0)
@@ -1491,22 +1522,50 @@ public class GraphToQueryTraining {
         testing ? learningModel.getScoreTesting(validQueryFeature)
             : learningModel.getScoreTraining(validQueryFeature);
 
+    // Queries of the graphs further down the beam are sent ahead, so that
+    // their results are likely ready by the time the graphs are visited.
+    // The graphs are still visited in the same order. Results are read in
+    // full, so that they are cached for the training step and getGoldGraph,
+    // which query the same graphs again.
+    Map<Integer, CompletableFuture<Map<String, LinkedHashSet<String>>>> pendingResults;
+    pendingResults = new HashMap<>();
+
     LexicalGraph bestGraphSoFar = null;
     Double bestGraphSoFarScore = -1000000.0;
-    for (LexicalGraph gGraph : graphs) {
-      LexicalGraph gGraphCopy = gGraph.copy();
+    for (int i = 0; i < graphs.size(); i++) {
+      LexicalGraph gGraphCopy = graphs.get(i).copy();
       // If maximum estimate of the score is less than the first best graph
       // score.
       if (!useAnswerTypeQuestionWordFlag
           && gGraphCopy.getScore() + validQueryScore < firstBestGraphScore) {
+        cancelQueries(pendingResults);
         return gGraphCopy;
       }
 
-      String query =
-          GraphToSparqlConverter.convertGroundedGraph(gGraphCopy, schema,
-              kbGraphUri, 30);
+      for (int j = i; j < Math.min(graphs.size(), i
+          + Math.max(1, SPECULATIVE_QUERIES)); j++) {
+        LexicalGraph nextGraph = graphs.get(j);
+        if (pendingResults.containsKey(j)
+            || (!useAnswerTypeQuestionWordFlag && nextGraph.getScore()
+                + validQueryScore < firstBestGraphScore)) {
+          continue;
+        }
+        Map<String, LinkedHashSet<String>> localResults =
+            localQueryEvaluator != null ? localQueryEvaluator.evaluate(
+                nextGraph, null, 30) : null;
+        if (localResults != null) {
+          pendingResults.put(j,
+              CompletableFuture.completedFuture(localResults));
+          continue;
+        }
+        String query =
+            GraphToSparqlConverter.convertGroundedGraph(nextGraph, schema,
+                kbGraphUri, 30);
+        pendingResults.put(j,
+            rdfGraphTools.runQueryHttpAsync(query));
+      }
       Map<String, LinkedHashSet<String>> predResults =
-          rdfGraphTools.runQueryHttp(query);
+          pendingResults.remove(i).join();
 
       String targetVar = null;
       if (predResults != null) {
@@ -1531,6 +1590,7 @@ public class GraphToQueryTraining {
         gGraphCopy.addFeature(feat);
         gGraphCopy.setScore(gGraphCopy.getScore() + validQueryScore);
         if (!useAnswerTypeQuestionWordFlag) {
+          cancelQueries(pendingResults);
           return gGraphCopy;
         }
       }
@@ -1541,8 +1601,8 @@ public class GraphToQueryTraining {
             gGraphCopy.getParallelGraph().getQuestionNode();
         if (answerType != null && qNodes != null && qNodes.size() > 0) {
           for (LexicalItem qNode : qNodes) {
-            TreeSet<Type<LexicalItem>> qTypes =
-                gGraphCopy.getParallelGraph().getTypes(qNode);
+            Set<Type<LexicalItem>> qTypes =
+                gGraphCopy.getParallelGraph().getTypesView(qNode);
             if (qTypes != null) {
               for (Type<LexicalItem> qType : qTypes) {
                 AnswerTypeQuestionWordFeature answerTypeFeature =
@@ -1569,6 +1629,16 @@ public class GraphToQueryTraining {
     return bestGraphSoFar;
   }
 
+  /**
+   * Cancels the queries sent ahead for graphs that are no longer visited, so
+   * that those not yet started are not sent.
+   */
+  private static void cancelQueries(
+      Map<Integer, CompletableFuture<Map<String, LinkedHashSet<String>>>> pendingResults) {
+    pendingResults.values().forEach(results -> results.cancel(false));
+    pendingResults.clear();
+  }
+
   public LexicalGraph getGoldGraph(JsonObject jsonSentence,
       List<LexicalGraph> graphs, Map<String, LinkedHashSet<String>> goldResults) {
     String sentence = jsonSentence.get(SentenceKeys.SENTENCE_KEY).getAsString();
@@ -1631,8 +1701,8 @@ public class GraphToQueryTraining {
             returnGraph.getParallelGraph().getQuestionNode();
         if (answerType != null && qNodes != null && qNodes.size() > 0) {
           for (LexicalItem qNode : qNodes) {
-            TreeSet<Type<LexicalItem>> qTypes =
-                returnGraph.getParallelGraph().getTypes(qNode);
+            Set<Type<LexicalItem>> qTypes =
+                returnGraph.getParallelGraph().getTypesView(qNode);
             if (qTypes != null) {
               for (Type<LexicalItem> qType : qTypes) {
                 AnswerTypeQuestionWordFeature answerTypeFeature =
@@ -1704,25 +1774,9 @@ public class GraphToQueryTraining {
       return 0.0;
     }
 
-    final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(nthreads);
-    ThreadPoolExecutor threadPool =
-        new ThreadPoolExecutor(nthreads, nthreads, 600, TimeUnit.SECONDS, queue);
-
-    threadPool.setRejectedExecutionHandler(new RejectedExecutionHandler() {
-      @Override
-      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-        // this will block if the queue is full
-        try {
-          executor.getQueue().put(r);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-      }
-    });
-
-    Queue<Logger> deadThredsLogs = new ConcurrentLinkedQueue<>();
-    List<RollingFileAppender> appenders = new ArrayList<>();
-    for (int i = 0; i < nthreads + 2; i++) {
+    List<RollingFileAppender> appenders =
+        Collections.synchronizedList(new ArrayList<>());
+    SentenceScheduler.ThreadLoggerFactory threadLoggers = i -> {
       Logger threadLogger = Logger.getLogger(logFile + ".thread" + i);
       threadLogger.removeAllAppenders();
       threadLogger.setAdditivity(false);
@@ -1735,8 +1789,8 @@ public class GraphToQueryTraining {
         threadLogger.addAppender(appender);
         threadLogger.info("#### Testing starts");
       }
-      deadThredsLogs.add(threadLogger);
-    }
+      return threadLogger;
+    };
 
     List<String> firstBestPredictions = Lists.newArrayList();
     int sentCount = 0;
@@ -1754,18 +1808,16 @@ public class GraphToQueryTraining {
           jsonParser.parse(testSentence).getAsJsonObject();
       sentenceIndexMap.put(sentCount, jsonSentence.get("sentence")
           .getAsString());
-      Runnable worker =
-          new testCurrentModelSentenceRunnable(this, jsonSentence, sentCount,
-              deadThredsLogs, results, positives, negatives,
-              firstBestPredictionsMap, avgF1, testingNbestParsesRange);
-      threadPool.execute(worker);
       sentCount += 1;
     }
-    threadPool.shutdown();
 
-    while (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
-      logger.debug("Awaiting completion of threads.");
-    }
+    SentenceScheduler.getShared(nthreads).run(testSentences, threadLoggers,
+        (jsonSentence, sentIndex, threadLogger) -> {
+          new testCurrentModelSentenceRunnable(this, jsonSentence, sentIndex,
+              threadLogger, results, positives, negatives,
+              firstBestPredictionsMap, avgF1, testingNbestParsesRange).run();
+        });
+    logEndpointHealth(logger);
     for (RollingFileAppender appender : appenders) {
       appender.close();
     }
@@ -1858,7 +1910,7 @@ public class GraphToQueryTraining {
     private JsonObject jsonSentence;
     GraphToQueryTraining graphToQuery;
     int sentCount;
-    Queue<Logger> logs;
+    Logger logger;
     Map<Integer, Integer> positives;
     Map<Integer, Integer> negatives;
     Map<Integer, Integer> firstBestMap;
@@ -1867,7 +1919,7 @@ public class GraphToQueryTraining {
     List<Integer> testingNbestParsesRange;
 
     public testCurrentModelSentenceRunnable(GraphToQueryTraining graphToQuery,
-        JsonObject jsonSentence, int sentCount, Queue<Logger> logs,
+        JsonObject jsonSentence, int sentCount, Logger logger,
         Map<Integer, Map<Integer, Pair<Set<String>, Set<String>>>> results,
         Map<Integer, Integer> positives, Map<Integer, Integer> negatives,
         Map<Integer, Integer> firstBestMap, Map<Integer, Double> avgF1,
@@ -1875,7 +1927,7 @@ public class GraphToQueryTraining {
       this.jsonSentence = jsonSentence;
       this.graphToQuery = graphToQuery;
       this.sentCount = sentCount;
-      this.logs = logs;
+      this.logger = logger;
 
       this.results = results;
       this.positives = positives;
@@ -1887,15 +1939,9 @@ public class GraphToQueryTraining {
 
     @Override
     public void run() {
-      Preconditions
-          .checkArgument(
-              logs.size() > 0,
-              "Insufficient number of loggers. Loggers should be at the size of blocking queue");
-      Logger logger = logs.poll();
       graphToQuery.testCurrentModelSentence(jsonSentence, logger, sentCount,
           results, positives, negatives, firstBestMap, avgF1,
           testingNbestParsesRange);
-      logs.add(logger);
     }
   }
 
@@ -1921,18 +1967,12 @@ public class GraphToQueryTraining {
     Map<String, LinkedHashSet<String>> goldResults = null;
     String goldQuery = null;
     if (jsonSentence.has("sparqlQuery")) {
-      Map<String, LinkedHashSet<String>> dummyGoldResults = new HashMap<>();
-      dummyGoldResults.put(SentenceKeys.TARGET_VALUE, new LinkedHashSet<>());
       goldQuery = jsonSentence.get(SentenceKeys.SPARQL_QUERY).getAsString();
       logger.info("Gold Query : " + goldQuery);
 
       // Get cleaned results.
-      Map<String, LinkedHashSet<String>> queryResults =
-          rdfGraphTools.runQueryHttp(goldQuery);
-      Pair<Set<String>, Set<String>> cleanedGoldResults =
-          RdfGraphTools.getCleanedResults(dummyGoldResults, queryResults);
       LinkedHashSet<String> goldAnswers =
-          new LinkedHashSet<>(cleanedGoldResults.getRight());
+          new LinkedHashSet<>(goldAnswerStore.get(goldQuery));
       goldResults = new HashMap<>();
       goldResults.put(SentenceKeys.TARGET_VALUE, new LinkedHashSet<>(
           goldAnswers));
@@ -2093,27 +2133,17 @@ public class GraphToQueryTraining {
       }
 
       // Get grounded Graphs
-      List<LexicalGraph> gGraphs = Lists.newArrayList();
-
-      for (LexicalGraph uGraph : uGraphs) {
-        if (debugEnabled) {
+      if (debugEnabled) {
+        for (LexicalGraph uGraph : uGraphs) {
           logger.debug("Ungrounded Graph: " + uGraph);
         }
-        if (uGraph.getEdges().size() == 0) {
-          logger.debug("Graph has NO edges. Discard ");
-          continue;
-        }
-        List<LexicalGraph> currentGroundedGraphs =
-            graphCreator.createGroundedGraph(uGraph, nbestEdges, nbestGraphs,
-                useEntityTypes, useKB, groundFreeVariables,
-                groundEntityVariableEdges, groundEntityEntityEdges,
-                useEmtpyTypes, ignoreTypes, true);
-        gGraphs.addAll(currentGroundedGraphs);
-        Collections.sort(gGraphs);
-        gGraphs =
-            gGraphs.size() < nbestGraphs ? gGraphs : gGraphs.subList(0,
-                nbestGraphs);
       }
+      List<LexicalGraph> gGraphs =
+          groundInParallel(getGraphsWithEdges(uGraphs, logger),
+              uGraph -> graphCreator.createGroundedGraph(uGraph, nbestEdges,
+                  nbestGraphs, useEntityTypes, useKB, groundFreeVariables,
+                  groundEntityVariableEdges, groundEntityEntityEdges,
+                  useEmtpyTypes, ignoreTypes, true));
 
       logger.info("Total number of grounded graphs: " + gGraphs.size());
 
@@ -2168,8 +2198,8 @@ public class GraphToQueryTraining {
               gGraph.getParallelGraph().getQuestionNode();
           if (answerType != null && qNodes != null && qNodes.size() > 0) {
             for (LexicalItem qNode : qNodes) {
-              TreeSet<Type<LexicalItem>> qTypes =
-                  gGraph.getParallelGraph().getTypes(qNode);
+              Set<Type<LexicalItem>> qTypes =
+                  gGraph.getParallelGraph().getTypesView(qNode);
               if (qTypes != null) {
                 for (Type<LexicalItem> qType : qTypes) {
                   AnswerTypeQuestionWordFeature answerTypeFeature =
@@ -59,6 +59,9 @@ public class GraphToQueryTrainingMain {
   private boolean currentModelIsTheBestModel;
   private Double highestPerformace = 0.0;
 
+  // Samples and shuffles the training examples.
+  private static Random random = new Random();
+
 
   public GraphToQueryTrainingMain(Schema schema, KnowledgeBase kb,
       GroundedLexicon groundedLexicon, CcgAutoLexicon normalCcgAutoLexicon,
@@ -156,42 +159,26 @@ public class GraphToQueryTrainingMain {
         useExpand, useHyperExpand, initialEdgeWeight, initialTypeWeight,
         initialWordWeight, mergeEdgeWeight, stemFeaturesWeight, rdfGraphTools,
         kbGraphUri);
-    bestModelSoFar = currentIterationModel.serialClone();
+    bestModelSoFar = currentIterationModel.snapshot();
     currentModelIsTheBestModel = true;
 
     supervisedTrainingExamples = new ArrayList<>();
     if (supervisedTrainingFiles != null && !supervisedTrainingFiles.equals("")) {
       for (String supervisedTrainingFile : Splitter.on(";").trimResults()
           .omitEmptyStrings().split(supervisedTrainingFiles)) {
-        if (supervisedTrainingFile.endsWith(".gz")) {
-          loadExamples(new InputStreamReader(new GZIPInputStream(
-              new FileInputStream(supervisedTrainingFile)), "UTF-8"),
-              supervisedTrainingExamples);
-        } else {
-          loadExamples(new FileReader(supervisedTrainingFile),
-              supervisedTrainingExamples);
-        }
+        loadExamplesWithGoldAnswers(supervisedTrainingFile,
+            supervisedTrainingExamples);
       }
     }
 
     if (testingFile != null && !testingFile.equals("")) {
       testingExamples = new ArrayList<>();
-      if (testingFile.endsWith(".gz")) {
-        loadExamples(new InputStreamReader(new GZIPInputStream(
-            new FileInputStream(testingFile)), "UTF-8"), testingExamples);
-      } else {
-        loadExamples(new FileReader(testingFile), testingExamples);
-      }
+      loadExamplesWithGoldAnswers(testingFile, testingExamples);
     }
 
     if (devFile != null && !devFile.equals("")) {
       devExamples = new ArrayList<>();
-      if (devFile.endsWith(".gz")) {
-        loadExamples(new InputStreamReader(new GZIPInputStream(
-            new FileInputStream(devFile)), "UTF-8"), devExamples);
-      } else {
-        loadExamples(new FileReader(devFile), devExamples);
-      }
+      loadExamplesWithGoldAnswers(devFile, devExamples);
     }
 
     // Loading training files from all domains
@@ -222,7 +209,6 @@ public class GraphToQueryTrainingMain {
       sampleSize = totalExamples.size();
     }
     List<String> examples = Lists.newArrayList();
-    Random random = new Random();
     int maxSize = totalExamples.size();
     for (int i = 0; i < sampleSize; i++) {
       int randomInt = random.nextInt(maxSize);
@@ -231,6 +217,14 @@ public class GraphToQueryTrainingMain {
     return examples;
   }
 
+  /**
+   * Fixes the sampling and shuffling of training examples, so that runs with
+   * the same seed train on the same sentences in the same order.
+   */
+  public static void setRandomSeed(long seed) {
+    random = new Random(seed);
+  }
+
   public void train(int iterations, int nthreads, boolean evaluateBeforeTraining)
       throws IOException, InterruptedException {
     if (iterations <= 0)
@@ -262,7 +256,7 @@ public class GraphToQueryTrainingMain {
       if (!currentModelIsTheBestModel) {
         // If the previous iteration model is better than the current iteration
         // model, use the previous iteration's model.
-        currentIterationModel = bestModelSoFar.serialClone();
+        currentIterationModel = bestModelSoFar.snapshot();
         graphToQuery.setLearningModel(currentIterationModel);
       }
 
@@ -289,7 +283,7 @@ public class GraphToQueryTrainingMain {
         StructuredPercepton firstIterationBestModel = null;
         for (int j = 0; j < 3; j++) {
           StructuredPercepton beforeTrainingModel =
-              currentIterationModel.serialClone();
+              currentIterationModel.snapshot();
           graphToQuery.setLearningModel(beforeTrainingModel);
           double curPerformance =
               runIteration(trainingSample, evalLogger,
@@ -317,7 +311,7 @@ public class GraphToQueryTrainingMain {
         if (performance > highestPerformace) {
           evalLogger
               .info("Gradient moved in CORRECT direction! Updating the best model.");
-          bestModelSoFar = currentIterationModel.serialClone();
+          bestModelSoFar = currentIterationModel.snapshot();
           currentModelIsTheBestModel = true;
           highestPerformace = performance;
 
@@ -420,7 +414,7 @@ public class GraphToQueryTrainingMain {
       List<String> trainingSamplePart =
           selectRandomExamples(trainingExamplesPart, trainingSampleSize);
       trainingSample.addAll(trainingSamplePart);
-      Collections.shuffle(trainingSample);
+      Collections.shuffle(trainingSample, random);
     }
 
     // Speculation: Adding supervised examples at the end of unsupervised
@@ -433,13 +427,34 @@ public class GraphToQueryTrainingMain {
           trainingSample.size() > 0 ? trainingSample.size()
               / supervisedTrainingExamples.size() : 0;
       for (int i = 0; i < maxIterations + 1; i++) {
-        Collections.shuffle(examplesCopy);
+        Collections.shuffle(examplesCopy, random);
         trainingSample.addAll(examplesCopy);
       }
     }
     return trainingSample;
   }
 
+  /**
+   * Loads the examples in the file, and resolves their gold queries once for
+   * all the iterations.
+   *
+   * @param fileName examples file, gzipped if it ends with .gz
+   * @param examples list the examples are added to
+   * @throws IOException
+   */
+  private void loadExamplesWithGoldAnswers(String fileName,
+      List<String> examples) throws IOException {
+    List<String> fileExamples = new ArrayList<>();
+    if (fileName.endsWith(".gz")) {
+      loadExamples(new InputStreamReader(new GZIPInputStream(
+          new FileInputStream(fileName)), "UTF-8"), fileExamples);
+    } else {
+      loadExamples(new FileReader(fileName), fileExamples);
+    }
+    graphToQuery.getGoldAnswerStore().addExamples(fileName, fileExamples);
+    examples.addAll(fileExamples);
+  }
+
   public static void loadExamples(Reader inputReader, List<String> examples)
       throws IOException {
     Preconditions.checkNotNull(examples);
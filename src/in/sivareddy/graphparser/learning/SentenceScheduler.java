@@ -0,0 +1,209 @@
+package in.sivareddy.graphparser.learning;
+
+import in.sivareddy.util.SentenceKeys;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Runs the sentences of a training, testing or grounding pass on a
+ * work-stealing pool, most expensive sentences first, so that the pass does
+ * not end waiting on a few long sentences started last. Tasks forked by a
+ * sentence, e.g. when grounding its graphs in parallel, run on the same pool
+ * and are stolen by the threads that finished their sentences.
+ *
+ * Schedulers are shared by all the passes with the same number of threads.
+ */
+public class SentenceScheduler {
+  private static final Map<Integer, SentenceScheduler> schedulers =
+      new ConcurrentHashMap<>();
+
+  private final ForkJoinPool pool;
+
+  /**
+   * Work done for a sentence.
+   */
+  public interface SentenceTask {
+    /**
+     * @param jsonSentence sentence
+     * @param sentCount position of the sentence in the input
+     * @param logger logger of the thread running the sentence
+     */
+    void run(JsonObject jsonSentence, int sentCount, Logger logger);
+  }
+
+  /**
+   * Creates the logger of a thread of the scheduler.
+   */
+  public interface ThreadLoggerFactory {
+    Logger create(int thread) throws IOException;
+  }
+
+  /**
+   * Called when all the sentences of a batch are done, before the next batch
+   * starts.
+   */
+  public interface BatchListener {
+    /**
+     * @param start position of the first sentence of the batch
+     * @param end position after the last sentence of the batch
+     */
+    void batchDone(int start, int end);
+  }
+
+  private SentenceScheduler(int nthreads) {
+    pool = new ForkJoinPool(nthreads);
+  }
+
+  /**
+   * Returns the scheduler running nthreads sentences at a time.
+   */
+  public static SentenceScheduler getShared(int nthreads) {
+    return schedulers.computeIfAbsent(nthreads, SentenceScheduler::new);
+  }
+
+  /**
+   * Runs the task on every sentence, and returns when all of them are done.
+   * A task that fails is reported and does not stop the others.
+   *
+   * @param sentences json sentences
+   * @param threadLoggers creates the logger of each thread, when the thread
+   *        runs its first sentence
+   * @param task work done for each sentence
+   * @throws IOException if a logger cannot be created
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void run(List<String> sentences, ThreadLoggerFactory threadLoggers,
+      SentenceTask task) throws IOException, InterruptedException {
+    runInBatches(sentences, sentences.size(), threadLoggers, task, null);
+  }
+
+  /**
+   * Runs the task on the sentences in consecutive batches, waiting for all
+   * the sentences of a batch to be done before starting the next one.
+   *
+   * @param sentences json sentences
+   * @param batchSize number of sentences in a batch, 0 for a single batch
+   * @param threadLoggers creates the logger of each thread, when the thread
+   *        runs its first sentence
+   * @param task work done for each sentence
+   * @param listener called after each batch, or null
+   * @throws IOException if a logger cannot be created
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void runInBatches(List<String> sentences, int batchSize,
+      ThreadLoggerFactory threadLoggers, SentenceTask task,
+      BatchListener listener) throws IOException, InterruptedException {
+    if (batchSize <= 0) {
+      batchSize = sentences.size();
+    }
+    Map<Integer, Logger> loggers = new ConcurrentHashMap<>();
+    for (int start = 0; start < sentences.size(); start += batchSize) {
+      int end = Math.min(start + batchSize, sentences.size());
+      runBatch(sentences, start, end, loggers, threadLoggers, task);
+      if (listener != null) {
+        listener.batchDone(start, end);
+      }
+    }
+  }
+
+  private void runBatch(List<String> sentences, int start, int end,
+      Map<Integer, Logger> loggers, ThreadLoggerFactory threadLoggers,
+      SentenceTask task) throws IOException, InterruptedException {
+    JsonParser parser = new JsonParser();
+    List<Integer> order = new ArrayList<>();
+    long[] costs = new long[sentences.size()];
+    for (int i = start; i < end; i++) {
+      // Sentences are parsed again when run, to keep one at a time in memory.
+      costs[i] =
+          estimateCost(parser.parse(sentences.get(i)).getAsJsonObject());
+      order.add(i);
+    }
+    order.sort(Comparator.comparingLong((Integer i) -> costs[i]).reversed());
+
+    List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    for (int sentCount : order) {
+      tasks.add(pool.submit(() -> {
+        Logger logger = loggers.computeIfAbsent(getThreadIndex(), thread -> {
+          try {
+            return threadLoggers.create(thread);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        try {
+          task.run(new JsonParser().parse(sentences.get(sentCount))
+              .getAsJsonObject(), sentCount, logger);
+        } catch (Exception e) {
+          logger.error("Sentence " + sentCount + " failed", e);
+        }
+      }));
+    }
+
+    try {
+      for (ForkJoinTask<?> submitted : tasks) {
+        submitted.get();
+      }
+    } catch (InterruptedException e) {
+      tasks.forEach(submitted -> submitted.cancel(false));
+      throw e;
+    } catch (ExecutionException e) {
+      tasks.forEach(submitted -> submitted.cancel(false));
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      // Other exceptions are caught by the tasks, so this is an error.
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns an estimate of the cost of a sentence: the number of words
+   * times the number of entities, summed over the sentences of its forest.
+   */
+  public static long estimateCost(JsonObject jsonSentence) {
+    List<JsonObject> forest = new ArrayList<>();
+    if (jsonSentence.has(SentenceKeys.FOREST)) {
+      for (JsonElement element : jsonSentence.get(SentenceKeys.FOREST)
+          .getAsJsonArray()) {
+        forest.add(element.getAsJsonObject());
+      }
+    } else {
+      forest.add(jsonSentence);
+    }
+
+    long cost = 0;
+    for (JsonObject sentence : forest) {
+      cost += Math.max(1, getSize(sentence, SentenceKeys.WORDS_KEY))
+          * Math.max(1, getSize(sentence, SentenceKeys.ENTITIES));
+    }
+    return cost;
+  }
+
+  private static int getSize(JsonObject sentence, String key) {
+    JsonElement element = sentence.get(key);
+    return element != null && element.isJsonArray() ? element.getAsJsonArray()
+        .size() : 0;
+  }
+
+  private static int getThreadIndex() {
+    Thread thread = Thread.currentThread();
+    return thread instanceof ForkJoinWorkerThread
+        ? ((ForkJoinWorkerThread) thread).getPoolIndex() : -1;
+  }
+}
@@ -25,7 +25,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
@@ -74,7 +73,7 @@ public class CreateGroundedLexicon {
     for (LexicalGraph uGraph : uGraphs) {
       // If the graph contains negation, ignore it.
       boolean containsNegation = false;
-      Map<LexicalItem, Set<Property>> props = uGraph.getProperties();
+      Map<LexicalItem, Set<Property>> props = uGraph.getPropertiesView();
       if (props != null) {
         for (Entry<LexicalItem, Set<Property>> entry : props.entrySet()) {
           if (entry.getValue() != null && entry.getValue().contains(NEGATION)) {
@@ -87,7 +86,7 @@ public class CreateGroundedLexicon {
         continue;
 
       double uScore = 1.0 / uGraphs.size();
-      for (Edge<LexicalItem> edge : uGraph.getEdges()) {
+      for (Edge<LexicalItem> edge : uGraph.getEdgesView()) {
         LexicalItem node1 = edge.getLeft();
         LexicalItem node2 = edge.getRight();
         if (node1.isEntity() && node2.isEntity()) {
@@ -137,7 +136,7 @@ public class CreateGroundedLexicon {
       if (!ignoreTypes) {
         for (LexicalItem node : uGraph.getActualNodes()) {
           if (node.isEntity() && !node.isStandardEntity()) {
-            TreeSet<Type<LexicalItem>> uTypes = uGraph.getTypes(node);
+            Set<Type<LexicalItem>> uTypes = uGraph.getTypesView(node);
             if (uTypes != null && uTypes.size() > 0) {
               Set<String> gTypes = kb.getTypes(node.getMid());
               for (Type<LexicalItem> uTypeObj : uTypes) {
@@ -40,7 +40,7 @@ public class GraphToSparqlConverter {
       LexicalItem targetNode, Schema schema, List<String> graphUris, int limit) {
     LexicalItem realTargetNode = graph.getUnifiedNode(targetNode);
     Map<String, Integer> mediatorKeys = Maps.newHashMap();
-    TreeSet<Edge<LexicalItem>> edges = Sets.newTreeSet(graph.getEdges());
+    TreeSet<Edge<LexicalItem>> edges = Sets.newTreeSet(graph.getEdgesView());
     int edgeCount = 0;
     List<String> queryTriples = Lists.newArrayList();
 
@@ -54,7 +54,7 @@ public class GraphToSparqlConverter {
     // rdf:type
     Set<String> standardTypes =
         Sets.newHashSet("type.datetime", "type.int", "type.float");
-    TreeSet<Type<LexicalItem>> nodeTypes = graph.getTypes();
+    Set<Type<LexicalItem>> nodeTypes = graph.getTypesView();
     for (Type<LexicalItem> nodeType : nodeTypes) {
       String tripleName = "";
       LexicalItem parentNode = nodeType.getParentNode();
@@ -185,7 +185,7 @@ public class GraphToSparqlConverter {
 
     String queryString = Joiner.on(" ").join(queryTriples);
 
-    Map<LexicalItem, Set<Property>> properties = graph.getProperties();
+    Map<LexicalItem, Set<Property>> properties = graph.getPropertiesView();
     String targetVar = "";
     List<String> countVars = Lists.newArrayList();
 
@@ -2,6 +2,7 @@ package in.sivareddy.graphparser.parsing;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -10,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
@@ -81,6 +83,7 @@ import in.sivareddy.graphparser.util.graph.Edge;
 import in.sivareddy.graphparser.util.graph.Type;
 import in.sivareddy.graphparser.util.knowledgebase.EntityType;
 import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBase;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseOnline;
 import in.sivareddy.graphparser.util.knowledgebase.Property;
 import in.sivareddy.graphparser.util.knowledgebase.Relation;
 import in.sivareddy.ml.basic.Feature;
@@ -751,6 +754,10 @@ public class GroundedGraphs {
 
   public static Set<String> CONTENT_WORD_POS = Sets.newHashSet();
 
+  // Recomputes every incremental graph score over all the features, and logs
+  // the scores that differ.
+  public static boolean VERIFY_INCREMENTAL_SCORES = false;
+
   // Sets.newHashSet("NOUN", "VERB",
   // "ADJ", "NN", "NNS", "JJ", "JJR", "JJS", "VB", "VBD", "VBN", "VBP", "VBZ",
   // "VBG", "NNP", "NNPS");
@@ -1542,7 +1549,7 @@ public class GroundedGraphs {
       boolean groundFreeVariables, boolean groundEntityVariableEdges,
       boolean groundEntityEntityEdges, boolean useEmtpyTypes,
       boolean ignoreTypes, boolean testing) {
-    TreeSet<Edge<LexicalItem>> edges = graph.getEdges();
+    SortedSet<Edge<LexicalItem>> edges = graph.getEdgesView();
     List<LexicalGraph> groundedGraphs = Lists.newArrayList();
     if (edges.size() == 0)
       return groundedGraphs;
@@ -1564,14 +1571,35 @@ public class GroundedGraphs {
     // Properties are universal across both ungrounded and grounded graphs.
     groundedGraph.addProperties(graph.getProperties());
     groundedGraph.setActualNodes(graph.getActualNodes());
-    groundedGraphs.add(groundedGraph);
     graphsSoFar.put(Pair.of(groundedGraph.hashCode(), groundedGraph
         .getParallelGraph().hashCode()), true);
     // graphsSoFar.add(groundedGraph);
 
+    // Holds the nbestGraphs best graphs built so far.
+    LexicalGraphBeam beam = new LexicalGraphBeam(nbestGraphs);
+    beam.add(groundedGraph);
+
     Map<Edge<LexicalItem>, Edge<LexicalItem>> mergableEdges =
         graph.getMergeableEdges(questionOrCountNode);
 
+    // Fetch the facts of all the entities at once instead of one query per
+    // edge.
+    if (kb instanceof KnowledgeBaseOnline && (useKB || useEntityTypes)) {
+      Set<String> entities = Sets.newHashSet();
+      for (Edge<LexicalItem> edge : edges) {
+        for (LexicalItem node : Arrays.asList(edge.getLeft(), edge.getRight())) {
+          if (kb.hasEntity(node.getMid())) {
+            entities.add(node.getMid());
+          }
+        }
+      }
+      KnowledgeBaseOnline onlineKB = (KnowledgeBaseOnline) kb;
+      if (useKB && groundEntityEntityEdges) {
+        onlineKB.prefetchRelations(entities);
+      }
+      onlineKB.prefetchTypes(entities);
+    }
+
     Set<LexicalItem> nodesCovered = Sets.newHashSet();
 
     // If we set groundEntityVariableEdges to false, the order in which we
@@ -1584,6 +1612,8 @@ public class GroundedGraphs {
       LexicalItem node1 = edge.getLeft();
       LexicalItem node2 = edge.getRight();
 
+      groundedGraphs = beam.getGraphs();
+
       // Graphs formed using MERGE operation.
       List<LexicalGraph> mergedGraphs = new ArrayList<>();
       if (allowMerging && mergableEdges.containsKey(edge)) {
@@ -1596,25 +1626,24 @@ public class GroundedGraphs {
       }
 
       // ground the edge.
-      groundedGraphs.addAll(groundTheEdge(groundedGraphs, edge,
-          restrictedNodes, edgeGroundingConstraints, graphsSoFar, nbestEdges,
-          nbestGraphs, useEntityTypes, useKB, groundFreeVariables,
-          groundEntityVariableEdges, groundEntityEntityEdges, testing));
-      groundedGraphs.addAll(mergedGraphs);
-
-      // sort descending order.
-      Collections.sort(groundedGraphs);
-      groundedGraphs =
-          groundedGraphs.size() < nbestGraphs ? groundedGraphs : groundedGraphs
-              .subList(0, nbestGraphs);
+      groundTheEdge(groundedGraphs, edge, restrictedNodes,
+          edgeGroundingConstraints, graphsSoFar, nbestEdges, nbestGraphs,
+          useEntityTypes, useKB, groundFreeVariables,
+          groundEntityVariableEdges, groundEntityEntityEdges, testing, beam);
+      beam.addAll(mergedGraphs);
 
       if (!ignoreTypes) {
+        // As before the beam, the types of node2 are also grounded in the
+        // graphs with node1 types, and the graphs are truncated after both.
+        groundedGraphs = beam.getGraphs();
+        int beamGraphsCount = groundedGraphs.size();
+
         // ground the node types.
         if (!nodesCovered.contains(node1)) {
           nodesCovered.add(node1);
-          if (graph.getTypes(node1) != null) {
+          if (graph.getTypesView(node1) != null) {
             List<Type<LexicalItem>> nodeTypes =
-                Lists.newArrayList(graph.getTypes(node1));
+                Lists.newArrayList(graph.getTypesView(node1));
 
             Type<LexicalItem> nodeType = nodeTypes.get(0);
             List<Type<LexicalItem>> additionalNodeTypes =
@@ -1632,9 +1661,9 @@ public class GroundedGraphs {
         if (!nodesCovered.contains(node2)) {
           nodesCovered.add(node2);
 
-          if (graph.getTypes(node2) != null) {
+          if (graph.getTypesView(node2) != null) {
             List<Type<LexicalItem>> nodeTypes =
-                Lists.newArrayList(graph.getTypes(node2));
+                Lists.newArrayList(graph.getTypesView(node2));
             Type<LexicalItem> nodeType = nodeTypes.get(0);
             List<Type<LexicalItem>> additionalNodeTypes =
                 nodeTypes.size() > 1 ? nodeTypes.subList(1, nodeTypes.size())
@@ -1646,13 +1675,11 @@ public class GroundedGraphs {
           }
         }
 
-        // sort descending order
-        Collections.sort(groundedGraphs);
-        groundedGraphs =
-            groundedGraphs.size() < nbestGraphs ? groundedGraphs
-                : groundedGraphs.subList(0, nbestGraphs);
+        beam.addAll(groundedGraphs.subList(beamGraphsCount,
+            groundedGraphs.size()));
       }
     }
+    groundedGraphs = beam.getGraphs();
 
     if (questionOrCountNode != null) {
       List<LexicalGraph> validGroundedGraphs = Lists.newArrayList();
@@ -1664,7 +1691,7 @@ public class GroundedGraphs {
             countNodes.size() > 0 ? gGraph.getUnifiedNode(countNodes.iterator()
                 .next()) : gGraph.getUnifiedNode(questionOrCountNode);
         Set<Edge<LexicalItem>> questionNodeEdges =
-            gGraph.getEdges(questionOrCountNodeNew);
+            gGraph.getEdgesView(questionOrCountNodeNew);
         if (questionNodeEdges != null && questionNodeEdges.size() > 0)
           validGroundedGraphs.add(gGraph);
       }
@@ -1679,31 +1706,19 @@ public class GroundedGraphs {
                 : new GraphIsConnectedFeature(false);
         gGraph.addFeature(graphIsConnectedFeature);
         if (connected) {
-          if (testing) {
-            gGraph
-                .setScore(learningModel.getScoreTesting(gGraph.getFeatures()));
-          } else {
-            gGraph
-                .setScore(learningModel.getScoreTraining(gGraph.getFeatures()));
-          }
+          gGraph.setScore(getScore(gGraph, testing));
         }
       }
     }
 
     if (graphHasEdgeFlag) {
       for (LexicalGraph gGraph : groundedGraphs) {
-        boolean graphHasEdge = gGraph.getEdges().size() > 0 ? true : false;
+        boolean graphHasEdge = gGraph.getEdgesView().size() > 0 ? true : false;
         GraphHasEdgeFeature graphHasEdgeFeature =
             new GraphHasEdgeFeature(graphHasEdge);
         gGraph.addFeature(graphHasEdgeFeature);
         if (graphHasEdge) {
-          if (testing) {
-            gGraph
-                .setScore(learningModel.getScoreTesting(gGraph.getFeatures()));
-          } else {
-            gGraph
-                .setScore(learningModel.getScoreTraining(gGraph.getFeatures()));
-          }
+          gGraph.setScore(getScore(gGraph, testing));
         }
       }
     }
@@ -1714,11 +1729,7 @@ public class GroundedGraphs {
         GraphNodeCountFeature graphNodeCountFeature =
             new GraphNodeCountFeature(new Double(nodeCount));
         gGraph.addFeature(graphNodeCountFeature);
-        if (testing) {
-          gGraph.setScore(learningModel.getScoreTesting(gGraph.getFeatures()));
-        } else {
-          gGraph.setScore(learningModel.getScoreTraining(gGraph.getFeatures()));
-        }
+        gGraph.setScore(getScore(gGraph, testing));
       }
     }
 
@@ -1740,11 +1751,7 @@ public class GroundedGraphs {
         EdgeNodeCountFeature edgeNodeCountFeature =
             new EdgeNodeCountFeature(new Double(nodeCount));
         gGraph.addFeature(edgeNodeCountFeature);
-        if (testing) {
-          gGraph.setScore(learningModel.getScoreTesting(gGraph.getFeatures()));
-        } else {
-          gGraph.setScore(learningModel.getScoreTraining(gGraph.getFeatures()));
-        }
+        gGraph.setScore(getScore(gGraph, testing));
       }
     }
 
@@ -1773,7 +1780,7 @@ public class GroundedGraphs {
    * @return
    */
   private TreeSet<Edge<LexicalItem>> setEntityEdgesToLowerPriority(
-      TreeSet<Edge<LexicalItem>> edges) {
+      Set<Edge<LexicalItem>> edges) {
     TreeSet<Edge<LexicalItem>> sortedEdges = new TreeSet<>();
     for (Edge<LexicalItem> edge : edges) {
       Relation relation = edge.getRelation();
@@ -1854,14 +1861,14 @@ public class GroundedGraphs {
         childNode)))
       return mergedGraphs;
 
-    if (gGraph.getEdges(childNode) != null
-        && gGraph.getEdges(parentNode) != null) {
+    if (gGraph.getEdgesView(childNode) != null
+        && gGraph.getEdgesView(parentNode) != null) {
       // Check if a grounded edge exists between the two nodes.
       Set<Edge<LexicalItem>> commonNodes =
-          new HashSet<>(gGraph.getEdges(childNode));
+          new HashSet<>(gGraph.getEdgesView(childNode));
 
       // TreeSet and HashSet intersection behaves weirdly.
-      commonNodes.retainAll(new HashSet<>(gGraph.getEdges(parentNode)));
+      commonNodes.retainAll(new HashSet<>(gGraph.getEdgesView(parentNode)));
       if (commonNodes.size() > 0) {
         // A grounded graph with these nodes merged should already exist. Do not
         // merge this nodes.
@@ -1870,7 +1877,7 @@ public class GroundedGraphs {
     }
 
     LexicalGraph mergedGraph = gGraph.copy();
-    Set<Edge<LexicalItem>> childEdges = mergedGraph.getEdges(childNode);
+    Set<Edge<LexicalItem>> childEdges = mergedGraph.getEdgesView(childNode);
     Set<Edge<LexicalItem>> toBeGroundedEgdes = new TreeSet<>();
 
     if (childEdges != null) {
@@ -1910,10 +1917,10 @@ public class GroundedGraphs {
     }
 
     HashSet<Edge<LexicalItem>> mergedEgdes =
-        new HashSet<>(mergedGraph.getParallelGraph().getEdges(childNode));
+        new HashSet<>(mergedGraph.getParallelGraph().getEdgesView(childNode));
     // TreeSet and HashSet intersection behaves weirdly.
     mergedEgdes.retainAll(new HashSet<>(mergedGraph.getParallelGraph()
-        .getEdges(parentNode)));
+        .getEdgesView(parentNode)));
     for (Edge<LexicalItem> mergedEdge : mergedEgdes) {
       String childIsEntity = childNode.isEntity() ? "1" : "0";
       String parentIsEntity = parentNode.isEntity() ? "1" : "0";
@@ -1941,12 +1948,12 @@ public class GroundedGraphs {
 
     // Remove the type grounding features which came from child node.
     // Currently, new type groundings that arrive after merging are ignored.
-    TreeSet<Type<LexicalItem>> childUngroundedTypes =
-        mergedGraph.getParallelGraph().getTypes(childNode);
-    if (!ignoreTypes && mergedGraph.getTypes(childNode) != null
+    SortedSet<Type<LexicalItem>> childUngroundedTypes =
+        mergedGraph.getParallelGraph().getTypesView(childNode);
+    if (!ignoreTypes && mergedGraph.getTypesView(childNode) != null
         && childUngroundedTypes != null && childUngroundedTypes.size() > 0) {
       TreeSet<Type<LexicalItem>> childTypes =
-          new TreeSet<>(mergedGraph.getTypes(childNode));
+          new TreeSet<>(mergedGraph.getTypesView(childNode));
       for (Type<LexicalItem> ungroundedType : childUngroundedTypes) {
         List<Feature> childFeatures =
             getAdditionalTypeFeatures(ungroundedType, childTypes.first()
@@ -1974,7 +1981,7 @@ public class GroundedGraphs {
     }
 
     // Revise parent node features.
-    Set<Edge<LexicalItem>> parentEdges = gGraph.getEdges(parentNode);
+    Set<Edge<LexicalItem>> parentEdges = gGraph.getEdgesView(parentNode);
     if (parentEdges != null) {
       parentEdges = new HashSet<>(parentEdges);
       for (Edge<LexicalItem> parentEdge : parentEdges) {
@@ -2007,7 +2014,7 @@ public class GroundedGraphs {
       mergedGraphs.addAll(groundTheEdge(mergedGraphs, edge, restrictedNodes,
           edgeGroundingConstraints, graphsSoFar, nbestEdges, nbestGraphs,
           useEntityTypes, useKB, groundFreeVariables,
-          groundEntityVariableEdges, groundEntityEntityEdges, testing));
+          groundEntityVariableEdges, groundEntityEntityEdges, testing, null));
     }
 
     return mergedGraphs;
@@ -2086,7 +2093,7 @@ public class GroundedGraphs {
         // satisfy that constraint.
         boolean nodeTypeSatisifiesEdgeType = true;
         if (standardTypes.contains(groundedEntityType.getType())) {
-          Set<Edge<LexicalItem>> parentEdges = oldGraph.getEdges(parentNode);
+          Set<Edge<LexicalItem>> parentEdges = oldGraph.getEdgesView(parentNode);
           if (parentEdges == null)
             parentEdges = Sets.newHashSet();
           for (Edge<LexicalItem> edge : parentEdges) {
@@ -2142,8 +2149,8 @@ public class GroundedGraphs {
           continue;
 
         LexicalGraph newGraph = oldGraph.copy();
-        if (newGraph.getTypes(parentNode) != null
-            && newGraph.getTypes(parentNode).size() > 0) {
+        if (newGraph.getTypesView(parentNode) != null
+            && newGraph.getTypesView(parentNode).size() > 0) {
           newGraph.getFeatures().addAll(
               getAdditionalTypeFeatures(nodeType, groundedEntityType));
           newGraph.addType(parentNode, modifierNode, groundedEntityType);
@@ -2166,13 +2173,7 @@ public class GroundedGraphs {
               additionalNodeType.getModifierNode(), groundedEntityType);
         }
 
-        Double score;
-        if (testing) {
-          score = learningModel.getScoreTesting(newGraph.getFeatures());
-        } else {
-          score = learningModel.getScoreTraining(newGraph.getFeatures());
-        }
-        newGraph.setScore(score);
+        newGraph.setScore(getScore(newGraph, testing));
         tempGraphs.add(newGraph);
       }
     }
@@ -2205,7 +2206,7 @@ public class GroundedGraphs {
 
     // adding gtype grel features
     if (gtypeGrelPartFlag) {
-      Set<Edge<LexicalItem>> nodeEdges = newGraph.getEdges(parentNode);
+      Set<Edge<LexicalItem>> nodeEdges = newGraph.getEdgesView(parentNode);
       if (nodeEdges != null) {
         for (Edge<LexicalItem> nodeEdge : nodeEdges) {
           Relation groundedRelation = nodeEdge.getRelation();
@@ -2271,6 +2272,15 @@ public class GroundedGraphs {
     return false;
   }
 
+  /**
+   * Grounds the edge in each of the given graphs. If beam is null, the new
+   * graphs are returned. Otherwise they are added to the beam and an empty
+   * list is returned; a candidate that cannot enter the beam is discarded
+   * before the graph is copied. Unlike a truncated candidate before the beam,
+   * such a candidate is not added to graphsSoFar, so the same graph built
+   * later is not discarded as a duplicate; it still has to score into the
+   * beam, whose threshold only rises.
+   */
   private List<LexicalGraph> groundTheEdge(
       List<LexicalGraph> groundedGraphs,
       Edge<LexicalItem> edge,
@@ -2279,7 +2289,7 @@ public class GroundedGraphs {
       ConcurrentHashMap<Pair<Integer, Integer>, Boolean> graphsSoFar,
       int nbestEdges, int nbestGraphs, boolean useEntityTypes, boolean useKB,
       boolean groundFreeVariables, boolean groundEntityVariableEdges,
-      boolean groundEntityEntityEdges, boolean testing) {
+      boolean groundEntityEntityEdges, boolean testing, LexicalGraphBeam beam) {
 
     List<LexicalGraph> tempGraphs = Lists.newArrayList();
     for (LexicalGraph oldGraph : groundedGraphs) {
@@ -2293,12 +2303,12 @@ public class GroundedGraphs {
         continue;
 
       // Check if a grounded edge exists between the two nodes.
-      if (oldGraph.getEdges(node1) != null && oldGraph.getEdges(node2) != null) {
+      if (oldGraph.getEdgesView(node1) != null && oldGraph.getEdgesView(node2) != null) {
         Set<Edge<LexicalItem>> commonNodes =
-            new HashSet<>(oldGraph.getEdges(node1));
+            new HashSet<>(oldGraph.getEdgesView(node1));
 
         // TreeSet and HashSet intersection behaves weirdly.
-        commonNodes.retainAll(new HashSet<>(oldGraph.getEdges(node2)));
+        commonNodes.retainAll(new HashSet<>(oldGraph.getEdgesView(node2)));
         if (commonNodes.size() > 0) {
           // A grounded graph with these nodes merged should already exist. Do
           // not merge this nodes.
@@ -2351,36 +2361,35 @@ public class GroundedGraphs {
       List<Relation> groundedRelations = null;
       if (useKB && (kb.hasEntity(entity1) || kb.hasEntity(entity2))) {
         groundedRelations = Lists.newArrayList();
-        Set<Relation> groundedRelationsSet = null;
+        // Relations returned by the knowledge base are shared between
+        // lookups, while the weight is specific to this edge.
+        Relation[] kbRelations = null;
+        boolean inverse = false;
         if (kb.hasEntity(entity1)
             && kb.hasEntity(entity2)
             && !(standardTypes.contains(entity1) && standardTypes
                 .contains(entity2))) {
           if (groundEntityEntityEdges) {
-            groundedRelationsSet = kb.getRelations(entity1, entity2);
+            kbRelations = kb.getRelationArray(entity1, entity2);
           }
         } else if ((groundEntityVariableEdges || oldGraph.isQuestionNode(node2)
             || oldGraph.isCountNode(node2) || revisedRestrictedNodes
               .contains(node2))
             && !standardTypes.contains(entity1)
             && kb.hasEntity(entity1)) {
-          groundedRelationsSet = kb.getRelations(entity1);
+          kbRelations = kb.getRelationArray(entity1);
         } else if ((groundEntityVariableEdges || oldGraph.isQuestionNode(node1)
             || oldGraph.isCountNode(node1) || revisedRestrictedNodes
               .contains(node1))
             && !standardTypes.contains(entity2)
             && kb.hasEntity(entity2)) {
-          Set<Relation> groundedRelationsSetInverse = kb.getRelations(entity2);
-          if (groundedRelationsSetInverse != null) {
-            groundedRelationsSet = Sets.newHashSet();
-            for (Relation groundedRelation : groundedRelationsSetInverse) {
-              groundedRelationsSet.add(groundedRelation.inverse());
-            }
-          }
+          kbRelations = kb.getRelationArray(entity2);
+          inverse = true;
         }
-        if (groundedRelationsSet != null) {
-          for (Relation groundedRelation : groundedRelationsSet) {
-            groundedRelation = groundedRelation.copy();
+        if (kbRelations != null) {
+          for (Relation kbRelation : kbRelations) {
+            Relation groundedRelation =
+                inverse ? kbRelation.inverse() : kbRelation.copy();
             Double prob =
                 groundedLexicon.getUrelGrelProb(ungroundedRelation,
                     groundedRelation);
@@ -2417,6 +2426,9 @@ public class GroundedGraphs {
             revisedEdgeGroundingConstraints.get(Pair.of(node1, node2))));
       }
 
+      // Scored once for all the candidate relations of the beam check.
+      double oldScore = beam != null ? getScore(oldGraph, testing) : 0.0;
+
       // Add each new edge to each of the old graphs
       int nbestCount = 0;
       for (Relation groundedRelation : groundedRelationsCopy) {
@@ -2440,10 +2452,21 @@ public class GroundedGraphs {
           }
         }
 
-        LexicalGraph newGraph = oldGraph.copy();
+        // getEdgeFeatures does not modify the graph, so the features and the
+        // score of the new graph are known before copying the old graph.
         List<Feature> features =
-            getEdgeFeatures(newGraph, node1, node2, mediator,
+            getEdgeFeatures(oldGraph, node1, node2, mediator,
                 ungroundedRelation, groundedRelation);
+        if (beam != null) {
+          double newScore =
+              oldScore
+                  + (testing ? learningModel.getScoreTesting(features)
+                      : learningModel.getScoreTraining(features));
+          if (!beam.accepts(newScore))
+            continue;
+        }
+
+        LexicalGraph newGraph = oldGraph.copy();
         Edge<LexicalItem> groundedEgde =
             new Edge<>(node1, node2, mediator, groundedRelation);
         Edge<LexicalItem> unGroundedEgde =
@@ -2464,7 +2487,11 @@ public class GroundedGraphs {
 
         if (graphsSoFar.putIfAbsent(Pair.of(newGraph.hashCode(), newGraph
             .getParallelGraph().hashCode()), true) == null) {
-          tempGraphs.add(newGraph);
+          if (beam != null) {
+            beam.add(newGraph);
+          } else {
+            tempGraphs.add(newGraph);
+          }
         }
       }
     }
@@ -2473,13 +2500,28 @@ public class GroundedGraphs {
     return tempGraphs;
   }
 
+  /**
+   * Returns the score of the graph. Only the features added since the graph
+   * (or the graph it was copied from) was last scored are looked up in the
+   * model. If VERIFY_INCREMENTAL_SCORES is set, the score is also recomputed
+   * over all the features and mismatches are logged.
+   * 
+   * @param gGraph
+   * @param testing
+   * @return
+   */
   private Double getScore(LexicalGraph gGraph, boolean testing) {
-    Double score = 0.0;
-    // compute score of the new graph
-    if (testing) {
-      score = learningModel.getScoreTesting(gGraph.getFeatures());
-    } else {
-      score = learningModel.getScoreTraining(gGraph.getFeatures());
+    double score = gGraph.getIncrementalScore(learningModel, testing);
+    if (VERIFY_INCREMENTAL_SCORES) {
+      double fullScore =
+          testing ? learningModel.getScoreTesting(gGraph.getFeatures())
+              : learningModel.getScoreTraining(gGraph.getFeatures());
+      if (Math.abs(fullScore - score) > 1e-6) {
+        logger.warn(String.format(
+            "Incremental score %f differs from full score %f", score,
+            fullScore));
+      }
+      score = fullScore;
     }
     return score;
   }
@@ -2512,7 +2554,7 @@ public class GroundedGraphs {
         questionOrCountNodes.addAll(gGraph.getQuestionNode());
         questionOrCountNodes.addAll(gGraph.getCountNode());
         for (LexicalItem qNode : questionOrCountNodes) {
-          TreeSet<Edge<LexicalItem>> questionEdges = gGraph.getEdges(qNode);
+          Set<Edge<LexicalItem>> questionEdges = gGraph.getEdgesView(qNode);
           if (questionEdges != null)
             questionEdges.forEach(x -> {
               if (x.getRight().isEntity())
@@ -2595,7 +2637,7 @@ public class GroundedGraphs {
 
     if (duplicateEdgesFlag) {
       // checking if duplicate edges are next to each other
-      Set<Edge<LexicalItem>> neighboringEdges = gGraph.getEdges(node1);
+      Set<Edge<LexicalItem>> neighboringEdges = gGraph.getEdgesView(node1);
       if (neighboringEdges != null) {
         for (Edge<LexicalItem> neighboringEdge : neighboringEdges) {
           Relation neighboringRelation = neighboringEdge.getRelation();
@@ -2605,7 +2647,7 @@ public class GroundedGraphs {
           }
         }
       }
-      neighboringEdges = gGraph.getEdges(node2);
+      neighboringEdges = gGraph.getEdgesView(node2);
       if (neighboringEdges != null) {
         Relation inverse = groundedRelation.inverse();
         for (Edge<LexicalItem> neighboringEdge : neighboringEdges) {
@@ -2620,7 +2662,7 @@ public class GroundedGraphs {
 
     if (grelGrelFlag) {
       // adding edge bigram features
-      Set<Edge<LexicalItem>> neighboringEdges = gGraph.getEdges(node1);
+      Set<Edge<LexicalItem>> neighboringEdges = gGraph.getEdgesView(node1);
       if (neighboringEdges != null) {
         for (Edge<LexicalItem> neighboringEdge : neighboringEdges) {
           Relation neighboringRelation = neighboringEdge.getRelation();
@@ -2642,7 +2684,7 @@ public class GroundedGraphs {
           }
         }
       }
-      neighboringEdges = gGraph.getEdges(node2);
+      neighboringEdges = gGraph.getEdgesView(node2);
       if (neighboringEdges != null) {
         Relation inverse = groundedRelation.inverse();
         for (Edge<LexicalItem> neighboringEdge : neighboringEdges) {
@@ -2667,7 +2709,7 @@ public class GroundedGraphs {
 
     if (gtypeGrelPartFlag) {
       // adding nodeType, edge features
-      Set<Type<LexicalItem>> nodeTypes = gGraph.getTypes(node1);
+      Set<Type<LexicalItem>> nodeTypes = gGraph.getTypesView(node1);
       if (nodeTypes != null) {
         for (Type<LexicalItem> nodeType : nodeTypes) {
           String entityType = nodeType.getEntityType().getType();
@@ -2683,7 +2725,7 @@ public class GroundedGraphs {
         }
       }
 
-      nodeTypes = gGraph.getTypes(node2);
+      nodeTypes = gGraph.getTypesView(node2);
       if (nodeTypes != null) {
         Relation inverse = groundedRelation.inverse();
         for (Type<LexicalItem> nodeType : nodeTypes) {
@@ -2704,7 +2746,7 @@ public class GroundedGraphs {
     if (questionTypeGrelPartFlag) {
       if (uGraph.isQuestionNode(node1)) {
         // adding argument word, grel feature
-        Set<Type<LexicalItem>> nodeTypes = uGraph.getTypes(node1);
+        Set<Type<LexicalItem>> nodeTypes = uGraph.getTypesView(node1);
         if (nodeTypes != null) {
           for (Type<LexicalItem> nodeType : nodeTypes) {
             LexicalItem modifierNode = nodeType.getModifierNode();
@@ -2722,7 +2764,7 @@ public class GroundedGraphs {
       }
 
       if (uGraph.isQuestionNode(node2)) {
-        Set<Type<LexicalItem>> nodeTypes = uGraph.getTypes(node2);
+        Set<Type<LexicalItem>> nodeTypes = uGraph.getTypesView(node2);
         if (nodeTypes != null) {
           for (Type<LexicalItem> nodeType : nodeTypes) {
             LexicalItem modifierNode = nodeType.getModifierNode();
@@ -2742,7 +2784,7 @@ public class GroundedGraphs {
 
     if (argGrelPartFlag) {
       // adding argument word, grel feature
-      Set<Type<LexicalItem>> nodeTypes = uGraph.getTypes(node1);
+      Set<Type<LexicalItem>> nodeTypes = uGraph.getTypesView(node1);
       if (nodeTypes != null) {
         for (Type<LexicalItem> nodeType : nodeTypes) {
           LexicalItem modifierNode = nodeType.getModifierNode();
@@ -2759,7 +2801,7 @@ public class GroundedGraphs {
       }
 
 
-      nodeTypes = uGraph.getTypes(node2);
+      nodeTypes = uGraph.getTypesView(node2);
       if (nodeTypes != null) {
         for (Type<LexicalItem> nodeType : nodeTypes) {
           LexicalItem modifierNode = nodeType.getModifierNode();
@@ -2778,7 +2820,7 @@ public class GroundedGraphs {
 
     if (argGrelFlag) {
       // adding argument word, grel feature
-      Set<Type<LexicalItem>> nodeTypes = uGraph.getTypes(node1);
+      Set<Type<LexicalItem>> nodeTypes = uGraph.getTypesView(node1);
       if (nodeTypes != null) {
         for (Type<LexicalItem> nodeType : nodeTypes) {
           LexicalItem modifierNode = nodeType.getModifierNode();
@@ -2792,7 +2834,7 @@ public class GroundedGraphs {
         }
       }
 
-      nodeTypes = uGraph.getTypes(node2);
+      nodeTypes = uGraph.getTypesView(node2);
       if (nodeTypes != null) {
         for (Type<LexicalItem> nodeType : nodeTypes) {
           LexicalItem modifierNode = nodeType.getModifierNode();
@@ -2870,7 +2912,7 @@ public class GroundedGraphs {
 
     if (eventTypeGrelPartFlag) {
       String mediatorWord = mediator.getLemma();
-      Set<Type<LexicalItem>> mediatorTypes = uGraph.getTypes(mediator);
+      Set<Type<LexicalItem>> mediatorTypes = uGraph.getTypesView(mediator);
       if (mediatorTypes != null) {
         // birth place, place of birth (from madeup type
         // modifiers in function getUngroundedGraph).
@@ -2998,7 +3040,7 @@ public class GroundedGraphs {
               && (stringContainsWord(grelRightStripped, mediatorStem)
                   || stringContainsWord(grelRightInverse, mediatorStem))) {
             StemMatchingFeature s = new StemMatchingFeature(
-                2.0 / (countMediator(mediator, uGraph.getEdges()) + 1.0));
+                2.0 / (countMediator(mediator, uGraph.getEdgesView()) + 1.0));
             features.add(s);
           }
         } else if (embeddings != null) {
@@ -3017,8 +3059,8 @@ public class GroundedGraphs {
           if (sim > 0) {
             sim = sim / 2.0;
             StemMatchingFeature s = new StemMatchingFeature(
-                sim / (Math.max(uGraph.getEdges(node1).size()
-                    + uGraph.getEdges(node2).size(), 2.0)));
+                sim / (Math.max(uGraph.getEdgesView(node1).size()
+                    + uGraph.getEdgesView(node2).size(), 2.0)));
             features.add(s);
           }
         }
@@ -3106,15 +3148,15 @@ public class GroundedGraphs {
                 grelRightInverse, mediatorStem))) {
           MediatorStemGrelPartMatchingFeature s =
               new MediatorStemGrelPartMatchingFeature(2.0 / (countMediator(
-                  mediator, uGraph.getEdges()) + 1.0));
+                  mediator, uGraph.getEdgesView()) + 1.0));
           features.add(s);
         }
       }
     }
 
     if (argumentStemMatchingFlag) {
-      Set<Type<LexicalItem>> nodeTypes1 = uGraph.getTypes(node1);
-      Set<Type<LexicalItem>> nodeTypes2 = uGraph.getTypes(node2);
+      Set<Type<LexicalItem>> nodeTypes1 = uGraph.getTypesView(node1);
+      Set<Type<LexicalItem>> nodeTypes2 = uGraph.getTypesView(node2);
 
       Set<Type<LexicalItem>> nodeTypes = Sets.newTreeSet();
       if (nodeTypes1 != null)
@@ -3181,7 +3223,7 @@ public class GroundedGraphs {
                 && (stringContainsWord(grelRightStripped, modifierStem)
                     || stringContainsWord(grelRightInverse, modifierStem))) {
               ArgStemMatchingFeature s = new ArgStemMatchingFeature(2.0
-                  / (uGraph.getEdges(nodeType.getParentNode()).size() + 1.0));
+                  / (uGraph.getEdgesView(nodeType.getParentNode()).size() + 1.0));
               features.add(s);
             }
           } else if (embeddings != null) {
@@ -3200,8 +3242,8 @@ public class GroundedGraphs {
             if (sim > 0) {
               sim = sim / 2.0;
               ArgStemMatchingFeature s = new ArgStemMatchingFeature(
-                  sim / (Math.max(uGraph.getEdges(node1).size()
-                      + uGraph.getEdges(node2).size(), 2.0)));
+                  sim / (Math.max(uGraph.getEdgesView(node1).size()
+                      + uGraph.getEdgesView(node2).size(), 2.0)));
               features.add(s);
             }
           }
@@ -3210,8 +3252,8 @@ public class GroundedGraphs {
     }
 
     if (argumentStemGrelPartMatchingFlag) {
-      Set<Type<LexicalItem>> nodeTypes1 = uGraph.getTypes(node1);
-      Set<Type<LexicalItem>> nodeTypes2 = uGraph.getTypes(node2);
+      Set<Type<LexicalItem>> nodeTypes1 = uGraph.getTypesView(node1);
+      Set<Type<LexicalItem>> nodeTypes2 = uGraph.getTypesView(node2);
 
       Set<Type<LexicalItem>> nodeTypes = Sets.newTreeSet();
       if (nodeTypes1 != null)
@@ -3313,7 +3355,7 @@ public class GroundedGraphs {
               || (stringContainsWord(grelRightStripped, modifierStem) && stringContainsWord(
                   grelRightInverse, modifierStem))) {
             ArgStemGrelPartMatchingFeature s =
-                new ArgStemGrelPartMatchingFeature(2.0 / (uGraph.getEdges(
+                new ArgStemGrelPartMatchingFeature(2.0 / (uGraph.getEdgesView(
                     nodeType.getParentNode()).size() + 1.0));
             features.add(s);
           }
@@ -3366,8 +3408,8 @@ public class GroundedGraphs {
               && (stringContainsWord(grelRightStripped, unigram)
                   || stringContainsWord(grelRightInverse, unigram))) {
             NgramStemMatchingFeature s = new NgramStemMatchingFeature(
-                2.0 / (Math.max(uGraph.getEdges(node1).size()
-                    + uGraph.getEdges(node2).size(), 2.0)));
+                2.0 / (Math.max(uGraph.getEdgesView(node1).size()
+                    + uGraph.getEdgesView(node2).size(), 2.0)));
             features.add(s);
           }
         }
@@ -3388,8 +3430,8 @@ public class GroundedGraphs {
           if (sim > 0) {
             sim = sim/2.0;
             NgramStemMatchingFeature s = new NgramStemMatchingFeature(
-                sim / (Math.max(uGraph.getEdges(node1).size()
-                    + uGraph.getEdges(node2).size(), 2.0)));
+                sim / (Math.max(uGraph.getEdgesView(node1).size()
+                    + uGraph.getEdgesView(node2).size(), 2.0)));
             features.add(s);
           }
         }
@@ -3402,7 +3444,7 @@ public class GroundedGraphs {
   
   
   private double countMediator(LexicalItem mediator,
-      TreeSet<Edge<LexicalItem>> edges) {
+      Set<Edge<LexicalItem>> edges) {
     double count = 0.0;
     for (Edge<LexicalItem> edge : edges) {
       if (edge.getMediator().equals(mediator))
@@ -9,6 +9,7 @@ import in.sivareddy.graphparser.util.knowledgebase.Property;
 import in.sivareddy.graphparser.util.knowledgebase.Relation;
 import in.sivareddy.ml.basic.AbstractFeature;
 import in.sivareddy.ml.basic.Feature;
+import in.sivareddy.ml.learning.StructuredPercepton;
 import in.sivareddy.util.SentenceKeys;
 
 import java.util.ArrayList;
@@ -37,6 +38,14 @@ public class LexicalGraph extends Graph<LexicalItem> {
   private final Map<LexicalItem, LexicalItem> unifiedNodes;
   private int mergeCount = 0;
 
+  // Model score of features[0, scoredFeatureCount), so that growing the graph
+  // only requires scoring the newly added features.
+  private double featureScore = 0.0;
+  private int scoredFeatureCount = 0;
+  private boolean scoredForTesting = false;
+  private transient StructuredPercepton scoringModel = null;
+  private long scoredGeneration = -1;
+
   public void increaseMergeCount() {
     mergeCount++;
   }
@@ -79,6 +88,39 @@ public class LexicalGraph extends Graph<LexicalItem> {
     return features;
   }
 
+  /**
+   * Returns the score of the graph's features under the given model. Features
+   * are only ever appended to a graph, so only the features added since the
+   * last call are scored. The running score is recomputed from scratch if the
+   * model, its weights or the scoring mode changed since.
+   * 
+   * @param model
+   * @param testing
+   * @return
+   */
+  public double getIncrementalScore(StructuredPercepton model, boolean testing) {
+    // Read before scoring, so that a concurrent update invalidates the score.
+    long generation = model.getGeneration();
+    if (model != scoringModel || testing != scoredForTesting
+        || generation != scoredGeneration) {
+      scoringModel = model;
+      scoredForTesting = testing;
+      scoredGeneration = generation;
+      featureScore = 0.0;
+      scoredFeatureCount = 0;
+    }
+
+    if (scoredFeatureCount < features.size()) {
+      List<Feature> newFeatures =
+          features.subList(scoredFeatureCount, features.size());
+      featureScore +=
+          testing ? model.getScoreTesting(newFeatures) : model
+              .getScoreTraining(newFeatures);
+      scoredFeatureCount = features.size();
+    }
+    return featureScore;
+  }
+
   public static class MergedEdgeFeature extends AbstractFeature {
     private static final long serialVersionUID = 4867048253442317385L;
 
@@ -357,8 +399,8 @@ public class LexicalGraph extends Graph<LexicalItem> {
   public LexicalGraph copy() {
     LexicalGraph newGraph = new LexicalGraph();
 
-    if (getParallelGraph() != null) {
-      newGraph.setParallelGraph(getParallelGraph().copy());
+    if (parallelGraph != null) {
+      newGraph.parallelGraph = parallelGraph.copy();
     }
 
     if (groundedToUngrounded != null) {
@@ -371,6 +413,11 @@ public class LexicalGraph extends Graph<LexicalItem> {
     newGraph.features.addAll(features);
 
     newGraph.mergeCount = mergeCount;
+    newGraph.featureScore = featureScore;
+    newGraph.scoredFeatureCount = scoredFeatureCount;
+    newGraph.scoredForTesting = scoredForTesting;
+    newGraph.scoringModel = scoringModel;
+    newGraph.scoredGeneration = scoredGeneration;
     newGraph.syntacticParse = syntacticParse;
     newGraph.semanticParse = semanticParse;
 
@@ -411,7 +458,7 @@ public class LexicalGraph extends Graph<LexicalItem> {
     }
 
     graphString.append("Words: \n");
-    for (LexicalItem node : super.getNodes()) {
+    for (LexicalItem node : super.getNodesView()) {
       graphString.append(Objects.toStringHelper(node)
           .addValue(node.getWordPosition()).addValue(node.getWord())
           .addValue(node.getLemma()).addValue(node.getPos())
@@ -420,7 +467,7 @@ public class LexicalGraph extends Graph<LexicalItem> {
     }
 
     graphString.append("Edges: \n");
-    for (Edge<LexicalItem> edge : super.getEdges()) {
+    for (Edge<LexicalItem> edge : super.getEdgesView()) {
       graphString.append("(" + edge.getMediator().getWordPosition() + ","
           + edge.getLeft().getWordPosition() + ","
           + edge.getRight().getWordPosition() + ")" + "\t" + edge.getRelation()
@@ -428,14 +475,14 @@ public class LexicalGraph extends Graph<LexicalItem> {
     }
 
     graphString.append("Types: \n");
-    for (Type<LexicalItem> type : super.getTypes()) {
+    for (Type<LexicalItem> type : super.getTypesView()) {
       graphString.append("(" + type.getParentNode().getWordPosition() + ","
           + type.getModifierNode().getWordPosition() + ")" + "\t"
           + type.getEntityType() + '\n');
     }
 
     graphString.append("Properties: \n");
-    Map<LexicalItem, Set<Property>> nodeProperties = super.getProperties();
+    Map<LexicalItem, Set<Property>> nodeProperties = super.getPropertiesView();
     for (LexicalItem node : nodeProperties.keySet()) {
       graphString.append(node.getWordPosition() + "\t"
           + nodeProperties.get(node) + '\n');
@@ -486,18 +533,18 @@ public class LexicalGraph extends Graph<LexicalItem> {
       properties.remove(childNode);
     }
 
-    TreeSet<Edge<LexicalItem>> childEdges = this.getEdges(childNode);
+    Set<Edge<LexicalItem>> childEdges = this.getEdgesView(childNode);
     HashSet<Edge<LexicalItem>> parentEdges =
-        this.getEdges(parentNode) != null ? new HashSet<>(
-            this.getEdges(parentNode)) : new HashSet<>();
+        this.getEdgesView(parentNode) != null ? new HashSet<>(
+            this.getEdgesView(parentNode)) : new HashSet<>();
     if (childEdges != null && childEdges.size() > 0) {
       childEdges = new TreeSet<>(childEdges); // avoids loop and deletion clash
       for (Edge<LexicalItem> edge : childEdges) {
         if (!edge.getRight().equals(parentNode)) {
           // An edge should not exist between the new node and the parent node.
           HashSet<Edge<LexicalItem>> existingEdges =
-              this.getEdges(edge.getRight()) != null ? new HashSet<>(
-                  this.getEdges(edge.getRight())) : new HashSet<>();
+              this.getEdgesView(edge.getRight()) != null ? new HashSet<>(
+                  this.getEdgesView(edge.getRight())) : new HashSet<>();
           existingEdges.retainAll(parentEdges);
           if (existingEdges.size() == 0) {
             addEdge(parentNode, edge.getRight(), edge.getMediator(),
@@ -508,7 +555,7 @@ public class LexicalGraph extends Graph<LexicalItem> {
       }
     }
 
-    TreeSet<Type<LexicalItem>> childTypes = this.getTypes(childNode);
+    Set<Type<LexicalItem>> childTypes = this.getTypesView(childNode);
     if (childTypes != null && childTypes.size() > 0) {
       for (Type<LexicalItem> childType : childTypes) {
         addType(parentNode, childType.getModifierNode(),
@@ -553,23 +600,11 @@ public class LexicalGraph extends Graph<LexicalItem> {
   }
 
   public boolean isQuestionNode(LexicalItem node) {
-    if (getProperties().get(node) != null) {
-      for (Property property : getProperties().get(node)) {
-        if (property.getPropertyName().equals("QUESTION"))
-          return true;
-      }
-    }
-    return false;
+    return hasProperty(node, "QUESTION");
   }
 
   public boolean isCountNode(LexicalItem node) {
-    if (getProperties().get(node) != null) {
-      for (Property property : getProperties().get(node)) {
-        if (property.getPropertyName().equals("COUNT"))
-          return true;
-      }
-    }
-    return false;
+    return hasProperty(node, "COUNT");
   }
 
   public void removeType(Type<LexicalItem> mergedType) {
@@ -0,0 +1,103 @@
+package in.sivareddy.graphparser.parsing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k highest scoring grounded graphs seen so far. Graphs are held in
+ * a min-heap on their score, so a candidate can be rejected against the k-th
+ * best score before it is built, and adding a graph costs O(log k) instead of
+ * re-sorting every candidate.
+ *
+ * Graphs with equal scores are ranked in the order in which they were added,
+ * as a stable sort of all the candidates would have done.
+ */
+public class LexicalGraphBeam {
+  private final int beamSize;
+  private final PriorityQueue<BeamEntry> heap;
+  private long additions = 0;
+
+  private static class BeamEntry {
+    private final LexicalGraph graph;
+    private final double score;
+    private final long order;
+
+    private BeamEntry(LexicalGraph graph, long order) {
+      this.graph = graph;
+      this.score = graph.getScore();
+      this.order = order;
+    }
+  }
+
+  // Worst entry first: lowest score, and among equal scores the latest one.
+  private static final Comparator<BeamEntry> WORST_FIRST = (x, y) -> {
+    int compare = Double.compare(x.score, y.score);
+    return compare != 0 ? compare : Long.compare(y.order, x.order);
+  };
+
+  public LexicalGraphBeam(int beamSize) {
+    this.beamSize = beamSize;
+    this.heap =
+        new PriorityQueue<>(Math.max(1, Math.min(beamSize, 1024)),
+            WORST_FIRST);
+  }
+
+  /**
+   * Returns true if a graph with the given score would enter the beam.
+   *
+   * @param score
+   * @return
+   */
+  public boolean accepts(double score) {
+    if (heap.size() < beamSize) {
+      return true;
+    }
+    return beamSize > 0 && score > heap.peek().score;
+  }
+
+  /**
+   * Adds the graph to the beam if its score is among the k best. Returns true
+   * if the graph was added.
+   *
+   * @param graph
+   * @return
+   */
+  public boolean add(LexicalGraph graph) {
+    if (!accepts(graph.getScore())) {
+      return false;
+    }
+    heap.add(new BeamEntry(graph, additions++));
+    if (heap.size() > beamSize) {
+      heap.poll();
+    }
+    return true;
+  }
+
+  public void addAll(List<LexicalGraph> graphs) {
+    for (LexicalGraph graph : graphs) {
+      add(graph);
+    }
+  }
+
+  public int size() {
+    return heap.size();
+  }
+
+  /**
+   * Returns the graphs in the beam, best first.
+   *
+   * @return
+   */
+  public List<LexicalGraph> getGraphs() {
+    List<BeamEntry> entries = new ArrayList<>(heap);
+    Collections.sort(entries, Collections.reverseOrder(WORST_FIRST));
+    List<LexicalGraph> graphs = new ArrayList<>(entries.size());
+    for (BeamEntry entry : entries) {
+      graphs.add(entry.graph);
+    }
+    return graphs;
+  }
+}
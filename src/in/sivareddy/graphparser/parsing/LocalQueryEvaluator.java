@@ -0,0 +1,345 @@
+package in.sivareddy.graphparser.parsing;
+
+import in.sivareddy.graphparser.ccg.LexicalItem;
+import in.sivareddy.graphparser.util.graph.Edge;
+import in.sivareddy.graphparser.util.graph.Type;
+import in.sivareddy.graphparser.util.knowledgebase.EntityType;
+import in.sivareddy.graphparser.util.knowledgebase.LocalKnowledgeBase;
+import in.sivareddy.graphparser.util.knowledgebase.Property;
+import in.sivareddy.graphparser.util.knowledgebase.Relation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Answers grounded graphs from the facts of a {@link LocalKnowledgeBase},
+ * as joins over the entities related to the entities of the graph, instead
+ * of sending the query of {@link GraphToSparqlConverter} to an endpoint.
+ *
+ * Only graphs whose variables are all connected to entities, and whose
+ * mediator nodes each join a single edge, are answered. Graphs with counts,
+ * dates, numbers or entities missing from the knowledge base are not, and
+ * should be sent to the endpoint.
+ */
+public class LocalQueryEvaluator {
+  private static final String FB_PREFIX = "http://rdf.freebase.com/ns/";
+  // Graphs needing more joins than this are left to the endpoint.
+  public static int MAX_STEPS = 100000;
+
+  private static Set<String> standardTypes = Sets.newHashSet("type.datetime",
+      "type.int", "type.float");
+
+  private final LocalKnowledgeBase kb;
+
+  public LocalQueryEvaluator(LocalKnowledgeBase kb) {
+    this.kb = kb;
+  }
+
+  /**
+   * Returns the results of the query {@link GraphToSparqlConverter} builds
+   * for the graph, or null if the graph cannot be answered locally.
+   *
+   * @param graph grounded graph
+   * @param targetNode node whose values are returned, or null for the
+   *        question node
+   * @param limit maximum number of answers
+   * @return answers of the target variable, in the format of
+   *         {@link in.sivareddy.graphparser.util.RdfGraphTools#runQueryHttp}
+   */
+  public Map<String, LinkedHashSet<String>> evaluate(LexicalGraph graph,
+      LexicalItem targetNode, int limit) {
+    LexicalItem realTargetNode = graph.getUnifiedNode(targetNode);
+    Query query = new Query();
+
+    for (Type<LexicalItem> nodeType : graph.getTypesView()) {
+      LexicalItem parentNode = nodeType.getParentNode();
+      EntityType entityType = nodeType.getEntityType();
+      if (standardTypes.contains(entityType.getType())
+          || standardTypes.contains(parentNode.getMid())
+          || entityType.getType().equals("type.empty")) {
+        continue;
+      }
+
+      String parentTerm = getTerm(parentNode, realTargetNode);
+      String[] parts = entityType.getType().split("#");
+      if (parts.length > 1) {
+        if (!parts[2].startsWith("m.")
+            || !query.addEdge(parentTerm, parts[2],
+                Relation.of(parts[0], parts[1]), nodeType.getModifierNode(),
+                true)) {
+          return null;
+        }
+      } else if (parentTerm == null) {
+        return null;
+      } else {
+        query.types.computeIfAbsent(parentTerm, x -> Sets.newHashSet()).add(
+            entityType.getType());
+      }
+    }
+
+    for (Edge<LexicalItem> edge : graph.getEdgesView()) {
+      Relation relation = edge.getRelation();
+      String leftEdge = relation.getLeft();
+      String rightEdge = relation.getRight();
+      int leftEdgeLength = leftEdge.length();
+      int rightEdgeLength = rightEdge.length();
+      String leftTerm = getTerm(edge.getLeft(), realTargetNode);
+      String rightTerm = getTerm(edge.getRight(), realTargetNode);
+      boolean added;
+      if (leftEdgeLength == rightEdgeLength
+          && leftEdge.substring(0, leftEdgeLength - 2).equals(
+              rightEdge.substring(0, rightEdgeLength - 2))) {
+        char left = leftEdge.charAt(leftEdgeLength - 1);
+        char right = rightEdge.charAt(rightEdgeLength - 1);
+        added =
+            ((left == '1' && right == '2') || (left == '2' && right == '1'))
+                && query.addEdge(leftTerm, rightTerm, relation, null, false);
+      } else {
+        added =
+            query.addEdge(leftTerm, rightTerm, relation, edge.getMediator(),
+                true);
+      }
+      if (!added) {
+        return null;
+      }
+    }
+
+    String targetVar = null;
+    for (Map.Entry<LexicalItem, Set<Property>> entry : graph.getPropertiesView()
+        .entrySet()) {
+      for (Property property : entry.getValue()) {
+        if (property.getPropertyName().equals("COUNT")) {
+          return null;
+        } else if (property.getPropertyName().equals("QUESTION")) {
+          targetVar = getTerm(entry.getKey(), realTargetNode);
+        }
+      }
+    }
+    if (realTargetNode != null) {
+      targetVar = getTerm(realTargetNode, realTargetNode);
+    }
+    if (targetVar == null || !isVariable(targetVar)) {
+      return null;
+    }
+
+    LinkedHashSet<String> answers = query.solve(targetVar, limit);
+    if (answers == null) {
+      return null;
+    }
+    Map<String, LinkedHashSet<String>> results = new HashMap<>();
+    if (answers.size() > 0) {
+      results.put(targetVar.substring(1), answers);
+    }
+    return results;
+  }
+
+  /**
+   * Returns the entity or the variable of the node, or null if it is neither,
+   * e.g. a date or a number.
+   */
+  private static String getTerm(LexicalItem node, LexicalItem targetNode) {
+    String term = GraphToSparqlConverter.getNodeVariable(node, targetNode);
+    if (term.startsWith("fb:")) {
+      return term.substring(3);
+    } else if (isVariable(term) && !standardTypes.contains(node.getMid())) {
+      return term;
+    }
+    return null;
+  }
+
+  private static boolean isVariable(String term) {
+    return term.startsWith("?");
+  }
+
+  private static class Fact {
+    final String left;
+    final String right;
+    final Relation relation;
+    // Mediator relations require different arguments.
+    final boolean distinct;
+
+    Fact(String left, String right, Relation relation, boolean distinct) {
+      this.left = left;
+      this.right = right;
+      this.relation = relation;
+      this.distinct = distinct;
+    }
+  }
+
+  private class Query {
+    final List<Fact> facts = new ArrayList<>();
+    final Map<String, Set<String>> types = Maps.newHashMap();
+    final Set<LexicalItem> mediators = Sets.newHashSet();
+    final Map<String, String> binding = Maps.newHashMap();
+    final Map<Pair<String, Relation>, Set<String>> relatedEntities = Maps
+        .newHashMap();
+    int steps = 0;
+
+    boolean addEdge(String left, String right, Relation relation,
+        LexicalItem mediator, boolean distinct) {
+      if (left == null || right == null) {
+        return false;
+      }
+      // A mediator shared by several edges is a join the knowledge base does
+      // not store.
+      if (mediator != null && !mediators.add(mediator)) {
+        return false;
+      }
+      facts.add(new Fact(left, right, relation, distinct));
+      return true;
+    }
+
+    /**
+     * Returns the values of the target variable in the solutions, or null
+     * if the query cannot be answered locally.
+     */
+    LinkedHashSet<String> solve(String targetVar, int limit) {
+      List<String> order = Lists.newArrayList();
+      List<Fact> generators = Lists.newArrayList();
+      Set<String> bound = Sets.newHashSet();
+      for (Fact fact : facts) {
+        for (String term : Lists.newArrayList(fact.left, fact.right)) {
+          if (!isVariable(term)) {
+            if (!kb.hasEntity(term)) {
+              return null;
+            }
+            bound.add(term);
+          }
+        }
+      }
+      for (String term : types.keySet()) {
+        if (!isVariable(term)) {
+          if (!kb.hasEntity(term)) {
+            return null;
+          }
+          bound.add(term);
+        }
+      }
+
+      // Variables are bound in the order in which they are reached from the
+      // entities.
+      boolean added = true;
+      while (added) {
+        added = false;
+        for (Fact fact : facts) {
+          String next = null;
+          if (bound.contains(fact.left) && !bound.contains(fact.right)) {
+            next = fact.right;
+          } else if (bound.contains(fact.right) && !bound.contains(fact.left)) {
+            next = fact.left;
+          }
+          if (next != null) {
+            bound.add(next);
+            order.add(next);
+            generators.add(fact);
+            added = true;
+          }
+        }
+      }
+      if (!bound.contains(targetVar) || !bound.containsAll(types.keySet())) {
+        return null;
+      }
+      for (Fact fact : facts) {
+        if (!bound.contains(fact.left) || !bound.contains(fact.right)) {
+          return null;
+        }
+      }
+
+      LinkedHashSet<String> answers = new LinkedHashSet<>();
+      if (consistent(null)) {
+        search(order, generators, 0, targetVar, answers, limit);
+      }
+      return steps > MAX_STEPS ? null : answers;
+    }
+
+    /**
+     * Extends the binding to the variables from index on. Returns false if
+     * the search stopped early, because of the limit or the steps.
+     */
+    private boolean search(List<String> order, List<Fact> generators,
+        int index, String targetVar, LinkedHashSet<String> answers, int limit) {
+      if (index == order.size()) {
+        answers.add(FB_PREFIX + binding.get(targetVar));
+        return answers.size() < limit;
+      }
+      String var = order.get(index);
+      Fact generator = generators.get(index);
+      Set<String> candidates =
+          var.equals(generator.right) ? getRelatedEntities(
+              getValue(generator.left), generator.relation)
+              : getRelatedEntities(getValue(generator.right),
+                  generator.relation.inverse());
+      for (String candidate : candidates) {
+        if (++steps > MAX_STEPS) {
+          return false;
+        }
+        binding.put(var, candidate);
+        if (consistent(var)
+            && !search(order, generators, index + 1, targetVar, answers,
+                limit)) {
+          binding.remove(var);
+          return false;
+        }
+        binding.remove(var);
+      }
+      return true;
+    }
+
+    /**
+     * Checks the facts and types whose terms are all bound, and which
+     * involve the variable, or only entities if the variable is null.
+     */
+    private boolean consistent(String var) {
+      for (Fact fact : facts) {
+        boolean involved =
+            var == null ? !isVariable(fact.left) && !isVariable(fact.right)
+                : fact.left.equals(var) || fact.right.equals(var);
+        String left = getValue(fact.left);
+        String right = getValue(fact.right);
+        if (!involved || left == null || right == null) {
+          continue;
+        }
+        if (fact.distinct && left.equals(right)) {
+          return false;
+        }
+        if (!getRelatedEntities(left, fact.relation).contains(right)) {
+          return false;
+        }
+      }
+      for (Map.Entry<String, Set<String>> entry : types.entrySet()) {
+        String term = entry.getKey();
+        boolean involved = var == null ? !isVariable(term) : term.equals(var);
+        if (!involved) {
+          continue;
+        }
+        Set<String> entityTypes = kb.getTypes(getValue(term));
+        if (entityTypes == null || !entityTypes.containsAll(entry.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private String getValue(String term) {
+      return isVariable(term) ? binding.get(term) : term;
+    }
+
+    private Set<String> getRelatedEntities(String entity, Relation relation) {
+      return relatedEntities.computeIfAbsent(Pair.of(entity, relation), x -> {
+        Set<String> entities = kb.getRelatedEntities(entity, relation);
+        return entities == null ? new TreeSet<>() : new TreeSet<>(entities);
+      });
+    }
+  }
+}
@@ -0,0 +1,304 @@
+package in.sivareddy.graphparser.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Canonical form of a SPARQL query, so that queries differing only in the
+ * names of their variables, the order of their triple patterns and filters,
+ * or white space are recognised as the same query.
+ *
+ * Variables are renamed to ?v0, ?v1, ... in the order in which they appear in
+ * the canonical query, and the triple patterns and filters of each group are
+ * ordered by their text with the variables named so far. Blocks such as
+ * OPTIONAL, UNION or MINUS, and BIND or VALUES clauses, keep their position,
+ * since moving them may change the answers.
+ *
+ * Queries that cannot be parsed are only normalised for white space.
+ */
+public class CanonicalQuery {
+  private static final Pattern TOKEN = Pattern
+      .compile("\"(?:[^\"\\\\]|\\\\.)*\"|'(?:[^'\\\\]|\\\\.)*'|<[^>\\s]*>|\\?(\\w+)");
+  private static final String UNNAMED = "?_";
+
+  private final String query;
+  private final String hash;
+  // Canonical variable names to original names, without the '?'.
+  private final Map<String, String> originalNames;
+
+  private CanonicalQuery(String query, Map<String, String> originalNames) {
+    this.query = query;
+    this.originalNames = originalNames;
+    this.hash =
+        Hashing.murmur3_128().hashString(query, StandardCharsets.UTF_8)
+            .toString();
+  }
+
+  public static CanonicalQuery of(String query) {
+    String normalized = CharMatcher.WHITESPACE.trimAndCollapseFrom(query, ' ');
+    Builder builder = new Builder();
+    try {
+      builder.addQuery(normalized);
+    } catch (IllegalArgumentException e) {
+      return new CanonicalQuery(normalized, new HashMap<>());
+    }
+    Map<String, String> originalNames = new HashMap<>();
+    for (Entry<String, String> entry : builder.names.entrySet()) {
+      originalNames.put(entry.getValue(), entry.getKey());
+    }
+    return new CanonicalQuery(builder.out.toString(), originalNames);
+  }
+
+  /**
+   * Returns the query with canonical variable names, which gives the same
+   * answers as the original query.
+   */
+  public String getQuery() {
+    return query;
+  }
+
+  /**
+   * Returns a compact hash of the canonical query.
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  /**
+   * Renames the variables in the results of the canonical query to those of
+   * the original query.
+   *
+   * @param results results of the canonical query
+   * @return results with the original variable names
+   */
+  public Map<String, LinkedHashSet<String>> toOriginalVariables(
+      Map<String, LinkedHashSet<String>> results) {
+    if (results == null) {
+      return null;
+    }
+    Map<String, LinkedHashSet<String>> renamed = new HashMap<>();
+    results.forEach((var, values) -> renamed.put(
+        originalNames.getOrDefault(var, var), values));
+    return renamed;
+  }
+
+  private static class Builder {
+    // Original variable names to canonical names, without the '?'.
+    final Map<String, String> names = new HashMap<>();
+    final StringBuilder out = new StringBuilder();
+
+    /**
+     * Adds a query, or a group starting with a sub query, e.g. "SELECT ?x
+     * WHERE { ... } LIMIT 10".
+     */
+    void addQuery(String text) {
+      int open = indexOfBrace(text, 0);
+      if (open < 0) {
+        throw new IllegalArgumentException("No group in " + text);
+      }
+      int close = matchingBrace(text, open);
+      out.append(rename(text.substring(0, open + 1), true));
+      out.append(' ');
+      addGroup(text.substring(open + 1, close).trim());
+      out.append(' ');
+      out.append(rename(text.substring(close), true));
+    }
+
+    void addGroup(String text) {
+      if (text.startsWith("SELECT ") || text.startsWith("ASK ")) {
+        addQuery(text);
+        return;
+      }
+      List<String> segment = new ArrayList<>();
+      boolean first = true;
+      for (String item : splitItems(text)) {
+        if (isBarrier(item)) {
+          first = addSegment(segment, first);
+          segment.clear();
+          if (!first) {
+            out.append(' ');
+          }
+          first = false;
+          addBlock(item);
+        } else {
+          segment.add(item);
+        }
+      }
+      addSegment(segment, first);
+    }
+
+    /**
+     * Adds the items in canonical order: the item first in the order of
+     * their text, with unnamed variables left out, is added, its variables
+     * named, and so on.
+     */
+    boolean addSegment(List<String> items, boolean first) {
+      List<String> remaining = new ArrayList<>(items);
+      while (!remaining.isEmpty()) {
+        String best = null;
+        String bestKey = null;
+        for (String item : remaining) {
+          String key = rename(item, false);
+          if (bestKey == null || key.compareTo(bestKey) < 0) {
+            best = item;
+            bestKey = key;
+          }
+        }
+        remaining.remove(best);
+        if (!first) {
+          out.append(' ');
+        }
+        first = false;
+        out.append(rename(best, true));
+      }
+      return first;
+    }
+
+    void addBlock(String item) {
+      int open = indexOfBrace(item, 0);
+      if (open < 0) {
+        out.append(rename(item, true));
+        return;
+      }
+      int close = matchingBrace(item, open);
+      out.append(rename(item.substring(0, open + 1), true));
+      out.append(' ');
+      addGroup(item.substring(open + 1, close).trim());
+      out.append(' ');
+      String rest = item.substring(close + 1).trim();
+      out.append('}');
+      if (!rest.isEmpty()) {
+        out.append(' ');
+        addBlock(rest);
+      }
+    }
+
+    /**
+     * Replaces the variables in the text with their canonical names. Unnamed
+     * variables are named if name is true, and left out otherwise.
+     */
+    String rename(String text, boolean name) {
+      Matcher matcher = TOKEN.matcher(text);
+      StringBuffer renamed = new StringBuffer();
+      while (matcher.find()) {
+        String var = matcher.group(1);
+        if (var == null) {
+          continue;
+        }
+        String canonical = names.get(var);
+        if (canonical == null && name) {
+          canonical = "v" + names.size();
+          names.put(var, canonical);
+        }
+        matcher.appendReplacement(renamed,
+            Matcher.quoteReplacement(canonical != null ? "?" + canonical
+                : UNNAMED));
+      }
+      matcher.appendTail(renamed);
+      return renamed.toString();
+    }
+  }
+
+  private static boolean isBarrier(String item) {
+    return indexOfBrace(item, 0) >= 0 || item.startsWith("BIND")
+        || item.startsWith("VALUES");
+  }
+
+  /**
+   * Splits a group into triple patterns, filters and blocks. Triple patterns
+   * end with " ." and blocks with their closing brace.
+   */
+  private static List<String> splitItems(String text) {
+    List<String> items = new ArrayList<>();
+    int depth = 0;
+    int start = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\'' || c == '<') {
+        i = skipToken(text, i);
+      } else if (c == '{' || c == '(') {
+        depth++;
+      } else if (c == '}' || c == ')') {
+        depth--;
+        if (depth < 0) {
+          throw new IllegalArgumentException("Unbalanced " + text);
+        }
+        if (c == '}' && depth == 0) {
+          int end = i + 1;
+          if (text.startsWith(" .", end)
+              && (end + 2 == text.length() || text.charAt(end + 2) == ' ')) {
+            end += 2;
+          }
+          items.add(text.substring(start, end).trim());
+          start = end;
+          i = end - 1;
+        }
+      } else if (c == '.' && depth == 0 && i > 0 && text.charAt(i - 1) == ' '
+          && (i + 1 == text.length() || text.charAt(i + 1) == ' ')) {
+        items.add(text.substring(start, i + 1).trim());
+        start = i + 1;
+      }
+    }
+    if (depth != 0) {
+      throw new IllegalArgumentException("Unbalanced " + text);
+    }
+    String rest = text.substring(start).trim();
+    if (!rest.isEmpty()) {
+      items.add(rest);
+    }
+    items.removeIf(String::isEmpty);
+    return items;
+  }
+
+  /**
+   * Returns the position of the last character of the string or iri starting
+   * at i, or i if there is none.
+   */
+  private static int skipToken(String text, int i) {
+    Matcher matcher = TOKEN.matcher(text);
+    if (matcher.find(i) && matcher.start() == i) {
+      return matcher.end() - 1;
+    }
+    return i;
+  }
+
+  private static int indexOfBrace(String text, int from) {
+    for (int i = from; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\'' || c == '<') {
+        i = skipToken(text, i);
+      } else if (c == '{') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int matchingBrace(String text, int open) {
+    int depth = 0;
+    for (int i = open; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\'' || c == '<') {
+        i = skipToken(text, i);
+      } else if (c == '{') {
+        depth++;
+      } else if (c == '}') {
+        depth--;
+        if (depth == 0) {
+          return i;
+        }
+      }
+    }
+    throw new IllegalArgumentException("Unbalanced " + text);
+  }
+}
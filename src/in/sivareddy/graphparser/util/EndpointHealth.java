@@ -0,0 +1,158 @@
+package in.sivareddy.graphparser.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and failures of the queries sent to a SPARQL endpoint, shared by
+ * all the {@link RdfGraphTools} querying it.
+ *
+ * The timeout of a query is lowered to a multiple of the 99th percentile of
+ * the recent latencies, so that a query stuck on a slow endpoint does not
+ * hold a worker for the whole configured timeout. After
+ * {@link #FAILURE_THRESHOLD} consecutive timeouts or server errors, the
+ * circuit opens and queries are skipped without being sent, until a single
+ * probe query succeeds. Skipped queries are counted, and reported by
+ * {@link #toString()}.
+ */
+public class EndpointHealth {
+  // Timeouts are not adapted before this many queries have succeeded.
+  public static int MIN_SAMPLES = 100;
+  public static int MIN_TIMEOUT = 1000;
+  public static double TIMEOUT_FACTOR = 3.0;
+  public static int FAILURE_THRESHOLD = 10;
+  public static int OPEN_MILLIS = 5000;
+  public static int MAX_OPEN_MILLIS = 120000;
+
+  private static final int WINDOW = 1000;
+  private static final int UPDATE_EVERY = 50;
+
+  private static final Map<String, EndpointHealth> endpoints =
+      new ConcurrentHashMap<>();
+
+  private enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String endpoint;
+
+  // Latencies of the recent successful queries, in milli seconds.
+  private final long[] latencies = new long[WINDOW];
+  private int samples = 0;
+  private long p99 = 0;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openUntil = 0;
+  private long openMillis = OPEN_MILLIS;
+
+  private final AtomicLong queries = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+
+  private EndpointHealth(String endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * Returns the health of the endpoint, shared by all its users.
+   */
+  public static EndpointHealth of(String endpoint) {
+    return endpoints.computeIfAbsent(endpoint, EndpointHealth::new);
+  }
+
+  /**
+   * Returns true if a query may be sent now, and counts it as skipped
+   * otherwise. While the circuit is half open, only one query is let through.
+   */
+  public synchronized boolean allowQuery() {
+    if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+      state = State.HALF_OPEN;
+      return true;
+    }
+    if (state != State.CLOSED) {
+      skipped.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the timeout for the next query: the configured timeout, lowered
+   * to a multiple of the observed 99th percentile latency.
+   *
+   * @param timeOut configured timeout in milli seconds, 0 for none
+   * @return timeout in milli seconds, 0 for none
+   */
+  public synchronized int getTimeOut(int timeOut) {
+    if (timeOut <= 0 || samples < MIN_SAMPLES) {
+      return timeOut;
+    }
+    long adaptive = Math.max(MIN_TIMEOUT, (long) (p99 * TIMEOUT_FACTOR));
+    return (int) Math.min(timeOut, adaptive);
+  }
+
+  /**
+   * Records a query answered by the endpoint, including queries the
+   * endpoint rejected as bad.
+   *
+   * @param latency milli seconds until the response arrived
+   */
+  public synchronized void recordSuccess(long latency) {
+    queries.incrementAndGet();
+    latencies[samples % WINDOW] = latency;
+    samples++;
+    if (samples == MIN_SAMPLES || samples % UPDATE_EVERY == 0) {
+      long[] recent = Arrays.copyOf(latencies, Math.min(samples, WINDOW));
+      Arrays.sort(recent);
+      p99 = recent[(int) Math.ceil(recent.length * 0.99) - 1];
+    }
+    consecutiveFailures = 0;
+    if (state != State.CLOSED) {
+      state = State.CLOSED;
+      openMillis = OPEN_MILLIS;
+    }
+  }
+
+  /**
+   * Records a query the endpoint failed to answer, because it timed out or
+   * the server or connection failed.
+   */
+  public synchronized void recordFailure(boolean timeout) {
+    queries.incrementAndGet();
+    (timeout ? timeouts : errors).incrementAndGet();
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN) {
+      // The probe failed: wait longer before the next one.
+      openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+      open();
+    } else if (state == State.CLOSED
+        && consecutiveFailures >= FAILURE_THRESHOLD) {
+      open();
+    }
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openUntil = System.currentTimeMillis() + openMillis;
+  }
+
+  public long getSkippedQueries() {
+    return skipped.get();
+  }
+
+  public long getFailedQueries() {
+    return timeouts.get() + errors.get();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "%s: %d queries, %d timeouts, %d errors, %d skipped, "
+            + "p99 latency %d ms, circuit %s", endpoint, queries.get(),
+        timeouts.get(), errors.get(), skipped.get(), p99, state);
+  }
+}
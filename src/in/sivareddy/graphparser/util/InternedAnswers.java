@@ -0,0 +1,237 @@
+package in.sivareddy.graphparser.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Answers interned to int ids, so that answer sets are compared as sorted
+ * arrays of ids instead of sets of strings. Each raw answer is cleaned once
+ * per cleaning, and the ids of an answer set are kept as long as the set is
+ * in use and unchanged, so that a gold answer set compared with a whole beam,
+ * and query results shared through the query cache, are cleaned and interned
+ * once.
+ *
+ * Once {@link #MAX_ANSWERS} answers are interned, the instance returned by
+ * {@link #get()} is replaced by an empty one, and the old one is dropped
+ * when the comparisons using it are done.
+ */
+class InternedAnswers {
+  private static final Pattern YEAR = Pattern.compile("([0-9]{3,4})");
+
+  /**
+   * The ways {@link RdfGraphTools} cleans answers before comparing them.
+   */
+  enum Cleaning {
+    // Answers are compared as they are.
+    NONE(x -> x),
+    // Dates and other typed values are made readable.
+    XML_SCHEMA(x -> RdfGraphTools.handleXMLSchemaEntry(x)),
+    // Entities are reduced to their mid and dates to their year.
+    MID(x -> {
+      boolean answerIsDate = x.contains("XMLSchema#datetime");
+      String answer = x.split("\\^\\^")[0];
+      String[] answers = answer.split("/");
+      if (answers.length > 0)
+        answer = answers[answers.length - 1];
+      if (answerIsDate) {
+        Matcher matcher = YEAR.matcher(answer);
+        if (matcher.find()) {
+          answer = matcher.group(1);
+        }
+      }
+      return answer;
+    }),
+    // The type and the language tag of literals are removed.
+    LITERAL(x -> x.split("\\^\\^")[0].replaceAll("@[a-zA-Z\\-]+$", "")),
+    // As LITERAL, and dates are reduced to their year.
+    LITERAL_YEAR(x -> {
+      String answer = LITERAL.clean.apply(x);
+      Matcher matcher = YEAR.matcher(answer);
+      return matcher.find() ? matcher.group(1) : answer;
+    });
+
+    private final Function<String, String> clean;
+
+    private Cleaning(Function<String, String> clean) {
+      this.clean = clean;
+    }
+  }
+
+  // Answers interned before the current instance is replaced, which bounds
+  // the memory taken by the answers of long runs.
+  static int MAX_ANSWERS = 1000000;
+
+  private static volatile InternedAnswers current = new InternedAnswers();
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private final List<String> answers = new ArrayList<>();
+
+  private final Map<Cleaning, Cache<String, Integer>> cleanedIds =
+      new EnumMap<>(Cleaning.class);
+  // Sets are weakly held, and compared by identity.
+  private final Map<Cleaning, Cache<Set<String>, AnswerIds>> setIds =
+      new EnumMap<>(Cleaning.class);
+
+  private static class AnswerIds {
+    // The answers the ids were computed from, in the order of the set.
+    final String[] members;
+    final int[] ids;
+
+    AnswerIds(String[] members, int[] ids) {
+      this.members = members;
+      this.ids = ids;
+    }
+
+    /**
+     * Returns true if the set still has the answers the ids were computed
+     * from.
+     */
+    boolean isCurrent(Set<String> answers) {
+      if (answers.size() != members.length) {
+        return false;
+      }
+      int i = 0;
+      for (String answer : answers) {
+        String member = members[i++];
+        if (answer != member && !answer.equals(member)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private InternedAnswers() {
+    for (Cleaning cleaning : Cleaning.values()) {
+      cleanedIds.put(cleaning, Caffeine.newBuilder().maximumSize(1000000)
+          .build());
+      setIds.put(cleaning, Caffeine.newBuilder().weakKeys()
+          .maximumSize(100000).build());
+    }
+  }
+
+  /**
+   * Returns the interned answers to use for a comparison. Ids are only
+   * comparable with ids from the same instance.
+   */
+  static InternedAnswers get() {
+    InternedAnswers interned = current;
+    if (interned.size() >= MAX_ANSWERS) {
+      synchronized (InternedAnswers.class) {
+        if (current == interned) {
+          current = new InternedAnswers();
+        }
+        interned = current;
+      }
+    }
+    return interned;
+  }
+
+  /**
+   * Returns the id of the answer after cleaning.
+   */
+  int getId(String answer, Cleaning cleaning) {
+    return cleanedIds.get(cleaning).get(answer,
+        x -> intern(cleaning.clean.apply(x)));
+  }
+
+  /**
+   * Returns the answer after cleaning.
+   */
+  String clean(String answer, Cleaning cleaning) {
+    return getAnswer(getId(answer, cleaning));
+  }
+
+  /**
+   * Returns the sorted distinct ids of the answers after cleaning. The array
+   * is shared and must not be modified.
+   */
+  int[] getIds(Set<String> answers, Cleaning cleaning) {
+    Cache<Set<String>, AnswerIds> cache = setIds.get(cleaning);
+    AnswerIds answerIds = cache.getIfPresent(answers);
+    if (answerIds == null || !answerIds.isCurrent(answers)) {
+      String[] members = answers.toArray(new String[answers.size()]);
+      int[] sortedIds = new int[members.length];
+      for (int i = 0; i < members.length; i++) {
+        sortedIds[i] = getId(members[i], cleaning);
+      }
+      Arrays.sort(sortedIds);
+      answerIds = new AnswerIds(members, distinct(sortedIds));
+      cache.put(answers, answerIds);
+    }
+    return answerIds.ids;
+  }
+
+  /**
+   * Returns the number of ids in both sorted arrays.
+   */
+  static int overlap(int[] ids1, int[] ids2) {
+    int overlap = 0;
+    int i = 0;
+    int j = 0;
+    while (i < ids1.length && j < ids2.length) {
+      if (ids1[i] < ids2[j]) {
+        i++;
+      } else if (ids1[i] > ids2[j]) {
+        j++;
+      } else {
+        overlap++;
+        i++;
+        j++;
+      }
+    }
+    return overlap;
+  }
+
+  /**
+   * Returns true if the first sorted array contains all ids of the second.
+   */
+  static boolean containsAll(int[] ids1, int[] ids2) {
+    return overlap(ids1, ids2) == ids2.length;
+  }
+
+  private static int[] distinct(int[] sortedIds) {
+    int size = 0;
+    for (int i = 0; i < sortedIds.length; i++) {
+      if (size == 0 || sortedIds[size - 1] != sortedIds[i]) {
+        sortedIds[size++] = sortedIds[i];
+      }
+    }
+    return size == sortedIds.length ? sortedIds : Arrays.copyOf(sortedIds,
+        size);
+  }
+
+  private int size() {
+    return ids.size();
+  }
+
+  private int intern(String answer) {
+    Integer id = ids.get(answer);
+    if (id != null) {
+      return id;
+    }
+    synchronized (answers) {
+      return ids.computeIfAbsent(answer, x -> {
+        answers.add(x);
+        return answers.size() - 1;
+      });
+    }
+  }
+
+  private String getAnswer(int id) {
+    synchronized (answers) {
+      return answers.get(id);
+    }
+  }
+}
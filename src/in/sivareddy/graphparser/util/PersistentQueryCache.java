@@ -0,0 +1,477 @@
+package in.sivareddy.graphparser.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Query results stored on disk, so that they survive the JVM and can be
+ * shared by several runs. Results are appended as records to a single log
+ * file in the cache directory. An index from the hash of each query to its
+ * record is kept in memory; it is rebuilt when the cache is opened by reading
+ * the record headers only. Hits cost one positional read of the file.
+ *
+ * JVMs sharing the directory append under an exclusive lock on a lock file,
+ * and pick up the records appended by the others when they miss. A miss only
+ * takes the lock if the size or identity of the log file changed since it
+ * was last indexed. Records are
+ * checked against their checksum when read, so a record left half written by
+ * a killed JVM is never returned, and is cut off by the next append.
+ *
+ * When the file grows beyond the maximum size it is compacted: the most
+ * recently used results are copied to a new file, which replaces the old
+ * one. Recency is known for the results used by this JVM; the other results
+ * are ranked by the order in which they were written.
+ */
+public class PersistentQueryCache {
+  static final String LOG_FILE = "results.log";
+  private static final String LOCK_FILE = ".lock";
+  private static final int MAGIC = 0x47505143; // "GPQC"
+  private static final int VERSION = 2;
+  private static final int FILE_HEADER_SIZE = 8;
+  // Payload length, payload checksum and query hash.
+  private static final int RECORD_HEADER_SIZE = 16;
+
+  // File locks are held per JVM, so caches of the same directory in one JVM
+  // must also exclude each other.
+  private static final Map<String, Object> monitors =
+      new ConcurrentHashMap<>();
+
+  private final File logFile;
+  private final File lockFile;
+  private final long maxBytes;
+  private final Object monitor;
+  private final AtomicLong clock = new AtomicLong();
+  private volatile Store store;
+
+  private static class Record {
+    // Position of the record header in the file.
+    private final long offset;
+    private final int length;
+    private volatile long lastUse;
+
+    private Record(long offset, int length, long lastUse) {
+      this.offset = offset;
+      this.length = length;
+      this.lastUse = lastUse;
+    }
+  }
+
+  // An open log file and the index of its records.
+  private static class Store {
+    private final FileChannel channel;
+    private final Object fileKey;
+    private final Map<Long, Record> index = new ConcurrentHashMap<>();
+    // End of the indexed records. Guarded by the monitor.
+    private long end = FILE_HEADER_SIZE;
+    // Size of the file when it was last indexed, read without the monitor.
+    private volatile long indexedSize = -1;
+
+    private Store(FileChannel channel, Object fileKey) {
+      this.channel = channel;
+      this.fileKey = fileKey;
+    }
+  }
+
+  private interface LockedAction {
+    void run() throws IOException;
+  }
+
+  /**
+   * @param directory directory holding the cache, created if missing
+   * @param maxBytes approximate maximum size of the cache
+   * @throws IOException if the cache cannot be created or opened
+   */
+  public PersistentQueryCache(String directory, long maxBytes)
+      throws IOException {
+    File cacheDirectory = new File(directory);
+    this.maxBytes = maxBytes;
+    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+      throw new IOException("Could not create cache directory " + directory);
+    }
+    logFile = new File(cacheDirectory, LOG_FILE);
+    lockFile = new File(cacheDirectory, LOCK_FILE);
+    monitor =
+        monitors.computeIfAbsent(cacheDirectory.getCanonicalPath(),
+            x -> new Object());
+    synchronized (monitor) {
+      withFileLock(false, () -> store = openStore(true));
+    }
+  }
+
+  /**
+   * Returns the cached results of the query, or null if they are not cached.
+   */
+  public Map<String, LinkedHashSet<String>> get(String query) {
+    String key = normalize(query);
+    long hash = hash(key);
+    try {
+      Store current = store;
+      Record record = current.index.get(hash);
+      if (record == null) {
+        if (!isChanged(current)) {
+          return null;
+        }
+        synchronized (monitor) {
+          withFileLock(true, () -> refresh(false));
+        }
+        current = store;
+        record = current.index.get(hash);
+        if (record == null) {
+          return null;
+        }
+      }
+      Map<String, LinkedHashSet<String>> results =
+          readRecord(current, record, key);
+      if (results != null) {
+        record.lastUse = clock.incrementAndGet();
+      }
+      return results;
+    } catch (IOException e) {
+      // Not cached, e.g. the file was compacted while reading.
+      return null;
+    }
+  }
+
+  /**
+   * Stores the results of the query.
+   */
+  public void put(String query, Map<String, LinkedHashSet<String>> results) {
+    String key = normalize(query);
+    try {
+      byte[] payload = encode(key, results);
+      synchronized (monitor) {
+        withFileLock(false, () -> {
+          refresh(true);
+          Store current = store;
+          ByteBuffer buffer =
+              ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+          buffer.putInt(payload.length).putInt(checksum(payload))
+              .putLong(hash(key)).put(payload).flip();
+          write(current.channel, buffer, current.end);
+          current.index.put(hash(key), new Record(current.end,
+              payload.length, clock.incrementAndGet()));
+          current.end += RECORD_HEADER_SIZE + payload.length;
+          current.indexedSize = current.end;
+          if (current.end > maxBytes) {
+            compact();
+          }
+        });
+      }
+    } catch (IOException e) {
+      // The cache is best effort.
+    }
+  }
+
+  /**
+   * Runs the action holding the lock file, shared or exclusive. The caller
+   * holds the monitor.
+   */
+  private void withFileLock(boolean shared, LockedAction action)
+      throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(lockFile, "rw")) {
+      FileLock lock = file.getChannel().lock(0, Long.MAX_VALUE, shared);
+      try {
+        action.run();
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  /**
+   * Opens the log file and indexes its records. Holding the exclusive lock,
+   * a file that is missing or in another format is started anew; otherwise
+   * such a file is left unindexed.
+   */
+  private Store openStore(boolean exclusive) throws IOException {
+    FileChannel channel =
+        FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    Store newStore = new Store(channel, getFileKey());
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    if (channel.size() < FILE_HEADER_SIZE
+        || read(channel, header, 0) < FILE_HEADER_SIZE
+        || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      if (!exclusive) {
+        return newStore;
+      }
+      channel.truncate(0);
+      header.clear();
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      write(channel, header, 0);
+    }
+    indexRecords(newStore, false);
+    return newStore;
+  }
+
+  /**
+   * Indexes the records appended after the end of the store. If verify is
+   * set, records are checked against their checksum, and the file is cut at
+   * the first broken record, which the caller must hold the exclusive lock
+   * for.
+   */
+  private void indexRecords(Store current, boolean verify) throws IOException {
+    long size = current.channel.size();
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    while (current.end + RECORD_HEADER_SIZE <= size) {
+      header.clear();
+      read(current.channel, header, current.end);
+      int length = header.getInt(0);
+      boolean valid =
+          length >= 0 && current.end + RECORD_HEADER_SIZE + length <= size;
+      if (valid && verify) {
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        read(current.channel, payload,
+            current.end + RECORD_HEADER_SIZE);
+        valid = checksum(payload.array()) == header.getInt(4);
+      }
+      if (!valid) {
+        break;
+      }
+      current.index.put(header.getLong(8), new Record(current.end, length,
+          clock.incrementAndGet()));
+      current.end += RECORD_HEADER_SIZE + length;
+    }
+    if (verify && current.end < size) {
+      current.channel.truncate(current.end);
+      size = current.end;
+    }
+    current.indexedSize = size;
+  }
+
+  /**
+   * Catches up with the records written by other JVMs, reopening the file if
+   * another JVM compacted it. Appending requires the exclusive lock, so that
+   * broken records are cut off before the new one.
+   */
+  private void refresh(boolean exclusive) throws IOException {
+    Object fileKey = getFileKey();
+    if (fileKey != null && !fileKey.equals(store.fileKey)) {
+      Store oldStore = store;
+      store = openStore(exclusive);
+      oldStore.channel.close();
+    } else {
+      indexRecords(store, exclusive);
+    }
+  }
+
+  /**
+   * Copies the most recently used results to a new file that replaces the
+   * log file, keeping the cache well below its maximum size. The caller
+   * holds the exclusive lock.
+   */
+  private void compact() throws IOException {
+    Store current = store;
+    List<Entry<Long, Record>> records = new ArrayList<>(current.index.entrySet());
+    records.sort(Comparator.comparingLong(
+        (Entry<Long, Record> x) -> x.getValue().lastUse).reversed());
+    long target = maxBytes * 9 / 10;
+    long size = FILE_HEADER_SIZE;
+    int kept = 0;
+    for (Entry<Long, Record> entry : records) {
+      long recordSize = RECORD_HEADER_SIZE + entry.getValue().length;
+      if (size + recordSize > target) {
+        break;
+      }
+      size += recordSize;
+      kept++;
+    }
+    // Least recently used first, so that the order of the new file ranks
+    // the results for the JVMs that open it.
+    List<Entry<Long, Record>> keptRecords = records.subList(0, kept);
+    Collections.reverse(keptRecords);
+
+    File tempFile = File.createTempFile("results", ".part",
+        logFile.getParentFile());
+    FileChannel channel =
+        FileChannel.open(tempFile.toPath(), StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    Store newStore;
+    try {
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      write(channel, header, 0);
+      long position = FILE_HEADER_SIZE;
+      Map<Long, Record> index = new HashMap<>();
+      for (Entry<Long, Record> entry : keptRecords) {
+        Record record = entry.getValue();
+        long recordSize = RECORD_HEADER_SIZE + record.length;
+        ByteBuffer bytes = ByteBuffer.allocate((int) recordSize);
+        read(current.channel, bytes, record.offset);
+        bytes.flip();
+        write(channel, bytes, position);
+        index.put(entry.getKey(), new Record(position, record.length,
+            record.lastUse));
+        position += recordSize;
+      }
+      Files.move(tempFile.toPath(), logFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      newStore = new Store(channel, getFileKey());
+      newStore.index.putAll(index);
+      newStore.end = position;
+      newStore.indexedSize = position;
+    } catch (IOException e) {
+      channel.close();
+      tempFile.delete();
+      throw e;
+    }
+    store = newStore;
+    current.channel.close();
+  }
+
+  private Map<String, LinkedHashSet<String>> readRecord(Store current,
+      Record record, String key) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+    if (read(current.channel, bytes, record.offset) < bytes.capacity()) {
+      return null;
+    }
+    byte[] payload = new byte[record.length];
+    System.arraycopy(bytes.array(), RECORD_HEADER_SIZE, payload, 0,
+        record.length);
+    if (bytes.getInt(0) != record.length
+        || bytes.getInt(4) != checksum(payload)) {
+      return null;
+    }
+
+    DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(payload));
+    if (!readString(in).equals(key)) {
+      // Hash collision.
+      return null;
+    }
+    int varCount = in.readInt();
+    Map<String, LinkedHashSet<String>> results = new HashMap<>();
+    for (int i = 0; i < varCount; i++) {
+      String var = readString(in);
+      int valueCount = in.readInt();
+      LinkedHashSet<String> values = new LinkedHashSet<>();
+      for (int j = 0; j < valueCount; j++) {
+        values.add(readString(in));
+      }
+      results.put(var, values);
+    }
+    return results;
+  }
+
+  private static byte[] encode(String key,
+      Map<String, LinkedHashSet<String>> results) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeString(out, key);
+    out.writeInt(results.size());
+    for (Entry<String, LinkedHashSet<String>> entry : results.entrySet()) {
+      writeString(out, entry.getKey());
+      out.writeInt(entry.getValue().size());
+      for (String value : entry.getValue()) {
+        writeString(out, value);
+      }
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Returns true if the log file was appended to or replaced since the store
+   * was last indexed, which needs neither the monitor nor the lock file.
+   */
+  private boolean isChanged(Store current) throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes =
+          Files.readAttributes(logFile.toPath(), BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      return true;
+    }
+    Object fileKey = attributes.fileKey();
+    return attributes.size() != current.indexedSize
+        || (fileKey != null && !fileKey.equals(current.fileKey));
+  }
+
+  private Object getFileKey() throws IOException {
+    if (!logFile.exists()) {
+      return null;
+    }
+    return Files.readAttributes(logFile.toPath(), BasicFileAttributes.class)
+        .fileKey();
+  }
+
+  private static long hash(String key) {
+    return Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8)
+        .asLong();
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+
+  private static int read(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    int total = 0;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + total);
+      if (read < 0) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    long written = 0;
+    while (buffer.hasRemaining()) {
+      written += channel.write(buffer, position + written);
+    }
+  }
+
+  /**
+   * Queries differing only in white space share their results.
+   */
+  static String normalize(String query) {
+    return CharMatcher.WHITESPACE.trimAndCollapseFrom(query, ' ');
+  }
+
+  private static void writeString(DataOutputStream out, String string)
+      throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
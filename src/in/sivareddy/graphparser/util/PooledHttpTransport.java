@@ -0,0 +1,87 @@
+package in.sivareddy.graphparser.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends requests over a pool of persistent (keep-alive) connections, so that
+ * consecutive queries to an endpoint reuse connections instead of paying a
+ * new TCP handshake each. The number of connections open to each endpoint is
+ * limited; requests beyond the limit wait, without a timeout, for a
+ * connection to be freed.
+ *
+ * All {@link RdfGraphTools} use the shared transport by default.
+ */
+public class PooledHttpTransport implements SparqlTransport {
+  public static int DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 16;
+
+  private static PooledHttpTransport shared = null;
+
+  private final PoolingClientConnectionManager connectionManager;
+  private final DefaultHttpClient httpClient;
+
+  public PooledHttpTransport(int maxConnectionsPerEndpoint) {
+    connectionManager = new PoolingClientConnectionManager();
+    httpClient = new DefaultHttpClient(connectionManager);
+    HttpConnectionParams.setStaleCheckingEnabled(httpClient.getParams(), true);
+    setMaxConnectionsPerEndpoint(maxConnectionsPerEndpoint);
+  }
+
+  /**
+   * Returns the transport shared by all the endpoints of this process.
+   */
+  public static synchronized PooledHttpTransport getShared() {
+    if (shared == null) {
+      shared = new PooledHttpTransport(DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT);
+    }
+    return shared;
+  }
+
+  /**
+   * Sets the maximum number of concurrent requests to each endpoint.
+   *
+   * @param maxConnectionsPerEndpoint maximum connections open to an endpoint
+   */
+  public void setMaxConnectionsPerEndpoint(int maxConnectionsPerEndpoint) {
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerEndpoint);
+    connectionManager.setMaxTotal(Math.max(connectionManager.getMaxTotal(),
+        maxConnectionsPerEndpoint));
+  }
+
+  @Override
+  public InputStream get(URI uri, int timeOut) throws IOException {
+    HttpGet request = new HttpGet(uri);
+    HttpParams params = request.getParams();
+    HttpConnectionParams.setConnectionTimeout(params, timeOut);
+    HttpConnectionParams.setSoTimeout(params, timeOut);
+    // Waiting for a free connection is not a failure of the query.
+    params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, 0);
+
+    HttpResponse response = httpClient.execute(request);
+    HttpEntity entity = response.getEntity();
+    int status = response.getStatusLine().getStatusCode();
+    if (status >= 300 || entity == null) {
+      EntityUtils.consume(entity);
+      throw new HttpResponseException(status, response.getStatusLine()
+          .getReasonPhrase());
+    }
+    // Closing the content releases the connection back to the pool.
+    return entity.getContent();
+  }
+
+  public void shutdown() {
+    connectionManager.shutdown();
+  }
+}
@@ -0,0 +1,19 @@
+package in.sivareddy.graphparser.util;
+
+/**
+ * Thrown when a query got no answer from the endpoint, because it was
+ * skipped while the endpoint is failing, or the endpoint failed on it. Unlike
+ * an empty answer, this says nothing about the data, and should not be
+ * cached.
+ */
+public class QueryFailedException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public QueryFailedException(String message) {
+    super(message);
+  }
+
+  public QueryFailedException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -1,24 +1,30 @@
 package in.sivareddy.graphparser.util;
 
+import in.sivareddy.graphparser.util.InternedAnswers.Cleaning;
+
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.SocketTimeoutException;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.utils.URIBuilder;
 
 import virtuoso.jena.driver.VirtGraph;
@@ -32,18 +38,26 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.Sets;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ReadWrite;
 import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Literal;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
 
 /**
  * Tools for querying RDF Graphs
@@ -59,8 +73,29 @@ public class RdfGraphTools {
   private static String XSD_PREFIX =
       "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>";
   private JsonParser parser = new JsonParser();
+  private SparqlTransport transport = PooledHttpTransport.getShared();
+  private PersistentQueryCache persistentCache = null;
+  private EndpointHealth health = null;
+
+  // Endpoints starting with this are Jena TDB directories.
+  public static final String TDB_ENDPOINT_PREFIX = "tdb:";
+  private Dataset localDataset = null;
+
+  // Threads mostly wait on the endpoint, whose connections are limited by the
+  // transport.
+  private static final ExecutorService asyncQueryExecutor = Executors
+      .newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("sparql-query-%d").build());
+
+  private enum ReadStatus {
+    // REJECTED queries are bad queries, and TIMED_OUT ones ran for the whole
+    // configured timeout: both would fail again. FAILED queries got no answer
+    // from the endpoint, e.g. an error or a timeout lowered by its health,
+    // and SKIPPED ones were not sent, since the endpoint is failing.
+    COMPLETE, REJECTED, TIMED_OUT, FAILED, SKIPPED
+  }
 
-  // stores query and its results
+  // stores the hash of the canonical query and its results
   private Cache<String, Map<String, LinkedHashSet<String>>> queryCache =
       Caffeine.newBuilder().maximumSize(100000).build();
 
@@ -86,9 +121,77 @@ public class RdfGraphTools {
     prefixMapping.setNsPrefix("xsd", "http://www.w3.org/2001/XMLSchema#");
     this.httpUrl = httpUrl;
     this.timeOut = timeOut;
+    health = EndpointHealth.of(httpUrl != null ? httpUrl : jdbcUrl);
+  }
+
+  /**
+   * Sends the queries to the http endpoint only. JDBC queries and graph
+   * updates need the constructors opening a JDBC connection.
+   *
+   * @param httpUrl http endpoint
+   * @param timeOut timeout for each query in milli seconds, 0 for none
+   */
+  public RdfGraphTools(String httpUrl, int timeOut) {
+    this.httpUrl = httpUrl;
+    this.timeOut = timeOut;
+    health = EndpointHealth.of(httpUrl);
+  }
+
+  /**
+   * Runs all the queries in-process against the dataset, instead of sending
+   * them to a server. Results are the same as those of the http endpoint
+   * serving the dataset, except that TDB returns integer literals of any
+   * integer type as xsd:integer.
+   *
+   * @param dataset dataset to query
+   * @param timeOut timeout for each query in milli seconds, 0 for none
+   */
+  public RdfGraphTools(Dataset dataset, int timeOut) {
+    this.localDataset = dataset;
+    this.timeOut = timeOut;
+  }
+
+  /**
+   * Returns true if the queries are run in-process on a local dataset.
+   */
+  public boolean isLocal() {
+    return localDataset != null;
+  }
+
+  /**
+   * Opens the Jena TDB dataset in the directory for in-process querying. As
+   * in Virtuoso, the domains should be loaded into named graphs, which are
+   * selected with FROM, and queries without FROM see all of them.
+   *
+   * @param directory TDB directory
+   * @param timeOut timeout for each query in milli seconds, 0 for none
+   */
+  public static RdfGraphTools openTdb(String directory, int timeOut) {
+    Dataset dataset = TDBFactory.createDataset(directory);
+    dataset.getContext().set(TDB.symUnionDefaultGraph, true);
+    return new RdfGraphTools(dataset, timeOut);
+  }
+
+  /**
+   * Returns true if the endpoint names a local TDB directory, i.e.
+   * tdb:/path/to/dataset.
+   */
+  public static boolean isTdbEndpoint(String endpoint) {
+    return endpoint.startsWith(TDB_ENDPOINT_PREFIX);
+  }
+
+  /**
+   * Returns the latencies, failures and skipped queries of the http
+   * endpoint, or null for a local dataset.
+   */
+  public EndpointHealth getEndpointHealth() {
+    return health;
   }
 
   public List<Map<String, String>> runQueryJdbcSolutions(String query) {
+    if (localDataset != null) {
+      return runQueryHttpSolutions(query);
+    }
     List<Map<String, String>> results = new ArrayList<>();
     Query sparql;
     try {
@@ -126,109 +229,301 @@ public class RdfGraphTools {
     return results;
   }
 
-  public boolean runHttpAsk(String query) {
-    HttpURLConnection connection = null;
-    InputStream responseRecieved = null;
-    try {
-      String charset = "UTF-8";
-      URIBuilder builder = new URIBuilder(httpUrl);
-      builder.addParameter("query", query);
-      builder.addParameter("format", "application/sparql-results+json");
+  /**
+   * Sets the transport used for http queries. All instances share a pooled
+   * keep-alive transport by default.
+   *
+   * @param transport transport to use
+   */
+  public void setTransport(SparqlTransport transport) {
+    this.transport = transport;
+  }
 
-      // Remove this in case if lot of queries die.
-      builder.addParameter("timeout", timeOut.toString());
+  /**
+   * Keeps the results of http queries on disk as well, so that later runs
+   * need not send them again.
+   *
+   * @param persistentCache cache shared across runs, or null for none
+   */
+  public void setPersistentCache(PersistentQueryCache persistentCache) {
+    this.persistentCache = persistentCache;
+  }
 
-      URL url = builder.build().toURL();
-      try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setConnectTimeout(timeOut);
-        connection.setReadTimeout(timeOut);
-        connection.setRequestProperty("connection", "close");
-      } catch (Exception e) {
-        // Bad url.
-        System.err.println("Could not connect to " + httpUrl);
-        throw e;
-      }
+  private InputStream openHttpQuery(String query, int queryTimeOut)
+      throws Exception {
+    URIBuilder builder = new URIBuilder(httpUrl);
+    builder.addParameter("query", query);
+    builder.addParameter("format", "application/sparql-results+json");
 
-      responseRecieved = connection.getInputStream();
-      String content = IOUtils.toString(responseRecieved, charset);
+    // Remove this in case if lot of queries die.
+    builder.addParameter("timeout", Integer.toString(queryTimeOut));
 
+    return transport.get(builder.build(), queryTimeOut);
+  }
 
-      JsonObject result = parser.parse(content).getAsJsonObject();
+  /**
+   * Records an http query in the health of the endpoint. Queries the
+   * endpoint rejected, or answered with a response that could not be read,
+   * are bad queries and not failures of the endpoint.
+   *
+   * @param start time the query was sent
+   * @param e exception the query failed with, or null
+   */
+  private void recordHttpQuery(long start, Exception e) {
+    if (isEndpointFailure(e)) {
+      health.recordFailure(e instanceof InterruptedIOException);
+    } else {
+      health.recordSuccess(System.currentTimeMillis() - start);
+    }
+  }
+
+  private static boolean isEndpointFailure(Exception e) {
+    return e instanceof IOException
+        && !(e instanceof HttpResponseException && ((HttpResponseException) e)
+            .getStatusCode() < 500);
+  }
 
+  /**
+   * Returns the status of an http query that failed with the exception.
+   *
+   * @param e exception the query failed with
+   * @param queryTimeOut timeout the query was sent with
+   */
+  private ReadStatus getFailureStatus(Exception e, int queryTimeOut) {
+    if (!isEndpointFailure(e)) {
+      return ReadStatus.REJECTED;
+    }
+    if (e instanceof InterruptedIOException && timeOut > 0
+        && queryTimeOut >= timeOut) {
+      return ReadStatus.TIMED_OUT;
+    }
+    return ReadStatus.FAILED;
+  }
+
+  /**
+   * Throws if the query got no answer, so that callers do not take it for an
+   * empty one.
+   */
+  private static void checkAnswered(ReadStatus status, String query) {
+    if (status == ReadStatus.FAILED || status == ReadStatus.SKIPPED) {
+      throw new QueryFailedException(String.format("Query %s: %s",
+          status.name().toLowerCase(), query));
+    }
+  }
+
+  /**
+   * Runs the ask query. Bad queries and queries timing out are false.
+   *
+   * @throws QueryFailedException if the endpoint failed on the query or is
+   *         failing
+   */
+  public boolean runHttpAsk(String query) {
+    if (localDataset != null) {
+      return runLocalAsk(query);
+    }
+    checkAnswered(health.allowQuery() ? ReadStatus.COMPLETE
+        : ReadStatus.SKIPPED, query);
+    InputStream responseRecieved = null;
+    int queryTimeOut = health.getTimeOut(timeOut);
+    long start = System.currentTimeMillis();
+    ReadStatus status = ReadStatus.COMPLETE;
+    try {
+      responseRecieved = openHttpQuery(query, queryTimeOut);
+      JsonObject result =
+          parser.parse(new InputStreamReader(responseRecieved, "UTF-8"))
+              .getAsJsonObject();
+
+      recordHttpQuery(start, null);
       return result.has("boolean") && result.get("boolean").getAsBoolean();
-    } catch (SocketTimeoutException e) {
-      // System.err.println("http timeout query: " + timeOut + ": " + query);
     } catch (Exception e) {
-      // Bad query. Skip.
+      // Bad query or timeout. Skip.
+      recordHttpQuery(start, e);
+      status = getFailureStatus(e, queryTimeOut);
     } finally {
       if (responseRecieved != null)
         IOUtils.closeQuietly(responseRecieved);
-      connection.disconnect();
     }
+    checkAnswered(status, query);
     return false;
   }
 
+  private boolean runLocalAsk(String query) {
+    boolean transaction = localDataset.supportsTransactions();
+    if (transaction)
+      localDataset.begin(ReadWrite.READ);
+    try (QueryExecution execution =
+        QueryExecutionFactory.create(
+            String.format("%s %s", XSD_PREFIX, query), localDataset)) {
+      if (timeOut > 0)
+        execution.setTimeout(timeOut);
+      return execution.execAsk();
+    } catch (QueryException e) {
+      // Bad query or timeout. Skip.
+      return false;
+    } catch (Exception e) {
+      throw new QueryFailedException("Query failed: " + query, e);
+    } finally {
+      if (transaction)
+        localDataset.end();
+    }
+  }
+
+  /**
+   * Returns the solutions of the query. Bad queries and queries timing out
+   * have none.
+   *
+   * @throws QueryFailedException if the endpoint failed on the query or is
+   *         failing
+   */
   public List<Map<String, String>> runQueryHttpSolutions(String query) {
     List<Map<String, String>> results = new ArrayList<>();
-    HttpURLConnection connection = null;
+    checkAnswered(readHttpSolutions(query, results::add),
+        query);
+    return results;
+  }
+
+  /**
+   * Runs the query and passes its solutions to the consumer as they are read
+   * from the response, without holding the whole response in memory.
+   *
+   * @param query query to run
+   * @param consumer receives the non-empty solutions, one at a time
+   * @return how the query ended
+   */
+  private ReadStatus readHttpSolutions(String query,
+      Consumer<Map<String, String>> consumer) {
+    if (localDataset != null) {
+      return readLocalSolutions(query, consumer);
+    }
+    if (!health.allowQuery()) {
+      return ReadStatus.SKIPPED;
+    }
     InputStream responseRecieved = null;
+    ReadStatus status = ReadStatus.FAILED;
+    int queryTimeOut = health.getTimeOut(timeOut);
+    long start = System.currentTimeMillis();
     try {
-      String charset = "UTF-8";
-      URIBuilder builder = new URIBuilder(httpUrl);
-      builder.addParameter("query", query);
-      builder.addParameter("format", "application/sparql-results+json");
-
-      // Remove this in case if lot of queries die.
-      builder.addParameter("timeout", timeOut.toString());
-
-      URL url = builder.build().toURL();
-      try {
-        connection = (HttpURLConnection) url.openConnection();
-        connection.setConnectTimeout(timeOut);
-        connection.setReadTimeout(timeOut);
-        connection.setRequestProperty("connection", "close");
-      } catch (Exception e) {
-        // Bad url.
-        System.err.println("Could not connect to " + httpUrl);
-        throw e;
+      responseRecieved = openHttpQuery(query, queryTimeOut);
+      JsonReader reader =
+          new JsonReader(new InputStreamReader(responseRecieved, "UTF-8"));
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (!reader.nextName().equals("results")) {
+          reader.skipValue();
+          continue;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+          if (!reader.nextName().equals("bindings")) {
+            reader.skipValue();
+            continue;
+          }
+          reader.beginArray();
+          while (reader.hasNext()) {
+            Map<String, String> varValue = readBinding(reader);
+            if (varValue.size() > 0) {
+              consumer.accept(varValue);
+            }
+          }
+          reader.endArray();
+        }
+        reader.endObject();
       }
+      reader.endObject();
+      status = ReadStatus.COMPLETE;
+      recordHttpQuery(start, null);
+    } catch (Exception e) {
+      // Bad query or timeout. Skip.
+      recordHttpQuery(start, e);
+      status = getFailureStatus(e, queryTimeOut);
+    } finally {
+      IOUtils.closeQuietly(responseRecieved);
+    }
+    return status;
+  }
 
-      responseRecieved = connection.getInputStream();
-      String content = IOUtils.toString(responseRecieved, charset);
-
-      JsonArray resultSet = new JsonArray();
-      resultSet =
-          parser.parse(content).getAsJsonObject().get("results")
-              .getAsJsonObject().get("bindings").getAsJsonArray();
-
-      for (JsonElement result : resultSet) {
-        JsonObject resultObj = result.getAsJsonObject();
+  private ReadStatus readLocalSolutions(String query,
+      Consumer<Map<String, String>> consumer) {
+    boolean transaction = localDataset.supportsTransactions();
+    if (transaction)
+      localDataset.begin(ReadWrite.READ);
+    try (QueryExecution execution =
+        QueryExecutionFactory.create(
+            String.format("%s %s", XSD_PREFIX, query), localDataset)) {
+      if (timeOut > 0)
+        execution.setTimeout(timeOut);
+      ResultSet resultSet = execution.execSelect();
+      while (resultSet.hasNext()) {
+        QuerySolution result = resultSet.next();
         Map<String, String> varValue = new LinkedHashMap<>();
-        for (Entry<String, JsonElement> varEntry : resultObj.entrySet()) {
-          String var = varEntry.getKey();
-          JsonObject valueObj = varEntry.getValue().getAsJsonObject();
-          String value = valueObj.get("value").getAsString();
-
-          if (valueObj.has("datatype")) {
-            value += "^^<" + valueObj.get("datatype") + ">";
+        for (String var : resultSet.getResultVars()) {
+          RDFNode value = result.get(var);
+          if (value != null) {
+            varValue.put(var, getValueString(value));
           }
-          varValue.put(var, value);
         }
         if (varValue.size() > 0) {
-          results.add(varValue);
+          consumer.accept(varValue);
         }
       }
-    } catch (SocketTimeoutException e) {
-      // System.err.println("http timeout query: " + timeOut + ": " + query);
+      return ReadStatus.COMPLETE;
+    } catch (QueryCancelledException e) {
+      return ReadStatus.TIMED_OUT;
+    } catch (QueryException e) {
+      return ReadStatus.REJECTED;
     } catch (Exception e) {
-      // Bad query. Skip.
+      return ReadStatus.FAILED;
     } finally {
-      if (responseRecieved != null)
-        IOUtils.closeQuietly(responseRecieved);
-      connection.disconnect();
+      if (transaction)
+        localDataset.end();
     }
-    return results;
+  }
+
+  /**
+   * Returns the value in the form it has in http results.
+   */
+  private static String getValueString(RDFNode value) {
+    if (value.isLiteral()) {
+      Literal literal = value.asLiteral();
+      if (literal.getDatatypeURI() != null) {
+        return literal.getLexicalForm() + "^^<\"" + literal.getDatatypeURI()
+            + "\">";
+      }
+      return literal.getLexicalForm();
+    } else if (value.isAnon()) {
+      return value.asResource().getId().getLabelString();
+    }
+    return value.asResource().getURI();
+  }
+
+  private static Map<String, String> readBinding(JsonReader reader)
+      throws IOException {
+    Map<String, String> varValue = new LinkedHashMap<>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String var = reader.nextName();
+      String value = null;
+      String datatype = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String field = reader.nextName();
+        if (field.equals("value")) {
+          value = reader.nextString();
+        } else if (field.equals("datatype")) {
+          datatype = reader.nextString();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+
+      if (datatype != null) {
+        value += "^^<\"" + datatype + "\">";
+      }
+      varValue.put(var, value);
+    }
+    reader.endObject();
+    return varValue;
   }
 
   public Map<String, LinkedHashSet<String>> runQueryJdbc(String query) {
@@ -236,11 +531,14 @@ public class RdfGraphTools {
       return null;
     }
 
-    Map<String, LinkedHashSet<String>> results = queryCache.getIfPresent(query);
+    CanonicalQuery canonicalQuery = CanonicalQuery.of(query);
+    Map<String, LinkedHashSet<String>> results =
+        queryCache.getIfPresent(canonicalQuery.getHash());
     if (results != null)
-      return results;
+      return canonicalQuery.toOriginalVariables(results);
 
-    List<Map<String, String>> solutions = runQueryJdbcSolutions(query);
+    List<Map<String, String>> solutions =
+        runQueryJdbcSolutions(canonicalQuery.getQuery());
     results = new HashMap<>();
     for (Map<String, String> solution : solutions) {
       for (String var : solution.keySet()) {
@@ -249,29 +547,79 @@ public class RdfGraphTools {
       }
     }
 
-    queryCache.put(query, results);
-    return results;
+    queryCache.put(canonicalQuery.getHash(), results);
+    return canonicalQuery.toOriginalVariables(results);
   }
 
+  /**
+   * Runs the query. The empty results of a query the endpoint failed on or
+   * skipped are not cached. Results are cached by the canonical form of the
+   * query, and hence shared by queries differing only in variable names or
+   * the order of their triples.
+   *
+   * @param query query to run
+   * @return values of each variable in the solutions
+   */
   public Map<String, LinkedHashSet<String>> runQueryHttp(String query) {
     if (query == null) {
       return null;
     }
 
-    Map<String, LinkedHashSet<String>> results = queryCache.getIfPresent(query);
+    CanonicalQuery canonicalQuery = CanonicalQuery.of(query);
+    Map<String, LinkedHashSet<String>> results =
+        queryCache.getIfPresent(canonicalQuery.getHash());
     if (results != null)
-      return results;
+      return canonicalQuery.toOriginalVariables(results);
 
-    List<Map<String, String>> solutions = runQueryHttpSolutions(query);
-    results = new HashMap<>();
-    for (Map<String, String> solution : solutions) {
-      for (String var : solution.keySet()) {
-        results.putIfAbsent(var, new LinkedHashSet<>());
-        results.get(var).add(solution.get(var).toString());
+    if (persistentCache != null) {
+      results = persistentCache.get(canonicalQuery.getQuery());
+      if (results != null) {
+        queryCache.put(canonicalQuery.getHash(), results);
+        return canonicalQuery.toOriginalVariables(results);
       }
     }
 
-    queryCache.put(query, results);
+    Map<String, LinkedHashSet<String>> solutions = new HashMap<>();
+    ReadStatus status =
+        readHttpSolutions(canonicalQuery.getQuery(),
+            solution -> solution.forEach((var, value) -> solutions
+                .computeIfAbsent(var, x -> new LinkedHashSet<>()).add(value)));
+
+    // Bad queries and queries timing out are remembered only until the end
+    // of this run. Failed and skipped ones are sent again when asked for,
+    // and have no results meanwhile.
+    if (status == ReadStatus.FAILED || status == ReadStatus.SKIPPED)
+      return new HashMap<>();
+    if (status == ReadStatus.COMPLETE || status == ReadStatus.REJECTED
+        || status == ReadStatus.TIMED_OUT)
+      queryCache.put(canonicalQuery.getHash(), solutions);
+    if (status == ReadStatus.COMPLETE && persistentCache != null)
+      persistentCache.put(canonicalQuery.getQuery(), solutions);
+    return canonicalQuery.toOriginalVariables(solutions);
+  }
+
+  /**
+   * Runs the query in the background. The query is not sent if the returned
+   * future is cancelled before it starts; once sent, it runs to the end and
+   * its results are cached as those of {@link #runQueryHttp(String)}.
+   *
+   * @param query query to run
+   * @return results of {@link #runQueryHttp(String)}, when available
+   */
+  public CompletableFuture<Map<String, LinkedHashSet<String>>> runQueryHttpAsync(
+      String query) {
+    CompletableFuture<Map<String, LinkedHashSet<String>>> results =
+        new CompletableFuture<>();
+    asyncQueryExecutor.execute(() -> {
+      if (results.isDone()) {
+        return;
+      }
+      try {
+        results.complete(runQueryHttp(query));
+      } catch (Throwable e) {
+        results.completeExceptionally(e);
+      }
+    });
     return results;
   }
 
@@ -339,78 +687,100 @@ public class RdfGraphTools {
   public static Pair<Set<String>, Set<String>> getCleanedResults(
       Map<String, LinkedHashSet<String>> goldResults,
       Map<String, LinkedHashSet<String>> predResults) {
+    SelectedAnswers answers = new SelectedAnswers(goldResults, predResults);
+    return Pair.of(answers.cleanGold(), answers.cleanPred());
+  }
 
-    Preconditions.checkArgument(goldResults != null,
-        "Gold results should not be null");
-    Preconditions.checkArgument(goldResults.keySet().size() <= 2,
-        "Unknown target variable");
-    String goldVar = null;
-    String goldVarName = null;
-    for (String key : goldResults.keySet()) {
-      if (key.equals("targetValue")) {
-        goldVarName = key;
-      } else if (!key.contains("name")) {
-        goldVar = key;
+  /**
+   * Gold and predicted answers compared by {@link #getCleanedResults} and
+   * {@link #getPointWiseF1}, and the cleaning each of them needs.
+   */
+  private static class SelectedAnswers {
+    Set<String> goldAnswers;
+    Cleaning goldCleaning = Cleaning.NONE;
+    Set<String> predAnswers = new LinkedHashSet<>();
+    Cleaning predCleaning = Cleaning.NONE;
+    final InternedAnswers interned = InternedAnswers.get();
+
+    SelectedAnswers(Map<String, LinkedHashSet<String>> goldResults,
+        Map<String, LinkedHashSet<String>> predResults) {
+      Preconditions.checkArgument(goldResults != null,
+          "Gold results should not be null");
+      Preconditions.checkArgument(goldResults.keySet().size() <= 2,
+          "Unknown target variable");
+      String goldVar = null;
+      String goldVarName = null;
+      for (String key : goldResults.keySet()) {
+        if (key.equals("targetValue")) {
+          goldVarName = key;
+        } else if (!key.contains("name")) {
+          goldVar = key;
+        }
+      }
+
+      if (goldVarName != null && goldVarName.equals("targetValue")) {
+        goldAnswers = goldResults.get(goldVarName);
+        goldCleaning = Cleaning.XML_SCHEMA;
+      } else {
+        goldAnswers = goldResults.get(goldVar);
+      }
+
+      if (predResults == null || predResults.size() == 0)
+        return;
+
+      Preconditions.checkArgument(predResults.keySet().size() <= 2,
+          "Unknown target variable");
+      String predVar = null;
+      String predVarName = null;
+      for (String key : predResults.keySet()) {
+        if (!key.contains("name")) {
+          predVar = key;
+        } else if (predResults.get(key).size() > 0) {
+          predVarName = key;
+        }
+      }
+
+      if (goldVarName != null && goldVarName.equals("targetValue")) {
+        predAnswers =
+            predVarName != null ? predResults.get(predVarName) : predResults
+                .get(predVar);
+        predCleaning = Cleaning.XML_SCHEMA;
+      } else if (goldVar.equals("answerSubset") || goldVar.equals("answer")) {
+        predAnswers = predResults.get(predVar);
+        predCleaning = Cleaning.MID;
+      } else {
+        predAnswers = predResults.get(predVar);
       }
     }
 
-    LinkedHashSet<String> goldAnswers = goldResults.get(goldVarName);
-    if (goldVarName != null && goldVarName.equals("targetValue")) {
-      goldAnswers = handleXMLSchemaEntries(goldAnswers);
-    } else {
-      goldAnswers = goldResults.get(goldVar);
+    Set<String> cleanGold() {
+      return clean(goldAnswers, goldCleaning);
     }
 
-    if (predResults == null || predResults.size() == 0)
-      return Pair.of(goldAnswers, new LinkedHashSet<>());
+    Set<String> cleanPred() {
+      return clean(predAnswers, predCleaning);
+    }
 
-    Preconditions.checkArgument(predResults.keySet().size() <= 2,
-        "Unknown target variable");
-    String predVar = null;
-    String predVarName = null;
-    for (String key : predResults.keySet()) {
-      if (!key.contains("name")) {
-        predVar = key;
-      } else if (predResults.get(key).size() > 0) {
-        predVarName = key;
-      }
+    int[] getGoldIds() {
+      return interned.getIds(goldAnswers, goldCleaning);
     }
 
-    LinkedHashSet<String> predAnswersCleaned = new LinkedHashSet<>();
-    if (goldVarName != null && goldVarName.equals("targetValue")) {
-      LinkedHashSet<String> predAnswers =
-          predVarName != null ? predResults.get(predVarName) : predResults
-              .get(predVar);
+    int[] getPredIds() {
+      return interned.getIds(predAnswers, predCleaning);
+    }
 
-      for (String predAnswer : predAnswers) {
-        predAnswersCleaned.add(handleXMLSchemaEntry(predAnswer));
-        predAnswer = predAnswer.split("\\^\\^")[0];
-        predAnswer = predAnswer.replaceAll("@[a-zA-Z\\-]+$", "");
+    private Set<String> clean(Set<String> answers, Cleaning cleaning) {
+      if (answers == null || cleaning == Cleaning.NONE) {
+        return answers;
       }
-    } else if (goldVar.equals("answerSubset") || goldVar.equals("answer")) {
-      LinkedHashSet<String> predAnswers = predResults.get(predVar);
-      for (String predAnswer : predAnswers) {
-        boolean answerIsDate = predAnswer.contains("XMLSchema#datetime");
-        predAnswer = predAnswer.split("\\^\\^")[0];
-        
-        String[] answers = predAnswer.split("/");
-        if (answers.length > 0)
-          predAnswer = answers[answers.length - 1];
-
-        if (answerIsDate) {
-          Matcher matcher = Pattern.compile("([0-9]{3,4})").matcher(predAnswer);
-          if (matcher.find()) {
-            predAnswer = matcher.group(1);
-          }
-        }
-        predAnswersCleaned.add(predAnswer);
+      LinkedHashSet<String> answersCleaned = new LinkedHashSet<>();
+      for (String answer : answers) {
+        answersCleaned.add(interned.clean(answer, cleaning));
       }
-    } else {
-      predAnswersCleaned = predResults.get(predVar);
+      return answersCleaned;
     }
-    return Pair.of(goldAnswers, predAnswersCleaned);
   }
-  
+
   public static Set<String> getMidsFromResults(Map<String, LinkedHashSet<String>> results) {
     String varKey = null;
     for (String key : results.keySet()) {
@@ -467,61 +837,35 @@ public class RdfGraphTools {
 
     // Preconditions.checkArgument(goldVar != null && predVar != null,
     // "No target variable");
+    InternedAnswers interned = InternedAnswers.get();
     if (goldVarName != null && goldVarName.equals("targetValue")) {
       LinkedHashSet<String> goldAnswers = goldResults.get(goldVarName);
 
       boolean hasDate =
           (goldAnswers.size() > 0 && goldAnswers.iterator().next()
               .contains("XMLSchema#datetime")) ? true : false;
-      if (hasDate) {
-        goldAnswers = handleXMLSchemaEntries(goldAnswers);
-      }
 
       LinkedHashSet<String> predAnswers =
           predVarName != null ? predResults.get(predVarName) : predResults
               .get(predVar);
 
-      LinkedHashSet<String> predAnswersCleaned = new LinkedHashSet<>();
-      for (String predAnswer : predAnswers) {
-        predAnswer = predAnswer.split("\\^\\^")[0];
-        predAnswer = predAnswer.replaceAll("@[a-zA-Z\\-]+$", "");
-        if (hasDate) {
-          Matcher matcher = Pattern.compile("([0-9]{3,4})").matcher(predAnswer);
-          if (matcher.find()) {
-            predAnswer = matcher.group(1);
-          }
-        }
-        if (!goldAnswers.contains(predAnswer)) {
-          return false;
-        }
-        predAnswersCleaned.add(predAnswer);
-      }
-
-      if (predAnswersCleaned.size() != goldAnswers.size()) {
-        return false;
-      }
-      return predAnswersCleaned.equals(goldAnswers);
+      int[] goldIds =
+          interned.getIds(goldAnswers, hasDate ? Cleaning.XML_SCHEMA
+              : Cleaning.NONE);
+      int[] predIds =
+          interned.getIds(predAnswers, hasDate ? Cleaning.LITERAL_YEAR
+              : Cleaning.LITERAL);
+      return Arrays.equals(predIds, goldIds);
     } else if (goldVar.equals("answerSubset") || goldVar.equals("answer")) {
       // If the gold answers are subset of the predicted answers, return true.
-      HashSet<String> predAnswersCleaned = new HashSet<>();
-      LinkedHashSet<String> predAnswers = predResults.get(predVar);
-      for (String predAnswer : predAnswers) {
-        boolean answerIsDate = predAnswer.contains("XMLSchema#datetime");
-        predAnswer = predAnswer.split("\\^\\^")[0];
-        String[] answers = predAnswer.split("/");
-        predAnswer = answers[answers.length - 1];
-        if (answerIsDate) {
-          Matcher matcher = Pattern.compile("([0-9]{3,4})").matcher(predAnswer);
-          if (matcher.find()) {
-            predAnswer = matcher.group(1);
-          }
-        }
-        predAnswersCleaned.add(predAnswer);
-      }
+      int[] goldIds =
+          interned.getIds(goldResults.get(goldVar), Cleaning.NONE);
+      int[] predIds =
+          interned.getIds(predResults.get(predVar), Cleaning.MID);
       if (goldVar.equals("answerSubset"))
-        return predAnswersCleaned.containsAll(goldResults.get(goldVar));
+        return InternedAnswers.containsAll(predIds, goldIds);
       else
-        return predAnswersCleaned.equals(goldResults.get(goldVar));
+        return Arrays.equals(predIds, goldIds);
     } else {
       return goldResults.get(goldVar).equals(predResults.get(predVar));
     }
@@ -530,10 +874,9 @@ public class RdfGraphTools {
   public static double getPointWiseF1(
       Map<String, LinkedHashSet<String>> goldResults,
       Map<String, LinkedHashSet<String>> predResults) {
-    Pair<Set<String>, Set<String>> answers =
-        getCleanedResults(goldResults, predResults);
-    Set<String> goldAnswersCleaned = answers.getLeft();
-    Set<String> predAnswersCleaned = answers.getRight();
+    SelectedAnswers answers = new SelectedAnswers(goldResults, predResults);
+    int[] goldIds = answers.getGoldIds();
+    int[] predIds = answers.getPredIds();
 
     Preconditions.checkArgument(goldResults.keySet().size() == 1,
         "Gold answers should have only one key");
@@ -542,19 +885,17 @@ public class RdfGraphTools {
     if (goldVar.equals("answerSubset")) {
       // It is enough if the gold answer list is a subset of predicted answer
       // set.
-      if (predAnswersCleaned.containsAll(goldAnswersCleaned))
+      if (InternedAnswers.containsAll(predIds, goldIds))
         return 1.0;
     } else {
-      Set<String> overlap =
-          new HashSet<>(Collections2.filter(predAnswersCleaned,
-              x -> goldAnswersCleaned.contains(x)));
+      int overlap = InternedAnswers.overlap(predIds, goldIds);
 
-      if (overlap.size() == 0) {
+      if (overlap == 0) {
         return 0.0;
       }
 
-      double precision = (overlap.size() + 0.0) / predAnswersCleaned.size();
-      double recall = (overlap.size() + 0.0) / goldAnswersCleaned.size();
+      double precision = (overlap + 0.0) / predIds.length;
+      double recall = (overlap + 0.0) / goldIds.length;
       return 2 * precision * recall / (precision + recall);
     }
     return 0.0;
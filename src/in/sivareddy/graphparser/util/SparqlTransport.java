@@ -0,0 +1,22 @@
+package in.sivareddy.graphparser.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * Sends SPARQL http requests for {@link RdfGraphTools}.
+ */
+public interface SparqlTransport {
+
+  /**
+   * Sends a GET request and returns the body of the response. The stream
+   * should be closed after reading, which frees the connection.
+   *
+   * @param uri request uri containing the query
+   * @param timeOut connect and read timeout in milli seconds, 0 for none
+   * @return body of the response
+   * @throws IOException if the request failed or the server returned an error
+   */
+  InputStream get(URI uri, int timeOut) throws IOException;
+}
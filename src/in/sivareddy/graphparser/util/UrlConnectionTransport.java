@@ -0,0 +1,44 @@
+package in.sivareddy.graphparser.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * Opens a new connection for every request and closes it afterwards.
+ */
+public class UrlConnectionTransport implements SparqlTransport {
+
+  @Override
+  public InputStream get(URI uri, int timeOut) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) uri.toURL().openConnection();
+    connection.setConnectTimeout(timeOut);
+    connection.setReadTimeout(timeOut);
+    connection.setRequestProperty("connection", "close");
+    try {
+      int status = connection.getResponseCode();
+      if (status >= 300) {
+        throw new HttpResponseException(status,
+            connection.getResponseMessage());
+      }
+      return new FilterInputStream(connection.getInputStream()) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            connection.disconnect();
+          }
+        }
+      };
+    } catch (IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+  }
+}
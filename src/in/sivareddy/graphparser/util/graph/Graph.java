@@ -5,11 +5,14 @@ import in.sivareddy.graphparser.util.knowledgebase.Property;
 import in.sivareddy.graphparser.util.knowledgebase.Relation;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.function.Function;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeSet;
 
 import com.google.common.base.Preconditions;
@@ -17,6 +20,21 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+/**
+ * Copies of a graph share their node, edge, type and property collections
+ * with the graph they were copied from. A collection is copied only when one
+ * of the graphs sharing it is about to modify it, and for the per node maps
+ * only the entries of the modified nodes are copied. Extending a copy by one
+ * edge therefore copies the edge set and the edge sets of the two end nodes,
+ * not the whole graph.
+ *
+ * Getters that return a modifiable collection first make it private to this
+ * graph, since callers may modify it. Code that only reads a graph should use
+ * the view getters instead, which never copy.
+ *
+ * A graph is not thread-safe. Several threads may read a graph through its
+ * views and copy it, as long as no thread modifies it meanwhile.
+ */
 public class Graph<T> implements Comparable<Graph<T>>, Serializable {
   private static final long serialVersionUID = 8302375996011637856L;
 
@@ -36,6 +54,131 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
 
   private Double score;
 
+  // Set when the collection may be shared with another graph.
+  private boolean nodesShared = false;
+  private boolean edgesShared = false;
+  private boolean typesShared = false;
+  private boolean nodeEdgesShared = false;
+  private boolean nodeTypesShared = false;
+  private boolean nodePropertiesShared = false;
+
+  // Nodes whose entry in the corresponding map is private to this graph, or
+  // null if all the entries are. Only used when the map itself is not shared.
+  private Set<T> ownedNodeEdges = null;
+  private Set<T> ownedNodeTypes = null;
+  private Set<T> ownedNodeProperties = null;
+
+  private TreeSet<T> ownNodes() {
+    if (nodesShared) {
+      nodes = new TreeSet<>(nodes);
+      nodesShared = false;
+    }
+    return nodes;
+  }
+
+  private TreeSet<Edge<T>> ownEdges() {
+    if (edgesShared) {
+      edges = new TreeSet<>(edges);
+      edgesShared = false;
+    }
+    return edges;
+  }
+
+  private TreeSet<Type<T>> ownTypes() {
+    if (typesShared) {
+      types = new TreeSet<>(types);
+      typesShared = false;
+    }
+    return types;
+  }
+
+  private Map<T, TreeSet<Edge<T>>> ownNodeEdgesMap() {
+    if (nodeEdgesShared) {
+      nodeEdges = Maps.newHashMap(nodeEdges);
+      nodeEdgesShared = false;
+      ownedNodeEdges = new HashSet<>();
+    }
+    return nodeEdges;
+  }
+
+  private Map<T, TreeSet<Type<T>>> ownNodeTypesMap() {
+    if (nodeTypesShared) {
+      nodeTypes = Maps.newHashMap(nodeTypes);
+      nodeTypesShared = false;
+      ownedNodeTypes = new HashSet<>();
+    }
+    return nodeTypes;
+  }
+
+  private Map<T, Set<Property>> ownNodePropertiesMap() {
+    if (nodePropertiesShared) {
+      nodeProperties = Maps.newHashMap(nodeProperties);
+      nodePropertiesShared = false;
+      ownedNodeProperties = new HashSet<>();
+    }
+    return nodeProperties;
+  }
+
+  /**
+   * Makes the entry of the node private to the map, which must already be
+   * private to this graph. Returns the entry, or null if there is none.
+   */
+  private static <T, S> S ownEntry(Map<T, S> map, Set<T> ownedEntries,
+      T node, Function<S, S> copier) {
+    S entry = map.get(node);
+    if (entry != null && ownedEntries != null && ownedEntries.add(node)) {
+      entry = copier.apply(entry);
+      map.put(node, entry);
+    }
+    return entry;
+  }
+
+  private TreeSet<Edge<T>> ownNodeEdges(T node) {
+    return ownEntry(ownNodeEdgesMap(), ownedNodeEdges, node, TreeSet::new);
+  }
+
+  private TreeSet<Type<T>> ownNodeTypes(T node) {
+    return ownEntry(ownNodeTypesMap(), ownedNodeTypes, node, TreeSet::new);
+  }
+
+  private Set<Property> ownNodeProperties(T node) {
+    return ownEntry(ownNodePropertiesMap(), ownedNodeProperties, node,
+        HashSet::new);
+  }
+
+  private Map<T, TreeSet<Edge<T>>> ownAllNodeEdges() {
+    ownNodeEdgesMap();
+    if (ownedNodeEdges != null) {
+      for (T node : Lists.newArrayList(nodeEdges.keySet())) {
+        ownNodeEdges(node);
+      }
+      ownedNodeEdges = null;
+    }
+    return nodeEdges;
+  }
+
+  private Map<T, TreeSet<Type<T>>> ownAllNodeTypes() {
+    ownNodeTypesMap();
+    if (ownedNodeTypes != null) {
+      for (T node : Lists.newArrayList(nodeTypes.keySet())) {
+        ownNodeTypes(node);
+      }
+      ownedNodeTypes = null;
+    }
+    return nodeTypes;
+  }
+
+  private Map<T, Set<Property>> ownAllNodeProperties() {
+    ownNodePropertiesMap();
+    if (ownedNodeProperties != null) {
+      for (T node : Lists.newArrayList(nodeProperties.keySet())) {
+        ownNodeProperties(node);
+      }
+      ownedNodeProperties = null;
+    }
+    return nodeProperties;
+  }
+
   public List<T> getActualNodes() {
     return actualNodes;
   }
@@ -45,15 +188,73 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
   }
 
   public TreeSet<Edge<T>> getEdges() {
-    return edges;
+    return ownEdges();
   }
 
   public TreeSet<Type<T>> getTypes() {
-    return types;
+    return ownTypes();
   }
 
   public Set<T> getNodes() {
-    return nodes;
+    return ownNodes();
+  }
+
+  /**
+   * Returns a read-only view of the edges of the graph.
+   */
+  public SortedSet<Edge<T>> getEdgesView() {
+    return Collections.unmodifiableSortedSet(edges);
+  }
+
+  /**
+   * Returns a read-only view of the edges of the node, or null if the node has
+   * none.
+   */
+  public SortedSet<Edge<T>> getEdgesView(T node) {
+    TreeSet<Edge<T>> nodeEdgeSet = nodeEdges.get(node);
+    return nodeEdgeSet != null ? Collections
+        .unmodifiableSortedSet(nodeEdgeSet) : null;
+  }
+
+  /**
+   * Returns a read-only view of the types of the graph.
+   */
+  public SortedSet<Type<T>> getTypesView() {
+    return Collections.unmodifiableSortedSet(types);
+  }
+
+  /**
+   * Returns a read-only view of the types of the node, or null if the node has
+   * none.
+   */
+  public SortedSet<Type<T>> getTypesView(T node) {
+    TreeSet<Type<T>> nodeTypeSet = nodeTypes.get(node);
+    return nodeTypeSet != null ? Collections
+        .unmodifiableSortedSet(nodeTypeSet) : null;
+  }
+
+  /**
+   * Returns a read-only view of the nodes of the graph.
+   */
+  public SortedSet<T> getNodesView() {
+    return Collections.unmodifiableSortedSet(nodes);
+  }
+
+  /**
+   * Returns a read-only view of the properties of the nodes. The property
+   * sets must not be modified either.
+   */
+  public Map<T, Set<Property>> getPropertiesView() {
+    return Collections.unmodifiableMap(nodeProperties);
+  }
+
+  /**
+   * Returns a read-only view of the properties of the node, or null if the
+   * node has none.
+   */
+  public Set<Property> getPropertiesView(T node) {
+    Set<Property> properties = nodeProperties.get(node);
+    return properties != null ? Collections.unmodifiableSet(properties) : null;
   }
 
   public Double getScore() {
@@ -73,31 +274,54 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
       return null;
     }
 
-    return nodeEdges.get(node);
+    return ownNodeEdges(node);
   }
 
   public TreeSet<Type<T>> getTypes(T node) {
     if (!nodeTypes.containsKey(node)) {
       return null;
     }
-    return nodeTypes.get(node);
+    return ownNodeTypes(node);
   }
 
   public Map<T, Set<Property>> getProperties() {
-    return nodeProperties;
+    return ownAllNodeProperties();
   }
 
   public void addProperties(Map<T, Set<Property>> nodeProperties) {
     this.nodeProperties = nodeProperties;
+    nodePropertiesShared = false;
+    ownedNodeProperties = null;
     for (T node : nodeProperties.keySet())
-      this.nodes.add(node);
+      ownNodes().add(node);
   }
 
   public Set<Property> getProperties(T node) {
     if (!nodeProperties.containsKey(node)) {
       return null;
     }
-    return nodeProperties.get(node);
+    return ownNodeProperties(node);
+  }
+
+  /**
+   * Returns true if the node has a property with the given name. Unlike
+   * {@link #getProperties(Object)}, never copies a shared collection.
+   *
+   * @param node
+   * @param propertyName
+   * @return
+   */
+  public boolean hasProperty(T node, String propertyName) {
+    Set<Property> properties = nodeProperties.get(node);
+    if (properties == null) {
+      return false;
+    }
+    for (Property property : properties) {
+      if (property.getPropertyName().equals(propertyName)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   public TreeSet<Type<T>> getEventTypes(T node) {
@@ -118,8 +342,8 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
     this.eventTypes = eventTypes;
     for (TreeSet<Type<T>> typeSet : eventTypes.values()) {
       for (Type<T> type : typeSet) {
-        nodes.add(type.getParentNode());
-        nodes.add(type.getModifierNode());
+        ownNodes().add(type.getParentNode());
+        ownNodes().add(type.getModifierNode());
       }
     }
   }
@@ -129,8 +353,8 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
     this.eventEventModifiers = eventEventModifiers;
     for (TreeSet<Type<T>> typeSet : eventEventModifiers.values()) {
       for (Type<T> type : typeSet) {
-        nodes.add(type.getParentNode());
-        nodes.add(type.getModifierNode());
+        ownNodes().add(type.getParentNode());
+        ownNodes().add(type.getModifierNode());
       }
     }
   }
@@ -144,15 +368,20 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
   }
 
   public Map<T, Set<Property>> getNodeProperties() {
-    return nodeProperties;
+    return ownAllNodeProperties();
   }
 
   public void addProperty(T node, Property property) {
     addNode(node);
-    if (!nodeProperties.containsKey(node)) {
-      nodeProperties.put(node, new HashSet<Property>());
+    Set<Property> properties = ownNodeProperties(node);
+    if (properties == null) {
+      properties = new HashSet<Property>();
+      nodeProperties.put(node, properties);
+      if (ownedNodeProperties != null) {
+        ownedNodeProperties.add(node);
+      }
     }
-    nodeProperties.get(node).add(property);
+    properties.add(property);
   }
 
   @Override
@@ -229,36 +458,38 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
     nodeProperties = Maps.newHashMap();
   }
 
+  /**
+   * Copies this graph into newGraph. The collections are shared between the
+   * two graphs until one of them modifies them.
+   *
+   * @param newGraph
+   */
   public void copyTo(Graph<T> newGraph) {
     Preconditions.checkNotNull(newGraph);
     newGraph.score = new Double(score);
-    newGraph.nodes = new TreeSet<>(nodes);
-    newGraph.edges = new TreeSet<>(edges);
-    newGraph.types = new TreeSet<>(types);
+    newGraph.nodes = nodes;
+    newGraph.edges = edges;
+    newGraph.types = types;
+    newGraph.nodeEdges = nodeEdges;
+    newGraph.nodeTypes = nodeTypes;
+    newGraph.nodeProperties = nodeProperties;
+    nodesShared = newGraph.nodesShared = true;
+    edgesShared = newGraph.edgesShared = true;
+    typesShared = newGraph.typesShared = true;
+    nodeEdgesShared = newGraph.nodeEdgesShared = true;
+    nodeTypesShared = newGraph.nodeTypesShared = true;
+    nodePropertiesShared = newGraph.nodePropertiesShared = true;
 
     // eventTypes and eventEventModifiers remain same in every graph since
     // these edges/types are not grounded
     newGraph.eventTypes = eventTypes;
     newGraph.eventEventModifiers = eventEventModifiers;
     newGraph.actualNodes = actualNodes;
-
-    for (T node : nodeEdges.keySet()) {
-      newGraph.nodeEdges.put(node, new TreeSet<>(nodeEdges.get(node)));
-    }
-
-    for (T node : nodeTypes.keySet()) {
-      newGraph.nodeTypes.put(node, new TreeSet<>(nodeTypes.get(node)));
-    }
-
-    for (T node : nodeProperties.keySet()) {
-      newGraph.nodeProperties
-          .put(node, new HashSet<>(nodeProperties.get(node)));
-    }
   }
 
   public void addNode(T node) {
-    if (!nodeEdges.containsKey(node)) {
-      nodes.add(node);
+    if (!nodeEdges.containsKey(node) && !nodes.contains(node)) {
+      ownNodes().add(node);
     }
   }
 
@@ -278,26 +509,37 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
     addNode(node1);
     addNode(node2);
     addNode(mediator);
-    edges.add(edge);
-    if (!nodeEdges.containsKey(node1)) {
-      nodeEdges.put(node1, new TreeSet<Edge<T>>());
-    }
-    if (!nodeEdges.containsKey(node2)) {
-      nodeEdges.put(node2, new TreeSet<Edge<T>>());
+    ownEdges().add(edge);
+    getOrCreateNodeEdges(node1).add(edge);
+    getOrCreateNodeEdges(node2).add(edge.inverse());
+  }
+
+  private TreeSet<Edge<T>> getOrCreateNodeEdges(T node) {
+    TreeSet<Edge<T>> nodeEdgeSet = ownNodeEdges(node);
+    if (nodeEdgeSet == null) {
+      nodeEdgeSet = new TreeSet<Edge<T>>();
+      nodeEdges.put(node, nodeEdgeSet);
+      if (ownedNodeEdges != null) {
+        ownedNodeEdges.add(node);
+      }
     }
-    nodeEdges.get(node1).add(edge);
-    nodeEdges.get(node2).add(edge.inverse());
+    return nodeEdgeSet;
   }
 
   public void addType(T parentNode, T modifierNode, EntityType nodeType) {
     Type<T> type = new Type<>(parentNode, modifierNode, nodeType);
     addNode(parentNode);
     addNode(modifierNode);
-    types.add(type);
-    if (!nodeTypes.containsKey(parentNode)) {
-      nodeTypes.put(parentNode, new TreeSet<Type<T>>());
+    ownTypes().add(type);
+    TreeSet<Type<T>> nodeTypeSet = ownNodeTypes(parentNode);
+    if (nodeTypeSet == null) {
+      nodeTypeSet = new TreeSet<Type<T>>();
+      nodeTypes.put(parentNode, nodeTypeSet);
+      if (ownedNodeTypes != null) {
+        ownedNodeTypes.add(parentNode);
+      }
     }
-    nodeTypes.get(parentNode).add(type);
+    nodeTypeSet.add(type);
   }
 
   public void addEventType(T parentNode, T modifierNode, EntityType nodeType) {
@@ -600,11 +842,11 @@ public class Graph<T> implements Comparable<Graph<T>>, Serializable {
   }
 
   public Map<T, TreeSet<Edge<T>>> getNodeEdges() {
-    return nodeEdges;
+    return ownAllNodeEdges();
   }
 
   public Map<T, TreeSet<Type<T>>> getNodeTypes() {
-    return nodeTypes;
+    return ownAllNodeTypes();
   }
 
 }
@@ -7,6 +7,26 @@ public interface KnowledgeBase {
 
   public Set<Relation> getRelations(String entity1);
 
+  /**
+   * Returns the relations between entity1 and entity2 as in
+   * {@link #getRelations(String, String)}. The array and the relations in it
+   * may be shared between calls and must not be modified.
+   */
+  public default Relation[] getRelationArray(String entity1, String entity2) {
+    Set<Relation> rels = getRelations(entity1, entity2);
+    return rels == null ? null : rels.toArray(new Relation[rels.size()]);
+  }
+
+  /**
+   * Returns the relations of entity1 as in {@link #getRelations(String)}. The
+   * array and the relations in it may be shared between calls and must not be
+   * modified.
+   */
+  public default Relation[] getRelationArray(String entity1) {
+    Set<Relation> rels = getRelations(entity1);
+    return rels == null ? null : rels.toArray(new Relation[rels.size()]);
+  }
+
   public boolean hasRelation(String entity1, String entity2);
 
   public Set<String> getTypes(String entity);
@@ -4,25 +4,44 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.base.Splitter;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 
-public class KnowledgeBaseCached implements KnowledgeBase {
+public class KnowledgeBaseCached implements LocalKnowledgeBase {
 
   private Map<Integer, Set<Integer>> entity2Types;
   private Map<Pair<Integer, Integer>, Set<Pair<Integer, Integer>>> entityPair2Relations;
@@ -35,17 +54,51 @@ public class KnowledgeBaseCached implements KnowledgeBase {
   private int entityCount;
   private Set<Pair<Integer, Integer>> relationsThatAreTypes;
 
+  // Canonical Relation objects, and the relations of recently queried
+  // entities and entity pairs, so that lookups do not rebuild them.
+  private final Map<Pair<Integer, Integer>, Relation> canonicalRelations =
+      new ConcurrentHashMap<>();
+  private final Map<Pair<Integer, Integer>, Relation> canonicalInverseRelations =
+      new ConcurrentHashMap<>();
+  private final Cache<Integer, Relation[]> entityRelationsCache = Caffeine
+      .newBuilder().maximumSize(100000).build();
+  private final Cache<Pair<Integer, Integer>, Relation[]> entityPairRelationsCache =
+      Caffeine.newBuilder().maximumSize(100000).build();
+
+  // Entities paired with each entity, and entity names by id, built on first
+  // use by getRelatedEntities.
+  private volatile int[][] entityNeighbours = null;
+  private String[] entityNames = null;
+
   public KnowledgeBaseCached(String kbCompressedFile, String relationTypesFile)
       throws IOException {
-    entity2Types = Maps.newHashMap();
-    entityPair2Relations = Maps.newHashMap();
-    entity2Relations = Maps.newHashMap();
+    this(kbCompressedFile, relationTypesFile, Runtime.getRuntime()
+        .availableProcessors());
+  }
+
+  /**
+   * Loads the knowledge base from kbCompressedFile, which is either a
+   * snapshot or one or more gzipped fact files separated by ";". Fact files
+   * are loaded with nthreads threads.
+   *
+   * @param kbCompressedFile
+   * @param relationTypesFile
+   * @param nthreads
+   * @throws IOException
+   */
+  public KnowledgeBaseCached(String kbCompressedFile, String relationTypesFile,
+      int nthreads) throws IOException {
+    // Concurrent, since facts are loaded by several threads, and frozen once
+    // loaded.
+    entity2Types = new ConcurrentHashMap<>();
+    entityPair2Relations = new ConcurrentHashMap<>();
+    entity2Relations = new ConcurrentHashMap<>();
     relationsThatAreTypes = Sets.newHashSet();
 
     typeIDs = HashBiMap.create();
     relationIDs = HashBiMap.create();
 
-    entityIDs = Maps.newHashMap();
+    entityIDs = new ConcurrentHashMap<>();
 
     entityIDs.put("type.int", 0);
     entityIDs.put("type.float", 1);
@@ -55,24 +108,247 @@ public class KnowledgeBaseCached implements KnowledgeBase {
     typeIDs.put("type.float", 1);
     typeIDs.put("type.datetime", 2);
 
-    Set<Integer> integerSet = Sets.newHashSet(0);
-    entity2Types.put(0, integerSet);
-
-    Set<Integer> floatSet = Sets.newHashSet(1);
-    entity2Types.put(1, floatSet);
-
-    Set<Integer> dateSet = Sets.newHashSet(2);
-    entity2Types.put(2, dateSet);
+    for (int i = 0; i < 3; i++) {
+      Set<Integer> typeSet = newConcurrentSet();
+      typeSet.add(i);
+      entity2Types.put(i, typeSet);
+    }
 
     entityCount = 3;
     typeCount = 3;
     relationCount = 0;
 
+    if (kbCompressedFile != null
+        && kbCompressedFile.endsWith(KnowledgeBaseSnapshot.FILE_SUFFIX)) {
+      // Relations that are types were already applied when the snapshot was
+      // written.
+      loadSnapshot(kbCompressedFile);
+      freeze();
+      return;
+    }
+
     if (relationTypesFile != null)
       loadRelationsThatAreTypes(relationTypesFile);
 
     if (kbCompressedFile != null)
-      loadKB(kbCompressedFile);
+      loadKB(kbCompressedFile, nthreads);
+    freeze();
+  }
+
+  /**
+   * Replaces the concurrent maps and sets filled while loading with plain
+   * hash maps and sets, which take much less memory. The knowledge base is
+   * only read once loaded.
+   */
+  private void freeze() {
+    entity2Types = freeze(entity2Types);
+    entityPair2Relations = freeze(entityPair2Relations);
+    entity2Relations = freeze(entity2Relations);
+    entityIDs = new HashMap<>(entityIDs);
+  }
+
+  private static <K, V> Map<K, Set<V>> freeze(Map<K, Set<V>> map) {
+    Map<K, Set<V>> frozen = Maps.newHashMapWithExpectedSize(map.size());
+    Iterator<Entry<K, Set<V>>> entries = map.entrySet().iterator();
+    while (entries.hasNext()) {
+      Entry<K, Set<V>> entry = entries.next();
+      frozen.put(entry.getKey(), new HashSet<>(entry.getValue()));
+      // Frees the concurrent sets while the plain ones are built.
+      entries.remove();
+    }
+    return frozen;
+  }
+
+  /**
+   * Loads the knowledge base from a snapshot written by
+   * {@link #writeSnapshot(String)}. Relation and type ids are kept; entity ids
+   * are the ids of the snapshot.
+   *
+   * @param snapshotFile
+   * @throws IOException
+   */
+  private void loadSnapshot(String snapshotFile) throws IOException {
+    KnowledgeBaseSnapshot snapshot = KnowledgeBaseSnapshot.open(snapshotFile);
+
+    relationIDs.clear();
+    relationCount = snapshot.getRelationCount();
+    for (int i = 0; i < relationCount; i++) {
+      relationIDs.put(snapshot.getRelationName(i), i);
+    }
+
+    typeIDs.clear();
+    typeCount = snapshot.getTypeCount();
+    for (int i = 0; i < typeCount; i++) {
+      typeIDs.put(snapshot.getTypeName(i), i);
+    }
+
+    entityIDs.clear();
+    entity2Types.clear();
+    entityCount = snapshot.getEntityCount();
+    for (int entityId = 0; entityId < entityCount; entityId++) {
+      entityIDs.put(snapshot.getEntityName(entityId), entityId);
+
+      int[] types = snapshot.getTypeIds(entityId);
+      if (types != null) {
+        Set<Integer> typeSet = Sets.newHashSetWithExpectedSize(types.length);
+        for (int type : types) {
+          typeSet.add(type);
+        }
+        entity2Types.put(entityId, typeSet);
+      }
+
+      int[] relations = snapshot.getRelationIds(entityId);
+      if (relations.length > 0) {
+        entity2Relations.put(entityId, toRelationPairs(relations));
+      }
+
+      for (int entity2Id : snapshot.getPairedEntityIds(entityId)) {
+        entityPair2Relations.put(Pair.of(entityId, entity2Id),
+            toRelationPairs(snapshot.getRelationIds(entityId, entity2Id)));
+      }
+    }
+    System.err.println("Knowledge Base loaded from " + snapshot);
+  }
+
+  private static Set<Pair<Integer, Integer>> toRelationPairs(int[] relations) {
+    Set<Pair<Integer, Integer>> relationPairs =
+        Sets.newHashSetWithExpectedSize(relations.length / 2);
+    for (int i = 0; i < relations.length; i += 2) {
+      relationPairs.add(Pair.of(relations[i], relations[i + 1]));
+    }
+    return relationPairs;
+  }
+
+  /**
+   * Writes the knowledge base as a binary snapshot, which can be loaded much
+   * faster than the gzipped facts by passing a file ending with
+   * {@link KnowledgeBaseSnapshot#FILE_SUFFIX} as kbCompressedFile, or opened
+   * directly with {@link KnowledgeBaseSnapshot#open(String)}.
+   *
+   * @param snapshotFile
+   * @throws IOException
+   */
+  public void writeSnapshot(String snapshotFile) throws IOException {
+    byte[][] relationNames = new byte[relationCount][];
+    for (Entry<String, Integer> entry : relationIDs.entrySet()) {
+      relationNames[entry.getValue()] =
+          entry.getKey().getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[][] typeNames = new byte[typeCount][];
+    for (Entry<String, Integer> entry : typeIDs.entrySet()) {
+      typeNames[entry.getValue()] =
+          entry.getKey().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Snapshot entity ids follow the sorted order of entity names.
+    byte[][] entityNames = new byte[entityCount][];
+    Integer[] entityOrder = new Integer[entityCount];
+    for (Entry<String, Integer> entry : entityIDs.entrySet()) {
+      entityNames[entry.getValue()] =
+          entry.getKey().getBytes(StandardCharsets.UTF_8);
+      entityOrder[entry.getValue()] = entry.getValue();
+    }
+    Arrays.sort(entityOrder, (x, y) -> KnowledgeBaseSnapshot.compareNames(
+        entityNames[x], entityNames[y]));
+    int[] snapshotIds = new int[entityCount];
+    byte[][] sortedEntityNames = new byte[entityCount][];
+    for (int i = 0; i < entityCount; i++) {
+      snapshotIds[entityOrder[i]] = i;
+      sortedEntityNames[i] = entityNames[entityOrder[i]];
+    }
+
+    int[] entityHasTypes = new int[(entityCount + 31) / 32];
+    int[] entityTypeOffsets = new int[entityCount + 1];
+    int[] entityRelationOffsets = new int[entityCount + 1];
+    int[] pairOffsets = new int[entityCount + 1];
+    IntList entityTypes = new IntList();
+    IntList entityRelations = new IntList();
+    IntList pairEntities = new IntList();
+    IntList pairRelationOffsets = new IntList();
+    IntList pairRelations = new IntList();
+    pairRelationOffsets.add(0);
+
+    Map<Integer, List<Integer>> pairedEntities = Maps.newHashMap();
+    for (Pair<Integer, Integer> entityPair : entityPair2Relations.keySet()) {
+      pairedEntities.computeIfAbsent(entityPair.getLeft(),
+          x -> new ArrayList<>()).add(entityPair.getRight());
+    }
+
+    for (int i = 0; i < entityCount; i++) {
+      int entityId = entityOrder[i];
+
+      Set<Integer> types = entity2Types.get(entityId);
+      if (types != null) {
+        entityHasTypes[i >>> 5] |= 1 << (i & 31);
+        for (int type : new TreeSet<>(types)) {
+          entityTypes.add(type);
+        }
+      }
+      entityTypeOffsets[i + 1] = entityTypes.size();
+
+      addRelationPairs(entityRelations, entity2Relations.get(entityId));
+      entityRelationOffsets[i + 1] = entityRelations.size() / 2;
+
+      List<Integer> entity2Ids = pairedEntities.get(entityId);
+      if (entity2Ids != null) {
+        int[] sortedEntity2Ids = new int[entity2Ids.size()];
+        for (int j = 0; j < sortedEntity2Ids.length; j++) {
+          sortedEntity2Ids[j] = snapshotIds[entity2Ids.get(j)];
+        }
+        Arrays.sort(sortedEntity2Ids);
+        for (int entity2SnapshotId : sortedEntity2Ids) {
+          pairEntities.add(entity2SnapshotId);
+          addRelationPairs(pairRelations, entityPair2Relations.get(Pair.of(
+              entityId, entityOrder[entity2SnapshotId])));
+          pairRelationOffsets.add(pairRelations.size() / 2);
+        }
+      }
+      pairOffsets[i + 1] = pairEntities.size();
+    }
+
+    KnowledgeBaseSnapshot.write(snapshotFile, relationNames, typeNames,
+        sortedEntityNames, entityTypeOffsets, entityTypes.toArray(),
+        entityRelationOffsets, entityRelations.toArray(), pairOffsets,
+        pairEntities.toArray(), pairRelationOffsets.toArray(),
+        pairRelations.toArray(), entityHasTypes);
+  }
+
+  /**
+   * Growable array of ints, to avoid boxing while building a snapshot.
+   */
+  private static final class IntList {
+    private int[] values = new int[16];
+    private int size = 0;
+
+    private void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      values[size++] = value;
+    }
+
+    private int size() {
+      return size;
+    }
+
+    private int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+
+  private static void addRelationPairs(IntList relations,
+      Set<Pair<Integer, Integer>> relationPairs) {
+    if (relationPairs == null) {
+      return;
+    }
+    List<Pair<Integer, Integer>> sortedPairs =
+        new ArrayList<>(relationPairs);
+    Collections.sort(sortedPairs);
+    for (Pair<Integer, Integer> relationPair : sortedPairs) {
+      relations.add(relationPair.getLeft());
+      relations.add(relationPair.getRight());
+    }
   }
 
   private void loadRelationsThatAreTypes(String relationTypesFile)
@@ -125,235 +401,417 @@ public class KnowledgeBaseCached implements KnowledgeBase {
 
   }
 
-  private int getOrCreateEntityID(String entity) {
-    if (!entityIDs.containsKey(entity)) {
-      entityIDs.put(entity, entityCount);
-      entityCount++;
+  private static final int CHUNK_LINES = 10000;
+
+  /**
+   * Loads facts from one or more gzipped files separated by ";". Files are
+   * read in parallel, and their lines are parsed in chunks on a fork-join
+   * pool of nthreads threads, adding to the concurrent maps of this knowledge
+   * base. Ids therefore depend on the order in which threads see the facts,
+   * but the answers of the knowledge base do not.
+   */
+  private void loadKB(String kbCompressedFiles, int nthreads)
+      throws IOException {
+    List<String> files =
+        Lists.newArrayList(Splitter.on(";").trimResults().omitEmptyStrings()
+            .split(kbCompressedFiles));
+    FactLoader loader = new FactLoader(nthreads);
+    ExecutorService readers =
+        Executors.newFixedThreadPool(Math.min(files.size(), nthreads));
+    for (String file : files) {
+      readers.execute(() -> loader.readFile(file));
     }
-    return entityIDs.get(entity);
+    readers.shutdown();
+    try {
+      readers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      loader.finish();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading the knowledge base", e);
+    }
+    System.err.println("Knowledge Base loaded");
   }
 
-  private void loadKB(String kbCompressedFile) throws IOException {
-    InputStream fileStream = new FileInputStream(kbCompressedFile);
-    InputStream gzipStream = new GZIPInputStream(fileStream);
-    Reader decoder = new InputStreamReader(gzipStream, "UTF-8");
-    BufferedReader br = new BufferedReader(decoder);
-
-    // Entity Type Format:
-    // "m.0gbltb2"
-    // ["film.film_casting_director","film.editor","film.writer","film.director"]
-
-    // Relation Type Format:
-    // ["m.04q6psm","type.datetime"]
-    // [["film.film_regional_release_date.film","film.film_regional_release_date.release_date"]]
-    // ["m.0n64zwd","m.0n64zwm"]
-    // [["film.film.directed_by"],["film.film.produced_by"],["film.film.written_by"],
-    // ["film.film_crew_gig.film","film.film_crew_gig.crewmember"],["film.film.cinematography"]]
-
-    JsonParser parser = new JsonParser();
+  /**
+   * Parses facts into the maps of the knowledge base from several threads.
+   * Relation and type ids are assigned in concurrent maps which replace the
+   * bidirectional maps once all facts are added.
+   */
+  private class FactLoader {
+    private final ForkJoinPool pool;
+    // Bounds the chunks read but not yet parsed.
+    private final Semaphore pendingChunks;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final ConcurrentHashMap<String, Integer> relationIDsBuilder;
+    private final ConcurrentHashMap<String, Integer> typeIDsBuilder;
+    private final AtomicInteger entityCounter;
+    private final AtomicInteger relationCounter;
+    private final AtomicInteger typeCounter;
+
+    private FactLoader(int nthreads) {
+      pool = new ForkJoinPool(nthreads);
+      pendingChunks = new Semaphore(4 * nthreads);
+      relationIDsBuilder = new ConcurrentHashMap<>(relationIDs);
+      typeIDsBuilder = new ConcurrentHashMap<>(typeIDs);
+      entityCounter = new AtomicInteger(entityCount);
+      relationCounter = new AtomicInteger(relationCount);
+      typeCounter = new AtomicInteger(typeCount);
+    }
 
-    try {
-      // String line =
-      // "[\"m.0n64zwd\",\"m.0n64zwm\"]	[[\"film.film.directed_by\"],[\"film.film.produced_by\"],[\"film.film.written_by\"], [\"film.film_crew_gig.film\",\"film.film_crew_gig.crewmember\"],[\"film.film.cinematography\"]]";
-      String line = br.readLine();
-      while (line != null) {
-        line = line.trim();
-        if (line.equals("")) {
-          line = br.readLine();
-          continue;
-        }
-        if (line.charAt(0) == '#') {
+    private void readFile(String kbCompressedFile) {
+      try (BufferedReader br =
+          new BufferedReader(new InputStreamReader(new GZIPInputStream(
+              new FileInputStream(kbCompressedFile), 1 << 16), "UTF-8"))) {
+        List<String> chunk = new ArrayList<>(CHUNK_LINES);
+        String line = br.readLine();
+        while (line != null && failure.get() == null) {
+          chunk.add(line);
+          if (chunk.size() == CHUNK_LINES) {
+            submit(chunk);
+            chunk = new ArrayList<>(CHUNK_LINES);
+          }
           line = br.readLine();
-          continue;
         }
-        String[] parts = line.split("\t");
-        if (parts[0].charAt(0) == '[') {
-          // Fact describing relation between entities
-          JsonElement jelement = parser.parse(parts[0]);
-          JsonArray entities = jelement.getAsJsonArray();
-          String entity1 = entities.get(0).getAsString();
-          String entity2 = entities.get(1).getAsString();
-
-          int entity1Id = getOrCreateEntityID(entity1);
-          int entity2Id = getOrCreateEntityID(entity2);
-
-          Set<Pair<Integer, Integer>> relationsSet = Sets.newHashSet();
-          Set<Pair<Integer, Integer>> inverseRelationsSet = Sets.newHashSet();
-          jelement = parser.parse(parts[1]);
-          JsonArray relations = jelement.getAsJsonArray();
-          for (JsonElement relation : relations) {
-            JsonArray relationEdges = relation.getAsJsonArray();
-            String edge1;
-            String edge2;
-            if (relationEdges.size() == 1) {
-              String relationName = relationEdges.get(0).getAsString();
-              edge1 = relationName + ".1";
-              edge2 = relationName + ".2";
-            } else {
-              edge1 = relationEdges.get(0).getAsString();
-              edge2 = relationEdges.get(1).getAsString();
-            }
-
-            // TODO: Remove in future BAD BAD: relation
-            // film_regional_release_date upsets film results.
-            // Ambigious relation between initial_release_date.
-            if (edge1.contains("film_regional_release_date")
-                || edge2.contains("film_regional_release_date")) {
-              continue;
-            }
-
-            if (!relationIDs.containsKey(edge1)) {
-              relationIDs.put(edge1, relationCount);
-              relationCount++;
-            }
-            if (!relationIDs.containsKey(edge2)) {
-              relationIDs.put(edge2, relationCount);
-              relationCount++;
-            }
-            Pair<Integer, Integer> edge =
-                Pair.of(relationIDs.get(edge1), relationIDs.get(edge2));
-            Pair<Integer, Integer> edge_inverse =
-                Pair.of(relationIDs.get(edge2), relationIDs.get(edge1));
-            relationsSet.add(edge);
-            inverseRelationsSet.add(edge_inverse);
-
-            // Adding relations that are potential types
-            if (relationsThatAreTypes.contains(edge)) {
-              String entityTypeString =
-                  String.format("%s#%s#%s", edge1, edge2, entity2);
-              if (!typeIDs.containsKey(entityTypeString)) {
-                typeIDs.put(entityTypeString, typeCount);
-                typeCount++;
-              }
-              if (!entity2Types.containsKey(entity1Id)) {
-                entity2Types.put(entity1Id, new HashSet<Integer>());
-              }
-              entity2Types.get(entity1Id).add(typeIDs.get(entityTypeString));
-            }
-
-            if (relationsThatAreTypes.contains(edge_inverse)) {
-              String entityTypeString =
-                  String.format("%s#%s#%s", edge2, edge1, entity1);
-              if (!typeIDs.containsKey(entityTypeString)) {
-                typeIDs.put(entityTypeString, typeCount);
-                typeCount++;
-              }
-              if (!entity2Types.containsKey(entity2Id)) {
-                entity2Types.put(entity2Id, new HashSet<Integer>());
-              }
-              entity2Types.get(entity2Id).add(typeIDs.get(entityTypeString));
-            }
+        submit(chunk);
+      } catch (IOException | RuntimeException e) {
+        failure.compareAndSet(null, e);
+      } catch (InterruptedException e) {
+        failure.compareAndSet(null, e);
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void submit(List<String> chunk) throws InterruptedException {
+      pendingChunks.acquire();
+      pool.execute(() -> {
+        try {
+          JsonParser parser = new JsonParser();
+          for (String line : chunk) {
+            addFact(line, parser);
           }
+        } catch (RuntimeException e) {
+          failure.compareAndSet(null, e);
+        } finally {
+          pendingChunks.release();
+        }
+      });
+    }
 
-          if (entity1.compareTo(entity2) < 0) {
-            Pair<Integer, Integer> entityPair = Pair.of(entity1Id, entity2Id);
-            if (!entityPair2Relations.containsKey(entityPair)) {
-              entityPair2Relations.put(entityPair, relationsSet);
-            } else {
-              entityPair2Relations.get(entityPair).addAll(relationsSet);
-            }
+    /**
+     * Waits for the submitted chunks and replaces the id maps of the
+     * knowledge base with the ones built while loading.
+     */
+    private void finish() throws IOException, InterruptedException {
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+      Throwable error = failure.get();
+      if (error instanceof IOException) {
+        throw (IOException) error;
+      } else if (error instanceof RuntimeException) {
+        throw (RuntimeException) error;
+      } else if (error != null) {
+        throw new IOException(error);
+      }
+
+      relationIDs = HashBiMap.create(relationIDsBuilder);
+      typeIDs = HashBiMap.create(typeIDsBuilder);
+      entityCount = entityCounter.get();
+      relationCount = relationCounter.get();
+      typeCount = typeCounter.get();
+    }
+
+    private int getOrCreateEntityID(String entity) {
+      return entityIDs.computeIfAbsent(entity,
+          x -> entityCounter.getAndIncrement());
+    }
+
+    private int getOrCreateRelationID(String relation) {
+      return relationIDsBuilder.computeIfAbsent(relation,
+          x -> relationCounter.getAndIncrement());
+    }
+
+    private int getOrCreateTypeID(String type) {
+      return typeIDsBuilder.computeIfAbsent(type,
+          x -> typeCounter.getAndIncrement());
+    }
+
+    private void addFact(String line, JsonParser parser) {
+      // Entity Type Format:
+      // "m.0gbltb2"
+      // ["film.film_casting_director","film.editor","film.writer","film.director"]
+
+      // Relation Type Format:
+      // ["m.04q6psm","type.datetime"]
+      // [["film.film_regional_release_date.film","film.film_regional_release_date.release_date"]]
+      // ["m.0n64zwd","m.0n64zwm"]
+      // [["film.film.directed_by"],["film.film.produced_by"],["film.film.written_by"],
+      // ["film.film_crew_gig.film","film.film_crew_gig.crewmember"],["film.film.cinematography"]]
+      line = line.trim();
+      if (line.equals("") || line.charAt(0) == '#') {
+        return;
+      }
+
+      String[] parts = line.split("\t");
+      if (parts[0].charAt(0) == '[') {
+        // Fact describing relation between entities
+        JsonElement jelement = parser.parse(parts[0]);
+        JsonArray entities = jelement.getAsJsonArray();
+        String entity1 = entities.get(0).getAsString();
+        String entity2 = entities.get(1).getAsString();
+
+        int entity1Id = getOrCreateEntityID(entity1);
+        int entity2Id = getOrCreateEntityID(entity2);
+
+        Set<Pair<Integer, Integer>> relationsSet = Sets.newHashSet();
+        Set<Pair<Integer, Integer>> inverseRelationsSet = Sets.newHashSet();
+        jelement = parser.parse(parts[1]);
+        JsonArray relations = jelement.getAsJsonArray();
+        for (JsonElement relation : relations) {
+          JsonArray relationEdges = relation.getAsJsonArray();
+          String edge1;
+          String edge2;
+          if (relationEdges.size() == 1) {
+            String relationName = relationEdges.get(0).getAsString();
+            edge1 = relationName + ".1";
+            edge2 = relationName + ".2";
           } else {
-            Pair<Integer, Integer> entityPair = Pair.of(entity2Id, entity1Id);
-            if (!entityPair2Relations.containsKey(entityPair)) {
-              entityPair2Relations.put(entityPair, inverseRelationsSet);
-            } else {
-              entityPair2Relations.get(entityPair).addAll(inverseRelationsSet);
-            }
+            edge1 = relationEdges.get(0).getAsString();
+            edge2 = relationEdges.get(1).getAsString();
           }
 
-          if (!entity2Relations.containsKey(entity1Id)) {
-            entity2Relations.put(entity1Id,
-                new HashSet<Pair<Integer, Integer>>());
+          // TODO: Remove in future BAD BAD: relation
+          // film_regional_release_date upsets film results.
+          // Ambigious relation between initial_release_date.
+          if (edge1.contains("film_regional_release_date")
+              || edge2.contains("film_regional_release_date")) {
+            continue;
           }
-          entity2Relations.get(entity1Id).addAll(relationsSet);
 
-          if (!entity2Relations.containsKey(entity2Id)) {
-            entity2Relations.put(entity2Id,
-                new HashSet<Pair<Integer, Integer>>());
+          int edge1Id = getOrCreateRelationID(edge1);
+          int edge2Id = getOrCreateRelationID(edge2);
+          Pair<Integer, Integer> edge = Pair.of(edge1Id, edge2Id);
+          Pair<Integer, Integer> edge_inverse = Pair.of(edge2Id, edge1Id);
+          relationsSet.add(edge);
+          inverseRelationsSet.add(edge_inverse);
+
+          // Adding relations that are potential types
+          if (relationsThatAreTypes.contains(edge)) {
+            String entityTypeString =
+                String.format("%s#%s#%s", edge1, edge2, entity2);
+            entity2Types.computeIfAbsent(entity1Id, x -> newConcurrentSet())
+                .add(getOrCreateTypeID(entityTypeString));
           }
-          entity2Relations.get(entity2Id).addAll(inverseRelationsSet);
 
-        } else {
-          // Fact describing an entity type
-          String entity = parser.parse(parts[0]).getAsString();
-          int entityId = getOrCreateEntityID(entity);
-
-          JsonElement jelement = parser.parse(parts[1]);
-          JsonArray entityTypes = jelement.getAsJsonArray();
-          if (!entity2Types.containsKey(entityId)) {
-            entity2Types.put(entityId, new HashSet<Integer>());
-          }
-          for (JsonElement entityType : entityTypes) {
-            String entityTypeString = entityType.getAsString();
-            if (!typeIDs.containsKey(entityTypeString)) {
-              typeIDs.put(entityTypeString, typeCount);
-              typeCount++;
-            }
-            entity2Types.get(entityId).add(typeIDs.get(entityTypeString));
+          if (relationsThatAreTypes.contains(edge_inverse)) {
+            String entityTypeString =
+                String.format("%s#%s#%s", edge2, edge1, entity1);
+            entity2Types.computeIfAbsent(entity2Id, x -> newConcurrentSet())
+                .add(getOrCreateTypeID(entityTypeString));
           }
         }
-        line = br.readLine();
+
+        if (entity1.compareTo(entity2) < 0) {
+          entityPair2Relations.computeIfAbsent(Pair.of(entity1Id, entity2Id),
+              x -> newConcurrentSet()).addAll(relationsSet);
+        } else {
+          entityPair2Relations.computeIfAbsent(Pair.of(entity2Id, entity1Id),
+              x -> newConcurrentSet()).addAll(inverseRelationsSet);
+        }
+
+        entity2Relations.computeIfAbsent(entity1Id, x -> newConcurrentSet())
+            .addAll(relationsSet);
+        entity2Relations.computeIfAbsent(entity2Id, x -> newConcurrentSet())
+            .addAll(inverseRelationsSet);
+      } else {
+        // Fact describing an entity type
+        String entity = parser.parse(parts[0]).getAsString();
+        int entityId = getOrCreateEntityID(entity);
+
+        JsonElement jelement = parser.parse(parts[1]);
+        JsonArray entityTypes = jelement.getAsJsonArray();
+        Set<Integer> types =
+            entity2Types.computeIfAbsent(entityId, x -> newConcurrentSet());
+        for (JsonElement entityType : entityTypes) {
+          types.add(getOrCreateTypeID(entityType.getAsString()));
+        }
       }
-    } finally {
-      br.close();
     }
-    System.err.println("Knowledge Base loaded");
   }
 
-  public Set<Relation> getRelations(String entity1, String entity2) {
-    if (!entityIDs.containsKey(entity1) || !entityIDs.containsKey(entity2)) {
+  private static <T> Set<T> newConcurrentSet() {
+    return ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * Returns the canonical relation for the given edge ids. Every lookup
+   * returns the same instance for the same relation.
+   */
+  private Relation getCanonicalRelation(Pair<Integer, Integer> relationIds) {
+    return canonicalRelations.computeIfAbsent(relationIds,
+        x -> Relation.of(relationIDs.inverse().get(x.getLeft()), relationIDs
+            .inverse().get(x.getRight())));
+  }
+
+  /**
+   * Returns the inverse of the canonical relation for the given edge ids.
+   */
+  private Relation getCanonicalInverseRelation(
+      Pair<Integer, Integer> relationIds) {
+    return canonicalInverseRelations.computeIfAbsent(relationIds,
+        x -> Relation.of(relationIDs.inverse().get(x.getRight()), relationIDs
+            .inverse().get(x.getLeft())));
+  }
+
+  /**
+   * Returns the relations between entity1 and entity2, or null if either
+   * entity is not in the knowledge base. The array and the relations in it are
+   * shared between calls and must not be modified.
+   *
+   * @param entity1
+   * @param entity2
+   * @return
+   */
+  @Override
+  public Relation[] getRelationArray(String entity1, String entity2) {
+    Integer entity1Id = entityIDs.get(entity1);
+    Integer entity2Id = entityIDs.get(entity2);
+    if (entity1Id == null || entity2Id == null) {
       return null;
     }
-    int entity1Id = entityIDs.get(entity1);
-    int entity2Id = entityIDs.get(entity2);
-    Pair<Integer, Integer> entityIdPair = Pair.of(entity1Id, entity2Id);
+    return entityPairRelationsCache.get(Pair.of(entity1Id, entity2Id),
+        x -> buildRelationArray(entity1Id, entity2Id));
+  }
 
-    Set<Relation> rels = Sets.newHashSet();
-    if (entityPair2Relations.containsKey(entityIdPair)) {
-      for (Pair<Integer, Integer> entityPairIds : entityPair2Relations
-          .get(entityIdPair)) {
-        String relationEdge1 =
-            relationIDs.inverse().get(entityPairIds.getLeft());
-        String relationEdge2 =
-            relationIDs.inverse().get(entityPairIds.getRight());
-        rels.add(Relation.of(relationEdge1, relationEdge2));
+  private Relation[] buildRelationArray(int entity1Id, int entity2Id) {
+    Set<Relation> rels = Sets.newLinkedHashSet();
+    Set<Pair<Integer, Integer>> relationIdPairs =
+        entityPair2Relations.get(Pair.of(entity1Id, entity2Id));
+    if (relationIdPairs != null) {
+      for (Pair<Integer, Integer> relationIds : relationIdPairs) {
+        rels.add(getCanonicalRelation(relationIds));
       }
     }
 
     // if inverse entity pair exists
-    entityIdPair = Pair.of(entity2Id, entity1Id);
-    if (entityPair2Relations.containsKey(entityIdPair)) {
-      for (Pair<Integer, Integer> entityPairIds : entityPair2Relations
-          .get(entityIdPair)) {
-        String relationEdge2 =
-            relationIDs.inverse().get(entityPairIds.getLeft());
-        String relationEdge1 =
-            relationIDs.inverse().get(entityPairIds.getRight());
-        rels.add(Relation.of(relationEdge1, relationEdge2));
+    relationIdPairs = entityPair2Relations.get(Pair.of(entity2Id, entity1Id));
+    if (relationIdPairs != null) {
+      for (Pair<Integer, Integer> relationIds : relationIdPairs) {
+        rels.add(getCanonicalInverseRelation(relationIds));
       }
     }
+    return rels.toArray(new Relation[rels.size()]);
+  }
 
+  /**
+   * Returns the relations of entity1, or null if the entity is not in the
+   * knowledge base. The array and the relations in it are shared between calls
+   * and must not be modified.
+   *
+   * @param entity1
+   * @return
+   */
+  @Override
+  public Relation[] getRelationArray(String entity1) {
+    Integer entity1Id = entityIDs.get(entity1);
+    if (entity1Id == null) {
+      return null;
+    }
+    return entityRelationsCache.get(entity1Id, x -> buildRelationArray(x));
+  }
+
+  private Relation[] buildRelationArray(int entity1Id) {
+    Set<Pair<Integer, Integer>> relationIdPairs =
+        entity2Relations.get(entity1Id);
+    if (relationIdPairs == null) {
+      return new Relation[0];
+    }
+    Relation[] rels = new Relation[relationIdPairs.size()];
+    int i = 0;
+    for (Pair<Integer, Integer> relationIds : relationIdPairs) {
+      rels[i++] = getCanonicalRelation(relationIds);
+    }
     return rels;
   }
 
+  /**
+   * Returns a read-only view of the relations between entity1 and entity2. The
+   * relations are shared between calls; copy a relation before modifying it.
+   */
+  public Set<Relation> getRelations(String entity1, String entity2) {
+    Relation[] rels = getRelationArray(entity1, entity2);
+    return rels == null ? null : new RelationArraySet(rels);
+  }
+
+  /**
+   * Returns a read-only view of the relations of entity1. The relations are
+   * shared between calls; copy a relation before modifying it.
+   */
   public Set<Relation> getRelations(String entity1) {
-    if (!entityIDs.containsKey(entity1)) {
+    Relation[] rels = getRelationArray(entity1);
+    return rels == null ? null : new RelationArraySet(rels);
+  }
+
+  @Override
+  public Set<String> getRelatedEntities(String entity1, Relation relation) {
+    Integer entity1Id = entityIDs.get(entity1);
+    if (entity1Id == null) {
       return null;
     }
-    int entity1Id = entityIDs.get(entity1);
-
-    Set<Relation> rels = Sets.newHashSet();
-    if (entity2Relations.containsKey(entity1Id)) {
-      for (Pair<Integer, Integer> entityPairIds : entity2Relations
-          .get(entity1Id)) {
-        String relationEdge1 =
-            relationIDs.inverse().get(entityPairIds.getLeft());
-        String relationEdge2 =
-            relationIDs.inverse().get(entityPairIds.getRight());
-        rels.add(Relation.of(relationEdge1, relationEdge2));
+    Set<String> entities = Sets.newHashSet();
+    Integer leftId = relationIDs.get(relation.getLeft());
+    Integer rightId = relationIDs.get(relation.getRight());
+    if (leftId == null || rightId == null) {
+      return entities;
+    }
+    if (entityNeighbours == null) {
+      buildNeighbours();
+    }
+    Pair<Integer, Integer> relationIds = Pair.of(leftId, rightId);
+    Pair<Integer, Integer> inverseRelationIds = Pair.of(rightId, leftId);
+    for (int entity2Id : entityNeighbours[entity1Id]) {
+      Set<Pair<Integer, Integer>> relationIdPairs =
+          entityPair2Relations.get(Pair.of(entity1Id, entity2Id));
+      if (relationIdPairs != null && relationIdPairs.contains(relationIds)) {
+        entities.add(entityNames[entity2Id]);
+        continue;
+      }
+      relationIdPairs = entityPair2Relations.get(Pair.of(entity2Id, entity1Id));
+      if (relationIdPairs != null
+          && relationIdPairs.contains(inverseRelationIds)) {
+        entities.add(entityNames[entity2Id]);
       }
     }
-    return rels;
+    return entities;
+  }
+
+  private synchronized void buildNeighbours() {
+    if (entityNeighbours != null) {
+      return;
+    }
+    String[] names = new String[entityCount];
+    for (Entry<String, Integer> entry : entityIDs.entrySet()) {
+      names[entry.getValue()] = entry.getKey();
+    }
+    int[] degrees = new int[entityCount];
+    for (Pair<Integer, Integer> entityPair : entityPair2Relations.keySet()) {
+      degrees[entityPair.getLeft()]++;
+      degrees[entityPair.getRight()]++;
+    }
+    int[][] neighbours = new int[entityCount][];
+    for (int i = 0; i < entityCount; i++) {
+      neighbours[i] = new int[degrees[i]];
+      degrees[i] = 0;
+    }
+    for (Pair<Integer, Integer> entityPair : entityPair2Relations.keySet()) {
+      int entity1Id = entityPair.getLeft();
+      int entity2Id = entityPair.getRight();
+      neighbours[entity1Id][degrees[entity1Id]++] = entity2Id;
+      neighbours[entity2Id][degrees[entity2Id]++] = entity1Id;
+    }
+    entityNames = names;
+    entityNeighbours = neighbours;
   }
 
   public boolean hasRelation(String entity1, String entity2) {
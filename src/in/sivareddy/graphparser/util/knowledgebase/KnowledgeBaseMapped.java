@@ -0,0 +1,178 @@
+package in.sivareddy.graphparser.util.knowledgebase;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Knowledge base that answers queries straight from a memory-mapped
+ * {@link KnowledgeBaseSnapshot}. Facts stay in the mapped file and are looked
+ * up with binary searches over its sorted int arrays, so the heap used does
+ * not grow with the size of the knowledge base. Only the relation edge names
+ * and the relations made of them are decoded once and kept on the heap, since
+ * every relation lookup needs them and there are only as many as the schema
+ * has.
+ *
+ * Answers are the same as those of a {@link KnowledgeBaseCached} built from
+ * the same facts.
+ */
+public class KnowledgeBaseMapped implements LocalKnowledgeBase {
+  private final KnowledgeBaseSnapshot snapshot;
+  private final String[] relationNames;
+  private final Map<String, Integer> relationIds = new HashMap<>();
+  // Relations by left edge id * relation count + right edge id.
+  private final Map<Long, Relation> canonicalRelations =
+      new ConcurrentHashMap<>();
+
+  public KnowledgeBaseMapped(String snapshotFile) throws IOException {
+    snapshot = KnowledgeBaseSnapshot.open(snapshotFile);
+    relationNames = new String[snapshot.getRelationCount()];
+    for (int i = 0; i < relationNames.length; i++) {
+      relationNames[i] = snapshot.getRelationName(i);
+      relationIds.put(relationNames[i], i);
+    }
+    System.err.println("Knowledge Base mapped from " + snapshot);
+  }
+
+  @Override
+  public Set<Relation> getRelations(String entity1, String entity2) {
+    Relation[] rels = getRelationArray(entity1, entity2);
+    return rels == null ? null : new RelationArraySet(rels);
+  }
+
+  @Override
+  public Set<Relation> getRelations(String entity1) {
+    Relation[] rels = getRelationArray(entity1);
+    return rels == null ? null : new RelationArraySet(rels);
+  }
+
+  @Override
+  public Relation[] getRelationArray(String entity1, String entity2) {
+    int entity1Id = snapshot.getEntityId(entity1);
+    int entity2Id = snapshot.getEntityId(entity2);
+    if (entity1Id < 0 || entity2Id < 0) {
+      return null;
+    }
+
+    Set<Relation> rels = Sets.newLinkedHashSet();
+    int[] relations = snapshot.getRelationIds(entity1Id, entity2Id);
+    if (relations != null) {
+      for (int i = 0; i < relations.length; i += 2) {
+        rels.add(getCanonicalRelation(relations[i], relations[i + 1]));
+      }
+    }
+
+    // if inverse entity pair exists
+    relations = snapshot.getRelationIds(entity2Id, entity1Id);
+    if (relations != null) {
+      for (int i = 0; i < relations.length; i += 2) {
+        rels.add(getCanonicalRelation(relations[i + 1], relations[i]));
+      }
+    }
+    return rels.toArray(new Relation[rels.size()]);
+  }
+
+  @Override
+  public Relation[] getRelationArray(String entity1) {
+    int entity1Id = snapshot.getEntityId(entity1);
+    if (entity1Id < 0) {
+      return null;
+    }
+
+    int[] relations = snapshot.getRelationIds(entity1Id);
+    Relation[] rels = new Relation[relations.length / 2];
+    for (int i = 0; i < rels.length; i++) {
+      rels[i] = getCanonicalRelation(relations[2 * i], relations[2 * i + 1]);
+    }
+    return rels;
+  }
+
+  /**
+   * Returns the canonical relation for the given edge ids. Every lookup
+   * returns the same instance for the same relation.
+   */
+  private Relation getCanonicalRelation(int leftId, int rightId) {
+    return canonicalRelations.computeIfAbsent(
+        (long) leftId * relationNames.length + rightId,
+        x -> Relation.of(relationNames[leftId], relationNames[rightId]));
+  }
+
+  @Override
+  public boolean hasRelation(String entity1, String entity2) {
+    int entity1Id = snapshot.getEntityId(entity1);
+    int entity2Id = snapshot.getEntityId(entity2);
+    if (entity1Id < 0 || entity2Id < 0) {
+      return false;
+    }
+    return snapshot.hasPair(entity1Id, entity2Id)
+        || snapshot.hasPair(entity2Id, entity1Id);
+  }
+
+  @Override
+  public Set<String> getTypes(String entity) {
+    int entityId = snapshot.getEntityId(entity);
+    if (entityId < 0) {
+      return null;
+    }
+    int[] typeIds = snapshot.getTypeIds(entityId);
+    if (typeIds == null) {
+      return null;
+    }
+    Set<String> types = Sets.newHashSetWithExpectedSize(typeIds.length);
+    for (int typeId : typeIds) {
+      types.add(snapshot.getTypeName(typeId));
+    }
+    return types;
+  }
+
+  @Override
+  public boolean hasEntity(String entity) {
+    return snapshot.getEntityId(entity) >= 0;
+  }
+
+  @Override
+  public Set<String> getRelatedEntities(String entity1, Relation relation) {
+    int entity1Id = snapshot.getEntityId(entity1);
+    if (entity1Id < 0) {
+      return null;
+    }
+    Set<String> entities = Sets.newHashSet();
+    Integer leftId = relationIds.get(relation.getLeft());
+    Integer rightId = relationIds.get(relation.getRight());
+    if (leftId == null || rightId == null) {
+      return entities;
+    }
+
+    for (int entity2Id : snapshot.getPairedEntityIds(entity1Id)) {
+      if (containsRelation(snapshot.getRelationIds(entity1Id, entity2Id),
+          leftId, rightId)) {
+        entities.add(snapshot.getEntityName(entity2Id));
+      }
+    }
+
+    for (int entity2Id : snapshot.getInversePairedEntityIds(entity1Id)) {
+      if (containsRelation(snapshot.getRelationIds(entity2Id, entity1Id),
+          rightId, leftId)) {
+        entities.add(snapshot.getEntityName(entity2Id));
+      }
+    }
+    return entities;
+  }
+
+  private static boolean containsRelation(int[] relations, int leftId,
+      int rightId) {
+    if (relations == null) {
+      return false;
+    }
+    for (int i = 0; i < relations.length; i += 2) {
+      if (relations[i] == leftId && relations[i + 1] == rightId) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -1,11 +1,15 @@
 package in.sivareddy.graphparser.util.knowledgebase;
 
+import in.sivareddy.graphparser.util.QueryFailedException;
 import in.sivareddy.graphparser.util.RdfGraphTools;
 import in.sivareddy.graphparser.util.Schema;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -13,9 +17,11 @@ import java.util.Set;
 
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -42,8 +48,29 @@ public class KnowledgeBaseOnline implements KnowledgeBase {
   static Map<String, String> fbStandardToRDFStandard = ImmutableMap.of(
       "type.datetime", "xsd:datetime", "type.float", "xsd:decimal",
       "type.int", "xsd:int");
+  // TDB stores all integer literals as xsd:integer.
+  static Map<String, String> fbStandardToTdbStandard = ImmutableMap.of(
+      "type.datetime", "xsd:datetime", "type.float", "xsd:decimal",
+      "type.int", "xsd:integer");
+
+  // Lookups made by concurrent threads within this window are sent together.
+  public static long BATCH_WINDOW_MILLIS = 5;
+  // Keeps VALUES clauses, and hence the query urls, short.
+  static int MAX_RELATIONS_BATCH_SIZE = 16;
+  // Entities have many more relations than entity pairs.
+  static int MAX_ENTITY_RELATIONS_BATCH_SIZE = 4;
+  static int MAX_TYPES_BATCH_SIZE = 64;
+
+  // Patterns of the relation lookup query.
+  static final String MASTER = "master";
+  static final String INVERSE = "inverse";
+  static final String MEDIATOR = "mediator";
+  static final String MEDIATOR_INVERSE_FIRST = "mediator_inv1";
+  static final String MEDIATOR_INVERSE_SECOND = "mediator_inv2";
+  static final String MEDIATOR_INVERSE_BOTH = "mediator_inv12";
 
   private RdfGraphTools endPoint = null;
+  private Map<String, String> datatypes;
   private Schema schema;
 
   LoadingCache<Pair<String, String>, Set<Relation>> entitiesToRelations;
@@ -54,26 +81,43 @@ public class KnowledgeBaseOnline implements KnowledgeBase {
 
   public KnowledgeBaseOnline(String jdbcEndPoint, String httpEndPoint,
       String username, String password, int timeOut, Schema schema) {
+    this(new RdfGraphTools(jdbcEndPoint, httpEndPoint, username, password,
+        timeOut), schema);
+  }
+
+  public KnowledgeBaseOnline(RdfGraphTools endPoint, Schema schema) {
     super();
-    endPoint =
-        new RdfGraphTools(jdbcEndPoint, httpEndPoint, username, password,
-            timeOut);
+    this.endPoint = endPoint;
+    datatypes =
+        endPoint.isLocal() ? fbStandardToTdbStandard : fbStandardToRDFStandard;
 
+    LookupBatcher<Pair<String, String>, Set<Relation>> relationsBatcher =
+        new LookupBatcher<>(x -> getRelationsPrivate(x), BATCH_WINDOW_MILLIS,
+            MAX_RELATIONS_BATCH_SIZE);
     entitiesToRelations =
         Caffeine.newBuilder().maximumSize(100000)
-            .build(x -> getRelationsPrivate(x));
+            .build(new BatchedLoader<>(relationsBatcher));
 
+    LookupBatcher<Pair<String, String>, Boolean> hasRelationBatcher =
+        new LookupBatcher<>(x -> hasRelationPrivate(x), BATCH_WINDOW_MILLIS,
+            MAX_RELATIONS_BATCH_SIZE);
     entitiesToHasRelation =
         Caffeine.newBuilder().maximumSize(100000)
-            .build(x -> hasRelationPrivate(x));
+            .build(new BatchedLoader<>(hasRelationBatcher));
 
+    LookupBatcher<String, Set<Relation>> entityRelationsBatcher =
+        new LookupBatcher<>(x -> getEntityRelationsPrivate(x),
+            BATCH_WINDOW_MILLIS, MAX_ENTITY_RELATIONS_BATCH_SIZE);
     entityToRelations =
         Caffeine.newBuilder().maximumSize(100000)
-            .build(x -> getRelationsPrivate(x));
+            .build(new BatchedLoader<>(entityRelationsBatcher));
 
+    LookupBatcher<String, Set<String>> typesBatcher =
+        new LookupBatcher<>(x -> getTypesPrivate(x), BATCH_WINDOW_MILLIS,
+            MAX_TYPES_BATCH_SIZE);
     entityToTypes =
         Caffeine.newBuilder().maximumSize(100000)
-            .build(x -> getTypesPrivate(x));
+            .build(new BatchedLoader<>(typesBatcher));
 
     this.schema = schema;
   }
@@ -88,314 +132,206 @@ public class KnowledgeBaseOnline implements KnowledgeBase {
     Pair<String, String> key =
         order ? Pair.of(entity1, entity2) : Pair.of(entity2, entity1);
 
-    Set<Relation> relations = entitiesToRelations.get(key);
+    Set<Relation> relations;
+    try {
+      relations = entitiesToRelations.get(key);
+    } catch (QueryFailedException e) {
+      // Nothing is cached, so the pair is looked up again next time.
+      return new HashSet<>();
+    }
     if (order) {
       return relations;
     }
     return getInverseRelations(relations);
   }
 
-  private static Set<Relation> getInverseRelations(Set<Relation> relations) {
-    Set<Relation> inverseRelations = Sets.newHashSet();
-    relations.forEach(x -> inverseRelations.add(x.inverse()));
-    return inverseRelations;
-  }
-
-  private Set<Relation> getRelationsPrivate(Pair<String, String> key) {
-    Set<Relation> relations = new HashSet<>();
-
-    if (!standardTypes.contains(key.getRight())) {
-      // Master relations.
-      String query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel WHERE { fb:%s ?rel fb:%s . MINUS{?rel fb:type.property.master_property ?master .}}",
-                  key.getLeft(), key.getRight());
-      List<Map<String, String>> results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String relation = querySolution.get("rel").toString();
-        relation = relation.substring(relation.lastIndexOf("/") + 1);
-        if (schema.isDomainRelationAndMaster(relation)
-            && !schema.hasMediatorArgument(relation)) {
-          relations.add(new Relation(relation + ".1", relation + ".2"));
-        }
-      }
-
-      // Inverse relations.
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel WHERE { fb:%s ?rel fb:%s . MINUS { ?rel fb:type.property.master_property ?master . }}",
-                  key.getRight(), key.getLeft());
-      results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String relation = querySolution.get("rel").toString();
-        relation = relation.substring(relation.lastIndexOf("/") + 1);
-        if (schema.isDomainRelationAndMaster(relation)
-            && !schema.hasMediatorArgument(relation)) {
-          relations.add(new Relation(relation + ".2", relation + ".1"));
-        }
-      }
-
-      // Mediator relations.
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE { ?m ?rel1 fb:%s . ?m ?rel2 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . }",
-                  key.getLeft(), key.getRight(), TYPE_KEY);
-      results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String rel1 = querySolution.get("rel1").toString();
-        rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-        String rel2 = querySolution.get("rel2").toString();
-        rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
-        if (schema.isDomainRelationAndMaster(rel1)
-            && schema.isDomainRelationAndMaster(rel2)
-            && schema.firstArgIsMediator(rel1)
-            && schema.firstArgIsMediator(rel2)) {
-          relations.add(new Relation(rel1, rel2));
-        }
-      }
-
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE { fb:%s ?rel1 ?m . ?m ?rel2 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . }",
-                  key.getLeft(), key.getRight(), TYPE_KEY);
-      results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String rel1 = querySolution.get("rel1").toString();
-        rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-        String rel2 = querySolution.get("rel2").toString();
-        rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
-        String rel1_inv = schema.getRelation2Inverse(rel1);
-        if (rel1_inv != null && schema.isDomainRelationAndMaster(rel2)
-            && schema.firstArgIsMediator(rel1_inv)
-            && schema.firstArgIsMediator(rel2)) {
-          relations.add(new Relation(rel1_inv, rel2));
+  /**
+   * Fetches the relations between all the pairs of the given entities, with
+   * as few queries as possible, so that later calls to
+   * {@link #getRelations(String, String)} are answered from the cache.
+   *
+   * @param entities entities of a sentence
+   */
+  public void prefetchRelations(Collection<String> entities) {
+    List<Pair<String, String>> keys = new ArrayList<>();
+    for (String entity1 : entities) {
+      for (String entity2 : entities) {
+        if (inOrder(entity1, entity2) && !entity1.equals(entity2)
+            && !standardTypes.contains(entity1)) {
+          keys.add(Pair.of(entity1, entity2));
         }
       }
-
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE {fb:%s ?rel2 ?m . ?m ?rel1 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . }",
-                  key.getRight(), key.getLeft(), TYPE_KEY);
-      results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String rel1 = querySolution.get("rel1").toString();
-        rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-        String rel2 = querySolution.get("rel2").toString();
-        rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
-        String rel2_inv = schema.getRelation2Inverse(rel2);
-        if (rel2_inv != null && schema.isDomainRelationAndMaster(rel1)
-            && schema.firstArgIsMediator(rel1)
-            && schema.firstArgIsMediator(rel2_inv)) {
-          relations.add(new Relation(rel1, rel2_inv));
-        }
-      }
-
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE { fb:%s ?rel1 ?m . fb:%s ?rel2 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . }",
-                  key.getLeft(), key.getRight(), TYPE_KEY);
-      results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String rel1 = querySolution.get("rel1").toString();
-        rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-        String rel2 = querySolution.get("rel2").toString();
-        rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
-        String rel1_inv = schema.getRelation2Inverse(rel1);
-        String rel2_inv = schema.getRelation2Inverse(rel2);
-        if (rel1_inv != null && rel2_inv != null
-            && schema.firstArgIsMediator(rel1_inv)
-            && schema.firstArgIsMediator(rel2_inv)) {
-          relations.add(new Relation(rel1_inv, rel2_inv));
-        }
-      }
-    } else if (standardTypes.contains(key.getRight())) {
-      // Master relation.
-      String query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel WHERE { fb:%s ?rel ?e2 . MINUS{?rel fb:type.property.master_property ?master .} FILTER(datatype(?e2) = %s) .}",
-                  key.getLeft(), fbStandardToRDFStandard.get(key.getRight()));
-      List<Map<String, String>> results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String relation = querySolution.get("rel").toString();
-        relation = relation.substring(relation.lastIndexOf("/") + 1);
-        if (schema.isDomainRelationAndMaster(relation)
-            && !schema.hasMediatorArgument(relation)) {
-          relations.add(new Relation(relation + ".1", relation + ".2"));
-        }
-      }
-
-      // Mediator relations.
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE { ?m ?rel1 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?e2 . FILTER(datatype(?e2) = %s) . }",
-                  key.getLeft(), TYPE_KEY,
-                  fbStandardToRDFStandard.get(key.getRight()));
-      results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String rel1 = querySolution.get("rel1").toString();
-        rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-        String rel2 = querySolution.get("rel2").toString();
-        rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
-        if (schema.isDomainRelationAndMaster(rel1)
-            && schema.isDomainRelationAndMaster(rel2)
-            && schema.firstArgIsMediator(rel1)
-            && schema.firstArgIsMediator(rel2)) {
-          relations.add(new Relation(rel1, rel2));
-        }
-      }
-
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE { fb:%s ?rel1 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?e2 . FILTER(datatype(?e2) = %s) . }",
-                  key.getLeft(), TYPE_KEY,
-                  fbStandardToRDFStandard.get(key.getRight()));
-      results = endPoint.runQueryHttpSolutions(query);
-      for (Map<String, String> querySolution : results) {
-        String rel1 = querySolution.get("rel1").toString();
-        rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-        String rel2 = querySolution.get("rel2").toString();
-        rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
-        String rel1_inv = schema.getRelation2Inverse(rel1);
-        if (rel1_inv != null && schema.isDomainRelationAndMaster(rel2)
-            && schema.firstArgIsMediator(rel1_inv)
-            && schema.firstArgIsMediator(rel2)) {
-          relations.add(new Relation(rel1_inv, rel2));
-        }
+    }
+    for (List<Pair<String, String>> batch : Lists.partition(keys,
+        MAX_RELATIONS_BATCH_SIZE)) {
+      try {
+        entitiesToRelations.getAll(batch);
+      } catch (QueryFailedException e) {
+        // Looked up again when asked for.
       }
     }
-    return relations;
   }
 
-  private static boolean inOrder(String arg0, String arg1) {
-    if (standardTypes.contains(arg0)) {
-      return false;
-    } else if (standardTypes.contains(arg1)) {
-      return true;
+  /**
+   * Fetches the types of all the given entities, with as few queries as
+   * possible.
+   *
+   * @param entities entities of a sentence
+   */
+  public void prefetchTypes(Collection<String> entities) {
+    for (List<String> batch : Lists.partition(new ArrayList<>(entities),
+        MAX_TYPES_BATCH_SIZE)) {
+      try {
+        entityToTypes.getAll(batch);
+      } catch (QueryFailedException e) {
+        // Looked up again when asked for.
+      }
     }
-    return arg0.compareTo(arg1) < 0;
   }
 
-  @Override
-  public Set<Relation> getRelations(String entity) {
-    if (standardTypes.contains(entity)) {
-      return new HashSet<>();
-    }
-    Set<Relation> relations = entityToRelations.get(entity);
-    return relations;
+  private static Set<Relation> getInverseRelations(Set<Relation> relations) {
+    Set<Relation> inverseRelations = Sets.newHashSet();
+    relations.forEach(x -> inverseRelations.add(x.inverse()));
+    return inverseRelations;
   }
 
-  private Set<Relation> getRelationsPrivate(String entity) {
-    Set<Relation> relations = new HashSet<>();
+  /**
+   * Looks up the relations between several entity pairs with a single query.
+   * Each pair should be in the order given by {@link #inOrder}. Pairs whose
+   * second entity is a standard type are matched against literals of that
+   * type.
+   *
+   * @param keys entity pairs to look up
+   * @return relations between each of the entity pairs
+   */
+  private Map<Pair<String, String>, Set<Relation>> getRelationsPrivate(
+      List<Pair<String, String>> keys) {
+    Map<Pair<String, String>, Set<Relation>> pairRelations = new HashMap<>();
+    for (Pair<String, String> key : keys) {
+      pairRelations.put(key, new HashSet<>());
+    }
 
-    // Master relations.
     String query =
         String
             .format(
-                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel WHERE { fb:%s ?rel ?e2 . MINUS{?rel fb:type.property.master_property ?master .}}",
-                entity);
+                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> SELECT DISTINCT ?e1 ?e2 ?p ?rel1 ?rel2 WHERE { %s }",
+                String.join(" UNION ", getPairBranches(keys)));
     List<Map<String, String>> results = endPoint.runQueryHttpSolutions(query);
     for (Map<String, String> querySolution : results) {
-      String relation = querySolution.get("rel").toString();
-      relation = relation.substring(relation.lastIndexOf("/") + 1);
-      if (schema.isDomainRelationAndMaster(relation)
-          && !schema.hasMediatorArgument(relation)) {
-        relations.add(new Relation(relation + ".1", relation + ".2"));
+      Set<Relation> relations =
+          pairRelations.get(Pair.of(stripUri(querySolution.get("e1")),
+              stripUri(querySolution.get("e2"))));
+      if (relations == null) {
+        continue;
       }
+      String rel1 = stripUri(querySolution.get("rel1"));
+      String rel2 =
+          querySolution.containsKey("rel2") ? stripUri(querySolution
+              .get("rel2")) : null;
+      addRelation(relations, querySolution.get("p"), rel1, rel2);
     }
+    return pairRelations;
+  }
 
-    // Inverse relations.
-    query =
-        String
-            .format(
-                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel WHERE { ?e2 ?rel fb:%s . MINUS { ?rel fb:type.property.master_property ?master . }}",
-                entity);
-    results = endPoint.runQueryHttpSolutions(query);
-    for (Map<String, String> querySolution : results) {
-      String relation = querySolution.get("rel").toString();
-      relation = relation.substring(relation.lastIndexOf("/") + 1);
-      if (schema.isDomainRelationAndMaster(relation)
-          && !schema.hasMediatorArgument(relation)) {
-        relations.add(new Relation(relation + ".2", relation + ".1"));
+  /**
+   * Returns the UNION branches matching the relations between the entity
+   * pairs, one per pattern. Each branch binds ?p to the pattern it matched,
+   * which decides how its relations are read.
+   */
+  private List<String> getPairBranches(List<Pair<String, String>> keys) {
+    StringBuilder entityValues = new StringBuilder();
+    StringBuilder literalValues = new StringBuilder();
+    for (Pair<String, String> key : keys) {
+      if (!standardTypes.contains(key.getRight())) {
+        entityValues.append(String.format(" (fb:%s fb:%s)", key.getLeft(),
+            key.getRight()));
+      } else {
+        literalValues.append(String.format(" (fb:%s fb:%s %s)", key.getLeft(),
+            key.getRight(), datatypes.get(key.getRight())));
       }
     }
 
-    // Mediator relations.
-    query =
-        String
-            .format(
-                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE { ?m ?rel1 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?e2 . FILTER (?e2 != fb:%s) .}",
-                entity, TYPE_KEY, entity);
-    results = endPoint.runQueryHttpSolutions(query);
-    for (Map<String, String> querySolution : results) {
-      String rel1 = querySolution.get("rel1").toString();
-      rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-      String rel2 = querySolution.get("rel2").toString();
-      rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
+    List<String> branches = new ArrayList<>();
+    if (entityValues.length() > 0) {
+      String values = String.format("VALUES (?e1 ?e2) {%s }", entityValues);
+      // Master relations.
+      branches.add(String.format(
+          "{ %s ?e1 ?rel1 ?e2 . MINUS { ?rel1 fb:type.property.master_property ?master . } BIND(\"%s\" AS ?p) }",
+          values, MASTER));
+      // Inverse relations.
+      branches.add(String.format(
+          "{ %s ?e2 ?rel1 ?e1 . MINUS { ?rel1 fb:type.property.master_property ?master . } BIND(\"%s\" AS ?p) }",
+          values, INVERSE));
+      // Mediator relations.
+      branches.add(String.format(
+          "{ %s ?m ?rel1 ?e1 . ?m ?rel2 ?e2 . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . BIND(\"%s\" AS ?p) }",
+          values, TYPE_KEY, MEDIATOR));
+      branches.add(String.format(
+          "{ %s ?e1 ?rel1 ?m . ?m ?rel2 ?e2 . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . BIND(\"%s\" AS ?p) }",
+          values, TYPE_KEY, MEDIATOR_INVERSE_FIRST));
+      branches.add(String.format(
+          "{ %s ?e2 ?rel2 ?m . ?m ?rel1 ?e1 . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . BIND(\"%s\" AS ?p) }",
+          values, TYPE_KEY, MEDIATOR_INVERSE_SECOND));
+      branches.add(String.format(
+          "{ %s ?e1 ?rel1 ?m . ?e2 ?rel2 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . BIND(\"%s\" AS ?p) }",
+          values, TYPE_KEY, MEDIATOR_INVERSE_BOTH));
+    }
+    if (literalValues.length() > 0) {
+      String values =
+          String.format("VALUES (?e1 ?e2 ?datatype) {%s }", literalValues);
+      // Master relation.
+      branches.add(String.format(
+          "{ %s ?e1 ?rel1 ?v . MINUS { ?rel1 fb:type.property.master_property ?master . } FILTER(datatype(?v) = ?datatype) . BIND(\"%s\" AS ?p) }",
+          values, MASTER));
+      // Mediator relations.
+      branches.add(String.format(
+          "{ %s ?m ?rel1 ?e1 . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?v . FILTER(datatype(?v) = ?datatype) . BIND(\"%s\" AS ?p) }",
+          values, TYPE_KEY, MEDIATOR));
+      branches.add(String.format(
+          "{ %s ?e1 ?rel1 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?v . FILTER(datatype(?v) = ?datatype) . BIND(\"%s\" AS ?p) }",
+          values, TYPE_KEY, MEDIATOR_INVERSE_FIRST));
+    }
+
+    return branches;
+  }
+
+  /**
+   * Adds the relation read from a solution of the pattern to relations, if
+   * the schema allows it.
+   */
+  void addRelation(Set<Relation> relations, String pattern,
+      String rel1, String rel2) {
+    if (pattern.equals(MASTER)) {
+      if (schema.isDomainRelationAndMaster(rel1)
+          && !schema.hasMediatorArgument(rel1)) {
+        relations.add(new Relation(rel1 + ".1", rel1 + ".2"));
+      }
+    } else if (pattern.equals(INVERSE)) {
+      if (schema.isDomainRelationAndMaster(rel1)
+          && !schema.hasMediatorArgument(rel1)) {
+        relations.add(new Relation(rel1 + ".2", rel1 + ".1"));
+      }
+    } else if (pattern.equals(MEDIATOR)) {
       if (schema.isDomainRelationAndMaster(rel1)
           && schema.isDomainRelationAndMaster(rel2)
           && schema.firstArgIsMediator(rel1) && schema.firstArgIsMediator(rel2)) {
         relations.add(new Relation(rel1, rel2));
       }
-    }
-
-    query =
-        String
-            .format(
-                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE { fb:%s ?rel1 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?e2 . FILTER (?e2 != fb:%s) .}",
-                entity, TYPE_KEY, entity);
-    results = endPoint.runQueryHttpSolutions(query);
-    for (Map<String, String> querySolution : results) {
-      String rel1 = querySolution.get("rel1").toString();
-      rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-      String rel2 = querySolution.get("rel2").toString();
-      rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
+    } else if (pattern.equals(MEDIATOR_INVERSE_FIRST)) {
       String rel1_inv = schema.getRelation2Inverse(rel1);
       if (rel1_inv != null && schema.isDomainRelationAndMaster(rel2)
           && schema.firstArgIsMediator(rel1_inv)
           && schema.firstArgIsMediator(rel2)) {
         relations.add(new Relation(rel1_inv, rel2));
       }
-    }
-
-    query =
-        String
-            .format(
-                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE {?m ?rel1 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?e2 ?rel2 ?m . FILTER (?e2 != fb:%s) .}",
-                entity, TYPE_KEY, entity);
-    results = endPoint.runQueryHttpSolutions(query);
-    for (Map<String, String> querySolution : results) {
-      String rel1 = querySolution.get("rel1").toString();
-      rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-      String rel2 = querySolution.get("rel2").toString();
-      rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
+    } else if (pattern.equals(MEDIATOR_INVERSE_SECOND)) {
       String rel2_inv = schema.getRelation2Inverse(rel2);
       if (rel2_inv != null && schema.isDomainRelationAndMaster(rel1)
           && schema.firstArgIsMediator(rel1)
           && schema.firstArgIsMediator(rel2_inv)) {
         relations.add(new Relation(rel1, rel2_inv));
       }
-    }
-
-    query =
-        String
-            .format(
-                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?rel1 ?rel2 WHERE { fb:%s ?rel1 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?e2 ?rel2 ?m . FILTER (?e2 != fb:%s) .}",
-                entity, TYPE_KEY, entity);
-    results = endPoint.runQueryHttpSolutions(query);
-    for (Map<String, String> querySolution : results) {
-      String rel1 = querySolution.get("rel1").toString();
-      rel1 = rel1.substring(rel1.lastIndexOf("/") + 1);
-      String rel2 = querySolution.get("rel2").toString();
-      rel2 = rel2.substring(rel2.lastIndexOf("/") + 1);
+    } else if (pattern.equals(MEDIATOR_INVERSE_BOTH)) {
       String rel1_inv = schema.getRelation2Inverse(rel1);
       String rel2_inv = schema.getRelation2Inverse(rel2);
       if (rel1_inv != null && rel2_inv != null
@@ -404,7 +340,115 @@ public class KnowledgeBaseOnline implements KnowledgeBase {
         relations.add(new Relation(rel1_inv, rel2_inv));
       }
     }
-    return relations;
+  }
+
+  private static String stripUri(String uri) {
+    return uri.substring(uri.lastIndexOf("/") + 1);
+  }
+
+  /**
+   * Loads single keys through a {@link LookupBatcher}, so that concurrent
+   * cache misses are loaded together, and several keys with one bulk query.
+   */
+  private static class BatchedLoader<K, V> implements CacheLoader<K, V> {
+    private final LookupBatcher<K, V> batcher;
+
+    BatchedLoader(LookupBatcher<K, V> batcher) {
+      this.batcher = batcher;
+    }
+
+    @Override
+    public V load(K key) {
+      return batcher.get(key);
+    }
+
+    @Override
+    public Map<K, V> loadAll(Iterable<? extends K> keys) {
+      return batcher.getAll(keys);
+    }
+  }
+
+  private static boolean inOrder(String arg0, String arg1) {
+    if (standardTypes.contains(arg0)) {
+      return false;
+    } else if (standardTypes.contains(arg1)) {
+      return true;
+    }
+    return arg0.compareTo(arg1) < 0;
+  }
+
+  @Override
+  public Set<Relation> getRelations(String entity) {
+    if (standardTypes.contains(entity)) {
+      return new HashSet<>();
+    }
+    try {
+      return entityToRelations.get(entity);
+    } catch (QueryFailedException e) {
+      return new HashSet<>();
+    }
+  }
+
+  /**
+   * Looks up the relations of several entities with a single query. Each
+   * branch of the query binds ?p to the pattern it matched, as in
+   * {@link #getRelationsPrivate(List)}.
+   *
+   * @param entities entities to look up
+   * @return relations of each of the entities
+   */
+  private Map<String, Set<Relation>> getEntityRelationsPrivate(
+      List<String> entities) {
+    Map<String, Set<Relation>> entityRelations = new HashMap<>();
+    StringBuilder entityValues = new StringBuilder();
+    for (String entity : entities) {
+      entityRelations.put(entity, new HashSet<>());
+      entityValues.append(String.format(" fb:%s", entity));
+    }
+
+    String values = String.format("VALUES ?e1 {%s }", entityValues);
+    List<String> branches = new ArrayList<>();
+    // Master relations.
+    branches.add(String.format(
+        "{ %s ?e1 ?rel1 ?e2 . MINUS { ?rel1 fb:type.property.master_property ?master . } BIND(\"%s\" AS ?p) }",
+        values, MASTER));
+    // Inverse relations.
+    branches.add(String.format(
+        "{ %s ?e2 ?rel1 ?e1 . MINUS { ?rel1 fb:type.property.master_property ?master . } BIND(\"%s\" AS ?p) }",
+        values, INVERSE));
+    // Mediator relations.
+    branches.add(String.format(
+        "{ %s ?m ?rel1 ?e1 . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?e2 . FILTER (?e2 != ?e1) . BIND(\"%s\" AS ?p) }",
+        values, TYPE_KEY, MEDIATOR));
+    branches.add(String.format(
+        "{ %s ?e1 ?rel1 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?e2 . FILTER (?e2 != ?e1) . BIND(\"%s\" AS ?p) }",
+        values, TYPE_KEY, MEDIATOR_INVERSE_FIRST));
+    branches.add(String.format(
+        "{ %s ?m ?rel1 ?e1 . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?e2 ?rel2 ?m . FILTER (?e2 != ?e1) . BIND(\"%s\" AS ?p) }",
+        values, TYPE_KEY, MEDIATOR_INVERSE_SECOND));
+    branches.add(String.format(
+        "{ %s ?e1 ?rel1 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?e2 ?rel2 ?m . FILTER (?e2 != ?e1) . BIND(\"%s\" AS ?p) }",
+        values, TYPE_KEY, MEDIATOR_INVERSE_BOTH));
+
+    String query =
+        String
+            .format(
+                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?e1 ?p ?rel1 ?rel2 WHERE { %s }",
+                String.join(" UNION ", branches));
+    List<Map<String, String>> results = endPoint.runQueryHttpSolutions(query);
+    for (Map<String, String> querySolution : results) {
+      Set<Relation> relations =
+          entityRelations.get(stripUri(querySolution.get("e1")));
+      if (relations == null) {
+        continue;
+      }
+      String rel1 = stripUri(querySolution.get("rel1"));
+      String rel2 =
+          querySolution.containsKey("rel2") ? stripUri(querySolution
+              .get("rel2")) : null;
+      addRelation(relations, querySolution.get("p"), rel1, rel2);
+    }
+    return entityRelations;
   }
 
   @Override
@@ -417,121 +461,84 @@ public class KnowledgeBaseOnline implements KnowledgeBase {
     Pair<String, String> key =
         order ? Pair.of(entity1, entity2) : Pair.of(entity2, entity1);
 
-    return entitiesToHasRelation.get(key);
+    try {
+      return entitiesToHasRelation.get(key);
+    } catch (QueryFailedException e) {
+      return false;
+    }
   }
 
-  public boolean hasRelationPrivate(Pair<String, String> key) {
-    if (!standardTypes.contains(key.getRight())) {
-      // Master relations.
-      String query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK { fb:%s ?rel fb:%s . MINUS{?rel fb:type.property.master_property ?master .}}",
-                  key.getLeft(), key.getRight());
-      if (endPoint.runHttpAsk(query))
-        return true;
-
-      // Inverse relations.
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK { fb:%s ?rel fb:%s . MINUS { ?rel fb:type.property.master_property ?master . }}",
-                  key.getRight(), key.getLeft());
-      if (endPoint.runHttpAsk(query))
-        return true;
-
-
-      // Mediator relations.
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK { ?m ?rel1 fb:%s . ?m ?rel2 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . }",
-                  key.getLeft(), key.getRight(), TYPE_KEY);
-      if (endPoint.runHttpAsk(query))
-        return true;
-
-
-
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK { fb:%s ?rel1 ?m . ?m ?rel2 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . }",
-                  key.getLeft(), key.getRight(), TYPE_KEY);
-      if (endPoint.runHttpAsk(query))
-        return true;
-
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK {fb:%s ?rel2 ?m . ?m ?rel1 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . }",
-                  key.getRight(), key.getLeft(), TYPE_KEY);
-      if (endPoint.runHttpAsk(query))
-        return true;
-
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK { fb:%s ?rel1 ?m . fb:%s ?rel2 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . }",
-                  key.getLeft(), key.getRight(), TYPE_KEY);
-      if (endPoint.runHttpAsk(query))
-        return true;
-    } else if (standardTypes.contains(key.getRight())) {
-      // Master relation.
-      String query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK { fb:%s ?rel ?e2 . MINUS{?rel fb:type.property.master_property ?master .} FILTER(datatype(?e2) = %s) .}",
-                  key.getLeft(), fbStandardToRDFStandard.get(key.getRight()));
-      if (endPoint.runHttpAsk(query))
-        return true;
+  /**
+   * Finds out which of the entity pairs are related with a single query,
+   * matching the patterns of {@link #getRelationsPrivate(List)} whatever the
+   * relations are.
+   *
+   * @param keys entity pairs to look up
+   * @return whether each of the entity pairs is related
+   */
+  private Map<Pair<String, String>, Boolean> hasRelationPrivate(
+      List<Pair<String, String>> keys) {
+    Map<Pair<String, String>, Boolean> pairHasRelation = new HashMap<>();
+    for (Pair<String, String> key : keys) {
+      pairHasRelation.put(key, false);
+    }
 
-      // Mediator relations.
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK { ?m ?rel1 fb:%s . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?e2 . FILTER(datatype(?e2) = %s) . }",
-                  key.getLeft(), TYPE_KEY,
-                  fbStandardToRDFStandard.get(key.getRight()));
-      if (endPoint.runHttpAsk(query))
-        return true;
-
-      query =
-          String
-              .format(
-                  "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> ASK { fb:%s ?rel1 ?m . ?m %s ?z . ?z fb:freebase.type_hints.mediator true . ?m ?rel2 ?e2 . FILTER(datatype(?e2) = %s) . }",
-                  key.getLeft(), TYPE_KEY,
-                  fbStandardToRDFStandard.get(key.getRight()));
-      if (endPoint.runHttpAsk(query))
-        return true;
+    String query =
+        String
+            .format(
+                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> SELECT DISTINCT ?e1 ?e2 WHERE { %s }",
+                String.join(" UNION ", getPairBranches(keys)));
+    List<Map<String, String>> results = endPoint.runQueryHttpSolutions(query);
+    for (Map<String, String> querySolution : results) {
+      Pair<String, String> key =
+          Pair.of(stripUri(querySolution.get("e1")),
+              stripUri(querySolution.get("e2")));
+      if (pairHasRelation.containsKey(key)) {
+        pairHasRelation.put(key, true);
+      }
     }
-    return false;
+    return pairHasRelation;
   }
 
-
   @Override
   public Set<String> getTypes(String entity) {
-    return entityToTypes.get(entity);
+    try {
+      return entityToTypes.get(entity);
+    } catch (QueryFailedException e) {
+      return new HashSet<>();
+    }
   }
 
-  private Set<String> getTypesPrivate(String entity) {
-    Set<String> types = new HashSet<>();
+  /**
+   * Looks up the types of several entities with a single query.
+   *
+   * @param entities entities to look up
+   * @return types of each of the entities
+   */
+  private Map<String, Set<String>> getTypesPrivate(List<String> entities) {
+    Map<String, Set<String>> entityTypes = new HashMap<>();
+    StringBuilder values = new StringBuilder();
+    for (String entity : entities) {
+      entityTypes.put(entity, new HashSet<>());
+      values.append(String.format(" fb:%s", entity));
+    }
 
     String query =
         String
             .format(
-                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?type WHERE { fb:%s %s ?type . }",
-                entity, TYPE_KEY);
+                "PREFIX fb: <http://rdf.freebase.com/ns/> PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> SELECT DISTINCT ?e ?type WHERE { VALUES ?e {%s } ?e %s ?type . }",
+                values, TYPE_KEY);
     List<Map<String, String>> results = endPoint.runQueryHttpSolutions(query);
     for (Map<String, String> querySolution : results) {
-      String type = querySolution.get("type").toString();
-      type = type.substring(type.lastIndexOf("/") + 1);
-      if (schema.isMainType(type)) {
+      Set<String> types = entityTypes.get(stripUri(querySolution.get("e")));
+      String type = stripUri(querySolution.get("type"));
+      if (types != null && schema.isMainType(type)) {
         types.add(type);
       }
     }
 
     // TODO(sivareddyg) Relations that are types.
-    return types;
+    return entityTypes;
   }
 
   @Override
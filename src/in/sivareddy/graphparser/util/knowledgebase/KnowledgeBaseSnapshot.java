@@ -0,0 +1,497 @@
+package in.sivareddy.graphparser.util.knowledgebase;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Read-only binary snapshot of a knowledge base. Entities, relation edges and
+ * types are identified by dense integer ids, and all the facts are stored in
+ * int arrays in compressed sparse row (CSR) form:
+ *
+ * <ul>
+ * <li>entity -> types, with a bit set marking the entities that have a types
+ * entry at all,</li>
+ * <li>entity -> relations, each relation being a pair of relation edge ids,</li>
+ * <li>entity -> paired entities -> relations between the pair,</li>
+ * <li>entity -> entities paired with it in the inverse direction, so that
+ * joins over related entities need no index built on the heap.</li>
+ * </ul>
+ *
+ * Entity names are sorted by their UTF-8 bytes, so the id of an entity is
+ * found by binary search over the names. The file is memory-mapped, so opening
+ * a snapshot costs no parsing and no heap proportional to its size, and
+ * processes that open the same snapshot share the pages of the file.
+ *
+ * Layout (big-endian): magic, version, section count, the offset and length in
+ * bytes of each section, and then the sections, each aligned to 8 bytes. A
+ * single section must be smaller than 2GB.
+ *
+ * Snapshots are written by {@link KnowledgeBaseCached#writeSnapshot(String)}.
+ */
+public final class KnowledgeBaseSnapshot {
+  public static final String FILE_SUFFIX = ".kbsnapshot";
+
+  private static final int MAGIC = 0x47504b42; // "GPKB"
+  private static final int VERSION = 2;
+
+  private static final int RELATION_NAME_OFFSETS = 0;
+  private static final int RELATION_NAMES = 1;
+  private static final int TYPE_NAME_OFFSETS = 2;
+  private static final int TYPE_NAMES = 3;
+  private static final int ENTITY_NAME_OFFSETS = 4;
+  private static final int ENTITY_NAMES = 5;
+  private static final int ENTITY_TYPE_OFFSETS = 6;
+  private static final int ENTITY_TYPES = 7;
+  private static final int ENTITY_RELATION_OFFSETS = 8;
+  private static final int ENTITY_RELATIONS = 9;
+  private static final int PAIR_OFFSETS = 10;
+  private static final int PAIR_ENTITIES = 11;
+  private static final int PAIR_RELATION_OFFSETS = 12;
+  private static final int PAIR_RELATIONS = 13;
+  private static final int ENTITY_HAS_TYPES = 14;
+  private static final int INVERSE_PAIR_OFFSETS = 15;
+  private static final int INVERSE_PAIR_ENTITIES = 16;
+  private static final int SECTION_COUNT = 17;
+
+  private static final int[] EMPTY = new int[0];
+
+  private final IntBuffer relationNameOffsets;
+  private final ByteBuffer relationNames;
+  private final IntBuffer typeNameOffsets;
+  private final ByteBuffer typeNames;
+  private final IntBuffer entityNameOffsets;
+  private final ByteBuffer entityNames;
+  private final IntBuffer entityTypeOffsets;
+  private final IntBuffer entityTypes;
+  private final IntBuffer entityRelationOffsets;
+  private final IntBuffer entityRelations;
+  private final IntBuffer pairOffsets;
+  private final IntBuffer pairEntities;
+  private final IntBuffer pairRelationOffsets;
+  private final IntBuffer pairRelations;
+  private final IntBuffer entityHasTypes;
+  private final IntBuffer inversePairOffsets;
+  private final IntBuffer inversePairEntities;
+
+  private KnowledgeBaseSnapshot(MappedByteBuffer[] sections) {
+    relationNameOffsets = sections[RELATION_NAME_OFFSETS].asIntBuffer();
+    relationNames = sections[RELATION_NAMES];
+    typeNameOffsets = sections[TYPE_NAME_OFFSETS].asIntBuffer();
+    typeNames = sections[TYPE_NAMES];
+    entityNameOffsets = sections[ENTITY_NAME_OFFSETS].asIntBuffer();
+    entityNames = sections[ENTITY_NAMES];
+    entityTypeOffsets = sections[ENTITY_TYPE_OFFSETS].asIntBuffer();
+    entityTypes = sections[ENTITY_TYPES].asIntBuffer();
+    entityRelationOffsets = sections[ENTITY_RELATION_OFFSETS].asIntBuffer();
+    entityRelations = sections[ENTITY_RELATIONS].asIntBuffer();
+    pairOffsets = sections[PAIR_OFFSETS].asIntBuffer();
+    pairEntities = sections[PAIR_ENTITIES].asIntBuffer();
+    pairRelationOffsets = sections[PAIR_RELATION_OFFSETS].asIntBuffer();
+    pairRelations = sections[PAIR_RELATIONS].asIntBuffer();
+    entityHasTypes = sections[ENTITY_HAS_TYPES].asIntBuffer();
+    inversePairOffsets = sections[INVERSE_PAIR_OFFSETS].asIntBuffer();
+    inversePairEntities = sections[INVERSE_PAIR_ENTITIES].asIntBuffer();
+  }
+
+  /**
+   * Memory-maps the snapshot stored in the given file.
+   *
+   * @param snapshotFile
+   * @return
+   * @throws IOException
+   */
+  public static KnowledgeBaseSnapshot open(String snapshotFile)
+      throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+        FileChannel channel = file.getChannel()) {
+      if (file.readInt() != MAGIC) {
+        throw new IOException(snapshotFile
+            + " is not a knowledge base snapshot");
+      }
+      int version = file.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported knowledge base snapshot version "
+            + version + " in " + snapshotFile
+            + ", create it again with RunCreateKnowledgeBaseSnapshot");
+      }
+      int sectionCount = file.readInt();
+      if (sectionCount != SECTION_COUNT) {
+        throw new IOException("Corrupt knowledge base snapshot "
+            + snapshotFile);
+      }
+      MappedByteBuffer[] sections = new MappedByteBuffer[SECTION_COUNT];
+      for (int i = 0; i < SECTION_COUNT; i++) {
+        long offset = file.readLong();
+        long length = file.readLong();
+        if (length > Integer.MAX_VALUE) {
+          throw new IOException("Section " + i + " of " + snapshotFile
+              + " is larger than 2GB");
+        }
+        // The mapping stays valid after the channel is closed.
+        sections[i] =
+            channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+      }
+      return new KnowledgeBaseSnapshot(sections);
+    }
+  }
+
+  public int getRelationCount() {
+    return relationNameOffsets.limit() - 1;
+  }
+
+  public String getRelationName(int relationId) {
+    return getName(relationNameOffsets, relationNames, relationId);
+  }
+
+  public int getTypeCount() {
+    return typeNameOffsets.limit() - 1;
+  }
+
+  public String getTypeName(int typeId) {
+    return getName(typeNameOffsets, typeNames, typeId);
+  }
+
+  public int getEntityCount() {
+    return entityNameOffsets.limit() - 1;
+  }
+
+  public String getEntityName(int entityId) {
+    return getName(entityNameOffsets, entityNames, entityId);
+  }
+
+  /**
+   * Returns the id of the entity, or -1 if the entity is not in the knowledge
+   * base.
+   *
+   * @param entity
+   * @return
+   */
+  public int getEntityId(String entity) {
+    byte[] key = entity.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = getEntityCount() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int compare = compareName(entityNameOffsets, entityNames, mid, key);
+      if (compare < 0) {
+        low = mid + 1;
+      } else if (compare > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the sorted type ids of the entity, or null if the entity has no
+   * types entry.
+   *
+   * @param entityId
+   * @return
+   */
+  public int[] getTypeIds(int entityId) {
+    if ((entityHasTypes.get(entityId >>> 5) & (1 << (entityId & 31))) == 0) {
+      return null;
+    }
+    return getRange(entityTypes, entityTypeOffsets.get(entityId),
+        entityTypeOffsets.get(entityId + 1));
+  }
+
+  /**
+   * Returns the relations of the entity as consecutive (left edge id, right
+   * edge id) pairs.
+   *
+   * @param entityId
+   * @return
+   */
+  public int[] getRelationIds(int entityId) {
+    return getRange(entityRelations, 2 * entityRelationOffsets.get(entityId),
+        2 * entityRelationOffsets.get(entityId + 1));
+  }
+
+  /**
+   * Returns the ids of the entities paired with entity1 in the direction in
+   * which their relations are stored, sorted.
+   *
+   * @param entity1Id
+   * @return
+   */
+  public int[] getPairedEntityIds(int entity1Id) {
+    return getRange(pairEntities, pairOffsets.get(entity1Id),
+        pairOffsets.get(entity1Id + 1));
+  }
+
+  /**
+   * Returns the ids of the entities entity1 for which the pair (entity1,
+   * entity2) is stored, sorted.
+   *
+   * @param entity2Id
+   * @return
+   */
+  public int[] getInversePairedEntityIds(int entity2Id) {
+    return getRange(inversePairEntities, inversePairOffsets.get(entity2Id),
+        inversePairOffsets.get(entity2Id + 1));
+  }
+
+  /**
+   * Returns the relations stored for the entity pair (entity1, entity2) as
+   * consecutive (left edge id, right edge id) pairs, or null if the pair is
+   * not stored in this direction.
+   *
+   * @param entity1Id
+   * @param entity2Id
+   * @return
+   */
+  public int[] getRelationIds(int entity1Id, int entity2Id) {
+    int pair = findPair(entity1Id, entity2Id);
+    if (pair < 0) {
+      return null;
+    }
+    return getRange(pairRelations, 2 * pairRelationOffsets.get(pair),
+        2 * pairRelationOffsets.get(pair + 1));
+  }
+
+  /**
+   * Returns true if relations are stored for the entity pair (entity1,
+   * entity2) in this direction.
+   *
+   * @param entity1Id
+   * @param entity2Id
+   * @return
+   */
+  public boolean hasPair(int entity1Id, int entity2Id) {
+    return findPair(entity1Id, entity2Id) >= 0;
+  }
+
+  private int findPair(int entity1Id, int entity2Id) {
+    int low = pairOffsets.get(entity1Id);
+    int high = pairOffsets.get(entity1Id + 1) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entity = pairEntities.get(mid);
+      if (entity < entity2Id) {
+        low = mid + 1;
+      } else if (entity > entity2Id) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private static int[] getRange(IntBuffer buffer, int start, int end) {
+    if (start == end) {
+      return EMPTY;
+    }
+    int[] values = new int[end - start];
+    for (int i = start; i < end; i++) {
+      values[i - start] = buffer.get(i);
+    }
+    return values;
+  }
+
+  private static String getName(IntBuffer offsets, ByteBuffer names, int id) {
+    int start = offsets.get(id);
+    byte[] bytes = new byte[offsets.get(id + 1) - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = names.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int compareName(IntBuffer offsets, ByteBuffer names, int id,
+      byte[] key) {
+    int start = offsets.get(id);
+    int length = offsets.get(id + 1) - start;
+    int common = Math.min(length, key.length);
+    for (int i = 0; i < common; i++) {
+      int compare = (names.get(start + i) & 0xff) - (key[i] & 0xff);
+      if (compare != 0) {
+        return compare;
+      }
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Orders UTF-8 encoded names the way snapshots store them.
+   */
+  static int compareNames(byte[] name1, byte[] name2) {
+    int common = Math.min(name1.length, name2.length);
+    for (int i = 0; i < common; i++) {
+      int compare = (name1[i] & 0xff) - (name2[i] & 0xff);
+      if (compare != 0) {
+        return compare;
+      }
+    }
+    return name1.length - name2.length;
+  }
+
+  /**
+   * Writes a snapshot. Entity ids are positions in entityNames, which must be
+   * sorted with {@link #compareNames(byte[], byte[])}. Each offsets array has
+   * one entry more than the rows it indexes; relation offsets count pairs of
+   * edge ids. entityHasTypes has bit (id % 32) of word (id / 32) set for every
+   * entity that has a types entry.
+   */
+  static void write(String snapshotFile, byte[][] relationNames,
+      byte[][] typeNames, byte[][] entityNames, int[] entityTypeOffsets,
+      int[] entityTypes, int[] entityRelationOffsets, int[] entityRelations,
+      int[] pairOffsets, int[] pairEntities, int[] pairRelationOffsets,
+      int[] pairRelations, int[] entityHasTypes) throws IOException {
+    for (int i = 1; i < entityNames.length; i++) {
+      Preconditions.checkArgument(
+          compareNames(entityNames[i - 1], entityNames[i]) < 0,
+          "Entity names are not sorted");
+    }
+
+    int[] inversePairOffsets = new int[entityNames.length + 1];
+    int[] inversePairEntities = new int[pairEntities.length];
+    getInversePairs(pairOffsets, pairEntities, inversePairOffsets,
+        inversePairEntities);
+
+    int[] relationNameOffsets = getNameOffsets(relationNames);
+    int[] typeNameOffsets = getNameOffsets(typeNames);
+    int[] entityNameOffsets = getNameOffsets(entityNames);
+
+    long[] lengths = new long[SECTION_COUNT];
+    lengths[RELATION_NAME_OFFSETS] = 4L * relationNameOffsets.length;
+    lengths[RELATION_NAMES] = relationNameOffsets[relationNames.length];
+    lengths[TYPE_NAME_OFFSETS] = 4L * typeNameOffsets.length;
+    lengths[TYPE_NAMES] = typeNameOffsets[typeNames.length];
+    lengths[ENTITY_NAME_OFFSETS] = 4L * entityNameOffsets.length;
+    lengths[ENTITY_NAMES] = entityNameOffsets[entityNames.length];
+    lengths[ENTITY_TYPE_OFFSETS] = 4L * entityTypeOffsets.length;
+    lengths[ENTITY_TYPES] = 4L * entityTypes.length;
+    lengths[ENTITY_RELATION_OFFSETS] = 4L * entityRelationOffsets.length;
+    lengths[ENTITY_RELATIONS] = 4L * entityRelations.length;
+    lengths[PAIR_OFFSETS] = 4L * pairOffsets.length;
+    lengths[PAIR_ENTITIES] = 4L * pairEntities.length;
+    lengths[PAIR_RELATION_OFFSETS] = 4L * pairRelationOffsets.length;
+    lengths[PAIR_RELATIONS] = 4L * pairRelations.length;
+    lengths[ENTITY_HAS_TYPES] = 4L * entityHasTypes.length;
+    lengths[INVERSE_PAIR_OFFSETS] = 4L * inversePairOffsets.length;
+    lengths[INVERSE_PAIR_ENTITIES] = 4L * inversePairEntities.length;
+
+    long[] offsets = new long[SECTION_COUNT];
+    long position = align(12 + 16 * SECTION_COUNT);
+    for (int i = 0; i < SECTION_COUNT; i++) {
+      offsets[i] = position;
+      position = align(position + lengths[i]);
+    }
+
+    // Every section starts where the previous one ends, padded to 8 bytes.
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+            snapshotFile), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(SECTION_COUNT);
+      for (int i = 0; i < SECTION_COUNT; i++) {
+        out.writeLong(offsets[i]);
+        out.writeLong(lengths[i]);
+      }
+      writePadding(out, 12 + 16 * SECTION_COUNT);
+
+      writeInts(out, relationNameOffsets);
+      writeNames(out, relationNames);
+      writeInts(out, typeNameOffsets);
+      writeNames(out, typeNames);
+      writeInts(out, entityNameOffsets);
+      writeNames(out, entityNames);
+      writeInts(out, entityTypeOffsets);
+      writeInts(out, entityTypes);
+      writeInts(out, entityRelationOffsets);
+      writeInts(out, entityRelations);
+      writeInts(out, pairOffsets);
+      writeInts(out, pairEntities);
+      writeInts(out, pairRelationOffsets);
+      writeInts(out, pairRelations);
+      writeInts(out, entityHasTypes);
+      writeInts(out, inversePairOffsets);
+      writeInts(out, inversePairEntities);
+    }
+  }
+
+  /**
+   * Fills offsets and entities with the pairs indexed by their second entity.
+   * Entities are visited in order, so every row comes out sorted.
+   */
+  private static void getInversePairs(int[] pairOffsets, int[] pairEntities,
+      int[] offsets, int[] entities) {
+    int entityCount = offsets.length - 1;
+    for (int entity2Id : pairEntities) {
+      offsets[entity2Id + 1]++;
+    }
+    for (int i = 0; i < entityCount; i++) {
+      offsets[i + 1] += offsets[i];
+    }
+    int[] next = Arrays.copyOf(offsets, entityCount);
+    for (int entity1Id = 0; entity1Id < entityCount; entity1Id++) {
+      int end = pairOffsets[entity1Id + 1];
+      for (int i = pairOffsets[entity1Id]; i < end; i++) {
+        entities[next[pairEntities[i]]++] = entity1Id;
+      }
+    }
+  }
+
+  private static int[] getNameOffsets(byte[][] names) {
+    int[] offsets = new int[names.length + 1];
+    long length = 0;
+    for (int i = 0; i < names.length; i++) {
+      length += names[i].length;
+      Preconditions.checkArgument(length <= Integer.MAX_VALUE,
+          "Names are larger than 2GB");
+      offsets[i + 1] = (int) length;
+    }
+    return offsets;
+  }
+
+  private static long align(long position) {
+    return (position + 7) & ~7L;
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values)
+      throws IOException {
+    for (int value : values) {
+      out.writeInt(value);
+    }
+    writePadding(out, 4L * values.length);
+  }
+
+  private static void writeNames(DataOutputStream out, byte[][] names)
+      throws IOException {
+    long length = 0;
+    for (byte[] name : names) {
+      out.write(name);
+      length += name.length;
+    }
+    writePadding(out, length);
+  }
+
+  private static void writePadding(DataOutputStream out, long length)
+      throws IOException {
+    out.write(new byte[(int) (align(length) - length)]);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "KnowledgeBaseSnapshot[entities=%d, types=%d, relations=%d]",
+        getEntityCount(), getTypeCount(), getRelationCount());
+  }
+}
@@ -0,0 +1,16 @@
+package in.sivareddy.graphparser.util.knowledgebase;
+
+import java.util.Set;
+
+/**
+ * Knowledge base held in the process, whose facts can be joined without
+ * querying an endpoint.
+ */
+public interface LocalKnowledgeBase extends KnowledgeBase {
+  /**
+   * Returns the entities entity2 for which the relations of entity1 and
+   * entity2 contain the relation, or null if entity1 is not in the knowledge
+   * base.
+   */
+  public Set<String> getRelatedEntities(String entity1, Relation relation);
+}
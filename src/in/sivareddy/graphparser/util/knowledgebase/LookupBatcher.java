@@ -0,0 +1,135 @@
+package in.sivareddy.graphparser.util.knowledgebase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Gathers lookups made concurrently by several threads and answers them with
+ * a single call to a bulk loader.
+ *
+ * The first thread to ask for a key that is not already pending becomes the
+ * leader of a new batch. If another batch is being loaded at that time, i.e.
+ * other threads are busy with lookups too, the leader waits up to the batch
+ * window for more keys before loading the batch on behalf of everyone waiting
+ * on it. A lone thread never waits.
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+class LookupBatcher<K, V> {
+  private final Function<List<K>, Map<K, V>> bulkLoader;
+  private final long windowNanos;
+  private final int maxBatchSize;
+
+  private final Object lock = new Object();
+  private Map<K, CompletableFuture<V>> pending = null;
+  private final AtomicInteger loadingBatches = new AtomicInteger();
+
+  /**
+   * @param bulkLoader returns the values of all the keys it is given
+   * @param windowMillis time the leader of a batch waits for more keys
+   * @param maxBatchSize a batch is loaded as soon as it has these many keys
+   */
+  public LookupBatcher(Function<List<K>, Map<K, V>> bulkLoader,
+      long windowMillis, int maxBatchSize) {
+    this.bulkLoader = bulkLoader;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Returns the value of the key, loading it along with the keys other
+   * threads are asking for at the same time.
+   *
+   * @param key key to look up
+   * @return value returned by the bulk loader, or null if it returned none
+   * @throws RuntimeException thrown by the bulk loader for this batch
+   */
+  public V get(K key) {
+    CompletableFuture<V> future;
+    boolean leader = false;
+    synchronized (lock) {
+      if (pending == null) {
+        pending = new LinkedHashMap<>();
+        leader = true;
+      }
+      future = pending.get(key);
+      if (future == null) {
+        future = new CompletableFuture<>();
+        pending.put(key, future);
+      }
+      if (pending.size() >= maxBatchSize) {
+        lock.notifyAll();
+      }
+    }
+
+    if (leader) {
+      loadBatch(collectBatch());
+    }
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw e;
+    }
+  }
+
+  /**
+   * Loads all the keys with one call to the bulk loader, without waiting for
+   * other threads.
+   *
+   * @param keys keys to look up
+   * @return values returned by the bulk loader
+   */
+  public Map<K, V> getAll(Iterable<? extends K> keys) {
+    List<K> batch = new ArrayList<>();
+    keys.forEach(batch::add);
+    loadingBatches.incrementAndGet();
+    try {
+      return bulkLoader.apply(batch);
+    } finally {
+      loadingBatches.decrementAndGet();
+    }
+  }
+
+  private Map<K, CompletableFuture<V>> collectBatch() {
+    synchronized (lock) {
+      if (loadingBatches.get() > 0) {
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining = windowNanos;
+        try {
+          while (pending.size() < maxBatchSize && remaining > 0) {
+            TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            remaining = deadline - System.nanoTime();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      Map<K, CompletableFuture<V>> batch = pending;
+      pending = null;
+      return batch;
+    }
+  }
+
+  private void loadBatch(Map<K, CompletableFuture<V>> batch) {
+    loadingBatches.incrementAndGet();
+    try {
+      Map<K, V> values = bulkLoader.apply(new ArrayList<>(batch.keySet()));
+      batch.forEach((key, future) -> future.complete(values.get(key)));
+    } catch (Throwable e) {
+      batch.values().forEach(future -> future.completeExceptionally(e));
+    } finally {
+      loadingBatches.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package in.sivareddy.graphparser.util.knowledgebase;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Read-only set view of an array of distinct relations, so that a shared
+ * relation array can be returned as a set without copying it. Lookups scan
+ * the array, which holds the few relations of an entity or entity pair.
+ */
+final class RelationArraySet extends AbstractSet<Relation> {
+  private final Relation[] relations;
+
+  RelationArraySet(Relation[] relations) {
+    this.relations = relations;
+  }
+
+  @Override
+  public Iterator<Relation> iterator() {
+    // The iterators of Arrays.asList do not support remove.
+    return Arrays.asList(relations).iterator();
+  }
+
+  @Override
+  public int size() {
+    return relations.length;
+  }
+}
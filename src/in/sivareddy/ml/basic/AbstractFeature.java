@@ -6,12 +6,18 @@ import java.util.List;
 import com.google.common.base.Objects;
 
 public abstract class AbstractFeature implements Feature, Comparable<Feature>,
-    Serializable {
+    Serializable, Cloneable {
   private static final long serialVersionUID = -7471409940498505373L;
   private final List<?> key;
   private Double value;
   private static final int prime = 31;
 
+  // Keys are never modified after construction, so the hash code and the id
+  // assigned by FeatureIndex can be cached. The id is stored off by one so
+  // that the default value 0 means "not interned yet".
+  private transient int hash;
+  private transient int index;
+
   public AbstractFeature(List<?> key, Double value) {
     this.key = key;
     this.value = value;
@@ -34,7 +40,34 @@ public abstract class AbstractFeature implements Feature, Comparable<Feature>,
 
   @Override
   public int hashCode() {
-    return getClass().getName().hashCode() * (prime + key.hashCode());
+    int result = hash;
+    if (result == 0) {
+      result = getClass().getName().hashCode() * (prime + key.hashCode());
+      hash = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns a feature of the same class and key with the given value. The key
+   * is shared, since keys are never modified.
+   */
+  AbstractFeature withValue(Double value) {
+    try {
+      AbstractFeature copy = (AbstractFeature) clone();
+      copy.value = value;
+      return copy;
+    } catch (CloneNotSupportedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  int getCachedIndex() {
+    return index - 1;
+  }
+
+  void setCachedIndex(int index) {
+    this.index = index + 1;
   }
 
   @Override
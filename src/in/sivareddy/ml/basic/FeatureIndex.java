@@ -0,0 +1,109 @@
+package in.sivareddy.ml.basic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns features to dense integer ids. A feature (its class and key) gets an
+ * id the first time it is interned and keeps it for the lifetime of the JVM,
+ * so that models can store their parameters in primitive arrays indexed by
+ * feature id.
+ *
+ * Ids are cached in {@link AbstractFeature} instances, so repeated lookups of
+ * the same feature object do not hash its key again.
+ *
+ * The index keeps its own copy of each {@link AbstractFeature}, with value
+ * 1.0, since callers change the values of their features after interning
+ * them.
+ */
+public final class FeatureIndex {
+  private static final ConcurrentHashMap<Feature, Integer> featureToIndex =
+      new ConcurrentHashMap<>();
+  private static final List<Feature> indexToFeature = new ArrayList<>();
+
+  private FeatureIndex() {
+  }
+
+  /**
+   * Returns the id of the feature, or -1 if the feature has never been
+   * interned. Lookups do not intern the feature, so scoring unseen features
+   * does not grow the index.
+   *
+   * @param feature
+   * @return
+   */
+  public static int getIndex(Feature feature) {
+    if (feature instanceof AbstractFeature) {
+      AbstractFeature abstractFeature = (AbstractFeature) feature;
+      int index = abstractFeature.getCachedIndex();
+      if (index >= 0) {
+        return index;
+      }
+      Integer storedIndex = featureToIndex.get(feature);
+      if (storedIndex == null) {
+        return -1;
+      }
+      abstractFeature.setCachedIndex(storedIndex);
+      return storedIndex;
+    }
+    Integer storedIndex = featureToIndex.get(feature);
+    return storedIndex == null ? -1 : storedIndex;
+  }
+
+  /**
+   * Returns the id of the feature, assigning the next free id if the feature
+   * has not been seen before.
+   *
+   * @param feature
+   * @return
+   */
+  public static int intern(Feature feature) {
+    int index = getIndex(feature);
+    if (index >= 0) {
+      return index;
+    }
+    synchronized (indexToFeature) {
+      Integer storedIndex = featureToIndex.get(feature);
+      if (storedIndex == null) {
+        Feature stored = feature;
+        if (feature instanceof AbstractFeature) {
+          stored = ((AbstractFeature) feature).withValue(1.0);
+          ((AbstractFeature) stored).setCachedIndex(indexToFeature.size());
+        }
+        storedIndex = indexToFeature.size();
+        indexToFeature.add(stored);
+        featureToIndex.put(stored, storedIndex);
+      }
+      index = storedIndex;
+    }
+    if (feature instanceof AbstractFeature) {
+      ((AbstractFeature) feature).setCachedIndex(index);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the feature interned with the given id.
+   *
+   * @param index
+   * @return
+   */
+  public static Feature getFeature(int index) {
+    synchronized (indexToFeature) {
+      return indexToFeature.get(index);
+    }
+  }
+
+  /**
+   * Returns the number of features interned so far. Every valid id is smaller
+   * than this number.
+   *
+   * @return
+   */
+  public static int size() {
+    synchronized (indexToFeature) {
+      return indexToFeature.size();
+    }
+  }
+}
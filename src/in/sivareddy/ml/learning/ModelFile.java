@@ -0,0 +1,240 @@
+package in.sivareddy.ml.learning;
+
+import in.sivareddy.ml.basic.Feature;
+import in.sivareddy.ml.basic.FeatureIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Binary file format of a {@link StructuredPercepton}.
+ *
+ * The header holds the magic number, the format version, the number of
+ * features and the offsets of the blocks of the feature dictionary. It is
+ * followed by the weights, the cumulative weights and the frequencies of the
+ * features as primitive arrays in row order, and then by the dictionary: the
+ * features in row order, serialized in independent blocks of
+ * {@link #BLOCK_SIZE} features so that they are read in parallel.
+ *
+ * The arrays are read through a memory mapping of the file. Features are
+ * still deserialized, since feature classes share no constructor, but keys
+ * shared by the features of a block, e.g. relations and words, are read once
+ * per block.
+ */
+final class ModelFile {
+  static final int MAGIC = 0x47505350;
+  static final int VERSION = 1;
+  static final int BLOCK_SIZE = 1 << 16;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private ModelFile() {
+  }
+
+  /**
+   * Returns true if the file starts with the magic number of this format.
+   */
+  static boolean isModelFile(String fileName) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName))) {
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+      }
+      return !buffer.hasRemaining() && buffer.getInt(0) == MAGIC;
+    }
+  }
+
+  private static int getHeaderSize(int blocks) {
+    return 4 * 4 + 8 * (blocks + 1);
+  }
+
+  /**
+   * Writes the features with the given ids.
+   *
+   * @param fileName model file
+   * @param weightVector parameters of the features
+   * @param indices ids of the features
+   * @throws IOException
+   */
+  static void write(String fileName, WeightVector weightVector,
+      List<Integer> indices) throws IOException {
+    int size = indices.size();
+    int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    // Offsets of the blocks, and of the end of the last block.
+    long[] offsets = new long[blocks + 1];
+
+    Path path = Paths.get(fileName);
+    try (FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.position(getHeaderSize(blocks));
+
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      for (int index : indices) {
+        flushIfFull(channel, buffer, 8);
+        buffer.putDouble(weightVector.getWeight(index));
+      }
+      for (int index : indices) {
+        flushIfFull(channel, buffer, 8);
+        buffer.putDouble(weightVector.getCumulativeWeight(index));
+      }
+      for (int index : indices) {
+        flushIfFull(channel, buffer, 4);
+        buffer.putInt(weightVector.getFrequency(index));
+      }
+      buffer.flip();
+      flush(channel, buffer);
+
+      // Blocks are serialized in parallel, a few at a time to bound memory.
+      int group = 2 * ForkJoinPool.getCommonPoolParallelism();
+      for (int first = 0; first < blocks; first += group) {
+        byte[][] serialized;
+        try {
+          serialized =
+              IntStream.range(first, Math.min(blocks, first + group))
+                  .parallel().mapToObj(block -> writeBlock(indices, block))
+                  .toArray(byte[][]::new);
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+        for (int i = 0; i < serialized.length; i++) {
+          offsets[first + i] = channel.position();
+          flush(channel, ByteBuffer.wrap(serialized[i]));
+        }
+      }
+      offsets[blocks] = channel.position();
+
+      ByteBuffer header = ByteBuffer.allocate(getHeaderSize(blocks));
+      header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(blocks);
+      for (long offset : offsets) {
+        header.putLong(offset);
+      }
+      header.flip();
+      channel.position(0);
+      flush(channel, header);
+    }
+  }
+
+  private static byte[] writeBlock(List<Integer> indices, int block) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      int end = Math.min(indices.size(), (block + 1) * BLOCK_SIZE);
+      for (int row = block * BLOCK_SIZE; row < end; row++) {
+        out.writeObject(FeatureIndex.getFeature(indices.get(row)));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void flushIfFull(FileChannel channel, ByteBuffer buffer,
+      int needed) throws IOException {
+    if (buffer.remaining() < needed) {
+      buffer.flip();
+      flush(channel, buffer);
+      buffer.clear();
+    }
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Reads the features of the file into the weight vector.
+   *
+   * @param fileName model file
+   * @param weightVector empty vector
+   * @throws IOException if the file is not a model file of a known version,
+   *         or cannot be read
+   */
+  static void read(String fileName, WeightVector weightVector)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName))) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+      if (header.getInt() != MAGIC) {
+        throw new IOException(fileName + " is not a model file");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unknown model file version " + version + " in "
+            + fileName);
+      }
+      int size = header.getInt();
+      int blocks = header.getInt();
+      ByteBuffer offsetBuffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 16, 8 * (blocks + 1));
+      long[] offsets = new long[blocks + 1];
+      offsetBuffer.asLongBuffer().get(offsets);
+
+      long position = getHeaderSize(blocks);
+      double[] weights = new double[size];
+      MappedByteBuffer mapped =
+          channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * size);
+      mapped.asDoubleBuffer().get(weights);
+      position += 8L * size;
+      double[] cumulativeWeights = new double[size];
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * size);
+      mapped.asDoubleBuffer().get(cumulativeWeights);
+      position += 8L * size;
+      int[] frequencies = new int[size];
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * size);
+      mapped.asIntBuffer().get(frequencies);
+
+      try {
+        IntStream.range(0, blocks).parallel().forEach(block -> {
+          int start = block * BLOCK_SIZE;
+          Feature[] features = readBlock(channel, offsets[block],
+              offsets[block + 1], Math.min(BLOCK_SIZE, size - start));
+          for (int i = 0; i < features.length; i++) {
+            int row = start + i;
+            weightVector.set(FeatureIndex.intern(features[i]), weights[row],
+                cumulativeWeights[row], frequencies[row]);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  private static Feature[] readBlock(FileChannel channel, long start,
+      long end, int count) {
+    try {
+      ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+      while (bytes.hasRemaining()) {
+        if (channel.read(bytes, start + bytes.position()) < 0) {
+          throw new IOException("Truncated model file");
+        }
+      }
+      try (ObjectInputStream in =
+          new ObjectInputStream(new ByteArrayInputStream(bytes.array()))) {
+        Feature[] features = new Feature[count];
+        for (int i = 0; i < features.length; i++) {
+          features[i] = (Feature) in.readObject();
+        }
+        return features;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (ClassNotFoundException e) {
+      throw new UncheckedIOException(new IOException(e));
+    }
+  }
+}
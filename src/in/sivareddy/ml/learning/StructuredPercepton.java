@@ -1,12 +1,10 @@
 package in.sivareddy.ml.learning;
 
 import in.sivareddy.ml.basic.Feature;
+import in.sivareddy.ml.basic.FeatureIndex;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -20,8 +18,12 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.log4j.Logger;
@@ -30,44 +32,66 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 public class StructuredPercepton implements Serializable {
-  private static final long serialVersionUID = -5106179293065955512L;
-  private final Map<Feature, Double> weightVector;
-  private final Map<Feature, Double> cumulativeWeightVector;
-  private final Map<Feature, Integer> updateFrequency;
+  private static final long serialVersionUID = 3540126498317729470L;
+  // Indexed by FeatureIndex ids. Written out by writeObject as (feature,
+  // weight, cumulative weight, frequency) records since ids are only valid
+  // within one JVM.
+  private transient WeightVector weightVector;
+  // Updates of the training step run by collectUpdates on each thread.
+  private transient ThreadLocal<WeightUpdates> pendingUpdates;
+  // Incremented after each change of the weights, so that scores cached
+  // against the model can tell they are stale.
+  private transient AtomicLong generation;
   public static int drag = 3;
 
+  // Writes fileName.readable.txt next to each saved model.
+  public static boolean SAVE_READABLE_MODEL = true;
+  private static ExecutorService readableModelWriter = null;
+
   public StructuredPercepton() {
-    weightVector = Maps.newHashMap();
-    cumulativeWeightVector = Maps.newHashMap();
-    updateFrequency = Maps.newHashMap();
+    this(new WeightVector());
+  }
+
+  private StructuredPercepton(WeightVector weightVector) {
+    this.weightVector = weightVector;
+    pendingUpdates = new ThreadLocal<>();
+    generation = new AtomicLong();
   }
 
-  public synchronized void setWeightIfAbsent(Feature feature, Double weight) {
-    if (!weightVector.containsKey(feature)) {
-      weightVector.put(feature, weight);
-      cumulativeWeightVector.put(feature, drag * weight);
-      updateFrequency.put(feature, drag * 1);
+  public void setWeightIfAbsent(Feature feature, Double weight) {
+    if (weightVector.setIfAbsent(FeatureIndex.intern(feature), weight, drag
+        * weight, drag * 1)) {
+      generation.incrementAndGet();
     }
   }
 
-  public synchronized Double getScoreTraining(List<Feature> featureVector) {
-    Double score = 0.0;
-    Double weight;
+  /**
+   * Returns the number of changes of the weights so far. Scores computed
+   * while the generation stayed the same used the same weights.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  public Double getScoreTraining(List<Feature> featureVector) {
+    double score = 0.0;
     for (Feature feature : featureVector) {
-      weight = weightVector.get(feature);
-      score += feature.getFeatureValue() * (weight == null ? 0.0 : weight);
+      int index = FeatureIndex.getIndex(feature);
+      if (index >= 0) {
+        score += feature.getFeatureValue() * weightVector.getWeight(index);
+      }
     }
     return score;
   }
 
-  public synchronized Double getScoreTesting(List<Feature> featureVector) {
-    Double score = 0.0;
+  public Double getScoreTesting(List<Feature> featureVector) {
+    double score = 0.0;
     for (Feature feature : featureVector) {
-      Double value = feature.getFeatureValue();
-      Double weight =
-          cumulativeWeightVector.containsKey(feature) ? cumulativeWeightVector
-              .get(feature) / updateFrequency.get(feature) : 0.0;
-      score += value * weight;
+      int index = FeatureIndex.getIndex(feature);
+      if (index >= 0) {
+        score +=
+            feature.getFeatureValue() * weightVector.getAveragedWeight(index);
+      }
     }
     return score;
   }
@@ -75,8 +99,9 @@ public class StructuredPercepton implements Serializable {
   // Simple perceptron update with feature-wise averaging
   // This is different from traditional averaging. This is found to be working
   // better than averaged perceptron.
-  public synchronized void updateWeightVector(int goldParsesSize,
+  public void updateWeightVector(int goldParsesSize,
       List<Feature> goldFeatVec, int wrongParsesSize, List<Feature> predFeatVec) {
+    WeightUpdates updates = pendingUpdates.get();
     Double goldParsesWeight = 1.0 / goldParsesSize;
     Double wrongParsesWeight = 1.0 / wrongParsesSize;
 
@@ -111,28 +136,63 @@ public class StructuredPercepton implements Serializable {
               : 0.0;
       double difference = goldFeatValue - predFeatValue;
 
-      Double oldWeight =
-          weightVector.containsKey(feature) ? weightVector.get(feature) : 0.0;
-      Double newWeight = oldWeight + difference;
-      weightVector.put(feature, newWeight);
+      if (updates != null) {
+        updates.add(FeatureIndex.intern(feature), difference);
+      } else {
+        weightVector.update(FeatureIndex.intern(feature), difference, drag);
+      }
+    }
+    if (updates == null) {
+      generation.incrementAndGet();
+    }
+  }
 
-      double oldCumultativeWeight = cumulativeWeightVector.getOrDefault(feature, 0.0);
-      Double newCumulativeWeight = oldCumultativeWeight + newWeight;
-      cumulativeWeightVector.put(feature, newCumulativeWeight);
+  /**
+   * Runs a training step and returns the updates it made to the weights, which
+   * are recorded instead of applied. Updates are recorded only on the thread
+   * running the step.
+   *
+   * @param trainingStep training on a sentence
+   * @return updates to apply with {@link #applyUpdates}
+   */
+  public WeightUpdates collectUpdates(Runnable trainingStep) {
+    WeightUpdates updates = new WeightUpdates();
+    // A thread waiting inside a step may run the step of another sentence.
+    WeightUpdates outer = pendingUpdates.get();
+    pendingUpdates.set(updates);
+    try {
+      trainingStep.run();
+    } finally {
+      if (outer != null) {
+        pendingUpdates.set(outer);
+      } else {
+        pendingUpdates.remove();
+      }
+    }
+    return updates;
+  }
 
-      int oldFreqCount = updateFrequency.getOrDefault(feature, drag);
-      Integer newFreqCount = oldFreqCount + 1;
-      updateFrequency.put(feature, newFreqCount);
+  /**
+   * Applies the updates one after another, as if each training step had
+   * updated the model itself. Updates are applied in the order of the list,
+   * so that the model does not depend on the order the steps ran in.
+   *
+   * @param updates updates of the training steps
+   */
+  public void applyUpdates(List<WeightUpdates> updates) {
+    for (WeightUpdates stepUpdates : updates) {
+      stepUpdates.applyTo(weightVector, drag);
     }
+    generation.incrementAndGet();
   }
 
-  public synchronized void printFeatureWeights(Collection<Feature> featVec,
+  public void printFeatureWeights(Collection<Feature> featVec,
       Logger logger) {
     try {
       List<Pair<Double, Feature>> feats = Lists.newArrayList();
       for (Feature feature : featVec) {
-        Double weight =
-            weightVector.containsKey(feature) ? weightVector.get(feature) : 0.0;
+        int index = FeatureIndex.getIndex(feature);
+        Double weight = index >= 0 ? weightVector.getWeight(index) : 0.0;
         feats.add(Pair.of(weight, feature));
       }
       Collections.sort(feats, Collections.reverseOrder());
@@ -146,15 +206,14 @@ public class StructuredPercepton implements Serializable {
     }
   }
 
-  public synchronized void printFeatureWeightsTesting(List<Feature> featVec,
+  public void printFeatureWeightsTesting(List<Feature> featVec,
       Logger logger) {
     try {
       List<Pair<Double, Feature>> feats = Lists.newArrayList();
       for (Feature feature : featVec) {
+        int index = FeatureIndex.getIndex(feature);
         Double weight =
-            cumulativeWeightVector.containsKey(feature) ? cumulativeWeightVector
-                .get(feature) / updateFrequency.get(feature)
-                : 0.0;
+            index >= 0 ? weightVector.getAveragedWeight(index) : 0.0;
         feats.add(Pair.of(weight, feature));
       }
       Collections.sort(feats, Collections.reverseOrder());
@@ -168,41 +227,123 @@ public class StructuredPercepton implements Serializable {
     }
   }
 
-  public synchronized boolean containsFeature(Feature feature) {
-    return weightVector.containsKey(feature);
+  public boolean containsFeature(Feature feature) {
+    int index = FeatureIndex.getIndex(feature);
+    return index >= 0 && weightVector.contains(index);
   }
 
   /**
-   * Saves the serialized object in a file. Additionally, a readable model is
-   * also saved into fileName.readable.txt.
+   * Returns the ids of the features that are part of this model.
+   * 
+   * @return
+   */
+  private List<Integer> getFeatureIndices() {
+    List<Integer> indices = new ArrayList<>();
+    int capacity = Math.min(weightVector.capacity(), FeatureIndex.size());
+    for (int index = 0; index < capacity; index++) {
+      if (weightVector.contains(index)) {
+        indices.add(index);
+      }
+    }
+    return indices;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    List<Integer> indices = getFeatureIndices();
+    out.writeInt(indices.size());
+    for (int index : indices) {
+      out.writeObject(FeatureIndex.getFeature(index));
+      out.writeDouble(weightVector.getWeight(index));
+      out.writeDouble(weightVector.getCumulativeWeight(index));
+      out.writeInt(weightVector.getFrequency(index));
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    weightVector = new WeightVector();
+    pendingUpdates = new ThreadLocal<>();
+    generation = new AtomicLong();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      Feature feature = (Feature) in.readObject();
+      double weight = in.readDouble();
+      double cumulativeWeight = in.readDouble();
+      int frequency = in.readInt();
+      weightVector.set(FeatureIndex.intern(feature), weight, cumulativeWeight,
+          frequency);
+    }
+  }
+
+  /**
+   * Saves the model in a file, in the binary format of {@link ModelFile}. If
+   * {@link #SAVE_READABLE_MODEL} is set, a readable model is also saved into
+   * fileName.readable.txt, in the background.
    * 
    * @param fileName
    * @throws IOException
    */
   public void saveModel(String fileName) throws IOException {
-    FileOutputStream fileOut = new FileOutputStream(fileName);
-    ObjectOutputStream out = new ObjectOutputStream(fileOut);
-    out.writeObject(this);
-    out.close();
-    fileOut.close();
-
-    List<Entry<Feature, Double>> entries =
-        new ArrayList<>(cumulativeWeightVector.entrySet());
-    entries.sort(Comparator.comparing(e -> -1 * e.getValue()
-        / updateFrequency.get(e.getKey())));
-    BufferedWriter bw =
-        new BufferedWriter(new FileWriter(fileName + ".readable.txt"));
-
-    for (Entry<Feature, Double> entry : entries) {
+    ModelFile.write(fileName, weightVector, getFeatureIndices());
+    if (SAVE_READABLE_MODEL) {
+      // The model may be trained further while the dump is written.
+      StructuredPercepton snapshot = snapshot();
+      getReadableModelWriter().execute(() -> {
+        try {
+          snapshot.saveReadableModel(fileName + ".readable.txt");
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+    }
+  }
+
+  /**
+   * Saves the features sorted by their averaged weights, one per line.
+   * 
+   * @param fileName
+   * @throws IOException
+   */
+  public void saveReadableModel(String fileName) throws IOException {
+    List<Integer> indices = getFeatureIndices();
+    indices.sort(Comparator.comparing(index -> -1
+        * weightVector.getAveragedWeight(index)));
+    BufferedWriter bw = new BufferedWriter(new FileWriter(fileName));
+
+    for (int index : indices) {
       bw.write(String.format("%f\t%s\n",
-          entry.getValue() / updateFrequency.get(entry.getKey()),
-          entry.getKey()));
+          weightVector.getAveragedWeight(index),
+          FeatureIndex.getFeature(index)));
     }
     bw.close();
   }
 
+  private static synchronized ExecutorService getReadableModelWriter() {
+    if (readableModelWriter == null) {
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<>());
+      executor.allowCoreThreadTimeOut(true);
+      readableModelWriter = executor;
+      // Programs end with System.exit, which would drop pending dumps.
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        executor.shutdown();
+        try {
+          executor.awaitTermination(10, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      }));
+    }
+    return readableModelWriter;
+  }
+
   /**
-   * Loads and returns the model from the given serialized file.
+   * Loads and returns the model from the given file, saved by
+   * {@link #saveModel} in the binary format or, by older versions, with
+   * object serialization.
    * 
    * @param fileName
    * @return
@@ -210,6 +351,12 @@ public class StructuredPercepton implements Serializable {
    */
   public static StructuredPercepton loadModel(String fileName)
       throws IOException {
+    if (ModelFile.isModelFile(fileName)) {
+      StructuredPercepton sp = new StructuredPercepton();
+      ModelFile.read(fileName, sp.weightVector);
+      return sp;
+    }
+
     FileInputStream fileIn = new FileInputStream(fileName);
     ObjectInputStream in = new ObjectInputStream(fileIn);
     StructuredPercepton sp = null;
@@ -224,22 +371,14 @@ public class StructuredPercepton implements Serializable {
   }
 
   /**
-   * Returns a clone using serialization.
+   * Returns a copy of the model that is independent of this model. The
+   * weights are copied lazily, a block of features at a time when either
+   * model updates them, so that taking a snapshot costs little. A snapshot
+   * must not be taken while the model is being trained.
    * 
    * @return
    */
-  public StructuredPercepton serialClone() {
-    try {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream oos = new ObjectOutputStream(baos);
-      oos.writeObject(this);
-
-      ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-      ObjectInputStream ois = new ObjectInputStream(bais);
-      return (StructuredPercepton) ois.readObject();
-    } catch (ClassNotFoundException | IOException e) {
-      e.printStackTrace();
-    }
-    return null;
+  public StructuredPercepton snapshot() {
+    return new StructuredPercepton(weightVector.snapshot());
   }
 }
@@ -0,0 +1,40 @@
+package in.sivareddy.ml.learning;
+
+import java.util.Arrays;
+
+/**
+ * Perceptron updates recorded by {@link StructuredPercepton#collectUpdates}
+ * instead of being applied, as (feature id, difference) pairs in the order
+ * in which they were made.
+ */
+public final class WeightUpdates {
+  private int[] indices = new int[16];
+  private double[] differences = new double[16];
+  private int size = 0;
+
+  WeightUpdates() {
+  }
+
+  void add(int index, double difference) {
+    if (size == indices.length) {
+      indices = Arrays.copyOf(indices, size * 2);
+      differences = Arrays.copyOf(differences, size * 2);
+    }
+    indices[size] = index;
+    differences[size] = difference;
+    size++;
+  }
+
+  void applyTo(WeightVector weightVector, int initialFrequency) {
+    for (int i = 0; i < size; i++) {
+      weightVector.update(indices[i], differences[i], initialFrequency);
+    }
+  }
+
+  /**
+   * Returns the number of feature updates.
+   */
+  public int size() {
+    return size;
+  }
+}
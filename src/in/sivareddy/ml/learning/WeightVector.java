@@ -0,0 +1,268 @@
+package in.sivareddy.ml.learning;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Weights, cumulative weights and update frequencies of a perceptron stored in
+ * primitive arrays indexed by {@link in.sivareddy.ml.basic.FeatureIndex} ids.
+ * A feature costs 20 bytes (two doubles and an int).
+ *
+ * The arrays are split into fixed size chunks that are allocated on demand, so
+ * growing the vector never copies existing weights. Updates of a feature are
+ * serialized by one of a fixed number of lock stripes. Reads are optimistic:
+ * they take the lock only if an update of the stripe ran meanwhile, so a
+ * feature's weight, cumulative weight and frequency are always read as of the
+ * same update.
+ * A frequency of 0 marks a feature that is not part of the model.
+ *
+ * {@link #snapshot()} copies only the array of chunks: the chunks are shared
+ * by both vectors until one of them updates a feature, which copies the chunk
+ * of the feature first. Snapshots must not be taken while the vector is being
+ * updated.
+ */
+final class WeightVector {
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int LOCK_STRIPES = 64;
+
+  private static final class Chunk {
+    // Only the vector holding the owner may write the chunk.
+    private final Object owner;
+    private final double[] weights;
+    private final double[] cumulativeWeights;
+    private final int[] frequencies;
+
+    private Chunk(Object owner) {
+      this.owner = owner;
+      weights = new double[CHUNK_SIZE];
+      cumulativeWeights = new double[CHUNK_SIZE];
+      frequencies = new int[CHUNK_SIZE];
+    }
+
+    private Chunk(Chunk other, Object owner) {
+      this.owner = owner;
+      weights = other.weights.clone();
+      cumulativeWeights = other.cumulativeWeights.clone();
+      frequencies = other.frequencies.clone();
+    }
+  }
+
+  // Replaced by a new array when it grows, and written again whenever a
+  // chunk is added or copied, so that a reader always sees fully published
+  // chunks.
+  private volatile Chunk[] chunks;
+  // Replaced by each snapshot, which makes all current chunks shared.
+  private volatile Object owner = new Object();
+  private final StampedLock[] locks = new StampedLock[LOCK_STRIPES];
+
+  WeightVector() {
+    this(new Chunk[0]);
+  }
+
+  private WeightVector(Chunk[] chunks) {
+    this.chunks = chunks;
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      locks[i] = new StampedLock();
+    }
+  }
+
+  /**
+   * Returns a copy of this vector, which shares its chunks with this vector
+   * until either of them updates them.
+   */
+  synchronized WeightVector snapshot() {
+    owner = new Object();
+    return new WeightVector(chunks.clone());
+  }
+
+  private Chunk getChunk(int index) {
+    Chunk[] currentChunks = chunks;
+    int chunkIndex = index >>> CHUNK_BITS;
+    return chunkIndex < currentChunks.length ? currentChunks[chunkIndex] : null;
+  }
+
+  /**
+   * Returns the chunk of a feature that this vector may write, after adding
+   * it, or copying it if it is shared with a snapshot.
+   */
+  private Chunk getWritableChunk(int index) {
+    Chunk chunk = getChunk(index);
+    if (chunk != null && chunk.owner == owner) {
+      return chunk;
+    }
+    synchronized (this) {
+      Chunk[] currentChunks = chunks;
+      int chunkIndex = index >>> CHUNK_BITS;
+      chunk = chunkIndex < currentChunks.length ? currentChunks[chunkIndex]
+          : null;
+      if (chunk != null && chunk.owner == owner) {
+        return chunk;
+      }
+      Chunk[] newChunks =
+          chunkIndex < currentChunks.length ? currentChunks : Arrays.copyOf(
+              currentChunks, chunkIndex + 1);
+      // Chunks are immutable apart from their arrays, so a chunk replaced in
+      // place is safely published to readers.
+      chunk = chunk == null ? new Chunk(owner) : new Chunk(chunk, owner);
+      newChunks[chunkIndex] = chunk;
+      chunks = newChunks;
+      return chunk;
+    }
+  }
+
+  private StampedLock getLock(int index) {
+    return locks[index & (LOCK_STRIPES - 1)];
+  }
+
+  /**
+   * Returns an upper bound on the ids stored in this vector.
+   *
+   * @return
+   */
+  int capacity() {
+    return chunks.length * CHUNK_SIZE;
+  }
+
+  boolean contains(int index) {
+    Chunk chunk = getChunk(index);
+    return chunk != null && chunk.frequencies[index & CHUNK_MASK] > 0;
+  }
+
+  double getWeight(int index) {
+    Chunk chunk = getChunk(index);
+    if (chunk == null) {
+      return 0.0;
+    }
+    int offset = index & CHUNK_MASK;
+    StampedLock lock = getLock(index);
+    long stamp = lock.tryOptimisticRead();
+    double weight = chunk.weights[offset];
+    if (!lock.validate(stamp)) {
+      stamp = lock.readLock();
+      try {
+        weight = chunk.weights[offset];
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return weight;
+  }
+
+  double getCumulativeWeight(int index) {
+    Chunk chunk = getChunk(index);
+    if (chunk == null) {
+      return 0.0;
+    }
+    int offset = index & CHUNK_MASK;
+    StampedLock lock = getLock(index);
+    long stamp = lock.tryOptimisticRead();
+    double cumulativeWeight = chunk.cumulativeWeights[offset];
+    if (!lock.validate(stamp)) {
+      stamp = lock.readLock();
+      try {
+        cumulativeWeight = chunk.cumulativeWeights[offset];
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return cumulativeWeight;
+  }
+
+  int getFrequency(int index) {
+    Chunk chunk = getChunk(index);
+    return chunk == null ? 0 : chunk.frequencies[index & CHUNK_MASK];
+  }
+
+  double getAveragedWeight(int index) {
+    Chunk chunk = getChunk(index);
+    if (chunk == null) {
+      return 0.0;
+    }
+    int offset = index & CHUNK_MASK;
+    StampedLock lock = getLock(index);
+    long stamp = lock.tryOptimisticRead();
+    double cumulativeWeight = chunk.cumulativeWeights[offset];
+    int frequency = chunk.frequencies[offset];
+    if (!lock.validate(stamp)) {
+      stamp = lock.readLock();
+      try {
+        cumulativeWeight = chunk.cumulativeWeights[offset];
+        frequency = chunk.frequencies[offset];
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return frequency > 0 ? cumulativeWeight / frequency : 0.0;
+  }
+
+  /**
+   * Sets the parameters of a feature if the feature is not part of the model
+   * yet. Features already in the model take no lock.
+   *
+   * @return whether the parameters were set
+   */
+  boolean setIfAbsent(int index, double weight, double cumulativeWeight,
+      int frequency) {
+    // Frequencies never drop back to 0.
+    if (contains(index)) {
+      return false;
+    }
+    Chunk chunk = getWritableChunk(index);
+    int offset = index & CHUNK_MASK;
+    StampedLock lock = getLock(index);
+    long stamp = lock.writeLock();
+    try {
+      if (chunk.frequencies[offset] != 0) {
+        return false;
+      }
+      chunk.weights[offset] = weight;
+      chunk.cumulativeWeights[offset] = cumulativeWeight;
+      chunk.frequencies[offset] = frequency;
+      return true;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Overwrites the parameters of a feature.
+   */
+  void set(int index, double weight, double cumulativeWeight, int frequency) {
+    Chunk chunk = getWritableChunk(index);
+    int offset = index & CHUNK_MASK;
+    StampedLock lock = getLock(index);
+    long stamp = lock.writeLock();
+    try {
+      chunk.weights[offset] = weight;
+      chunk.cumulativeWeights[offset] = cumulativeWeight;
+      chunk.frequencies[offset] = frequency;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Adds difference to the weight of a feature, accumulates the new weight and
+   * increments the update frequency. A feature that is not part of the model
+   * starts with weight 0 and frequency initialFrequency.
+   */
+  void update(int index, double difference, int initialFrequency) {
+    Chunk chunk = getWritableChunk(index);
+    int offset = index & CHUNK_MASK;
+    StampedLock lock = getLock(index);
+    long stamp = lock.writeLock();
+    try {
+      if (chunk.frequencies[offset] == 0) {
+        chunk.frequencies[offset] = initialFrequency;
+      }
+      double newWeight = chunk.weights[offset] + difference;
+      chunk.weights[offset] = newWeight;
+      chunk.cumulativeWeights[offset] += newWeight;
+      chunk.frequencies[offset]++;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+}
@@ -187,7 +187,7 @@ public class DumpBoWGroundedGraphs extends ProcessStreamInterface {
           JsonObject graphObj = new JsonObject();
           LexicalItem questionNode = graph.getQuestionNode().iterator().next();
           JsonArray edgesArray = new JsonArray();
-          for (Edge<LexicalItem> edge : graph.getEdges(questionNode)) {
+          for (Edge<LexicalItem> edge : graph.getEdgesView(questionNode)) {
             JsonObject edgeObject = new JsonObject();
             edgeObject.addProperty("entityIndex", edge.getRight()
                 .getWordPosition());
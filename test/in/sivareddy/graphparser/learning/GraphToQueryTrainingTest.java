@@ -0,0 +1,282 @@
+package in.sivareddy.graphparser.learning;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import in.sivareddy.graphparser.ccg.CcgAutoLexicon;
+import in.sivareddy.graphparser.ccg.LexicalItem;
+import in.sivareddy.graphparser.parsing.GraphToSparqlConverter;
+import in.sivareddy.graphparser.parsing.LexicalGraph;
+import in.sivareddy.graphparser.parsing.LexicalGraph.MergedEdgeFeature;
+import in.sivareddy.graphparser.parsing.LexicalGraph.ValidQueryFeature;
+import in.sivareddy.graphparser.util.CanonicalQuery;
+import in.sivareddy.graphparser.util.GroundedLexicon;
+import in.sivareddy.graphparser.util.RdfGraphTools;
+import in.sivareddy.graphparser.util.Schema;
+import in.sivareddy.graphparser.util.SparqlTransport;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseOnline;
+import in.sivareddy.graphparser.util.knowledgebase.Property;
+import in.sivareddy.graphparser.util.knowledgebase.Relation;
+import in.sivareddy.ml.basic.Feature;
+import in.sivareddy.ml.learning.StructuredPercepton;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class GraphToQueryTrainingTest {
+  private static final String EMPTY =
+      "{\"head\": {\"vars\": [\"x\"]}, \"results\": {\"bindings\": []}}";
+  // More than one solution, which a read of the first solution only would
+  // leave uncached.
+  private static final String ANSWERS =
+      "{\"head\": {\"vars\": [\"x\"]}, \"results\": {\"bindings\": ["
+          + "{\"x\": {\"type\": \"uri\", \"value\": \"m.01\"}}, "
+          + "{\"x\": {\"type\": \"uri\", \"value\": \"m.02\"}}]}}";
+
+  /**
+   * Answers the queries about the entities m.g0, m.g1, ... of the graphs,
+   * after a random delay so that speculative queries end out of order.
+   */
+  private static class FakeTransport implements SparqlTransport {
+    private final boolean[] answered;
+    private final Queue<String> queries = new ConcurrentLinkedQueue<>();
+    private final Random random;
+
+    FakeTransport(boolean[] answered, long seed) {
+      this.answered = answered;
+      this.random = new Random(seed);
+    }
+
+    @Override
+    public InputStream get(URI uri, int timeOut) throws IOException {
+      String query = URLDecoder.decode(uri.getRawQuery(), "UTF-8");
+      queries.add(query);
+      String response = EMPTY;
+      for (int i = 0; i < answered.length; i++) {
+        if (answered[i]
+            && Pattern.compile("m\\.g" + i + "\\b").matcher(query).find()) {
+          response = ANSWERS;
+        }
+      }
+      try {
+        Thread.sleep(random.nextInt(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new ByteArrayInputStream(
+          response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the number of requests sent for the query.
+     */
+    int getRequests(String query) {
+      String sent = CanonicalQuery.of(query).getQuery();
+      int requests = 0;
+      for (String request : queries) {
+        if (request.contains(sent)) {
+          requests++;
+        }
+      }
+      return requests;
+    }
+  }
+
+  private static LexicalItem createNode(String word, int position, String mid) {
+    LexicalItem node = new LexicalItem("N", word, word, "NN", "O", "en", null);
+    node.setWordPosition(position);
+    node.setMid(mid);
+    return node;
+  }
+
+  private static LexicalGraph createGraph(int entity, double score) {
+    LexicalItem film = createNode("film", 0, "m.g" + entity);
+    LexicalItem director = createNode("director", 1, "x");
+    LexicalGraph graph = new LexicalGraph();
+    graph.addEdge(film, director, createNode("by", 2, "x"), new Relation(
+        "film.film.directed_by.1", "film.film.directed_by.2"));
+    graph.addProperty(director, new Property("QUESTION"));
+    graph.setScore(score);
+    return graph;
+  }
+
+  private static GraphToQueryTraining createTraining(Schema schema,
+      StructuredPercepton learningModel) throws IOException {
+    CcgAutoLexicon questionCcgAutoLexicon =
+        new CcgAutoLexicon("./lib_data/candc_markedup.modified",
+            "./lib_data/unary_rules.txt", "./lib_data/binary_rules.txt",
+            "./lib_data/lexicon_specialCases_questions_vanilla.txt");
+    CcgAutoLexicon normalCcgAutoLexicon =
+        new CcgAutoLexicon("./lib_data/candc_markedup.modified",
+            "./lib_data/unary_rules.txt", "./lib_data/binary_rules.txt",
+            "./lib_data/lexicon_specialCases.txt");
+    KnowledgeBaseOnline kb =
+        new KnowledgeBaseOnline(new RdfGraphTools("http://kb.test/sparql", 0),
+            schema);
+    GraphToQueryTraining training =
+        new GraphToQueryTraining(schema, kb, new GroundedLexicon(
+            "lib_data/dummy.txt"), normalCcgAutoLexicon,
+            questionCcgAutoLexicon, "synPars", null, null, 1, 1, 1, 1, 1, 1,
+            false, false, false, false, false, false, false, learningModel,
+            null, false, false, false, false, false, false, false, false,
+            false, false, false, false, false, false, false, false, false,
+            false, false, false, false, false, false, false, false, false,
+            false, false, false, false, false, false, false, false, false,
+            false, false, false, false, false, false, 1.0, 1.0, 0.0, 0.0,
+            0.0, null, null);
+    training.validQueryFlag = true;
+    training.useAnswerTypeQuestionWordFlag = false;
+    return training;
+  }
+
+  private static RdfGraphTools getEndPoint(FakeTransport transport) {
+    RdfGraphTools endPoint = new RdfGraphTools("http://beam.test/sparql", 0);
+    endPoint.setTransport(transport);
+    return endPoint;
+  }
+
+  /**
+   * Tests if the graph chosen with queries sent ahead is the graph chosen by
+   * querying the graphs one after the other, and if the results of the
+   * chosen graph are cached.
+   */
+  @Test
+  public void testSpeculativeQueriesChooseTheSequentialGraph()
+      throws IOException {
+    Schema schema = new Schema("data/freebase/schema/all_domains_schema.txt");
+    StructuredPercepton learningModel = new StructuredPercepton();
+    Feature validQuery = new ValidQueryFeature(true);
+    learningModel.setWeightIfAbsent(validQuery, 2.0);
+    GraphToQueryTraining training = createTraining(schema, learningModel);
+
+    int speculativeQueries = GraphToQueryTraining.SPECULATIVE_QUERIES;
+    Random random = new Random(1);
+    try {
+      for (int n = 0; n < 50; n++) {
+        int size = 1 + random.nextInt(10);
+        boolean[] answered = new boolean[size];
+        List<LexicalGraph> graphs = new ArrayList<>();
+        double score = 10.0;
+        for (int i = 0; i < size; i++) {
+          answered[i] = random.nextInt(4) == 0;
+          graphs.add(createGraph(i, score));
+          score -= random.nextDouble();
+        }
+
+        GraphToQueryTraining.SPECULATIVE_QUERIES = 1;
+        training.rdfGraphTools = getEndPoint(new FakeTransport(answered, n));
+        LexicalGraph expected = training.getPredictedGraph(graphs, false);
+
+        GraphToQueryTraining.SPECULATIVE_QUERIES = 5;
+        FakeTransport transport = new FakeTransport(answered, n);
+        training.rdfGraphTools = getEndPoint(transport);
+        LexicalGraph predicted = training.getPredictedGraph(graphs, false);
+
+        assertEquals(expected.toString(), predicted.toString());
+        assertEquals(expected.getScore(), predicted.getScore(), 0.0);
+        assertEquals(expected.getFeatures(), predicted.getFeatures());
+
+        // The training step queries the chosen graph again. Unused queries
+        // may still be running, so only the query of the graph is counted.
+        if (predicted.getFeatures().contains(validQuery)) {
+          String query =
+              GraphToSparqlConverter.convertGroundedGraph(predicted, schema,
+                  null, 30);
+          int requests = transport.getRequests(query);
+          training.rdfGraphTools.runQueryHttp(query);
+          assertEquals(requests, transport.getRequests(query));
+        }
+      }
+    } finally {
+      GraphToQueryTraining.SPECULATIVE_QUERIES = speculativeQueries;
+    }
+  }
+
+  /**
+   * Tests if training on the same mini-batches gives the same model whatever
+   * the number of threads and the order in which the sentences end.
+   */
+  @Test
+  public void testMiniBatchTrainingDoesNotDependOnThreads() throws Exception {
+    List<String> sentences = new ArrayList<>();
+    for (int i = 0; i < 60; i++) {
+      // Sentences of different lengths, which run longest first.
+      sentences.add("{\"words\": [{}" + Strings.repeat(", {}", i % 4) + "]}");
+    }
+    boolean saveReadableModel = StructuredPercepton.SAVE_READABLE_MODEL;
+    StructuredPercepton.SAVE_READABLE_MODEL = false;
+    try {
+      byte[] expected = trainInBatches(sentences, 1);
+      assertArrayEquals(expected, trainInBatches(sentences, 4));
+      assertArrayEquals(expected, trainInBatches(sentences, 3));
+    } finally {
+      StructuredPercepton.SAVE_READABLE_MODEL = saveReadableModel;
+    }
+  }
+
+  /**
+   * Trains a model in batches of 8 sentences and returns the saved model.
+   * Each sentence updates the model if a wrong parse scores highest.
+   */
+  private static byte[] trainInBatches(List<String> sentences, int nthreads)
+      throws Exception {
+    StructuredPercepton learningModel = new StructuredPercepton();
+    Logger logger = Logger.getLogger(GraphToQueryTrainingTest.class);
+    GraphToQueryTraining.trainInBatches(SentenceScheduler
+        .getShared(nthreads), learningModel, sentences, 8, thread -> logger,
+        (jsonSentence, sentCount, threadLogger) -> {
+          Random random = new Random(sentCount % 20);
+          List<List<Feature>> parses = new ArrayList<>();
+          for (int i = 0; i < 3; i++) {
+            List<Feature> features = new ArrayList<>();
+            for (int j = 0; j < 3; j++) {
+              features.add(new MergedEdgeFeature(Arrays.asList("batch",
+                  random.nextInt(10)), random.nextDouble()));
+            }
+            parses.add(features);
+          }
+          List<Feature> predicted = parses.get(0);
+          for (List<Feature> parse : parses) {
+            if (learningModel.getScoreTraining(parse) >= learningModel
+                .getScoreTraining(predicted)) {
+              predicted = parse;
+            }
+          }
+          // Sentences end in a different order on every run.
+          try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          if (predicted != parses.get(0)) {
+            learningModel.updateWeightVector(1, parses.get(0), 1, predicted);
+          }
+        });
+
+    File modelFile = File.createTempFile("model", ".ser");
+    modelFile.deleteOnExit();
+    learningModel.saveModel(modelFile.getPath());
+    byte[] model = Files.readAllBytes(modelFile.toPath());
+    assertTrue(learningModel.getGeneration() > 0);
+    return model;
+  }
+}
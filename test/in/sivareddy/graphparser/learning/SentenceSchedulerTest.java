@@ -0,0 +1,114 @@
+package in.sivareddy.graphparser.learning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.gson.JsonParser;
+
+public class SentenceSchedulerTest {
+
+  private static List<String> getSentences(int size) {
+    List<String> sentences = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      sentences.add("{\"words\": [{}" + Strings.repeat(", {}", i % 7) + "]}");
+    }
+    return sentences;
+  }
+
+  /**
+   * Tests if the sentences of a batch run most expensive first.
+   */
+  @Test
+  public void testLongestSentencesRunFirst() throws Exception {
+    List<String> sentences = getSentences(30);
+    Logger logger = Logger.getLogger(SentenceSchedulerTest.class);
+    Queue<Integer> runs = new ConcurrentLinkedQueue<>();
+    SentenceScheduler.getShared(1).runInBatches(sentences, 10,
+        thread -> logger, (jsonSentence, sentCount, threadLogger) -> runs
+            .add(sentCount), null);
+
+    assertEquals(sentences.size(), runs.size());
+    List<Integer> order = new ArrayList<>(runs);
+    JsonParser parser = new JsonParser();
+    for (int i = 1; i < order.size(); i++) {
+      int previous = order.get(i - 1);
+      int current = order.get(i);
+      if (previous / 10 != current / 10) {
+        // A new batch.
+        assertTrue(previous / 10 < current / 10);
+        continue;
+      }
+      assertTrue(SentenceScheduler.estimateCost(parser.parse(
+          sentences.get(previous)).getAsJsonObject()) >= SentenceScheduler
+          .estimateCost(parser.parse(sentences.get(current))
+              .getAsJsonObject()));
+    }
+  }
+
+  /**
+   * Tests if a failing sentence does not stop the other sentences.
+   */
+  @Test
+  public void testFailuresDoNotStopOtherSentences() throws Exception {
+    List<String> sentences = getSentences(40);
+    Logger logger = Logger.getLogger(SentenceSchedulerTest.class);
+    Set<Integer> runs = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    SentenceScheduler.getShared(3).run(sentences, thread -> logger,
+        (jsonSentence, sentCount, threadLogger) -> {
+          if (sentCount % 5 == 0) {
+            throw new IllegalStateException("sentence " + sentCount);
+          }
+          runs.add(sentCount);
+        });
+
+    assertEquals(32, runs.size());
+    for (int i = 0; i < sentences.size(); i++) {
+      assertEquals(i % 5 != 0, runs.contains(i));
+    }
+  }
+
+  /**
+   * Tests if each thread creates its logger once, and runs its sentences with
+   * it.
+   */
+  @Test
+  public void testLoggerCreatedOncePerThread() throws Exception {
+    List<String> sentences = getSentences(50);
+    Map<Integer, AtomicInteger> created = new ConcurrentHashMap<>();
+    Map<Integer, Logger> loggers = new ConcurrentHashMap<>();
+    SentenceScheduler.getShared(4).runInBatches(sentences, 10, thread -> {
+      created.computeIfAbsent(thread, t -> new AtomicInteger())
+          .incrementAndGet();
+      Logger logger = Logger.getLogger("SentenceSchedulerTest." + thread);
+      loggers.put(thread, logger);
+      return logger;
+    }, (jsonSentence, sentCount, threadLogger) -> {
+      // The logger of the thread that runs the sentence.
+      int thread =
+          ((ForkJoinWorkerThread) Thread.currentThread()).getPoolIndex();
+      assertSame(loggers.get(thread), threadLogger);
+    }, null);
+
+    assertTrue(created.size() >= 1);
+    assertTrue(created.size() <= 4);
+    for (AtomicInteger count : created.values()) {
+      assertEquals(1, count.get());
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package in.sivareddy.graphparser.parsing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LexicalGraphBeamTest {
+
+  /**
+   * Tests if the beam keeps the graphs that sorting all the candidates and
+   * truncating to the beam size after each step keeps, in the same order.
+   */
+  @Test
+  public void testBeamMatchesSortAndTruncate() {
+    Random random = new Random(1);
+    for (int run = 0; run < 200; run++) {
+      int beamSize = 1 + random.nextInt(10);
+      LexicalGraphBeam beam = new LexicalGraphBeam(beamSize);
+      List<LexicalGraph> sorted = new ArrayList<>();
+      for (int step = 0; step < 10; step++) {
+        List<LexicalGraph> candidates = new ArrayList<>();
+        for (int i = random.nextInt(20); i > 0; i--) {
+          LexicalGraph graph = new LexicalGraph();
+          // Few distinct scores, so that ties are frequent.
+          graph.setScore((double) random.nextInt(5));
+          candidates.add(graph);
+        }
+        beam.addAll(candidates);
+
+        sorted.addAll(candidates);
+        Collections.sort(sorted);
+        sorted =
+            new ArrayList<>(sorted.subList(0,
+                Math.min(beamSize, sorted.size())));
+
+        List<LexicalGraph> beamGraphs = beam.getGraphs();
+        assertEquals(sorted.size(), beamGraphs.size());
+        for (int i = 0; i < sorted.size(); i++) {
+          assertSame(sorted.get(i), beamGraphs.get(i));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package in.sivareddy.graphparser.parsing;
+
+import static org.junit.Assert.assertEquals;
+import in.sivareddy.graphparser.parsing.LexicalGraph.UrelGrelFeature;
+import in.sivareddy.graphparser.util.knowledgebase.Relation;
+import in.sivareddy.ml.basic.Feature;
+import in.sivareddy.ml.learning.StructuredPercepton;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class LexicalGraphTest {
+
+  private static Feature getFeature(String name) {
+    return new UrelGrelFeature(Lists.newArrayList(new Relation(name, "1"),
+        new Relation(name, "2")), 1.0);
+  }
+
+  @Test
+  public void testIncrementalScoreFollowsModelUpdates() {
+    StructuredPercepton model = new StructuredPercepton();
+    Feature first = getFeature("first");
+    Feature second = getFeature("second");
+    model.setWeightIfAbsent(first, 1.0);
+    model.setWeightIfAbsent(second, 2.0);
+
+    LexicalGraph graph = new LexicalGraph();
+    graph.addFeature(first);
+    assertEquals(1.0, graph.getIncrementalScore(model, false), 1e-9);
+
+    // Updating the weights of the same model invalidates the cached score.
+    List<Feature> gold = new ArrayList<>();
+    gold.add(first);
+    model.updateWeightVector(1, gold, 1, new ArrayList<>());
+    assertEquals(model.getScoreTraining(graph.getFeatures()),
+        graph.getIncrementalScore(model, false), 1e-9);
+
+    graph.addFeature(second);
+    LexicalGraph copy = graph.copy();
+    model.updateWeightVector(1, new ArrayList<>(), 1, gold);
+    assertEquals(model.getScoreTraining(copy.getFeatures()),
+        copy.getIncrementalScore(model, false), 1e-9);
+    assertEquals(model.getScoreTesting(graph.getFeatures()),
+        graph.getIncrementalScore(model, true), 1e-9);
+  }
+
+  @Test
+  public void testSettingKnownFeaturesKeepsCachedScore() {
+    StructuredPercepton model = new StructuredPercepton();
+    Feature first = getFeature("first");
+    model.setWeightIfAbsent(first, 1.0);
+
+    LexicalGraph graph = new LexicalGraph();
+    graph.addFeature(first);
+    assertEquals(1.0, graph.getIncrementalScore(model, false), 1e-9);
+    long generation = model.getGeneration();
+
+    // Grounding sets the initial weights of features the model already has.
+    model.setWeightIfAbsent(getFeature("first"), 5.0);
+    assertEquals(generation, model.getGeneration());
+    assertEquals(1.0, graph.getIncrementalScore(model, false), 1e-9);
+
+    model.setWeightIfAbsent(getFeature("second"), 2.0);
+    assertEquals(generation + 1, model.getGeneration());
+    assertEquals(1.0, graph.getIncrementalScore(model, false), 1e-9);
+  }
+}
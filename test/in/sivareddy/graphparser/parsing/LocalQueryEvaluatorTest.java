@@ -0,0 +1,103 @@
+package in.sivareddy.graphparser.parsing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import in.sivareddy.graphparser.ccg.LexicalItem;
+import in.sivareddy.graphparser.util.knowledgebase.EntityType;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseCached;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseMapped;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseSnapshot;
+import in.sivareddy.graphparser.util.knowledgebase.Property;
+import in.sivareddy.graphparser.util.knowledgebase.Relation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class LocalQueryEvaluatorTest {
+
+  private static final String[] FACTS = {
+      "\"m.0gbltb2\"\t[\"film.editor\",\"film.writer\"]",
+      "\"m.0n64zwm\"\t[\"film.director\"]",
+      "[\"m.0n64zwd\",\"m.0n64zwm\"]\t[[\"film.film.directed_by\"],[\"film.film_crew_gig.film\",\"film.film_crew_gig.crewmember\"]]",
+      "[\"m.0n64zwm\",\"m.0gbltb2\"]\t[[\"film.film.written_by\"]]",
+      "[\"m.0n64zwd\",\"m.0gbltb3\"]\t[[\"film.film.directed_by\"]]"};
+
+  @Test
+  public void testEvaluate() throws IOException {
+    assertAnswers(new LocalQueryEvaluator(new KnowledgeBaseCached(
+        writeFacts(), null)));
+  }
+
+  @Test
+  public void testEvaluateMapped() throws IOException {
+    File snapshotFile =
+        File.createTempFile("facts", KnowledgeBaseSnapshot.FILE_SUFFIX);
+    snapshotFile.deleteOnExit();
+    new KnowledgeBaseCached(writeFacts(), null).writeSnapshot(snapshotFile
+        .getPath());
+    assertAnswers(new LocalQueryEvaluator(new KnowledgeBaseMapped(
+        snapshotFile.getPath())));
+  }
+
+  private static void assertAnswers(LocalQueryEvaluator evaluator) {
+    LexicalItem film = createNode("film", 0, "m.0n64zwd");
+    LexicalItem director = createNode("director", 1, "x");
+    LexicalItem writer = createNode("writer", 2, "x");
+    LexicalItem mediator = createNode("by", 3, "x");
+
+    LexicalGraph graph = new LexicalGraph();
+    graph.addEdge(film, director, mediator,
+        new Relation("film.film.directed_by.1", "film.film.directed_by.2"));
+    graph.addProperty(director, new Property("QUESTION"));
+    assertEquals(Sets.newHashSet("http://rdf.freebase.com/ns/m.0n64zwm",
+        "http://rdf.freebase.com/ns/m.0gbltb3"),
+        evaluator.evaluate(graph, null, 10).get("x1"));
+
+    // Types restrict the answers.
+    graph.addType(director, director, new EntityType("film.director"));
+    assertEquals(Sets.newHashSet("http://rdf.freebase.com/ns/m.0n64zwm"),
+        evaluator.evaluate(graph, null, 10).get("x1"));
+
+    // Two hops, with a mediator relation.
+    graph = new LexicalGraph();
+    graph.addEdge(film, director, mediator, new Relation(
+        "film.film_crew_gig.film", "film.film_crew_gig.crewmember"));
+    graph.addEdge(writer, director, createNode("of", 4, "x"), new Relation(
+        "film.film.written_by.2", "film.film.written_by.1"));
+    assertEquals(Sets.newHashSet("http://rdf.freebase.com/ns/m.0gbltb2"),
+        evaluator.evaluate(graph, writer, 10).get("x2"));
+    assertEquals(1, evaluator.evaluate(graph, writer, 1).get("x2").size());
+
+    // Counts are left to the endpoint.
+    graph.addProperty(writer, new Property("COUNT", "2:2"));
+    assertNull(evaluator.evaluate(graph, writer, 10));
+  }
+
+  private static LexicalItem createNode(String word, int position, String mid) {
+    LexicalItem node = new LexicalItem("N", word, word, "NN", "O", "en", null);
+    node.setWordPosition(position);
+    node.setMid(mid);
+    return node;
+  }
+
+  private static String writeFacts() throws IOException {
+    File factsFile = File.createTempFile("facts", ".gz");
+    factsFile.deleteOnExit();
+    try (Writer writer =
+        new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(
+            factsFile)), "UTF-8")) {
+      for (String fact : FACTS) {
+        writer.write(fact + "\n");
+      }
+    }
+    return factsFile.getPath();
+  }
+}
@@ -0,0 +1,56 @@
+package in.sivareddy.graphparser.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class CanonicalQueryTest {
+
+  @Test
+  public void testEquivalentQueries() {
+    CanonicalQuery query1 =
+        CanonicalQuery
+            .of("PREFIX fb: <http://rdf.freebase.com/ns/> SELECT DISTINCT ?x3 ?x3name FROM <http://film.freebase.com> WHERE { ?m1 fb:film.performance.actor ?x3 . ?m1 fb:film.performance.film fb:m.0dr_4 . FILTER(?x3 != fb:m.0dr_4) . ?x3 rdf:type fb:film.actor .  OPTIONAL {FILTER(langMatches(lang(?x3name), \"en\")) . ?x3 fb:type.object.name ?x3name . } } LIMIT 10");
+    CanonicalQuery query2 =
+        CanonicalQuery
+            .of("PREFIX fb: <http://rdf.freebase.com/ns/> SELECT DISTINCT ?x5 ?x5name FROM <http://film.freebase.com> WHERE { ?x5 rdf:type fb:film.actor . ?m2 fb:film.performance.film fb:m.0dr_4 .\n ?m2 fb:film.performance.actor ?x5 . FILTER(?x5 != fb:m.0dr_4) . OPTIONAL {FILTER(langMatches(lang(?x5name), \"en\")) . ?x5 fb:type.object.name ?x5name . } } LIMIT 10");
+    assertEquals(query1.getQuery(), query2.getQuery());
+    assertEquals(query1.getHash(), query2.getHash());
+
+    Map<String, LinkedHashSet<String>> results = new HashMap<>();
+    results.put("v0", Sets.newLinkedHashSet(Arrays.asList("fb:m.01")));
+    results.put("v1", Sets.newLinkedHashSet(Arrays.asList("name")));
+    assertEquals(Sets.newHashSet("x3", "x3name"),
+        query1.toOriginalVariables(results).keySet());
+    assertEquals(Sets.newHashSet("x5", "x5name"),
+        query2.toOriginalVariables(results).keySet());
+  }
+
+  @Test
+  public void testDifferentQueries() {
+    CanonicalQuery query1 =
+        CanonicalQuery
+            .of("SELECT ?x WHERE { ?x fb:a ?y . ?y fb:b fb:m.01 . }");
+    CanonicalQuery query2 =
+        CanonicalQuery
+            .of("SELECT ?x WHERE { ?y fb:a ?x . ?y fb:b fb:m.01 . }");
+    assertNotEquals(query1.getHash(), query2.getHash());
+
+    // Optional blocks are not moved.
+    CanonicalQuery query3 =
+        CanonicalQuery
+            .of("SELECT ?x WHERE { ?x fb:a ?y . OPTIONAL { ?x fb:c ?z . } ?y fb:b ?z . }");
+    CanonicalQuery query4 =
+        CanonicalQuery
+            .of("SELECT ?x WHERE { ?y fb:b ?z . OPTIONAL { ?x fb:c ?z . } ?x fb:a ?y . }");
+    assertNotEquals(query3.getHash(), query4.getHash());
+  }
+}
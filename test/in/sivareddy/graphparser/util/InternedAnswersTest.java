@@ -0,0 +1,217 @@
+package in.sivareddy.graphparser.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class InternedAnswersTest {
+  private static final String FB = "http://rdf.freebase.com/ns/";
+  private static final String XSD = "^^http://www.w3.org/2001/XMLSchema#";
+
+  private static final String[] ANSWERS = {FB + "m.01", FB + "m.02",
+      FB + "m.03", "m.01", "m.02", "2008", "12", "Paris", "Paris@en",
+      "12" + XSD + "int", "2008-12-31" + XSD + "datetime",
+      "2008" + XSD + "datetime", "1999-01-02" + XSD + "datetime",
+      "12/31/2008", "1/2/1999"};
+
+  @Test
+  public void testModifiedSetsAreInternedAgain() {
+    Map<String, LinkedHashSet<String>> gold = new HashMap<>();
+    gold.put("answer", Sets.newLinkedHashSet(Arrays.asList("m.01")));
+    Map<String, LinkedHashSet<String>> pred = new HashMap<>();
+    LinkedHashSet<String> predAnswers =
+        Sets.newLinkedHashSet(Arrays.asList(FB + "m.01", FB + "m.02"));
+    pred.put("x", predAnswers);
+    assertEquals(2.0 / 3, RdfGraphTools.getPointWiseF1(gold, pred), 1e-9);
+
+    // Same size, different answers.
+    predAnswers.remove(FB + "m.01");
+    predAnswers.add(FB + "m.03");
+    assertEquals(0.0, RdfGraphTools.getPointWiseF1(gold, pred), 1e-9);
+  }
+
+  /**
+   * Tests if the answers compared through interned ids score as the answers
+   * compared as strings, while answer sets are modified in place and the
+   * interned answers are replaced often.
+   */
+  @Test
+  public void testComparisonsMatchStringComparisons() {
+    int maxAnswers = InternedAnswers.MAX_ANSWERS;
+    InternedAnswers.MAX_ANSWERS = 5;
+    try {
+      Random random = new Random(1);
+      List<LinkedHashSet<String>> predSets = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        predSets.add(getAnswers(random));
+      }
+      String[] goldVars = {"answer", "answerSubset", "targetValue", "x"};
+      for (int i = 0; i < 5000; i++) {
+        Map<String, LinkedHashSet<String>> gold = new HashMap<>();
+        gold.put(goldVars[random.nextInt(goldVars.length)],
+            getAnswers(random));
+
+        // Shared answer sets, modified between comparisons.
+        LinkedHashSet<String> predAnswers =
+            predSets.get(random.nextInt(predSets.size()));
+        if (random.nextBoolean() && !predAnswers.isEmpty()) {
+          predAnswers.remove(predAnswers.iterator().next());
+          predAnswers.add(ANSWERS[random.nextInt(ANSWERS.length)]);
+        }
+        Map<String, LinkedHashSet<String>> pred = new HashMap<>();
+        pred.put("x", predAnswers);
+        if (random.nextBoolean()) {
+          pred.put("x_name", predSets.get(random.nextInt(predSets.size())));
+        }
+
+        String message = gold + " " + pred;
+        assertEquals(message, getPointWiseF1(gold, pred),
+            RdfGraphTools.getPointWiseF1(gold, pred), 1e-12);
+        assertEquals(message, equalResults(gold, pred),
+            RdfGraphTools.equalResults(gold, pred));
+      }
+    } finally {
+      InternedAnswers.MAX_ANSWERS = maxAnswers;
+    }
+  }
+
+  private static LinkedHashSet<String> getAnswers(Random random) {
+    LinkedHashSet<String> answers = new LinkedHashSet<>();
+    for (int i = random.nextInt(5); i >= 0; i--) {
+      answers.add(ANSWERS[random.nextInt(ANSWERS.length)]);
+    }
+    return answers;
+  }
+
+  // The string comparisons the interned comparisons replaced.
+
+  private static final Pattern YEAR = Pattern.compile("([0-9]{3,4})");
+
+  private static String getGoldVar(Map<String, LinkedHashSet<String>> gold) {
+    for (String key : gold.keySet()) {
+      if (!key.equals("targetValue") && !key.contains("name")) {
+        return key;
+      }
+    }
+    return null;
+  }
+
+  private static Set<String> cleanPred(Map<String, LinkedHashSet<String>> gold,
+      Map<String, LinkedHashSet<String>> pred) {
+    String predVar = null;
+    String predVarName = null;
+    for (String key : pred.keySet()) {
+      if (!key.contains("name")) {
+        predVar = key;
+      } else if (pred.get(key).size() > 0) {
+        predVarName = key;
+      }
+    }
+    String goldVar = getGoldVar(gold);
+    Set<String> cleaned = new LinkedHashSet<>();
+    if (gold.containsKey("targetValue")) {
+      for (String answer : predVarName != null ? pred.get(predVarName) : pred
+          .get(predVar)) {
+        cleaned.add(RdfGraphTools.handleXMLSchemaEntry(answer));
+      }
+    } else if (goldVar.equals("answerSubset") || goldVar.equals("answer")) {
+      for (String answer : pred.get(predVar)) {
+        cleaned.add(cleanMid(answer));
+      }
+    } else {
+      cleaned = pred.get(predVar);
+    }
+    return cleaned;
+  }
+
+  private static String cleanMid(String answer) {
+    boolean answerIsDate = answer.contains("XMLSchema#datetime");
+    answer = answer.split("\\^\\^")[0];
+    String[] answers = answer.split("/");
+    answer = answers[answers.length - 1];
+    if (answerIsDate) {
+      Matcher matcher = YEAR.matcher(answer);
+      if (matcher.find()) {
+        answer = matcher.group(1);
+      }
+    }
+    return answer;
+  }
+
+  private static double getPointWiseF1(
+      Map<String, LinkedHashSet<String>> gold,
+      Map<String, LinkedHashSet<String>> pred) {
+    Set<String> goldAnswers =
+        gold.containsKey("targetValue") ? RdfGraphTools
+            .handleXMLSchemaEntries(gold.get("targetValue")) : gold
+            .get(getGoldVar(gold));
+    Set<String> predAnswers = cleanPred(gold, pred);
+    if (gold.containsKey("answerSubset")) {
+      return predAnswers.containsAll(goldAnswers) ? 1.0 : 0.0;
+    }
+    Set<String> overlap = new HashSet<>(predAnswers);
+    overlap.retainAll(goldAnswers);
+    if (overlap.size() == 0) {
+      return 0.0;
+    }
+    double precision = (overlap.size() + 0.0) / predAnswers.size();
+    double recall = (overlap.size() + 0.0) / goldAnswers.size();
+    return 2 * precision * recall / (precision + recall);
+  }
+
+  private static boolean equalResults(Map<String, LinkedHashSet<String>> gold,
+      Map<String, LinkedHashSet<String>> pred) {
+    String goldVar = getGoldVar(gold);
+    if (gold.containsKey("targetValue")) {
+      Set<String> goldAnswers = gold.get("targetValue");
+      boolean hasDate =
+          goldAnswers.size() > 0
+              && goldAnswers.iterator().next().contains("XMLSchema#datetime");
+      if (hasDate) {
+        goldAnswers = RdfGraphTools.handleXMLSchemaEntries(goldAnswers);
+      }
+      String predVarName = null;
+      for (String key : pred.keySet()) {
+        if (key.contains("name") && pred.get(key).size() > 0) {
+          predVarName = key;
+        }
+      }
+      Set<String> predAnswers = new HashSet<>();
+      for (String answer : pred.get(predVarName != null ? predVarName : "x")) {
+        answer = answer.split("\\^\\^")[0].replaceAll("@[a-zA-Z\\-]+$", "");
+        if (hasDate) {
+          Matcher matcher = YEAR.matcher(answer);
+          if (matcher.find()) {
+            answer = matcher.group(1);
+          }
+        }
+        predAnswers.add(answer);
+      }
+      return predAnswers.equals(goldAnswers);
+    } else if (goldVar.equals("answerSubset") || goldVar.equals("answer")) {
+      Set<String> predAnswers = new HashSet<>();
+      for (String answer : pred.get("x")) {
+        predAnswers.add(cleanMid(answer));
+      }
+      if (goldVar.equals("answerSubset")) {
+        return predAnswers.containsAll(gold.get(goldVar));
+      }
+      return predAnswers.equals(gold.get(goldVar));
+    }
+    return gold.get(goldVar).equals(pred.get("x"));
+  }
+}
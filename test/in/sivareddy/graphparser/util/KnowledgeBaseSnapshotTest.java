@@ -0,0 +1,241 @@
+package in.sivareddy.graphparser.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBase;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseCached;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseMapped;
+import in.sivareddy.graphparser.util.knowledgebase.KnowledgeBaseSnapshot;
+import in.sivareddy.graphparser.util.knowledgebase.Relation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class KnowledgeBaseSnapshotTest {
+
+  private static final String[] FACTS = {
+      "\"m.0gbltb2\"\t[\"film.editor\",\"film.writer\"]",
+      "\"m.empty\"\t[]",
+      "[\"m.0n64zwd\",\"m.0n64zwm\"]\t[[\"film.film.directed_by\"],[\"film.film_crew_gig.film\",\"film.film_crew_gig.crewmember\"]]",
+      "[\"m.0n64zwm\",\"m.0gbltb2\"]\t[[\"film.film.written_by\"]]",
+      "[\"m.04q6psm\",\"type.datetime\"]\t[[\"film.film_regional_release_date.film\",\"film.film_regional_release_date.release_date\"],[\"film.film.initial_release_date\"]]"};
+
+  @Test
+  public void testSnapshotMatchesKB() throws IOException {
+    File factsFile = writeFacts();
+    File snapshotFile =
+        File.createTempFile("facts", KnowledgeBaseSnapshot.FILE_SUFFIX);
+    snapshotFile.deleteOnExit();
+
+    KnowledgeBaseCached kb =
+        new KnowledgeBaseCached(factsFile.getPath(), null);
+    kb.writeSnapshot(snapshotFile.getPath());
+    KnowledgeBaseCached snapshotKB =
+        new KnowledgeBaseCached(snapshotFile.getPath(), null);
+    assertSameAnswers(kb, snapshotKB);
+    KnowledgeBaseMapped mappedKB =
+        new KnowledgeBaseMapped(snapshotFile.getPath());
+    assertSameAnswers(kb, mappedKB);
+
+    // Relations read from the mapped file are decoded once.
+    Relation[] relations = mappedKB.getRelationArray("m.0n64zwd", "m.0n64zwm");
+    Set<Relation> entityRelations = Sets.newIdentityHashSet();
+    entityRelations.addAll(Arrays.asList(mappedKB
+        .getRelationArray("m.0n64zwd")));
+    for (Relation relation : relations) {
+      assertTrue(entityRelations.contains(relation));
+    }
+
+    assertTrue(snapshotKB.hasRelation("m.0gbltb2", "m.0n64zwm"));
+    assertFalse(snapshotKB.hasRelation("m.0gbltb2", "m.0n64zwd"));
+    assertEquals(0, snapshotKB.getTypes("m.empty").size());
+    assertNull(snapshotKB.getTypes("m.0n64zwd"));
+  }
+
+  @Test
+  public void testInversePairsIndexStoredPairs() throws IOException {
+    File snapshotFile =
+        File.createTempFile("facts", KnowledgeBaseSnapshot.FILE_SUFFIX);
+    snapshotFile.deleteOnExit();
+    new KnowledgeBaseCached(writeFacts().getPath(), null)
+        .writeSnapshot(snapshotFile.getPath());
+    KnowledgeBaseSnapshot snapshot =
+        KnowledgeBaseSnapshot.open(snapshotFile.getPath());
+
+    List<String> pairs = new ArrayList<>();
+    List<String> inversePairs = new ArrayList<>();
+    for (int entityId = 0; entityId < snapshot.getEntityCount(); entityId++) {
+      for (int entity2Id : snapshot.getPairedEntityIds(entityId)) {
+        pairs.add(entityId + " " + entity2Id);
+      }
+      int[] entity1Ids = snapshot.getInversePairedEntityIds(entityId);
+      for (int i = 0; i < entity1Ids.length; i++) {
+        assertTrue(i == 0 || entity1Ids[i - 1] < entity1Ids[i]);
+        assertTrue(snapshot.hasPair(entity1Ids[i], entityId));
+        inversePairs.add(entity1Ids[i] + " " + entityId);
+      }
+    }
+    assertEquals(3, pairs.size());
+    assertEquals(Sets.newHashSet(pairs), Sets.newHashSet(inversePairs));
+    assertEquals(pairs.size(), inversePairs.size());
+  }
+
+  @Test
+  public void testRelationsAreShared() throws IOException {
+    KnowledgeBaseCached kb =
+        new KnowledgeBaseCached(writeFacts().getPath(), null);
+    Relation[] relations = kb.getRelationArray("m.0n64zwd", "m.0n64zwm");
+    assertEquals(2, relations.length);
+    assertSame(relations, kb.getRelationArray("m.0n64zwd", "m.0n64zwm"));
+
+    // The same relation seen from one of the entities is the same instance.
+    Set<Relation> entityRelations = Sets.newIdentityHashSet();
+    entityRelations.addAll(Arrays.asList(kb.getRelationArray("m.0n64zwd")));
+    for (Relation relation : relations) {
+      assertTrue(entityRelations.contains(relation));
+    }
+
+    Relation[] inverseRelations =
+        kb.getRelationArray("m.0n64zwm", "m.0n64zwd");
+    assertEquals(2, inverseRelations.length);
+    for (Relation relation : relations) {
+      assertTrue(Arrays.asList(inverseRelations).contains(relation.inverse()));
+    }
+    assertNull(kb.getRelationArray("m.unknown", "m.0n64zwd"));
+
+    try {
+      kb.getRelations("m.0n64zwd").clear();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // The relations are a view of the shared array.
+    }
+    assertEquals(2, kb.getRelationArray("m.0n64zwd").length);
+  }
+
+  @Test
+  public void testShardedLoading() throws IOException {
+    KnowledgeBaseCached kb =
+        new KnowledgeBaseCached(writeFacts().getPath(), null, 1);
+    String shards =
+        writeFacts(Arrays.copyOfRange(FACTS, 0, 2)).getPath() + ";"
+            + writeFacts(Arrays.copyOfRange(FACTS, 2, FACTS.length)).getPath();
+    assertSameAnswers(kb, new KnowledgeBaseCached(shards, null, 4));
+  }
+
+  /**
+   * Tests if random facts about the same entities, loaded from interleaved
+   * shards by several threads, give the same answers as a single file.
+   */
+  @Test
+  public void testShardedLoadingOfManyFacts() throws IOException {
+    String[] relations =
+        {"[\"film.film.directed_by\"]", "[\"film.film.written_by\"]",
+            "[\"film.film_crew_gig.film\",\"film.film_crew_gig.crewmember\"]"};
+    String[] types = {"\"film.editor\"", "\"film.writer\"", "\"film.film\""};
+    Random random = new Random(1);
+    List<String> facts = new ArrayList<>();
+    List<String> entities = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      entities.add("m.0" + i);
+    }
+    for (int i = 0; i < 3000; i++) {
+      String entity1 = entities.get(random.nextInt(entities.size()));
+      if (random.nextInt(4) == 0) {
+        facts.add(String.format("\"%s\"\t[%s]", entity1,
+            types[random.nextInt(types.length)]));
+      } else {
+        String entity2 = entities.get(random.nextInt(entities.size()));
+        facts.add(String.format("[\"%s\",\"%s\"]\t[%s]", entity1, entity2,
+            relations[random.nextInt(relations.length)]));
+      }
+    }
+
+    File relationTypesFile = File.createTempFile("relationTypes", ".txt");
+    relationTypesFile.deleteOnExit();
+    Files.write(relationTypesFile.toPath(),
+        Arrays.asList("[\"film.film.directed_by\"] # right_arg"));
+    KnowledgeBaseCached kb =
+        new KnowledgeBaseCached(writeFacts(facts.toArray(new String[0]))
+            .getPath(), relationTypesFile.getPath(), 1);
+    StringBuilder shards = new StringBuilder();
+    for (int shard = 0; shard < 4; shard++) {
+      List<String> shardFacts = new ArrayList<>();
+      for (int i = shard; i < facts.size(); i += 4) {
+        shardFacts.add(facts.get(i));
+      }
+      shards.append(writeFacts(shardFacts.toArray(new String[0])).getPath())
+          .append(";");
+    }
+    entities.add("m.unknown");
+    assertSameAnswers(kb, new KnowledgeBaseCached(shards.toString(),
+        relationTypesFile.getPath(), 4), entities.toArray(new String[0]));
+  }
+
+  private static File writeFacts() throws IOException {
+    return writeFacts(FACTS);
+  }
+
+  private static File writeFacts(String[] facts) throws IOException {
+    File factsFile = File.createTempFile("facts", ".txt.gz");
+    factsFile.deleteOnExit();
+    try (Writer writer =
+        new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(
+            factsFile)), "UTF-8")) {
+      for (String fact : facts) {
+        writer.write(fact + "\n");
+      }
+    }
+    return factsFile;
+  }
+
+  private void assertSameAnswers(KnowledgeBase expected, KnowledgeBase actual) {
+    assertSameAnswers(expected, actual, new String[] {"m.0gbltb2", "m.empty",
+        "m.0n64zwd", "m.0n64zwm", "m.04q6psm", "type.datetime", "type.int",
+        "m.unknown"});
+  }
+
+  private void assertSameAnswers(KnowledgeBase expected, KnowledgeBase actual,
+      String[] entities) {
+    for (String entity1 : entities) {
+      assertEquals(expected.hasEntity(entity1), actual.hasEntity(entity1));
+      assertEquals(expected.getTypes(entity1), actual.getTypes(entity1));
+      assertEquals(expected.getRelations(entity1),
+          actual.getRelations(entity1));
+      assertEquals(expected.getRelations(entity1),
+          toSet(actual.getRelationArray(entity1)));
+      for (String entity2 : entities) {
+        assertEquals(expected.hasRelation(entity1, entity2),
+            actual.hasRelation(entity1, entity2));
+        assertEquals(expected.getRelations(entity1, entity2),
+            actual.getRelations(entity1, entity2));
+        Relation[] relations = actual.getRelationArray(entity1, entity2);
+        assertEquals(expected.getRelations(entity1, entity2), toSet(relations));
+        if (relations != null) {
+          assertEquals(relations.length, toSet(relations).size());
+        }
+      }
+    }
+  }
+
+  private static Set<Relation> toSet(Relation[] relations) {
+    return relations == null ? null : Sets.newHashSet(relations);
+  }
+}
@@ -0,0 +1,120 @@
+package in.sivareddy.graphparser.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Sets;
+
+public class PersistentQueryCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Map<String, LinkedHashSet<String>> getResults(String value) {
+    Map<String, LinkedHashSet<String>> results = new HashMap<>();
+    results.put("x", Sets.newLinkedHashSet(Arrays.asList(value)));
+    return results;
+  }
+
+  @Test
+  public void testResultsSurviveReopening() throws IOException {
+    String directory = folder.getRoot().getPath();
+    Map<String, LinkedHashSet<String>> results = new HashMap<>();
+    results.put("x", Sets.newLinkedHashSet(Arrays.asList(
+        "http://rdf.freebase.com/ns/m.01", "2^^<\"int\">")));
+    results.put("x_name", Sets.newLinkedHashSet(Arrays.asList("ü")));
+
+    PersistentQueryCache cache = new PersistentQueryCache(directory, 1 << 20);
+    assertNull(cache.get("SELECT ?x WHERE { ?x ?p ?o . }"));
+    cache.put("SELECT ?x WHERE { ?x ?p ?o . }", results);
+
+    PersistentQueryCache reopened =
+        new PersistentQueryCache(directory, 1 << 20);
+    assertEquals(results, reopened.get("SELECT ?x  WHERE {\n ?x ?p ?o . } "));
+    assertNull(reopened.get("SELECT ?y WHERE { ?y ?p ?o . }"));
+
+    // Caches sharing the directory see each other's results.
+    reopened.put("SELECT ?y WHERE { ?y ?p ?o . }", getResults("m.02"));
+    assertEquals(getResults("m.02"),
+        cache.get("SELECT ?y WHERE { ?y ?p ?o . }"));
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    String directory = folder.getRoot().getPath();
+    PersistentQueryCache cache = new PersistentQueryCache(directory, 2000);
+    for (int i = 0; i < 100; i++) {
+      cache.put("query " + i, getResults("m." + i));
+      // The first query stays the most recently used one.
+      assertNotNull(cache.get("query 0"));
+    }
+    long size = new File(directory, PersistentQueryCache.LOG_FILE).length();
+    assertTrue(size > 0 && size <= 2000);
+    assertEquals(getResults("m.99"), cache.get("query 99"));
+    assertNull(cache.get("query 1"));
+
+    // A cache opened after compacting has the same results.
+    PersistentQueryCache reopened = new PersistentQueryCache(directory, 2000);
+    assertEquals(getResults("m.0"), reopened.get("query 0"));
+    assertEquals(getResults("m.99"), reopened.get("query 99"));
+  }
+
+  @Test
+  public void testBrokenRecordIsCutOff() throws IOException {
+    String directory = folder.getRoot().getPath();
+    PersistentQueryCache cache = new PersistentQueryCache(directory, 1 << 20);
+    cache.put("query 1", getResults("m.1"));
+    cache.put("query 2", getResults("m.2"));
+
+    // Drops the end of the last record, as a killed JVM would leave it.
+    File logFile = new File(directory, PersistentQueryCache.LOG_FILE);
+    try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+    PersistentQueryCache reopened =
+        new PersistentQueryCache(directory, 1 << 20);
+    assertEquals(getResults("m.1"), reopened.get("query 1"));
+    assertNull(reopened.get("query 2"));
+
+    reopened.put("query 3", getResults("m.3"));
+    assertEquals(getResults("m.3"),
+        new PersistentQueryCache(directory, 1 << 20).get("query 3"));
+  }
+
+  @Test
+  public void testMissesOnUnchangedFileTakeNoLock() throws IOException {
+    String directory = folder.getRoot().getPath();
+    PersistentQueryCache cache = new PersistentQueryCache(directory, 1 << 20);
+    cache.put("query 1", getResults("m.1"));
+    PersistentQueryCache other = new PersistentQueryCache(directory, 1 << 20);
+
+    // Locking the lock file again in this JVM would throw.
+    try (RandomAccessFile file =
+        new RandomAccessFile(new File(directory, ".lock"), "rw");
+        FileLock lock = file.getChannel().lock()) {
+      assertTrue(lock.isValid());
+      assertNull(cache.get("query 2"));
+      assertNull(other.get("query 2"));
+      assertEquals(getResults("m.1"), other.get("query 1"));
+    }
+
+    // Appending changes the file, so the other cache looks again.
+    cache.put("query 2", getResults("m.2"));
+    assertEquals(getResults("m.2"), other.get("query 2"));
+  }
+}
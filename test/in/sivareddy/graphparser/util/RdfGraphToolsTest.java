@@ -0,0 +1,124 @@
+package in.sivareddy.graphparser.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.apache.http.client.HttpResponseException;
+import org.junit.Test;
+
+public class RdfGraphToolsTest {
+  private static final String QUERY = "SELECT ?x WHERE { ?x ?p ?o . }";
+  private static final String RESPONSE =
+      "{\"head\": {\"vars\": [\"x\"]}, \"results\": {\"bindings\": "
+          + "[{\"x\": {\"type\": \"uri\", \"value\": \"m.01\"}}]}}";
+
+  /**
+   * Answers requests with the given responses in order: a string is the body
+   * of the response, and an exception is thrown.
+   */
+  private static class FakeTransport implements SparqlTransport {
+    private final Deque<Object> responses = new ArrayDeque<>();
+
+    @Override
+    public InputStream get(URI uri, int timeOut) throws IOException {
+      Object response = responses.poll();
+      if (response instanceof IOException) {
+        throw (IOException) response;
+      }
+      return new ByteArrayInputStream(
+          ((String) response).getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static RdfGraphTools getEndPoint(String name, int timeOut,
+      FakeTransport transport) {
+    RdfGraphTools endPoint =
+        new RdfGraphTools("http://" + name + ".test/sparql", timeOut);
+    endPoint.setTransport(transport);
+    return endPoint;
+  }
+
+  @Test
+  public void testFailedQueriesAreNotCached() {
+    FakeTransport transport = new FakeTransport();
+    RdfGraphTools endPoint = getEndPoint("failed", 0, transport);
+    transport.responses.add(new HttpResponseException(503, "Unavailable"));
+    transport.responses.add(RESPONSE);
+    assertTrue(endPoint.runQueryHttp(QUERY).isEmpty());
+    Map<String, LinkedHashSet<String>> results = endPoint.runQueryHttp(QUERY);
+    assertEquals("[m.01]", results.get("x").toString());
+
+    transport.responses.add(new HttpResponseException(503, "Unavailable"));
+    try {
+      endPoint.runQueryHttpSolutions(QUERY);
+      fail("A failed query has no solutions");
+    } catch (QueryFailedException e) {
+      // Expected.
+    }
+
+    // Bad queries are remembered.
+    transport.responses.add(new HttpResponseException(400, "Bad query"));
+    assertTrue(endPoint.runQueryHttp(QUERY + " LIMIT 1").isEmpty());
+    assertTrue(endPoint.runQueryHttp(QUERY + " LIMIT 1").isEmpty());
+    assertTrue(transport.responses.isEmpty());
+  }
+
+  @Test
+  public void testSkippedQueriesAreNotCached() {
+    int threshold = EndpointHealth.FAILURE_THRESHOLD;
+    EndpointHealth.FAILURE_THRESHOLD = 1;
+    try {
+      FakeTransport transport = new FakeTransport();
+      RdfGraphTools endPoint = getEndPoint("skipped", 0, transport);
+      transport.responses.add(new HttpResponseException(503, "Unavailable"));
+      assertTrue(endPoint.runQueryHttp(QUERY).isEmpty());
+      // The circuit is open, so the query is not sent.
+      try {
+        endPoint.runQueryHttpSolutions(QUERY);
+        fail("A skipped query has no solutions");
+      } catch (QueryFailedException e) {
+        // Expected.
+      }
+      assertEquals(1, endPoint.getEndpointHealth().getSkippedQueries());
+    } finally {
+      EndpointHealth.FAILURE_THRESHOLD = threshold;
+    }
+  }
+
+  @Test
+  public void testOnlyConfiguredTimeoutsAreCached() {
+    FakeTransport transport = new FakeTransport();
+    RdfGraphTools endPoint = getEndPoint("timeout", 60000, transport);
+    transport.responses.add(new SocketTimeoutException());
+    assertTrue(endPoint.runQueryHttp(QUERY).isEmpty());
+    assertTrue(endPoint.runQueryHttp(QUERY).isEmpty());
+    assertTrue(transport.responses.isEmpty());
+
+    int minSamples = EndpointHealth.MIN_SAMPLES;
+    EndpointHealth.MIN_SAMPLES = 1;
+    try {
+      // After a fast query, the timeout is lowered to MIN_TIMEOUT.
+      transport.responses.add(RESPONSE);
+      endPoint.runQueryHttp(QUERY + " LIMIT 1");
+      transport.responses.add(new SocketTimeoutException());
+      transport.responses.add(RESPONSE);
+      assertTrue(endPoint.runQueryHttp(QUERY + " LIMIT 2").isEmpty());
+      assertEquals("[m.01]", endPoint.runQueryHttp(QUERY + " LIMIT 2")
+          .get("x").toString());
+    } finally {
+      EndpointHealth.MIN_SAMPLES = minSamples;
+    }
+  }
+}
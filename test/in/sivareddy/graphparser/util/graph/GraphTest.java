@@ -0,0 +1,78 @@
+package in.sivareddy.graphparser.util.graph;
+
+import in.sivareddy.graphparser.util.knowledgebase.EntityType;
+import in.sivareddy.graphparser.util.knowledgebase.Property;
+import in.sivareddy.graphparser.util.knowledgebase.Relation;
+import junit.framework.TestCase;
+
+public class GraphTest extends TestCase {
+  Graph<String> graph;
+
+  @Override
+  protected void setUp() throws Exception {
+    graph = new Graph<>();
+    graph.addEdge("x", "y", "e", new Relation("r.1", "r.2"));
+    graph.addType("x", "t", new EntityType("type"));
+    graph.addProperty("x", new Property("QUESTION"));
+  }
+
+  /**
+   * Tests that a copy and its original can be modified independently.
+   */
+  public void testCopyIsIndependent() {
+    int hashCode = graph.hashCode();
+    Graph<String> copy = new Graph<>();
+    graph.copyTo(copy);
+    assertEquals(hashCode, copy.hashCode());
+
+    copy.addEdge("y", "z", "f", new Relation("s.1", "s.2"));
+    copy.addType("y", "u", new EntityType("type"));
+    copy.addProperty("x", new Property("COUNT"));
+    assertEquals(hashCode, graph.hashCode());
+    assertEquals(1, graph.getEdges().size());
+    assertEquals(1, graph.getEdges("y").size());
+    assertNull(graph.getEdges("z"));
+    assertNull(graph.getTypes("y"));
+    assertFalse(graph.hasProperty("x", "COUNT"));
+    assertEquals(2, copy.getEdges().size());
+    assertEquals(2, copy.getEdges("y").size());
+    assertTrue(copy.hasProperty("x", "COUNT"));
+    assertTrue(copy.hasProperty("x", "QUESTION"));
+
+    // Collections returned by getters belong to the graph they came from.
+    copy.getEdges("x").clear();
+    copy.getProperties().get("x").clear();
+    assertEquals(1, graph.getEdges("x").size());
+    assertTrue(graph.hasProperty("x", "QUESTION"));
+
+    graph.getNodeTypes().remove("x");
+    assertEquals(1, copy.getTypes("x").size());
+  }
+
+  /**
+   * Tests that views follow later changes of a graph and leave the collections
+   * it shares with a copy shared.
+   */
+  public void testViewsDoNotCopy() {
+    Graph<String> copy = new Graph<>();
+    graph.copyTo(copy);
+    assertEquals(1, copy.getEdgesView("x").size());
+    assertEquals(1, copy.getTypesView("x").size());
+    assertEquals(1, copy.getPropertiesView("x").size());
+    try {
+      copy.getEdgesView().clear();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Views are read-only.
+    }
+
+    copy.addEdge("x", "z", "f", new Relation("s.1", "s.2"));
+    copy.addProperty("x", new Property("COUNT"));
+    assertEquals(1, graph.getEdgesView("x").size());
+    assertEquals(1, graph.getPropertiesView("x").size());
+    assertEquals(2, copy.getEdgesView("x").size());
+    assertEquals(2, copy.getPropertiesView("x").size());
+    assertTrue(copy.getNodesView().contains("z"));
+    assertFalse(graph.getNodesView().contains("z"));
+  }
+}
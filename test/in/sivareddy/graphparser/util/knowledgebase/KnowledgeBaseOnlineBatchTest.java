@@ -0,0 +1,221 @@
+package in.sivareddy.graphparser.util.knowledgebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import in.sivareddy.graphparser.util.RdfGraphTools;
+import in.sivareddy.graphparser.util.Schema;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+public class KnowledgeBaseOnlineBatchTest {
+  private static final String PREFIXES =
+      "PREFIX fb: <http://rdf.freebase.com/ns/> "
+          + "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> ";
+  private static final String MEDIATOR_TYPE =
+      "?m fb:type.object.type ?z . ?z fb:freebase.type_hints.mediator true .";
+  private static final String NOT_MASTER =
+      "MINUS { ?rel1 fb:type.property.master_property ?master . }";
+
+  // Two films by the same director, with two actors, runtimes and release
+  // dates, stored in both directions as in Freebase.
+  private static final String DATA =
+      "@prefix fb: <http://rdf.freebase.com/ns/> .\n"
+      + "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n"
+      + "fb:film.director.film fb:type.property.master_property fb:film.film.directed_by .\n"
+      + "fb:film.film.starring fb:type.property.master_property fb:film.performance.film .\n"
+      + "fb:film.actor.film fb:type.property.master_property fb:film.performance.actor .\n"
+      + "fb:film.film.runtime fb:type.property.master_property fb:film.film_cut.film .\n"
+      + "fb:film.performance fb:freebase.type_hints.mediator true .\n"
+      + "fb:film.film_cut fb:freebase.type_hints.mediator true .\n"
+      + "fb:m.f1 fb:film.film.directed_by fb:m.d1 .\n"
+      + "fb:m.d1 fb:film.director.film fb:m.f1 .\n"
+      + "fb:m.f2 fb:film.film.directed_by fb:m.d1 .\n"
+      + "fb:m.d1 fb:film.director.film fb:m.f2 .\n"
+      + "fb:m.f1 fb:film.film.initial_release_date \"2001\"^^xsd:datetime .\n"
+      + "fb:m.p1 fb:type.object.type fb:film.performance .\n"
+      + "fb:m.p1 fb:film.performance.film fb:m.f1 .\n"
+      + "fb:m.f1 fb:film.film.starring fb:m.p1 .\n"
+      + "fb:m.p1 fb:film.performance.actor fb:m.a1 .\n"
+      + "fb:m.a1 fb:film.actor.film fb:m.p1 .\n"
+      + "fb:m.p2 fb:type.object.type fb:film.performance .\n"
+      + "fb:m.p2 fb:film.performance.film fb:m.f2 .\n"
+      + "fb:m.f2 fb:film.film.starring fb:m.p2 .\n"
+      + "fb:m.p2 fb:film.performance.actor fb:m.a2 .\n"
+      + "fb:m.a2 fb:film.actor.film fb:m.p2 .\n"
+      + "fb:m.c1 fb:type.object.type fb:film.film_cut .\n"
+      + "fb:m.c1 fb:film.film_cut.film fb:m.f2 .\n"
+      + "fb:m.f2 fb:film.film.runtime fb:m.c1 .\n"
+      + "fb:m.c1 fb:film.film_cut.runtime \"120.5\"^^xsd:decimal .\n";
+
+  /**
+   * Returns the queries of each pattern for the relations between the entity
+   * pair.
+   */
+  private static Map<String, String> getPairQueries(String entity1,
+      String entity2) {
+    Map<String, String> queries = new LinkedHashMap<>();
+    if (!KnowledgeBaseOnline.standardTypes.contains(entity2)) {
+      String e1 = "fb:" + entity1;
+      String e2 = "fb:" + entity2;
+      queries.put(KnowledgeBaseOnline.MASTER, String.format(
+          "SELECT DISTINCT ?rel1 WHERE { %s ?rel1 %s . %s }", e1, e2,
+          NOT_MASTER));
+      queries.put(KnowledgeBaseOnline.INVERSE, String.format(
+          "SELECT DISTINCT ?rel1 WHERE { %s ?rel1 %s . %s }", e2, e1,
+          NOT_MASTER));
+      queries.put(KnowledgeBaseOnline.MEDIATOR, String.format(
+          "SELECT DISTINCT ?rel1 ?rel2 WHERE { ?m ?rel1 %s . ?m ?rel2 %s . %s }",
+          e1, e2, MEDIATOR_TYPE));
+      queries.put(KnowledgeBaseOnline.MEDIATOR_INVERSE_FIRST, String.format(
+          "SELECT DISTINCT ?rel1 ?rel2 WHERE { %s ?rel1 ?m . ?m ?rel2 %s . %s }",
+          e1, e2, MEDIATOR_TYPE));
+      queries.put(KnowledgeBaseOnline.MEDIATOR_INVERSE_SECOND, String.format(
+          "SELECT DISTINCT ?rel1 ?rel2 WHERE { %s ?rel2 ?m . ?m ?rel1 %s . %s }",
+          e2, e1, MEDIATOR_TYPE));
+      queries.put(KnowledgeBaseOnline.MEDIATOR_INVERSE_BOTH, String.format(
+          "SELECT DISTINCT ?rel1 ?rel2 WHERE { %s ?rel1 ?m . %s ?rel2 ?m . %s }",
+          e1, e2, MEDIATOR_TYPE));
+    } else {
+      String e1 = "fb:" + entity1;
+      String datatype =
+          KnowledgeBaseOnline.fbStandardToTdbStandard.get(entity2);
+      queries.put(KnowledgeBaseOnline.MASTER, String.format(
+          "SELECT DISTINCT ?rel1 WHERE { %s ?rel1 ?v . %s FILTER(datatype(?v) = %s) }",
+          e1, NOT_MASTER, datatype));
+      queries.put(KnowledgeBaseOnline.MEDIATOR, String.format(
+          "SELECT DISTINCT ?rel1 ?rel2 WHERE { ?m ?rel1 %s . %s ?m ?rel2 ?v . FILTER(datatype(?v) = %s) }",
+          e1, MEDIATOR_TYPE, datatype));
+      queries.put(KnowledgeBaseOnline.MEDIATOR_INVERSE_FIRST, String.format(
+          "SELECT DISTINCT ?rel1 ?rel2 WHERE { %s ?rel1 ?m . %s ?m ?rel2 ?v . FILTER(datatype(?v) = %s) }",
+          e1, MEDIATOR_TYPE, datatype));
+    }
+    return queries;
+  }
+
+  /**
+   * Returns the queries of each pattern for the relations of the entity.
+   */
+  private static Map<String, String> getEntityQueries(String entity) {
+    String e = "fb:" + entity;
+    String notSelf = "FILTER (?e2 != " + e + ")";
+    Map<String, String> queries = new LinkedHashMap<>();
+    queries.put(KnowledgeBaseOnline.MASTER, String.format(
+        "SELECT DISTINCT ?rel1 WHERE { %s ?rel1 ?e2 . %s }", e, NOT_MASTER));
+    queries.put(KnowledgeBaseOnline.INVERSE, String.format(
+        "SELECT DISTINCT ?rel1 WHERE { ?e2 ?rel1 %s . %s }", e, NOT_MASTER));
+    queries.put(KnowledgeBaseOnline.MEDIATOR, String.format(
+        "SELECT DISTINCT ?rel1 ?rel2 WHERE { ?m ?rel1 %s . %s ?m ?rel2 ?e2 . %s }",
+        e, MEDIATOR_TYPE, notSelf));
+    queries.put(KnowledgeBaseOnline.MEDIATOR_INVERSE_FIRST, String.format(
+        "SELECT DISTINCT ?rel1 ?rel2 WHERE { %s ?rel1 ?m . %s ?m ?rel2 ?e2 . %s }",
+        e, MEDIATOR_TYPE, notSelf));
+    queries.put(KnowledgeBaseOnline.MEDIATOR_INVERSE_SECOND, String.format(
+        "SELECT DISTINCT ?rel1 ?rel2 WHERE { ?m ?rel1 %s . %s ?e2 ?rel2 ?m . %s }",
+        e, MEDIATOR_TYPE, notSelf));
+    queries.put(KnowledgeBaseOnline.MEDIATOR_INVERSE_BOTH, String.format(
+        "SELECT DISTINCT ?rel1 ?rel2 WHERE { %s ?rel1 ?m . %s ?e2 ?rel2 ?m . %s }",
+        e, MEDIATOR_TYPE, notSelf));
+    return queries;
+  }
+
+  /**
+   * Returns the relations found by the queries, with a query per pattern.
+   */
+  private static Set<Relation> getRelations(KnowledgeBaseOnline kb,
+      RdfGraphTools endPoint, Map<String, String> queries) {
+    Set<Relation> relations = new HashSet<>();
+    queries.forEach((pattern, query) -> {
+      for (Map<String, String> solution : endPoint
+          .runQueryHttpSolutions(PREFIXES + query)) {
+        String rel1 = solution.get("rel1");
+        String rel2 = solution.get("rel2");
+        kb.addRelation(relations, pattern,
+            rel1.substring(rel1.lastIndexOf("/") + 1),
+            rel2 == null ? null : rel2.substring(rel2.lastIndexOf("/") + 1));
+      }
+    });
+    return relations;
+  }
+
+  @Test
+  public void testBatchedRelationsMatchPerPairQueries() throws IOException {
+    Model model = ModelFactory.createDefaultModel();
+    model.read(new StringReader(DATA), null, "TTL");
+    RdfGraphTools endPoint =
+        new RdfGraphTools(DatasetFactory.create(model), 0);
+    Schema schema = new Schema("data/freebase/schema/all_domains_schema.txt");
+    KnowledgeBaseOnline kb = new KnowledgeBaseOnline(endPoint, schema);
+
+    List<String> entities =
+        Arrays.asList("m.f1", "m.f2", "m.d1", "m.a1", "m.a2", "m.c1",
+            "type.datetime", "type.float");
+    // Loads the relations of all the pairs in two batches.
+    kb.prefetchRelations(entities);
+
+    int related = 0;
+    for (String entity1 : entities) {
+      for (String entity2 : entities) {
+        boolean inOrder =
+            KnowledgeBaseOnline.standardTypes.contains(entity2)
+                || entity1.compareTo(entity2) < 0;
+        if (entity1.equals(entity2)
+            || KnowledgeBaseOnline.standardTypes.contains(entity1)
+            || !inOrder) {
+          continue;
+        }
+        Map<String, String> queries = getPairQueries(entity1, entity2);
+        Set<Relation> expected = getRelations(kb, endPoint, queries);
+        assertEquals(entity1 + " " + entity2, expected,
+            kb.getRelations(entity1, entity2));
+        boolean hasRelation = false;
+        for (String query : queries.values()) {
+          hasRelation |=
+              !endPoint.runQueryHttpSolutions(PREFIXES + query).isEmpty();
+        }
+        assertEquals(entity1 + " " + entity2, hasRelation,
+            kb.hasRelation(entity1, entity2));
+        related += expected.isEmpty() ? 0 : 1;
+      }
+    }
+    assertTrue(related >= 5);
+
+    assertTrue(kb.getRelations("m.f1", "m.d1").contains(
+        new Relation("film.film.directed_by.1", "film.film.directed_by.2")));
+    assertTrue(kb.getRelations("m.a1", "m.f1").contains(
+        new Relation("film.performance.actor", "film.performance.film")));
+    assertFalse(kb.getRelations("m.f2", "type.float").isEmpty());
+    assertTrue(kb.getRelations("m.f2", "type.datetime").isEmpty());
+    assertTrue(kb.hasRelation("m.d1", "m.f1"));
+    assertFalse(kb.hasRelation("m.a1", "m.d1"));
+
+    // Relations of single entities, loaded together by concurrent threads.
+    List<String> singleEntities =
+        Arrays.asList("m.f1", "m.f2", "m.d1", "m.a1", "m.a2", "m.c1", "m.p1");
+    Map<String, Set<Relation>> relations = new ConcurrentHashMap<>();
+    singleEntities.parallelStream().forEach(
+        entity -> relations.put(entity, kb.getRelations(entity)));
+    int withRelations = 0;
+    for (String entity : singleEntities) {
+      Set<Relation> expected =
+          getRelations(kb, endPoint, getEntityQueries(entity));
+      assertEquals(entity, expected, relations.get(entity));
+      withRelations += expected.isEmpty() ? 0 : 1;
+    }
+    assertTrue(withRelations >= 4);
+  }
+}
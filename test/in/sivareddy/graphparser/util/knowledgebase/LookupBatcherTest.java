@@ -0,0 +1,120 @@
+package in.sivareddy.graphparser.util.knowledgebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LookupBatcherTest {
+
+  private static Map<Integer, String> getValues(List<Integer> keys) {
+    Map<Integer, String> values = new HashMap<>();
+    keys.forEach(key -> values.put(key, "v" + key));
+    return values;
+  }
+
+  @Test
+  public void testLoneThreadDoesNotWait() {
+    List<List<Integer>> batches = new ArrayList<>();
+    LookupBatcher<Integer, String> batcher =
+        new LookupBatcher<>(keys -> {
+          batches.add(keys);
+          return getValues(keys);
+        }, 60000, 16);
+    long start = System.nanoTime();
+    assertEquals("v1", batcher.get(1));
+    assertEquals("v2", batcher.get(2));
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+    assertEquals(Arrays.asList(Arrays.asList(1), Arrays.asList(2)), batches);
+  }
+
+  @Test
+  public void testConcurrentMissesShareOneLoad() throws Exception {
+    List<List<Integer>> batches = new ArrayList<>();
+    CountDownLatch firstLoadStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstLoad = new CountDownLatch(1);
+    LookupBatcher<Integer, String> batcher =
+        new LookupBatcher<>(keys -> {
+          boolean first;
+          synchronized (batches) {
+            first = batches.isEmpty();
+            batches.add(keys);
+          }
+          if (first) {
+            // Keeps a batch loading, so that the next leader waits for keys.
+            firstLoadStarted.countDown();
+            try {
+              releaseFirstLoad.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          return getValues(keys);
+        }, 60000, 4);
+
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    try {
+      Future<String> first = executor.submit(() -> batcher.get(0));
+      firstLoadStarted.await();
+      List<Future<String>> misses = new ArrayList<>();
+      for (int key = 1; key <= 4; key++) {
+        int lookup = key;
+        misses.add(executor.submit(() -> batcher.get(lookup)));
+      }
+      for (int key = 1; key <= 4; key++) {
+        assertEquals("v" + key, misses.get(key - 1).get(30, TimeUnit.SECONDS));
+      }
+      releaseFirstLoad.countDown();
+      assertEquals("v0", first.get(30, TimeUnit.SECONDS));
+    } finally {
+      releaseFirstLoad.countDown();
+      executor.shutdownNow();
+    }
+
+    assertEquals(2, batches.size());
+    assertEquals(Arrays.asList(0), batches.get(0));
+    assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4)), new HashSet<>(
+        batches.get(1)));
+  }
+
+  @Test
+  public void testExceptionsReachTheCallers() {
+    boolean[] failing = {true};
+    LookupBatcher<Integer, String> batcher =
+        new LookupBatcher<>(keys -> {
+          if (failing[0]) {
+            throw new IllegalStateException("Endpoint down");
+          }
+          return getValues(keys);
+        }, 5, 16);
+    try {
+      batcher.get(1);
+      fail("The exception of the loader should be thrown");
+    } catch (IllegalStateException e) {
+      assertEquals("Endpoint down", e.getMessage());
+    }
+    try {
+      batcher.getAll(Arrays.asList(1, 2));
+      fail("The exception of the loader should be thrown");
+    } catch (IllegalStateException e) {
+      assertEquals("Endpoint down", e.getMessage());
+    }
+
+    // Failed keys are loaded again.
+    failing[0] = false;
+    assertEquals("v1", batcher.get(1));
+  }
+}
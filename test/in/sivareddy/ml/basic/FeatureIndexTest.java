@@ -0,0 +1,35 @@
+package in.sivareddy.ml.basic;
+
+import in.sivareddy.graphparser.parsing.LexicalGraph.MergedEdgeFeature;
+import in.sivareddy.graphparser.parsing.LexicalGraph.UrelGrelFeature;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FeatureIndexTest extends TestCase {
+
+  /**
+   * Tests that changing the value of an interned feature leaves the interned
+   * feature unchanged.
+   */
+  public void testInternedFeatureIsACopy() {
+    Feature feature =
+        new MergedEdgeFeature(Arrays.asList("index", "copy"), 2.0);
+    int index = FeatureIndex.intern(feature);
+    feature.setFeatureValue(-2.0);
+
+    Feature interned = FeatureIndex.getFeature(index);
+    assertNotSame(feature, interned);
+    assertEquals(MergedEdgeFeature.class, interned.getClass());
+    assertEquals(feature.getFeatureKey(), interned.getFeatureKey());
+    assertEquals(1.0, interned.getFeatureValue(), 0.0);
+
+    assertEquals(index, FeatureIndex.getIndex(interned));
+    assertEquals(index, FeatureIndex.intern(new MergedEdgeFeature(Arrays
+        .asList("index", "copy"), 3.0)));
+    assertEquals(-1, FeatureIndex.getIndex(new UrelGrelFeature(Arrays.asList(
+        "index", "copy"), 1.0)));
+    assertEquals(-2.0, feature.getFeatureValue(), 0.0);
+  }
+}
@@ -1,5 +1,11 @@
 package in.sivareddy.ml.learning;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,7 +26,8 @@ public class StrcuturedPerceptronSerializationTest extends TestCase {
    * Tests if object serialization is working.
    * 
    */
-  public void testSerilization() {
+  public void testSerilization() throws IOException,
+      ClassNotFoundException {
     Relation urel = new Relation("uleft", "uright", 1.5);
     Relation grel = new Relation("gleft", "gright", 2.0);
     List<Relation> key = new ArrayList<>();
@@ -46,10 +53,84 @@ public class StrcuturedPerceptronSerializationTest extends TestCase {
     goldFeatures = new ArrayList<>();
     goldFeatures.add(feat);
 
-    StructuredPercepton clone = sp.serialClone();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(sp);
+    out.close();
+    ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    StructuredPercepton clone = (StructuredPercepton) in.readObject();
     assertEquals(sp.getScoreTraining(new ArrayList<>(goldFeatures)),
         clone.getScoreTraining(new ArrayList<>(goldFeatures)));
     assertEquals(sp.getScoreTesting(new ArrayList<>(goldFeatures)),
         clone.getScoreTesting(new ArrayList<>(goldFeatures)));
   }
+
+  /**
+   * Tests if a model saved in the binary format loads with the same weights.
+   * 
+   * @throws IOException
+   */
+  public void testSaveAndLoadModel() throws IOException {
+    List<Feature> features = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      List<Relation> key = new ArrayList<>();
+      key.add(new Relation("uleft" + i, "uright"));
+      key.add(new Relation("gleft", "gright" + i));
+      features.add(new UrelGrelFeature(key, 1.0));
+    }
+    sp.updateWeightVector(1, features.subList(0, 5), 1,
+        features.subList(5, 10));
+    sp.updateWeightVector(1, features.subList(0, 2), 1,
+        features.subList(8, 10));
+
+    File modelFile = File.createTempFile("model", ".bin");
+    modelFile.deleteOnExit();
+    boolean saveReadableModel = StructuredPercepton.SAVE_READABLE_MODEL;
+    StructuredPercepton.SAVE_READABLE_MODEL = false;
+    try {
+      sp.saveModel(modelFile.getPath());
+    } finally {
+      StructuredPercepton.SAVE_READABLE_MODEL = saveReadableModel;
+    }
+
+    StructuredPercepton loaded =
+        StructuredPercepton.loadModel(modelFile.getPath());
+    for (Feature feature : features) {
+      List<Feature> featureVector = new ArrayList<>();
+      featureVector.add(feature);
+      assertEquals(sp.getScoreTraining(featureVector),
+          loaded.getScoreTraining(featureVector));
+      assertEquals(sp.getScoreTesting(featureVector),
+          loaded.getScoreTesting(featureVector));
+    }
+  }
+
+  /**
+   * Tests if a snapshot and its model are updated independently.
+   */
+  public void testSnapshot() {
+    Relation urel = new Relation("uleft", "uright");
+    Relation grel = new Relation("gleft", "gright");
+    List<Relation> key = new ArrayList<>();
+    key.add(urel);
+    key.add(grel);
+    List<Feature> goldFeatures = new ArrayList<>();
+    goldFeatures.add(new UrelGrelFeature(key, 1.0));
+    List<Feature> predictedFeatures = new ArrayList<>();
+
+    sp.updateWeightVector(1, goldFeatures, 1, predictedFeatures);
+    StructuredPercepton snapshot = sp.snapshot();
+    assertEquals(sp.getScoreTraining(goldFeatures),
+        snapshot.getScoreTraining(goldFeatures));
+
+    Double before = sp.getScoreTraining(goldFeatures);
+    sp.updateWeightVector(1, goldFeatures, 1, predictedFeatures);
+    assertEquals(before, snapshot.getScoreTraining(goldFeatures));
+
+    snapshot.updateWeightVector(1, goldFeatures, 1, predictedFeatures);
+    snapshot.updateWeightVector(1, goldFeatures, 1, predictedFeatures);
+    assertTrue(snapshot.getScoreTraining(goldFeatures) > sp
+        .getScoreTraining(goldFeatures));
+  }
 }
@@ -0,0 +1,88 @@
+package in.sivareddy.ml.learning;
+
+import in.sivareddy.graphparser.parsing.LexicalGraph.MergedEdgeFeature;
+import in.sivareddy.ml.basic.Feature;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+public class WeightUpdatesTest extends TestCase {
+
+  /**
+   * Tests if updates recorded by several threads and applied in order give
+   * the weights of the same updates made one after another.
+   */
+  public void testRecordedUpdatesMatchSequentialUpdates() throws Exception {
+    Random random = new Random(1);
+    StructuredPercepton sequential = new StructuredPercepton();
+    StructuredPercepton recorded = new StructuredPercepton();
+    List<Feature> allFeatures = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int batch = 0; batch < 5; batch++) {
+        List<List<Feature>> gold = new ArrayList<>();
+        List<List<Feature>> predicted = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+          gold.add(getFeatures(random));
+          predicted.add(getFeatures(random));
+          allFeatures.addAll(gold.get(i));
+          allFeatures.addAll(predicted.get(i));
+        }
+
+        for (int i = 0; i < gold.size(); i++) {
+          sequential.updateWeightVector(2, gold.get(i), 3, predicted.get(i));
+        }
+
+        // Steps are recorded in a shuffled order, on several threads.
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < gold.size(); i++) {
+          order.add(i);
+        }
+        Collections.shuffle(order, random);
+        List<Future<WeightUpdates>> futures = new ArrayList<>();
+        for (int i = 0; i < gold.size(); i++) {
+          futures.add(null);
+        }
+        for (int i : order) {
+          futures.set(i, executor.submit(() -> recorded.collectUpdates(
+              () -> recorded.updateWeightVector(2, gold.get(i), 3,
+                  predicted.get(i)))));
+        }
+        List<WeightUpdates> updates = new ArrayList<>();
+        for (Future<WeightUpdates> future : futures) {
+          updates.add(future.get());
+        }
+        long generation = recorded.getGeneration();
+        recorded.applyUpdates(updates);
+        assertEquals(generation + 1, recorded.getGeneration());
+
+        for (Feature feature : allFeatures) {
+          List<Feature> features = Arrays.asList(feature);
+          assertEquals(sequential.getScoreTraining(features),
+              recorded.getScoreTraining(features), 0.0);
+          assertEquals(sequential.getScoreTesting(features),
+              recorded.getScoreTesting(features), 0.0);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static List<Feature> getFeatures(Random random) {
+    List<Feature> features = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      features.add(new MergedEdgeFeature(Arrays.asList("updates",
+          random.nextInt(15)), random.nextDouble() - 0.5));
+    }
+    return features;
+  }
+}
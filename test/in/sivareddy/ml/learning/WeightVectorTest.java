@@ -0,0 +1,37 @@
+package in.sivareddy.ml.learning;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class WeightVectorTest extends TestCase {
+
+  /**
+   * Tests if the averaged weight is read from the cumulative weight and the
+   * frequency of the same update while the feature is being updated.
+   *
+   * @throws InterruptedException
+   */
+  public void testConsistentAveragedWeight() throws InterruptedException {
+    WeightVector weightVector = new WeightVector();
+    weightVector.set(7, 2.0, 2.0, 1);
+    AtomicBoolean done = new AtomicBoolean(false);
+
+    // Every update keeps the averaged weight at 2.0.
+    Thread writer = new Thread(() -> {
+      for (int i = 0; i < 2000000; i++) {
+        int frequency = 1 + i % 1000;
+        weightVector.set(7, 2.0, 2.0 * frequency, frequency);
+      }
+      done.set(true);
+    });
+    writer.start();
+
+    int reads = 0;
+    while (!done.get() || reads == 0) {
+      assertEquals(2.0, weightVector.getAveragedWeight(7));
+      reads++;
+    }
+    writer.join();
+  }
+}